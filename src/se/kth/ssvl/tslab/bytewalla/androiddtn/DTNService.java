@@ -19,13 +19,13 @@
  */
 package se.kth.ssvl.tslab.bytewalla.androiddtn;
 
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import se.kth.ssvl.tslab.bytewalla.androiddtn.applib.DTNAPIBinder;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleDaemon;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.EventShardBenchmark;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.PayloadChannelCache;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ShutdownRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.common.ServlibEventData;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.common.ServlibEventHandler;
@@ -33,6 +33,8 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfigurationParser;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.InvalidDTNConfigurationException;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.ReadingConfigurationFileException;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.metadata_store_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.storage_type_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.ContactManager;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.InterfaceTable;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.conv_layers.ConvergenceLayer;
@@ -41,17 +43,26 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.discovery.DiscoveryTable;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.RegistrationTable;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.routing.BundleRouter;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.BundleStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.BundleStoreBenchmark;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.FileMetadataStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.GarbageCollector;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.GlobalStorage;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.MemoryMetadataStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.MetadataStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.ObjectStoreBenchmark;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.RegistrationStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.SQLiteImplementation;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.StorageExecutor;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.WriteBehindQueue;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.energy.BatteryObserver;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.energy.BatteryStat;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.energy.BatteryStatsReceiver;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.MsgBlockingQueue;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.TimingWheel;
 import android.content.Context;
 import android.content.Intent;
 import android.net.wifi.WifiManager;
+import android.os.Environment;
 import android.os.IBinder;
 import android.util.Log;
  
@@ -64,8 +75,6 @@ public class DTNService extends android.app.Service {
 	private Lock lock_;
 	private static Context context_;
 	private static boolean is_running_ = false;
-	private static Timer timer_;
-	private static HashMap<VirtualTimerTask, TimerTask> timer_tasks_map_;
 	private static BatteryStat battery_stat_ = null;
 	private static BatteryObserver battery_observer_ = null;
 	
@@ -91,26 +100,6 @@ public class DTNService extends android.app.Service {
 		return context_;
 	}
 	
-	/**
-	 * Getter for internal Timer
-	 * @return
-	 */
-	public static Timer timer()
-	{
-		return timer_;
-	}
-	
-	
-	/**
-	 * Getter for the HashMap control timer and virtual timer task
-	 * @return the internal HashMap
-	 * @see VirtualTimerTask, TimerTask
-	 */
-	public static HashMap<VirtualTimerTask,TimerTask> timer_tasks_map()
-	{
-		return timer_tasks_map_;
-	}
-	
 	/**
 	 * onCreate overriden frm Android Service. Initialization of the DTNServer is done here.
 	 */
@@ -158,16 +147,15 @@ public class DTNService extends android.app.Service {
     
 
     /**
-     * Init the components inside DTNServer include Timer and BatteryObserver
+     * Init the components inside DTNServer include TimingWheel and BatteryObserver
      *
-     * @see BatteryObserver, Timer
+     * @see BatteryObserver, TimingWheel
      */
     private void init() throws  ReadingConfigurationFileException, InvalidDTNConfigurationException, FileNotFoundException
     {    	
     	// then open the configuration file for reading
     	try{
     	context_ = getApplicationContext();
-    	timer_   = new Timer();
     	
     	battery_observer_ = new BatteryObserver() {
 			
@@ -179,8 +167,6 @@ public class DTNService extends android.app.Service {
 		};
 		// start listening to battery status update
 		BatteryStatsReceiver.getInstance().registerBatteryObserver(battery_observer_);
-		// create a HashMap for timer_tasks_map_
-    	timer_tasks_map_ = new HashMap<VirtualTimerTask,TimerTask>();
     	    	 	
     	if (getResources().getString(
 				(R.string.DTNTestDataLogging_ONSDCard)).equals("true"))
@@ -195,6 +181,8 @@ public class DTNService extends android.app.Service {
     		DTNConfiguration.default_dtn_config().routes_setting().set_local_eid(getDefaultEID());
         	config_ = DTNConfigurationParser.parse_config_file(
         			openFileInput(getResources().getString(R.string.DTNConfigFilePath)));
+        	
+        	TimingWheel.getInstance().start(config_.routes_setting().timer_tick());
         	    	
         	ConvergenceLayer.init_clayers();
         	DiscoveryTable.getInstance().init(config_);
@@ -232,18 +220,101 @@ public class DTNService extends android.app.Service {
      */
     private void init_datastore(DTNConfiguration config)
     {
-    	BundleStore.getInstance().init(getApplicationContext(), config );
-    	RegistrationStore.getInstance().init(getApplicationContext(), config);
-    	GlobalStorage.getInstance().init(getApplicationContext(), config);
+    	String app_path = app_path(config);
+    	BundleStore.getInstance().init(create_metadata_store(config, app_path, "bundles"), app_path, config );
+    	RegistrationStore.getInstance().init(create_metadata_store(config, app_path, "registration"), app_path, config);
+    	GlobalStorage.getInstance().init(app_path, metadata_path(config, app_path), config);
+    	PayloadChannelCache.getInstance().init(config);
+    	StorageExecutor.getInstance().init();
+    	WriteBehindQueue.getInstance().init(config);
+    	GarbageCollector.getInstance().init(config);
     	
     	
+    	// the objects stored in the last run can't be found without their tables
     	if (getResources().getString(
-				(R.string.DTNCleanUpInitialize)).equals("true"))
+				(R.string.DTNCleanUpInitialize)).equals("true")
+				|| config.storage_setting().metadata_store() == metadata_store_t.MEMORY)
 		{
     		BundleStore.getInstance().reset_storage();
     		RegistrationStore.getInstance().reset_storage();
 		}
     	
+    	if (getResources().getString(
+				(R.string.DTNStorageBenchmark)).equals("true"))
+		{
+    		StringBuffer buf = new StringBuffer();
+    		boolean ok = ObjectStoreBenchmark.run_bundles(
+    				new File(app_path, "benchmark"), 1000, buf);
+    		Log.i("ObjectStoreBenchmark", buf.toString());
+    		if (!ok)
+    			Log.e("ObjectStoreBenchmark", "A backend didn't read back what was written");
+    		
+    		String database = "benchmark";
+    		buf = new StringBuffer();
+    		ok = BundleStoreBenchmark.run_all(new File(app_path, "bundle_store_benchmark"), config,
+    				SQLiteImplementation.open_database(getApplicationContext(), database), 1000, buf);
+    		// the benchmark left the BundleStore in its own folders, this also closes their database
+    		BundleStore.getInstance().init(create_metadata_store(config, app_path, "bundles"), app_path, config);
+    		getApplicationContext().deleteDatabase(database);
+    		Log.i("BundleStoreBenchmark", buf.toString());
+    		if (!ok)
+    			Log.e("BundleStoreBenchmark", "A backend didn't read back what was written");
+		}
+    	
+    }
+
+    /**
+     * Get the path of the application folder in the phone memory or on the SD card
+     * as configured. The stores keep their files in subfolders of it.
+     * @param config
+     * @return The absolute path
+     */
+    private String app_path(DTNConfiguration config)
+    {
+    	String app_folder = "/"+config.storage_setting().storage_path();
+    	if (config.storage_setting().storage_type()==storage_type_t.PHONE)
+    		return getApplicationContext().getFilesDir().getAbsolutePath().concat(app_folder);
+    	return Environment.getExternalStorageDirectory().getAbsolutePath().concat(app_folder);
+    }
+
+    /**
+     * Create the MetadataStore keeping a table of the stores as configured
+     * @param config
+     * @param app_path Path of the application folder
+     * @param name Name of the journal file of the file backend
+     * @return The MetadataStore
+     */
+    private MetadataStore create_metadata_store(DTNConfiguration config, String app_path, String name)
+    {
+    	switch (config.storage_setting().metadata_store())
+    	{
+    	case FILE:
+    		return new FileMetadataStore(metadata_path(config, app_path) + "/" + name);
+    	case MEMORY:
+    		return new MemoryMetadataStore();
+    	default:
+    		return new SQLiteImplementation(getApplicationContext());
+    	}
+    }
+
+    /**
+     * Get the path of the database file or the folder of the journal files
+     * keeping the tables of the stores, counted in the storage in use.
+     * @param config
+     * @param app_path Path of the application folder
+     * @return The absolute path, null if the tables are only kept in memory
+     */
+    private String metadata_path(DTNConfiguration config, String app_path)
+    {
+    	switch (config.storage_setting().metadata_store())
+    	{
+    	case FILE:
+    		return app_path.concat("/metadata");
+    	case MEMORY:
+    		return null;
+    	default:
+    		return getApplicationContext().getDatabasePath(config.storage_setting().storage_path()).getAbsolutePath();
+    	}
     }
 
     /**
@@ -252,6 +323,9 @@ public class DTNService extends android.app.Service {
     private void close_datastore()
     {
     	Log.d(TAG, "DTNServer closing data storage");
+    	GarbageCollector.getInstance().close();
+    	WriteBehindQueue.getInstance().close();
+    	StorageExecutor.getInstance().shutdown();
     	BundleStore.getInstance().close();
     	RegistrationStore.getInstance().close();
     	GlobalStorage.getInstance().close();
@@ -268,6 +342,21 @@ public class DTNService extends android.app.Service {
     	DiscoveryTable.getInstance().start();
     	Log.d(TAG, "DTNServer:  started Bundle Daemon");
     	is_running_ = true;
+    	
+    	if (getResources().getString(
+				(R.string.DTNEventBenchmark)).equals("true"))
+		{
+    		// the benchmark waits for the daemon, so it gets its own thread
+    		new Thread("EventShardBenchmark") {
+    			public void run() {
+    				StringBuffer buf = new StringBuffer();
+    				boolean ok = EventShardBenchmark.run(4, 1000, buf);
+    				Log.i("EventShardBenchmark", buf.toString());
+    				if (!ok)
+    					Log.e("EventShardBenchmark", "Not all the bundles were transmitted");
+    			}
+    		}.start();
+		}
     }
 
     /**
@@ -279,13 +368,11 @@ public class DTNService extends android.app.Service {
         lock_.lock();
         try
         {
-        	MsgBlockingQueue<Integer> notifier = new MsgBlockingQueue<Integer>(1);
         	Log.i(TAG, "DTNServer:shutdown, shutdown called, posting shutdown request to daemon");
         	ShutdownRequest event = new ShutdownRequest();
         	
         	// Post the shutdown request and wait until it is executed
-        	BundleDaemon.getInstance().post_and_wait
-        	(event, notifier, -1, true);
+        	BundleDaemon.getInstance().submit_and_wait(event);
         
         	RegistrationTable.getInstance().shutdown();
         	DiscoveryTable.getInstance().shutdown();
@@ -294,8 +381,7 @@ public class DTNService extends android.app.Service {
         	BatteryStatsReceiver.getInstance().shutdown();
         	TestDataLogger.getInstance().shutdown();
         	close_datastore();
-        	timer_.cancel();
-        	timer_tasks_map_.clear();
+        	TimingWheel.getInstance().shutdown();
         	
         	
         	Log.i(TAG,"DTNService shutdown routine finished");
@@ -64,7 +64,6 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.RegistrationTable;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.Registration.failure_action_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.RegistrationStore;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.MsgBlockingQueue;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.BufferHelper;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.IByteBuffer;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.List;
@@ -85,6 +84,12 @@ public class DTNAPIBinder extends Binder implements DTNAPI {
 	 */
 	private static String TAG = "DTNAPIBinder";
 
+	/**
+	 * Maximum time in milliseconds an API call waits for the BundleDaemon to
+	 * handle its event
+	 */
+	private static final long EVENT_TIMEOUT = 30000;
+
 	/**
 	 *  List for holding DTN Handles registred with this binder
 	 */
@@ -429,9 +434,10 @@ public class DTNAPIBinder extends Binder implements DTNAPI {
 
 		
 		List<Integer> regids = new List<Integer>();
+		List<Integer> previous;
 		handle.get_lock().lock();
 		try {
-			bindings_.put(handle, regids);
+			previous = bindings_.put(handle, regids);
 		} finally {
 			handle.get_lock().unlock();
 		}
@@ -440,10 +446,22 @@ public class DTNAPIBinder extends Binder implements DTNAPI {
 			regids.add(new Integer(regid));
 			reg.set_active(true);
 		}
-		MsgBlockingQueue<Integer> notifier_ = new MsgBlockingQueue<Integer>(1);
-		BundleDaemon.getInstance().post_and_wait(
+		if (!BundleDaemon.getInstance().submit_and_wait(
 				new RegistrationAddedEvent(reg, event_source_t.EVENTSRC_APP),
-				notifier_, -1, true);
+				EVENT_TIMEOUT)) {
+			// the registration was not added, undo the binding and activation
+			reg.set_active(false);
+			handle.get_lock().lock();
+			try {
+				if (previous == null)
+					bindings_.remove(handle);
+				else
+					bindings_.put(handle, previous);
+			} finally {
+				handle.get_lock().unlock();
+			}
+			return dtn_api_status_report_code.DTN_EINTERNAL;
+		}
 
 		// fill the data with new regid before return
 		newregid[0] = regid;
@@ -650,11 +668,11 @@ public class DTNAPIBinder extends Binder implements DTNAPI {
 		// determine if there's sufficient storage for the bundle
 		boolean result[] = new boolean[1];
 
-		MsgBlockingQueue<Integer> notifier_ = new MsgBlockingQueue<Integer>(1);
 		BundleProtocol.status_report_reason_t reason[] = new BundleProtocol.status_report_reason_t[1];
-		BundleDaemon.getInstance().post_and_wait(
+		if (!BundleDaemon.getInstance().submit_and_wait(
 				new BundleAcceptRequest(b, event_source_t.EVENTSRC_APP, result,
-						reason), notifier_, -1, true);
+						reason), EVENT_TIMEOUT))
+			return dtn_api_status_report_code.DTN_EINTERNAL;
 
 		if (!result[0]) {
 			Log.i(TAG, String.format("DTN_SEND bundle not accepted: reason %s",
@@ -744,7 +762,7 @@ public class DTNAPIBinder extends Binder implements DTNAPI {
 												.length()));
 
 		// deliver the bundle
-		BundleDaemon.getInstance().post(new BundleReceivedEvent(b, event_source_t.EVENTSRC_APP));
+		BundleDaemon.getInstance().post_with_backpressure(new BundleReceivedEvent(b, event_source_t.EVENTSRC_APP));
 
 		
 		return dtn_api_status_report_code.DTN_SUCCESS;
@@ -788,9 +806,9 @@ public class DTNAPIBinder extends Binder implements DTNAPI {
 			return dtn_api_status_report_code.DTN_EBUSY;
 		}
 
-		MsgBlockingQueue<Integer> notifier_ = new MsgBlockingQueue<Integer>(1);
-		BundleDaemon.getInstance().post_and_wait(
-				new RegistrationRemovedEvent(reg), notifier_, -1, true);
+		if (!BundleDaemon.getInstance().submit_and_wait(
+				new RegistrationRemovedEvent(reg), EVENT_TIMEOUT))
+			return dtn_api_status_report_code.DTN_EINTERNAL;
 
 		return dtn_api_status_report_code.DTN_SUCCESS;
 	}
@@ -30,7 +30,6 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.exception.BundleL
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.BundleStore;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.Set;
 import android.util.Log;
 
 /**
@@ -74,6 +73,17 @@ public class Bundle implements Serializable {
 	}
 
 
+	/**
+	 * Constructor to restore a bundle from the storage. The stored bundle id is
+	 * kept and the bundle is not added to the BundleStore again.
+	 */
+	public Bundle(int bundleid, BundlePayload.location_t location) {
+		init(bundleid);
+
+		payload_ = new BundlePayload(lock_);
+		payload_.init(bundleid_, location);
+	}
+
 	/**
 	 * Copy the metadata from one bundle to another (used in fragmentation).
 	 */
@@ -164,10 +174,10 @@ public class Bundle implements Serializable {
 			buf
 					.append(String.format("queued on %d lists:\n", mappings_
 							.size()));
-			Iterator<BundleList> map_itr = mappings_.iterator();
-			while (map_itr.hasNext()) {
-				BundleList list = map_itr.next();
-				buf.append(String.format("\t%s\n", list.name()));
+			for (int i = 0; i < mappings_.size(); i++) {
+				BundleList list = mappings_.get(i);
+				buf.append(String.format("\t%s\n", list == null ? "slot "
+						+ mappings_.slot(i) : list.name()));
 			}
 
 			buf.append("\nblocks:");
@@ -203,10 +213,10 @@ public class Bundle implements Serializable {
 	}
 
 	/**
-	 * Size of the data stored
+	 * Size of the data stored, the compressed size for a compressed payload
 	 */
 	public long durable_size() {
-		return payload_.length();
+		return payload_.stored_length();
 	}
 
 	
@@ -235,7 +245,7 @@ public class Bundle implements Serializable {
 	 * Return a pointer to the mappings. Requires that the bundle be locked.
 	 * @throws BundleLockNotHeldByCurrentThread
 	 */
-	public Set<BundleList> mappings() throws BundleLockNotHeldByCurrentThread {
+	public BundleMappings mappings() throws BundleLockNotHeldByCurrentThread {
 		if (lock_.isHeldByCurrentThread())
 			return mappings_;
 		else
@@ -246,7 +256,7 @@ public class Bundle implements Serializable {
 	 * Setter for the mapping of this Bundle
 	 * @param mappings
 	 */
-	public void set_mappings(Set<BundleList> mappings) {
+	public void set_mappings(BundleMappings mappings) {
 		lock_.lock();
 		try
 		{
@@ -262,14 +272,12 @@ public class Bundle implements Serializable {
 	 * Getter for the mapping copy of this Bundle
 	 * @return
 	 */
-	public Set<BundleList> get_mappings_copy()
+	public BundleMappings get_mappings_copy()
 	{
 		lock_.lock();
 		try
 		{
-			Set<BundleList> copy_of_mappings = new Set<BundleList>();
-			copy_of_mappings.addAll(mappings_);
-			return copy_of_mappings;
+			return mappings_.copy();
 		}
 		finally
 		{
@@ -1067,15 +1075,20 @@ public class Bundle implements Serializable {
 
 
 	/**
-	 * The set of BundleLists that contain the Bundle.
+	 * The slot ids of the BundleLists that contain the Bundle.
 	 */
-	private Set<BundleList> mappings_;
+	private BundleMappings mappings_;
 
 	/**
 	 * Flag indicating whether this Bundle is fully consumed or generated by the BlockProcessor
 	 */
 	private boolean complete_;
 
+	/**
+	 * Flag indicating whether the BundleDaemon started deleting this Bundle, guarded by lock_
+	 */
+	private boolean deleted_;
+
 
 	/**
 	 * Initialization helper function.
@@ -1104,7 +1117,7 @@ public class Bundle implements Serializable {
 		is_admin_ = false;
 		is_fragment_ = false;
 		local_custody_ = false;
-		mappings_ = new Set<BundleList>();
+		mappings_ = new BundleMappings();
 		orig_length_ = 0;
 		owner_ = "";
 		// payload is initiazlied in the Constructor
@@ -1133,4 +1146,22 @@ public class Bundle implements Serializable {
 	public void set_complete(boolean complete) {
 		complete_ = complete;
 	}
+
+	/**
+	 * Mark the Bundle as deleted. Bundles can be deleted from several threads,
+	 * for example when one is evicted for another received at the same time,
+	 * only the first caller goes on deleting it.
+	 * @return true if the Bundle was not marked deleted before
+	 */
+	public boolean mark_deleted() {
+		lock_.lock();
+		try {
+			if (deleted_)
+				return false;
+			deleted_ = true;
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
 };
@@ -30,6 +30,7 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.event_sourc
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.exception.BundleListLockNotHoldByCurrentThread;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.Link;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.BundleStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.WriteBehindQueue;
 import android.util.Log;
 
 /**
@@ -399,11 +400,8 @@ public class BundleActions {
 	protected void store_add(Bundle bundle) {
 		Log.d(TAG, String.format("adding bundle %d to data store", bundle
 				.bundleid()));
-		boolean added = BundleStore.getInstance().add(bundle);
-		if (!added) {
-			Log.e(TAG, String.format("error adding bundle %d to data store!!",
-					bundle.bundleid()));
-		}
+		// the result is reported back with a StoreCompletedEvent
+		BundleStore.getInstance().add_async(bundle);
 	}
 
 	/**
@@ -413,7 +411,7 @@ public class BundleActions {
 	protected void store_update(Bundle bundle) {
 		Log.d(TAG, String.format("updating bundle %d in data store", bundle
 				.bundleid()));
-		boolean updated = BundleStore.getInstance().update(bundle);
+		boolean updated = WriteBehindQueue.getInstance().update(bundle);
 		if (!updated) {
 			Log.e(TAG, String.format(
 					"error updating bundle %d in data store!!", bundle
@@ -427,12 +425,8 @@ public class BundleActions {
 	protected void store_del(Bundle bundle) {
 		Log.d(TAG, String.format("removing bundle %d from data store", bundle
 				.bundleid()));
-		boolean removed = BundleStore.getInstance().del(bundle);
-		if (!removed) {
-			Log.e(TAG, String.format(
-					"error removing bundle %d from data store!!", bundle
-							.bundleid()));
-		}
+		// the result is reported back with a StoreCompletedEvent
+		BundleStore.getInstance().del_async(bundle);
 	}
 
 };
@@ -22,12 +22,16 @@ package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
 
 import java.io.File;
 import java.util.Calendar;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.ListIterator;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import se.kth.ssvl.tslab.bytewalla.androiddtn.DTNManager;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.DTNService;
@@ -39,6 +43,7 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleCance
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleDeleteRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleDeliveredEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEventFuture;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleExpiredEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleFreeEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleInjectRequest;
@@ -91,6 +96,7 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.RouteReport
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.SetLinkDefaultsRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ShutdownRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StatusRequest;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.event_source_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.event_type_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ContactEvent.reason_t;
@@ -116,8 +122,14 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.routing.BundleRouter;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.routing.RoutingException;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.routing.BundleRouter.router_type_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.BundleStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.GarbageCollector;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.GlobalStorage;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.PayloadDedupStore;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.RegistrationStore;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.MsgBlockingQueue;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.StorageExecutor;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.WriteBehindQueue;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.TimingWheel;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.List;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.TimeHelper;
 import android.util.Log;
@@ -173,58 +185,33 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 
 	}
 	
-	/**
-	 * Comparator implementation to sort BundleEvent according to the event's priority
-	 */
-	private static class BundleEventPriorityComparator implements Comparator<BundleEvent>
-	{
-
-		private static BundleEventPriorityComparator instance_;
-		public static BundleEventPriorityComparator getInstance()
-		{
-			if (instance_ == null)
-			{
-				instance_ = new BundleEventPriorityComparator();
-			}
-			return instance_;
-		}
-		
-		public int compare(BundleEvent event1, BundleEvent event2) {
-
-			// according the PriorityQueue the lower the output value the closer to the top of the queue
-			if (event1.priority() < event2.priority())
-				return 1;
-			else if (event1.priority() > event1.priority())
-				return -1;
-			else
-				return 0;
-		}
-		
-	}
-	
 	/**
 	 *  "Statistics structure definition" [DTN2]
 	 */
 	protected static class Stats {
 
-		int deleted_bundles_;
-		int delivered_bundles_;
-		int duplicate_bundles_;
-		int events_processed_;
-		int expired_bundles_;
-		int generated_bundles_;
-		int injected_bundles_;
-		int received_bundles_;
-		int transmitted_bundles_;
+		AtomicInteger deleted_bundles_ = new AtomicInteger();
+		AtomicInteger delivered_bundles_ = new AtomicInteger();
+		AtomicInteger duplicate_bundles_ = new AtomicInteger();
+		AtomicInteger events_processed_ = new AtomicInteger();
+		AtomicInteger expired_bundles_ = new AtomicInteger();
+		AtomicInteger generated_bundles_ = new AtomicInteger();
+		AtomicInteger injected_bundles_ = new AtomicInteger();
+		AtomicInteger received_bundles_ = new AtomicInteger();
+		AtomicInteger transmitted_bundles_ = new AtomicInteger();
+		int restored_bundles_;
+		AtomicInteger evicted_bundles_ = new AtomicInteger();
+		long startup_time_;
+		EventLoopStats event_stats_ = new EventLoopStats();
 
 	}
 	
 	public static Params params_;
 	
 	/**
-	 * Default Event Queue Capacity
+	 * Maximum time in milliseconds a producer is held by the backpressure of the event queue
 	 */
-	private final static int event_queue_capacity_ = 100;
+	private final static int BACKPRESSURE_TIMEOUT = 5000;
 
 	/**
 	 * Singleton implementation instance
@@ -265,14 +252,34 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	}
 
 	/**
-	 * Event ticket for used in blocking execution
+	 * Thread for running this daemon
 	 */
-	private Integer event_ticket_;
+	private Thread thread_;
 
 	/**
-	 * Thread for running this daemon
+	 * Number of threads handling the events, 1 to handle them in the daemon thread
 	 */
-	private Thread thread_;
+	private volatile int event_shards_ = 1;
+
+	/**
+	 * Number of event threads requested by set_event_shards, 0 if none
+	 */
+	private final AtomicInteger requested_shards_ = new AtomicInteger();
+
+	/**
+	 * Shard threads handling the events, null if they are handled in the daemon thread
+	 */
+	private volatile ShardedEventProcessor shards_;
+
+	/**
+	 * Handling time in nanoseconds above which an event is logged as slow, 0 to never log
+	 */
+	private long slow_event_threshold_ = 0;
+
+	/**
+	 * Maximum number of events taken from the event queue at once
+	 */
+	private int event_batch_ = 1;
 
 	/**
 	 *  "The active bundle actions handler" [DTN2]
@@ -312,7 +319,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	/**
 	 *  The event queue
 	 */
-	protected PriorityBlockingQueue<BundleEvent> eventq_;
+	protected BundleEventQueue eventq_;
 
 	/**
 	 *  "The fragmentation / reassembly manager" [DTN2]
@@ -398,8 +405,9 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		actions_ = new BundleActions();
 		contactmgr_ = ContactManager.getInstance();
 		custody_bundles_ = new BundleList("custody_bundles");
-		event_ticket_ = new Integer(0);
-		eventq_ = new PriorityBlockingQueue<BundleEvent>(event_queue_capacity_, BundleEventPriorityComparator.getInstance());
+		eventq_ = new BundleEventQueue(0, 0);
+		LinkEventCoalescer.register(eventq_);
+		TimingWheel.getInstance().set_expiry_handler(new TimerExpiryHandler());
 		fragmentmgr_ = FragmentManager.getInstance();
 		pending_bundles_ = new BundleList("pending_bundles");
 		reg_table_ = RegistrationTable.getInstance();
@@ -430,12 +438,12 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		buf.append(String.format("%d pending -- " + "%d custody -- "
 				+ "%d received -- " + "%d delivered -- " + "%d generated -- "
 				+ "%d transmitted -- " + "%d expired -- " + "%d duplicate -- "
-				+ "%d deleted -- " + "%d injected", pending_bundles_.size(),
-				custody_bundles_.size(), stats_.received_bundles_,
-				stats_.delivered_bundles_, stats_.generated_bundles_,
-				stats_.transmitted_bundles_, stats_.expired_bundles_,
-				stats_.duplicate_bundles_, stats_.deleted_bundles_,
-				stats_.injected_bundles_
+				+ "%d deleted -- " + "%d injected -- " + "%d evicted", pending_bundles_.size(),
+				custody_bundles_.size(), stats_.received_bundles_.get(),
+				stats_.delivered_bundles_.get(), stats_.generated_bundles_.get(),
+				stats_.transmitted_bundles_.get(), stats_.expired_bundles_.get(),
+				stats_.duplicate_bundles_.get(), stats_.deleted_bundles_.get(),
+				stats_.injected_bundles_.get(), stats_.evicted_bundles_.get()
 
 		)
 
@@ -449,13 +457,35 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	public void get_daemon_stats(StringBuffer buf) {
 		buf.append(String.format(
 
-		"%d pending_events -- " + "%d processed_events -- ",
-				event_queue_size(), stats_.events_processed_
+		"%d pending_events -- " + "%d processed_events -- "
+				+ "%d restored_bundles -- " + "%d startup_ms -- ",
+				event_queue_size(), stats_.events_processed_.get(),
+				stats_.restored_bundles_, stats_.startup_time_
 
 		));
+		stats_.event_stats_.get_stats(buf);
+		eventq_.get_stats(buf);
+		ShardedEventProcessor shards = shards_;
+		if (shards != null)
+			shards.get_stats(buf);
+		StorageExecutor.getInstance().get_stats(buf);
+		PayloadChannelCache.getInstance().get_stats(buf);
+		PayloadDedupStore.getInstance().get_stats(buf);
+		CompressedPayload.get_stats(buf);
+		GarbageCollector.getInstance().get_stats(buf);
+		WriteBehindQueue.getInstance().get_stats(buf);
+		TimingWheel.getInstance().get_stats(buf);
 
 	}
 
+	/**
+	 * Copy of the event loop statistics by event type, the counts and the
+	 * queue wait and handling time histograms.
+	 */
+	public EventLoopStats.Snapshot event_stats() {
+		return stats_.event_stats_.snapshot();
+	}
+
 	/**
 	 * Format the given StringBuffer with current routing info.
 	 */
@@ -465,11 +495,60 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	}
 
 	/**
-	 * Main event handling function.
+	 * Main event handling function. The Future of a submitted event is
+	 * always finished, failed with the exception if a handler throws one.
+	 * An event whose Future was cancelled is skipped.
 	 */
 	public void handle_event(BundleEvent event) {
+		if (event.completion() != null && !event.completion().start()) {
+			Log.d(TAG, String.format("skipping cancelled event %s", event.type_str()));
+			return;
+		}
+
+		try {
+			handle_event_once(event);
+		} catch (RuntimeException e) {
+			if (event.completion() != null)
+				event.completion().fail(e);
+			throw e;
+		} catch (Error e) {
+			if (event.completion() != null)
+				event.completion().fail(e);
+			throw e;
+		} finally {
+			if (event.completion() != null)
+				event.completion().complete();
+		}
+	}
+
+	/**
+	 * Handle an event taken from the event queue, unless it only repeats the
+	 * event handled right before it, and report it to the queue in any case
+	 * so its space in the backlog is released
+	 */
+	private void handle_queued_event(BundleEvent event) {
+		// events repeating the event handled right before have no effect. The
+		// events which can be dropped are never about a single bundle, so with
+		// event shards they are handled behind the barrier and no other event
+		// is handled in between.
+		try {
+			if (eventq_.coalesce(event))
+				Log.d(TAG, String.format("dropping redundant event %s", event.type_str()));
+			else
+				handle_event(event);
+		} finally {
+			eventq_.handled(event);
+		}
+	}
+
+	/**
+	 * Handle the event with all its handlers and record its statistics
+	 */
+	private void handle_event_once(BundleEvent event) {
+		long start = System.nanoTime();
 		Log.i(TAG, String.format("BundleDaemon:handle_event %s", event
 				.toString()));
+
 		dispatch_event(event);
 
 		if (!event.daemon_only()) { 
@@ -481,15 +560,15 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 
 		event_handlers_completed(event);
 
-		stats_.events_processed_++;
+		stats_.events_processed_.incrementAndGet();
 
-		if (event.processed_notifier_ != null) {
-			try {
-				event.processed_notifier_.put(event_ticket_);
-			} catch (InterruptedException e) {
-				Log.e(TAG, "BundleDaemon: handle_event InterruptedException");
-			}
-		}
+		long end = System.nanoTime();
+		long wait = event.posted_nanos() == 0 ? -1 : start - event.posted_nanos();
+		boolean slow = slow_event_threshold_ > 0 && end - start >= slow_event_threshold_;
+		stats_.event_stats_.record(event.type(), wait, end - start, slow);
+		if (slow)
+			Log.w(TAG, String.format("slow event %s: waited %d ms, handled in %d ms",
+					event.type_str(), wait / 1000000, (end - start) / 1000000));
 	}
 
 	/**
@@ -497,6 +576,13 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	 */
 	public void init(DTNConfiguration config) {
 		local_eid_ = new EndpointID(config.routes_setting().local_eid());
+		event_shards_ = config.routes_setting().event_shards();
+		if (event_shards_ <= 0)
+			event_shards_ = Runtime.getRuntime().availableProcessors();
+		eventq_.set_watermarks(config.routes_setting().event_queue_high_watermark(),
+				config.routes_setting().event_queue_low_watermark());
+		event_batch_ = Math.max(1, config.routes_setting().event_batch());
+		slow_event_threshold_ = Math.max(0, config.routes_setting().slow_event_threshold()) * 1000000L;
 
 	}
 
@@ -523,46 +609,81 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	}
 
 	/**
-	 * Post the given event and wait for it to be processed by the daemon thread
-	 * or for the given timeout to elapse.
+	 * Queues the event at the tail of the queue like post and returns a
+	 * Future which is done when the event has been handled. The caller can
+	 * submit several events before waiting for them with get.
+	 * @param event the event
+	 * @return the Future of the event
 	 */
-	public boolean post_and_wait(BundleEvent event,
-			MsgBlockingQueue<Integer> notifier, int timeout, boolean at_back) {
+	public <E extends BundleEvent> BundleEventFuture<E> submit(E event) {
+		BundleEventFuture<E> future = new BundleEventFuture<E>(event);
+		post(event);
+		return future;
+	}
 
-		assert (event.processed_notifier() == null) : "BundleDeamon:post_and_wait, post_and_wait() event.process_notifier_ is not null";
-		event.processed_notifier_ = notifier;
-		if (at_back) {
-			post(event);
-		} else {
-			post_at_head(event);
-		}
+	/**
+	 * Submit the event and wait until it has been handled. A thread
+	 * interrupted while waiting cancels the event unless it is already being
+	 * handled, and keeps its interrupt status.
+	 * @param event the event
+	 * @return false if the event was cancelled or dropped, or its handling failed
+	 */
+	public boolean submit_and_wait(BundleEvent event) {
+		return submit_and_wait(event, 0);
+	}
 
-		// ticket use for blocking and notifying queue
-		Integer ticket = null;
-		assert(ticket == null);
-		
-		if (timeout == -1) {
-			// Indefinite timeout here
-			// Block until we get the ticket
+	/**
+	 * Submit the event and wait until it has been handled or the timeout is
+	 * over. When the timeout is over or the wait is interrupted, the event is
+	 * cancelled and never handled. If the daemon already started to handle
+	 * it, the wait goes on until the handling is finished, so a false result
+	 * always means the handling did not take place or failed.
+	 * @param event the event
+	 * @param timeout maximum time to wait in milliseconds, 0 to wait until it is handled
+	 * @return false if the event was cancelled or dropped, or its handling failed
+	 */
+	public boolean submit_and_wait(BundleEvent event, long timeout) {
+		BundleEventFuture<BundleEvent> future = submit(event);
+		boolean interrupted = false;
+		try {
 			try {
-				ticket = notifier.take();
+				if (timeout > 0)
+					future.get(timeout, TimeUnit.MILLISECONDS);
+				else
+					future.get();
+				return true;
+			} catch (TimeoutException e) {
+				if (future.cancel(false)) {
+					Log.e(TAG, String.format("%s not handled within %d ms, cancelled",
+							event.type_str(), timeout));
+					return false;
+				}
 			} catch (InterruptedException e) {
-
+				interrupted = true;
+				if (future.cancel(false)) {
+					Log.e(TAG, "Interrupted while waiting for " + event.type_str());
+					return false;
+				}
 			}
-			return true;
-		} else {
-			// Use input timeout value here
-			try {
-				ticket = notifier.poll(timeout, TimeUnit.SECONDS);
-			} catch (InterruptedException e) {
-				Log
-						.e(TAG,
-								"BundleDeamon, InterruptedException, post_and_wait case Finite timeout");
-				return false;
+
+			// the daemon is already handling the event, wait for the outcome
+			while (true) {
+				try {
+					future.get();
+					return true;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
 			}
-			return true;
+		} catch (ExecutionException e) {
+			Log.e(TAG, "Handling " + event.type_str() + " failed: " + e.getMessage());
+		} catch (CancellationException e) {
+			Log.e(TAG, event.type_str() + " dropped before it was handled");
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
 		}
-
+		return false;
 	}
 
 	/**
@@ -582,22 +703,86 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		Log.d(TAG, String.format("posting event (%s) with type %s (at %s)",
 				event.toString(), event.type().toString(), at_back ? "back"
 						: "head"));
-		event.set_posted_time(Calendar.getInstance().getTime());
-		;
-		if (!at_back)
-		{
-			// if it's not at back , set the priority to higher than the head of the queue
-			if (eventq_.size() > 0)
-			{
-			int highest_priority = eventq_.peek().priority();
-			event.set_priority(highest_priority + 1 );
+		event.set_posted_time(new Date());
+		event.set_posted_nanos(System.nanoTime());
 		
+		if (at_back)
+			eventq_.put(event);
+		else
+			eventq_.put_at_head(event);
+	}
+
+	/**
+	 * Queues the events at once at the tail or at the head of the queue, in
+	 * their order, for processing by the daemon thread.
+	 * @param events the events
+	 * @param at_back true if they will be at the end of the queue, false if they will be at the front of the queue
+	 */
+	public void post_events(java.util.List<BundleEvent> events, boolean at_back) {
+		Log.d(TAG, String.format("posting %d events (at %s)", events.size(),
+				at_back ? "back" : "head"));
+		Date now = new Date();
+		long nanos = System.nanoTime();
+		for (int i = 0; i < events.size(); i++) {
+			events.get(i).set_posted_time(now);
+			events.get(i).set_posted_nanos(nanos);
+		}
+		eventq_.put_all(events, !at_back);
+	}
+
+	/**
+	 * Expiry handler of the TimingWheel. The events of the DaemonTimers
+	 * expiring in a tick are posted at once, the other timers run on the
+	 * wheel thread.
+	 */
+	private static class TimerExpiryHandler implements TimingWheel.ExpiryHandler {
+		public void expired(java.util.List<VirtualTimerTask> batch, Date now) {
+			ArrayList<BundleEvent> head = new ArrayList<BundleEvent>();
+			ArrayList<BundleEvent> back = new ArrayList<BundleEvent>();
+			for (int i = 0; i < batch.size(); i++) {
+				VirtualTimerTask task = batch.get(i);
+				try {
+					if (task instanceof DaemonTimer) {
+						DaemonTimer timer = (DaemonTimer) task;
+						BundleEvent event = timer.expire(now);
+						if (event != null)
+							(timer.at_head() ? head : back).add(event);
+					} else {
+						task.fire(now);
+					}
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Timer " + task + " failed: " + e.getMessage());
+				}
 			}
+
+			BundleDaemon daemon = BundleDaemon.getInstance();
+			if (!head.isEmpty())
+				daemon.post_events(head, false);
+			if (!back.isEmpty())
+				daemon.post_events(back, true);
 		}
-		
-		eventq_.put(event);
-	
+	}
 
+	/**
+	 * Queues the event at the tail of the queue like post, but first waits
+	 * while the queue is over its high watermark. Used by the threads
+	 * bringing new bundles in, the convergence layers and the API, so they
+	 * slow down when the daemon falls behind. The daemon and shard threads
+	 * never wait, the backlog only goes down when they handle it.
+	 */
+	public void post_with_backpressure(BundleEvent event) {
+		ShardedEventProcessor shards = shards_;
+		Thread current = Thread.currentThread();
+		if (current != thread_ && (shards == null || !shards.is_shard_thread(current))
+				&& !shutting_down_) {
+			try {
+				if (!eventq_.wait_for_space(BACKPRESSURE_TIMEOUT))
+					Log.w(TAG, "event queue still full, posting anyway");
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted while waiting for space in the event queue");
+			}
+		}
+		post(event);
 	}
 
 	/**
@@ -643,20 +828,37 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 			// Create router according to config in the configuration process
 			router_ = BundleRouter.create_router();
 
+			long start = System.currentTimeMillis();
 			load_registrations();
 			load_bundles();
+			stats_.startup_time_ = System.currentTimeMillis() - start;
+			Log.i(TAG, String.format("BundleDaemon restored %d bundles in %d ms",
+					stats_.restored_bundles_, stats_.startup_time_));
+
+			// the shards are started with the first batch
+			set_event_shards(event_shards_);
+			event_shards_ = 1;
 
+			java.util.List<BundleEvent> batch = new java.util.ArrayList<BundleEvent>(event_batch_);
 			while (true) {
 				if (shutting_down_ ) {
 					Log.d(TAG, "BundleDaemon: shutting down");
 					break;
 				}
 
-				BundleEvent event;
 				try {
-					event = eventq_.take();
+					batch.clear();
+					eventq_.drain(batch, event_batch_);
+					apply_event_shards();
 
-					handle_event(event);
+					for (int i = 0; i < batch.size(); i++) {
+						run_event(batch.get(i));
+
+						// the events posted at the head while handling go first
+						BundleEvent head;
+						while ((head = eventq_.poll_head()) != null)
+							run_event(head);
+					}
 				} catch (InterruptedException e) {
 					Log.e(TAG, "Event Handle Interuptted Exception");
 				}
@@ -664,12 +866,78 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 				//             
 			}
 
+			if (shards_ != null) {
+				shards_.stop();
+				shards_ = null;
+			}
 			Log.d(TAG, "BundleDaemon: at the end of run() of Daemon");
 		} catch (RoutingException e1) {
 			Log.e(TAG, "BundleDeamon:run(), UnknownRouterType ");
 		}
 	}
 
+	/**
+	 * Change the number of threads handling the events, 1 to handle them in
+	 * the daemon thread. The daemon thread applies it before it handles the
+	 * next events it takes from the queue, the events handed to the old shard
+	 * threads are handled first.
+	 */
+	public void set_event_shards(int shards) {
+		requested_shards_.set(Math.max(1, shards));
+	}
+
+	/**
+	 * Number of threads handling the events
+	 */
+	public int event_shards() {
+		return event_shards_;
+	}
+
+	/**
+	 * Replace the shard threads if another number was requested, called from
+	 * the daemon thread
+	 */
+	private void apply_event_shards() throws InterruptedException {
+		int shards = requested_shards_.getAndSet(0);
+		if (shards == 0 || shards == event_shards_)
+			return;
+
+		if (shards > 1 && !router_.concurrent_bundle_events()) {
+			Log.w(TAG, String.format("router %s handles one event at a time, not using event shards",
+					router_.getClass().getSimpleName()));
+			shards = 1;
+		}
+
+		if (shards_ != null) {
+			shards_.await_idle();
+			shards_.stop();
+			shards_ = null;
+		}
+
+		event_shards_ = shards;
+		if (shards > 1) {
+			Log.i(TAG, String.format("BundleDaemon handling events with %d shards", shards));
+			ShardedEventProcessor processor = new ShardedEventProcessor(TAG,
+					new ShardedEventProcessor.Handler() {
+						public void handle(BundleEvent event) {
+							handle_queued_event(event);
+						}
+					}, shards);
+			processor.start();
+			shards_ = processor;
+		}
+	}
+
+	/**
+	 * Handle the event in the daemon thread or hand it to its shard
+	 */
+	private void run_event(BundleEvent event) throws InterruptedException {
+		if (shards_ != null)
+			shards_.dispatch(event);
+		else
+			handle_queued_event(event);
+	}
+
 	/**
 	 * "Set an application-specific shutdown handler." [DTN2]
 	 */
@@ -715,7 +983,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	 * Test function for getting this class event Queue
 	 * @return
 	 */
-	public PriorityBlockingQueue<BundleEvent> test_get_eventq() {
+	public BundleEventQueue test_get_eventq() {
 		return eventq_;
 	}
 
@@ -760,6 +1028,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		bundle.set_local_custody(true);
 		bundle.set_complete(true);
 		actions_.store_update(bundle);
+		GlobalStorage.getInstance().custody_changed(bundle);
 
 		custody_bundles_.push_back(bundle);
 
@@ -896,8 +1165,16 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 			status_report_reason_t reason) {
 
 		if (bundle == null) Log.e(TAG, " bundle in delete_bundle is null ");
+
+		// with event shards a bundle evicted for another one may be deleted
+		// by its own shard at the same time
+		if (!bundle.mark_deleted()) {
+			Log.d(TAG, String.format("bundle id %d already deleted", bundle
+					.bundleid()));
+			return false;
+		}
 		
-		++stats_.deleted_bundles_;
+		stats_.deleted_bundles_.incrementAndGet();
 
 		// "send a bundle deletion status report if we have custody or the
 		// bundle's deletion status report request flag is set and a reason
@@ -1095,17 +1372,15 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 					pending_bundles_.size()));
 			Bundle found = null;
 
-			ListIterator<Bundle> iter = pending_bundles_.begin();
+			// the bundle lists are indexed by source and creation timestamp,
+			// only the bundles with the same GbofId are compared
+			Iterator<Bundle> iter = pending_bundles_.find_all(
+					BundleList.gbof_id(b)).iterator();
 
 			while (iter.hasNext()) {
 				Bundle b2 = iter.next();
 
-				if ((b.source().equals(b2.source()))
-						&& (b.creation_ts().seconds() == b2.creation_ts()
-								.seconds())
-						&& (b.creation_ts().seqno() == b2.creation_ts().seqno())
-						&& (b.is_fragment() == b2.is_fragment())
-						&& (b.frag_offset() == b2.frag_offset()) &&
+				if ((b.frag_offset() == b2.frag_offset()) &&
 						/* (b.orig_length() == b2.orig_length()) && */
 						(b.payload().length() == b2.payload().length())) {
 					// b is a duplicate of b2
@@ -1122,12 +1397,6 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 
 			return found;
 
-		} catch (BundleListLockNotHoldByCurrentThread e) {
-			Log
-					.e(
-							TAG,
-							"BundleDaemon:find_duplicate, BundleList Lock Not Hold by current Thread Exception");
-			return null;
 		} finally {
 			pending_bundles_.get_lock().unlock();
 		}
@@ -1187,10 +1456,63 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		handle_event(e);
 	}
 
+	/**
+	 * Probe the router whether it accepts the new bundle, evicting stored
+	 * bundles only if the bundle is accepted or refused for lack of storage
+	 * alone. A bundle refused for lack of storage is probed again once room
+	 * was made for it.
+	 * 
+	 * @param bundle
+	 *            The new bundle
+	 * @param reason
+	 *            The reason of the refusal set by the router
+	 * @return true if the router accepts the bundle
+	 */
+	protected boolean accept_bundle(Bundle bundle,
+			BundleProtocol.status_report_reason_t[] reason) {
+		boolean accepted = router_.accept_bundle(bundle, reason);
+		if (!accepted
+				&& reason[0] != BundleProtocol.status_report_reason_t.REASON_DEPLETED_STORAGE) {
+			return false;
+		}
+
+		if (evict_bundles(bundle) > 0 && !accepted) {
+			reason[0] = BundleProtocol.status_report_reason_t.REASON_NO_ADDTL_INFO;
+			accepted = router_.accept_bundle(bundle, reason);
+		}
+		return accepted;
+	}
+
+	/**
+	 * Delete stored bundles chosen by the eviction policy of the GlobalStorage
+	 * if the new bundle would fill the storage over the eviction threshold.
+	 * Deletion status reports are sent for the evicted bundles as requested.
+	 * 
+	 * @param bundle
+	 *            The new bundle
+	 * @return Number of evicted bundles
+	 */
+	protected int evict_bundles(Bundle bundle) {
+		java.util.List<Bundle> victims = GlobalStorage.getInstance()
+				.select_victims(bundle.payload().length(),
+						BundleStore.getInstance().quota());
+
+		Iterator<Bundle> iter = victims.iterator();
+		while (iter.hasNext()) {
+			Bundle victim = iter.next();
+			Log.i(TAG, String.format(
+					"evicting bundle %d to make room for bundle %d", victim
+							.bundleid(), bundle.bundleid()));
+			stats_.evicted_bundles_.incrementAndGet();
+			delete_bundle(victim,
+					BundleProtocol.status_report_reason_t.REASON_DEPLETED_STORAGE);
+		}
+		return victims.size();
+	}
+
 	protected void handle_bundle_accept(BundleAcceptRequest request) {
 		boolean[] result_value = request.result();
-		result_value[0] = router_.accept_bundle(request.bundle(), request
-				.reason());
+		result_value[0] = accept_bundle(request.bundle(), request.reason());
 
 		String reason_string = request.reason()[0] != null ? request.reason()[0]
 				.toString()
@@ -1292,8 +1614,13 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		 * "Update statistics. Note that the link's queued length must always be
 		 * decremented by the full formatted size of the bundle." [DTN2]
 		 */
-		link.stats()
-				.set_bundles_cancelled(link.stats().bundles_cancelled() + 1);
+		link.get_lock().lock();
+		try {
+			link.stats()
+					.set_bundles_cancelled(link.stats().bundles_cancelled() + 1);
+		} finally {
+			link.get_lock().unlock();
+		}
 
 		/*
 		 * "Remove the formatted block info from the bundle since we don't need
@@ -1324,7 +1651,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 
 	protected void handle_bundle_delivered(BundleDeliveredEvent event) {
 		
-		stats_.delivered_bundles_++;
+		stats_.delivered_bundles_.incrementAndGet();
 
 		/*
 		 * "The bundle was delivered to a registration." [DTN2]
@@ -1375,7 +1702,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	}
 
 	protected void handle_bundle_expired(BundleExpiredEvent event) {
-		stats_.expired_bundles_++;
+		stats_.expired_bundles_.incrementAndGet();
 
 		Bundle bundle = event.bundle();
 
@@ -1405,6 +1732,18 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 
 	}
 
+	protected void handle_store_completed(StoreCompletedEvent event) {
+		Bundle bundle = event.bundle();
+		if (!event.success()) {
+			Log.e(TAG, String.format("error in storage %s of bundle %d",
+					event.op().getCaption(), bundle.bundleid()));
+			return;
+		}
+
+		Log.d(TAG, String.format("storage %s of bundle %d done in %d ms",
+				event.op().getCaption(), bundle.bundleid(), event.latency()));
+	}
+
 	protected void handle_bundle_inject(BundleInjectRequest event) {
 
 		EndpointID src = event.src();
@@ -1488,7 +1827,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 			BundleDaemon.getInstance().post(
 					new BundleInjectedEvent(bundle, event.request_id()));
 
-		++stats_.injected_bundles_;
+		stats_.injected_bundles_.incrementAndGet();
 	}
 
 	protected void handle_bundle_injected(BundleInjectedEvent event) {
@@ -1529,13 +1868,13 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		String source_str = "";
 		switch (event.source()) {
 		case EVENTSRC_PEER:
-			stats_.received_bundles_++;
+			stats_.received_bundles_.incrementAndGet();
 			DTNManager.getInstance().notify_user("DTN Bundle Received", "From " + bundle.source().toString());
 			
 			break;
 
 		case EVENTSRC_APP:
-			stats_.received_bundles_++;
+			stats_.received_bundles_.incrementAndGet();
 			source_str = " (from app)";
 			break;
 
@@ -1544,17 +1883,17 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 			break;
 
 		case EVENTSRC_ADMIN:
-			stats_.generated_bundles_++;
+			stats_.generated_bundles_.incrementAndGet();
 			source_str = " (generated)";
 			break;
 
 		case EVENTSRC_FRAGMENTATION:
-			stats_.generated_bundles_++;
+			stats_.generated_bundles_.incrementAndGet();
 			source_str = " (from fragmentation)";
 			break;
 
 		case EVENTSRC_ROUTER:
-			stats_.generated_bundles_++;
+			stats_.generated_bundles_.incrementAndGet();
 			source_str = " (from router)";
 			break;
 
@@ -1675,7 +2014,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 				// "initialize the value in case the router didn't set the value
 				// reason for us" [DTN2]
 				reason[0] = status_report_reason_t.REASON_NO_ADDTL_INFO;
-				accept_bundle = router_.accept_bundle(bundle, reason);
+				accept_bundle = accept_bundle(bundle, reason);
 				deletion_reason[0] = reason[0];
 			}
 
@@ -1704,7 +2043,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 					bundle.creation_ts().seconds(), bundle.creation_ts()
 							.seqno()));
 
-			stats_.duplicate_bundles_++;
+			stats_.duplicate_bundles_.incrementAndGet();
 
 			if (bundle.custody_requested() && duplicate.local_custody()) {
 				generate_custody_signal(
@@ -1870,34 +2209,41 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		 */
 		int total_len = BundleProtocol.total_length(blocks);
 
-		stats_.transmitted_bundles_++;
+		stats_.transmitted_bundles_.incrementAndGet();
 
-		link.stats().set_bundles_transmitted(
-				link.stats().bundles_transmitted() + 1);
+		// the bundles transmitted on one link are handled by several event
+		// shards, the link lock keeps its statistics and queues consistent
+		link.get_lock().lock();
+		try {
+			link.stats().set_bundles_transmitted(
+					link.stats().bundles_transmitted() + 1);
 
-		link.stats().set_bytes_transmitted(
-				link.stats().bytes_transmitted() + event.bytes_sent());
+			link.stats().set_bytes_transmitted(
+					link.stats().bytes_transmitted() + event.bytes_sent());
 
-		// "remove the bundle from the link's in flight queue" [DTN2]
-		if (link.del_from_inflight(event.bundle(), total_len)) {
-			Log.d(TAG, String.format(
-					"removed bundle id:%d from link %s inflight queue", bundle
-							.bundleid(), link.name()));
-		} else {
-			Log.w(TAG, String.format(
-					"bundle id:%d not on link %s inflight queue", bundle
-							.bundleid(), link.name()));
-		}
+			// "remove the bundle from the link's in flight queue" [DTN2]
+			if (link.del_from_inflight(event.bundle(), total_len)) {
+				Log.d(TAG, String.format(
+						"removed bundle id:%d from link %s inflight queue", bundle
+								.bundleid(), link.name()));
+			} else {
+				Log.w(TAG, String.format(
+						"bundle id:%d not on link %s inflight queue", bundle
+								.bundleid(), link.name()));
+			}
 
-		// "verify that the bundle is not on the link's to-be-sent queue" [DTN2]
-		if (link.del_from_queue(event.bundle(), total_len)) {
-			Log
-					.w(
-							TAG,
-							String
-									.format(
-											"bundle id:%d unexpectedly on link %s queue in transmitted event",
-											bundle.bundleid(), link.name()));
+			// "verify that the bundle is not on the link's to-be-sent queue" [DTN2]
+			if (link.del_from_queue(event.bundle(), total_len)) {
+				Log
+						.w(
+								TAG,
+								String
+										.format(
+												"bundle id:%d unexpectedly on link %s queue in transmitted event",
+												bundle.bundleid(), link.name()));
+			}
+		} finally {
+			link.get_lock().unlock();
 		}
 
 		Log
@@ -2109,7 +2455,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 
 		GbofId gbof_id = new GbofId();
 		gbof_id.source_.assign(event.data().orig_source_eid());
-		gbof_id.creation_ts_ = event.data().orig_creation_tv();
+		gbof_id.set_creation_ts(event.data().orig_creation_tv());
 		gbof_id.is_fragment_ = (event.data().admin_flags() & BundleProtocol.admin_record_flags_t.ADMIN_IS_FRAGMENT
 				.getCode()) > 0;
 		gbof_id.frag_length_ = gbof_id.is_fragment() ? event.data()
@@ -2716,33 +3062,35 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 	 */
 	protected void load_bundles() {
 
-		
-		Iterator<Bundle> iter = BundleStore.getInstance().new_iterator();
-
 		Log.i(TAG, "BundleDaemon loading bundles from data store");
 
-		List<Bundle> tobe_deleted_bundles = new List<Bundle>();
-		while (iter.hasNext()) {
-			Bundle bundle = iter.next();
-			// "if the bundle payload file is missing, we need to kill the
-			// bundle, but we can't do so while holding the durable
-			// iterator or it may deadlock, so cleanup is deferred" [DTN2]
-			if (bundle.payload().location() != BundlePayload.location_t.DISK) {
-				Log.e(TAG, String.format(
-						"error loading payload for bundle %d from data store",
-						bundle.bundleid()));
-				tobe_deleted_bundles.add(bundle);
-				continue;
-			}
-
-			BundleProtocol.reload_post_process(bundle);
+		final List<Bundle> tobe_deleted_bundles = new List<Bundle>();
+		// the bundles are loaded in parallel and handed over in batches
+		stats_.restored_bundles_ = BundleStore.getInstance().restore(
+				new BundleStore.RestoreHandler() {
+			public void restored(Collection<Bundle> bundles) {
+				Iterator<Bundle> iter = bundles.iterator();
+				while (iter.hasNext()) {
+					Bundle bundle = iter.next();
+					// "if the bundle payload file is missing, we need to kill the
+					// bundle, but we can't do so while holding the durable
+					// iterator or it may deadlock, so cleanup is deferred" [DTN2]
+					if (bundle.payload().location() != BundlePayload.location_t.DISK) {
+						Log.e(TAG, String.format(
+								"error loading payload for bundle %d from data store",
+								bundle.bundleid()));
+						tobe_deleted_bundles.add(bundle);
+						continue;
+					}
 
-			BundleReceivedEvent event = new BundleReceivedEvent(bundle,
-					event_source_t.EVENTSRC_STORE);
-			post_event(event, true);
-			//handle_event(event);
+					BundleProtocol.reload_post_process(bundle);
 
-		}
+					BundleReceivedEvent event = new BundleReceivedEvent(bundle,
+							event_source_t.EVENTSRC_STORE);
+					post_event(event, true);
+				}
+			}
+		});
 
 		Iterator<Bundle> delete_itr = tobe_deleted_bundles.iterator();
 
@@ -2845,6 +3193,7 @@ public class BundleDaemon extends BundleEventHandler implements Runnable {
 		bundle.set_local_custody(false);
 		bundle.set_complete(true);
 		actions_.store_update(bundle);
+		GlobalStorage.getInstance().custody_changed(bundle);
 
 		custody_bundles_.erase(bundle, false);
 	}
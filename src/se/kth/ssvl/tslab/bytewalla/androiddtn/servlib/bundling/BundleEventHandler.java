@@ -76,6 +76,7 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.RouteReport
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.SetLinkDefaultsRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ShutdownRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StatusRequest;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent;
 import android.util.Log;
 
 /**
@@ -122,6 +123,10 @@ public abstract class BundleEventHandler {
 	        handle_bundle_free((BundleFreeEvent)e);
 	        break;
 
+	    case STORE_COMPLETED:
+	        handle_store_completed((StoreCompletedEvent)e);
+	        break;
+
 	    case BUNDLE_SEND:
 	        handle_bundle_send((BundleSendRequest)e);
 	        break;
@@ -370,6 +375,11 @@ public abstract class BundleEventHandler {
 	 */
 	abstract protected void handle_bundle_free(BundleFreeEvent event);
 
+	/**
+	 * Default event handler when an asynchronous storage operation is done.
+	 */
+	abstract protected void handle_store_completed(StoreCompletedEvent event);
+
 	/**
 	 * "Default event handler for bundle send requests" [DTN2]
 	 */
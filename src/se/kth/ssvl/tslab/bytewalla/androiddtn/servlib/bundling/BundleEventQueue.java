@@ -0,0 +1,616 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.event_type_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+
+/**
+ * Event queue of the BundleDaemon. Events posted at the back go to the FIFO
+ * lane of their priority, from 0 up to LEVELS - 1, and the lane with the
+ * highest priority is taken first. The link and contact events and the
+ * bundle timeouts get their priorities from BundleEvent. Events posted at the head go to the head
+ * lane in front of all the others, the last one posted is taken first. All
+ * the operations take constant time.
+ *
+ * The backlog counted against the watermarks is the queued events plus the
+ * events taken but not handled yet, so the events batched by the consumer or
+ * waiting in its worker threads still hold producers. When the backlog
+ * reaches the high watermark, producers calling wait_for_space are held until
+ * it is down to the low watermark. Only threads outside the daemon which
+ * bring new bundles in wait, the events posted while handling other events
+ * are always queued.
+ *
+ * The consumer can take a batch of events at once with drain. When it is
+ * about to handle an event, it asks coalesce whether the event only repeats
+ * the event handled right before it, as decided by the Coalescer of its type
+ * and the current state of the object. It has to report every event it took,
+ * handled, dropped or skipped, exactly once with handled, which releases its
+ * space in the backlog.
+ */
+public class BundleEventQueue {
+
+	/**
+	 * Number of priority lanes
+	 */
+	public static final int LEVELS = 4;
+
+	/**
+	 * Rule deciding which events of a type can be dropped when they are handled
+	 */
+	public interface Coalescer {
+		/**
+		 * The object the event is about, for example its link. Only events
+		 * about the same object are compared.
+		 * @param event the event
+		 * @return the object or null if the event is never dropped
+		 */
+		Object key(BundleEvent event);
+
+		/**
+		 * The state of the object, recorded after an event about it is
+		 * handled. The next event is only compared while it is unchanged.
+		 * @param key the object returned by key
+		 * @return the state
+		 */
+		Object state(Object key);
+
+		/**
+		 * Whether the event has no effect when it is handled right after the
+		 * previous event about the same object.
+		 * @param previous the event handled right before
+		 * @param event the event
+		 * @return true if the event can be dropped
+		 */
+		boolean redundant(BundleEvent previous, BundleEvent event);
+	}
+
+	/**
+	 * Create the queue
+	 * @param high_watermark number of events at which producers are held, 0 to never hold them
+	 * @param low_watermark number of events at which held producers continue
+	 */
+	public BundleEventQueue(int high_watermark, int low_watermark) {
+		lock_ = new Lock();
+		not_empty_ = lock_.newCondition();
+		space_ = lock_.newCondition();
+		head_ = new LinkedList<BundleEvent>();
+		lanes_ = new Lane[LEVELS];
+		for (int i = 0; i < LEVELS; i++)
+			lanes_[i] = new Lane();
+		coalescers_ = new EnumMap<event_type_t, Coalescer>(event_type_t.class);
+		set_watermarks(high_watermark, low_watermark);
+	}
+
+	/**
+	 * Set the watermarks of the backpressure
+	 * @param high_watermark number of events at which producers are held, 0 to never hold them
+	 * @param low_watermark number of events at which held producers continue
+	 */
+	public void set_watermarks(int high_watermark, int low_watermark) {
+		lock_.lock();
+		try {
+			high_watermark_ = Math.max(0, high_watermark);
+			low_watermark_ = Math.max(0, Math.min(low_watermark, high_watermark_));
+			update_throttle();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Queue the event at the back of the lane of its priority
+	 * @param event the event
+	 */
+	public void put(BundleEvent event) {
+		int level = Math.max(0, Math.min(LEVELS - 1, event.priority()));
+		lock_.lock();
+		try {
+			lanes_[level].events_.addLast(event);
+			lanes_[level].posts_++;
+			added();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Queue the event in front of all the queued events
+	 * @param event the event
+	 */
+	public void put_at_head(BundleEvent event) {
+		lock_.lock();
+		try {
+			head_.addFirst(event);
+			head_posts_++;
+			added();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Queue the events at once, in their order either in front of all the
+	 * queued events or at the back of the lanes of their priorities
+	 * @param events the events
+	 * @param at_head whether the events go in front of the queued events
+	 */
+	public void put_all(java.util.List<BundleEvent> events, boolean at_head) {
+		if (events.isEmpty())
+			return;
+		lock_.lock();
+		try {
+			for (int i = 0; i < events.size(); i++) {
+				BundleEvent event = events.get(at_head ? events.size() - 1 - i : i);
+				if (at_head) {
+					head_.addFirst(event);
+					head_posts_++;
+				} else {
+					int level = Math.max(0, Math.min(LEVELS - 1, event.priority()));
+					lanes_[level].events_.addLast(event);
+					lanes_[level].posts_++;
+				}
+				size_++;
+			}
+			if (size_ > max_size_)
+				max_size_ = size_;
+			update_throttle();
+			not_empty_.signal();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Take the next event, waiting until there is one
+	 * @return the event
+	 * @throws InterruptedException
+	 */
+	public BundleEvent take() throws InterruptedException {
+		lock_.lock();
+		try {
+			while (size_ == 0)
+				not_empty_.await();
+			return remove_next();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Take the next event if there is one
+	 * @return the event or null if the queue is empty
+	 */
+	public BundleEvent poll() {
+		lock_.lock();
+		try {
+			if (size_ == 0)
+				return null;
+			return remove_next();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Take the next events in order, waiting until there is one.
+	 * @param batch list the events are added to
+	 * @param max maximum number of events to take
+	 * @return number of events added to the batch
+	 * @throws InterruptedException
+	 */
+	public int drain(java.util.List<BundleEvent> batch, int max) throws InterruptedException {
+		lock_.lock();
+		try {
+			while (size_ == 0)
+				not_empty_.await();
+
+			int taken = 0;
+			while (size_ > 0 && taken < max) {
+				batch.add(remove_next());
+				taken++;
+			}
+
+			batches_++;
+			batched_ += taken;
+			if (taken > max_batch_)
+				max_batch_ = taken;
+			return taken;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Take the last event posted at the head if there is one, so the events
+	 * posted at the head while a batch is handled are handled right away.
+	 * @return the event or null if there is none
+	 */
+	public BundleEvent poll_head() {
+		lock_.lock();
+		try {
+			if (head_.isEmpty())
+				return null;
+			BundleEvent event = head_.removeFirst();
+			size_--;
+			taken_++;
+			return event;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Set the rule dropping redundant events of the type when they are
+	 * handled. The same Coalescer can be set for several types, the events of
+	 * all of them are compared by their object.
+	 * @param type the event type
+	 * @param coalescer the rule or null to never drop the events of the type
+	 */
+	public void set_coalescer(event_type_t type, Coalescer coalescer) {
+		lock_.lock();
+		try {
+			if (coalescer == null)
+				coalescers_.remove(type);
+			else
+				coalescers_.put(type, coalescer);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Whether the event only repeats the event handled right before it and
+	 * can be dropped instead of handled. The event handled before has to be
+	 * of the same type and about the same object, the object has to be in the
+	 * state it was left in and the event not submitted with a Future. The
+	 * caller has to serialize the handling of the events, so no other event
+	 * is handled between this call and handled. An event which is not
+	 * dropped clears the last handled one, so the events handled while
+	 * handling it are never dropped.
+	 * @param event the event about to be handled
+	 * @return true if the event is dropped
+	 */
+	public boolean coalesce(BundleEvent event) {
+		lock_.lock();
+		try {
+			BundleEvent last = last_handled_;
+			last_handled_ = null;
+			if (last == null || last.type() != event.type()
+					|| event.completion() != null)
+				return false;
+
+			Coalescer coalescer = coalescers_.get(event.type());
+			Object key = coalescer == null ? null : coalescer.key(event);
+			if (key == null || !key.equals(last_key_)
+					|| !coalescer.state(key).equals(last_state_)
+					|| !coalescer.redundant(last, event))
+				return false;
+
+			last_handled_ = last;
+			coalesced_++;
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Record the event taken from the queue as the last handled one, with the
+	 * state of its object after handling it, and release its space in the
+	 * backlog. Called once for every event taken, also if it was dropped.
+	 * @param event the handled event
+	 */
+	public void handled(BundleEvent event) {
+		lock_.lock();
+		try {
+			if (taken_ > 0) {
+				taken_--;
+				update_throttle();
+			}
+
+			Coalescer coalescer = coalescers_.get(event.type());
+			Object key = coalescer == null ? null : coalescer.key(event);
+			last_handled_ = key == null ? null : event;
+			last_key_ = key;
+			last_state_ = key == null ? null : coalescer.state(key);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Hold the calling producer while the backlog is over the high watermark,
+	 * until it is down to the low watermark or the timeout is over.
+	 * @param timeout maximum time to wait in milliseconds
+	 * @return true if there is space, false if the timeout is over
+	 * @throws InterruptedException
+	 */
+	public boolean wait_for_space(long timeout) throws InterruptedException {
+		lock_.lock();
+		try {
+			if (!throttling_)
+				return true;
+
+			long start = System.currentTimeMillis();
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+			throttled_++;
+			try {
+				while (throttling_ && nanos > 0)
+					nanos = space_.awaitNanos(nanos);
+			} finally {
+				throttle_time_ += System.currentTimeMillis() - start;
+			}
+			return !throttling_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Number of queued events
+	 */
+	public int size() {
+		lock_.lock();
+		try {
+			return size_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Number of events taken from the queue and not reported handled yet
+	 */
+	public int taken() {
+		lock_.lock();
+		try {
+			return taken_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Drop all the queued events, forget the taken ones and let the held
+	 * producers continue. The Futures of the submitted events are cancelled.
+	 */
+	public void clear() {
+		lock_.lock();
+		try {
+			cancel_all(head_);
+			for (int i = 0; i < LEVELS; i++)
+				cancel_all(lanes_[i].events_);
+			size_ = 0;
+			taken_ = 0;
+			update_throttle();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Format the given StringBuffer with the event queue statistics.
+	 */
+	public void get_stats(StringBuffer buf) {
+		lock_.lock();
+		try {
+			buf.append(String.format("%d max_pending_events -- " + "%d events_in_handling -- "
+					+ "%d head_posts -- " + "%d throttled_posts -- " + "%d throttle_ms -- " + "lane_posts",
+					max_size_, taken_, head_posts_, throttled_, throttle_time_));
+			for (int i = 0; i < LEVELS; i++)
+				buf.append(i == 0 ? " " : "/").append(lanes_[i].posts_);
+			buf.append(String.format(" -- " + "%d event_batches -- " + "%.1f avg_event_batch -- "
+					+ "%d max_event_batch -- " + "%d coalesced_events -- ",
+					batches_, batches_ == 0 ? 0.0 : (double) batched_ / batches_,
+					max_batch_, coalesced_));
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Empty the lane and cancel the Futures of its submitted events, the lock has to be held
+	 */
+	private void cancel_all(LinkedList<BundleEvent> lane) {
+		while (!lane.isEmpty()) {
+			BundleEvent event = lane.removeFirst();
+			if (event.completion() != null)
+				event.completion().cancel(false);
+		}
+	}
+
+	/**
+	 * Account a queued event and wake up the consumer, the lock has to be held
+	 */
+	private void added() {
+		size_++;
+		if (size_ > max_size_)
+			max_size_ = size_;
+		update_throttle();
+		not_empty_.signal();
+	}
+
+	/**
+	 * Remove the next event from the head lane or the highest priority lane,
+	 * it keeps its space in the backlog until it is reported handled. The
+	 * queue must not be empty and the lock has to be held.
+	 */
+	private BundleEvent remove_next() {
+		BundleEvent event;
+		if (!head_.isEmpty()) {
+			event = head_.removeFirst();
+		} else {
+			int level = LEVELS - 1;
+			while (lanes_[level].events_.isEmpty())
+				level--;
+			event = lanes_[level].events_.removeFirst();
+		}
+		size_--;
+		taken_++;
+		return event;
+	}
+
+	/**
+	 * Start holding the producers when the backlog reaches the high watermark
+	 * and let them continue at the low watermark, the lock has to be held
+	 */
+	private void update_throttle() {
+		int backlog = size_ + taken_;
+		if (high_watermark_ > 0 && backlog >= high_watermark_) {
+			throttling_ = true;
+		} else if (throttling_ && (high_watermark_ == 0 || backlog <= low_watermark_)) {
+			throttling_ = false;
+			space_.signalAll();
+		}
+	}
+
+	/**
+	 * Lock protecting the lanes and the statistics
+	 */
+	private Lock lock_;
+
+	/**
+	 * Condition signalled when an event is queued
+	 */
+	private Condition not_empty_;
+
+	/**
+	 * Condition signalled when the backlog is down to the low watermark
+	 */
+	private Condition space_;
+
+	/**
+	 * Events posted at the head, the last one posted first
+	 */
+	private LinkedList<BundleEvent> head_;
+
+	/**
+	 * FIFO lane of one priority
+	 */
+	private static class Lane {
+		/**
+		 * Queued events, the first posted first
+		 */
+		final LinkedList<BundleEvent> events_ = new LinkedList<BundleEvent>();
+
+		/**
+		 * Number of events posted to the lane
+		 */
+		long posts_;
+	}
+
+	/**
+	 * Lane of every priority
+	 */
+	private Lane[] lanes_;
+
+	/**
+	 * Number of queued events
+	 */
+	private int size_;
+
+	/**
+	 * Number of events taken and not reported handled yet
+	 */
+	private int taken_;
+
+	/**
+	 * Number of events at which producers are held, 0 to never hold them
+	 */
+	private int high_watermark_;
+
+	/**
+	 * Number of events at which held producers continue
+	 */
+	private int low_watermark_;
+
+	/**
+	 * Whether producers are held
+	 */
+	private boolean throttling_;
+
+	/**
+	 * Highest number of queued events seen
+	 */
+	private int max_size_;
+
+	/**
+	 * Number of events posted at the head
+	 */
+	private long head_posts_;
+
+	/**
+	 * Number of times a producer was held
+	 */
+	private long throttled_;
+
+	/**
+	 * Total time in milliseconds producers were held
+	 */
+	private long throttle_time_;
+
+	/**
+	 * Coalescing rule of every event type which has one
+	 */
+	private EnumMap<event_type_t, Coalescer> coalescers_;
+
+	/**
+	 * Number of batches taken with drain
+	 */
+	private long batches_;
+
+	/**
+	 * Number of events taken with drain
+	 */
+	private long batched_;
+
+	/**
+	 * Largest batch taken with drain
+	 */
+	private int max_batch_;
+
+	/**
+	 * Number of events dropped as redundant
+	 */
+	private long coalesced_;
+
+	/**
+	 * Last handled event, null if it has no Coalescer
+	 */
+	private BundleEvent last_handled_;
+
+	/**
+	 * Object the last handled event is about
+	 */
+	private Object last_key_;
+
+	/**
+	 * State of that object after the last handled event
+	 */
+	private Object last_state_;
+}
@@ -26,7 +26,8 @@ import java.util.HashMap;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
 
 /**
- * Caching of Bundle implementation for detecting duplicated Bundle
+ * Caching of Bundle implementation for detecting duplicated Bundle. The
+ * methods are synchronized, the cache is shared by the event shards.
  * @author Rerngvit Yanggratoke (rerngvit@kth.se)
  */
 public class BundleInfoCache implements Serializable{
@@ -55,7 +56,7 @@ public class BundleInfoCache implements Serializable{
 	     * "Try to add the bundle to the cache. If it already exists in the
 	     * cache, adding it again fails, and the method returns false." [DTN2]
 	     */
-		public boolean add_entry(final Bundle bundle, final EndpointID prevhop)
+		public synchronized boolean add_entry(final Bundle bundle, final EndpointID prevhop)
 		{
 			if (bundle_info_cache_.containsKey(bundle)) return false;
 			else
@@ -74,7 +75,7 @@ public class BundleInfoCache implements Serializable{
 	     * Calling get after word
 	     * Return null if it's not found" [DTN2]
 	     */
-		public EndpointID lookup(final Bundle bundle)
+		public synchronized EndpointID lookup(final Bundle bundle)
 		{
 			
 			return bundle_info_cache_.get(bundle);
@@ -83,7 +84,7 @@ public class BundleInfoCache implements Serializable{
 	    /**
 	     * "Flush the cache." [DTN2]
 	     */
-		public void evict_all()
+		public synchronized void evict_all()
 		{
 			bundle_info_cache_.clear();
 		}
@@ -19,22 +19,30 @@
  */
 package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
 
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleFreeEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.exception.BundleListLockNotHoldByCurrentThread;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.exception.BundleLockNotHeldByCurrentThread;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.List;
 import android.util.Log;
 
 /**
  * Class for Bundles list having locking function for using in Multi-thread environment.
+ * The bundles are kept in a doubly linked list with a hash index by bundle id
+ * and a hash index by source and creation timestamp, so finding, checking and
+ * erasing a bundle take constant time and the order of the list is kept.
  * @author Rerngvit Yanggratoke (rerngvit@kth.se)
  */
 public class BundleList implements Serializable {
@@ -50,9 +58,83 @@ public class BundleList implements Serializable {
 	final private String TAG = "BundleList";
 
 	/**
-	 * Internal data structure to keep track of the list
+	 * Entry of the linked list, one for every bundle on the list
 	 */
-	private List<Bundle> list_;
+	private static final class Node {
+		Node(Bundle bundle) {
+			bundle_ = bundle;
+			key_ = source_key(bundle.source(), bundle.creation_ts());
+		}
+
+		/**
+		 * The bundle
+		 */
+		final Bundle bundle_;
+
+		/**
+		 * Key of the bundle in the source index, kept so the bundle can be
+		 * removed from the index even if it changed
+		 */
+		final GbofId key_;
+
+		/**
+		 * Previous and next entry, null at the ends of the list
+		 */
+		Node prev_;
+		Node next_;
+
+		/**
+		 * Position label, increasing from the head to the tail of the list
+		 * unless the labels are stale
+		 */
+		long order_;
+	}
+
+	/**
+	 * Distance between the position labels of neighbouring entries when
+	 * they are added at the ends or renumbered
+	 */
+	private static final long ORDER_GAP = 1L << 32;
+
+	/**
+	 * Sorts entries by their position label
+	 */
+	private static final Comparator<Node> LIST_ORDER = new Comparator<Node>() {
+		public int compare(Node a, Node b) {
+			return a.order_ < b.order_ ? -1 : (a.order_ > b.order_ ? 1 : 0);
+		}
+	};
+
+	/**
+	 * First entry of the list
+	 */
+	private transient Node head_;
+
+	/**
+	 * Last entry of the list
+	 */
+	private transient Node tail_;
+
+	/**
+	 * Number of bundles on the list
+	 */
+	private transient int size_;
+
+	/**
+	 * Entries by bundle id
+	 */
+	private transient HashMap<Integer, Node> nodes_;
+
+	/**
+	 * Entries by source and creation timestamp, in the order they were added
+	 */
+	private transient HashMap<GbofId, ArrayList<Node>> sources_;
+
+	/**
+	 * Whether an entry was added where there was no label left between its
+	 * neighbours, so the labels have to be renumbered before they are used
+	 */
+	private transient boolean order_stale_;
 	
 	/**
 	 * Event ticket to support blocking operation of the list
@@ -66,7 +148,8 @@ public class BundleList implements Serializable {
 	 */
 	public BundleList() {
 		name_ = "default_name";
-		list_ = new List<Bundle>();
+		init_entries();
+		slot_ = BundleMappings.register(this);
 		lock_ = new Lock();
 		own_lock_ = true;
 		assert(ticket!=null);
@@ -77,7 +160,8 @@ public class BundleList implements Serializable {
 	 */
 	public BundleList(Lock lock) {
 		name_ = "default_name";
-		list_ = new List<Bundle>();
+		init_entries();
+		slot_ = BundleMappings.register(this);
 		lock_ = lock;
 		own_lock_ = false;
 	}
@@ -87,7 +171,8 @@ public class BundleList implements Serializable {
 	 */
 	public BundleList(String name, Lock lock) {
 		name_ = name;
-		list_ = new List<Bundle>();
+		init_entries();
+		slot_ = BundleMappings.register(this);
 		lock_ = lock;
 		own_lock_ = true;
 	}
@@ -97,7 +182,8 @@ public class BundleList implements Serializable {
 	 */
 	public BundleList(String name) {
 		name_ = name;
-		list_ = new List<Bundle>();
+		init_entries();
+		slot_ = BundleMappings.register(this);
 		lock_ = new Lock();
 	}
 
@@ -109,8 +195,8 @@ public class BundleList implements Serializable {
 		lock_.lock();
 		try {
 
-			if (list_.size() > 0)
-				return list_.get(0);
+			if (head_ != null)
+				return head_.bundle_;
 			else
 				return null;
 
@@ -127,8 +213,8 @@ public class BundleList implements Serializable {
 		lock_.lock();
 		try {
 
-			if (list_.size() > 0)
-				return list_.get(list_.size() - 1);
+			if (tail_ != null)
+				return tail_.bundle_;
 			else
 				return null;
 
@@ -145,7 +231,7 @@ public class BundleList implements Serializable {
 		lock_.lock();
 		bundle.get_lock().lock();
 		try {
-			add_bundle(bundle, 0);
+			add_bundle(bundle, head_);
 			return true;
 		} catch (BundleLockNotHeldByCurrentThread e) {
 			Log.e(TAG, e.getMessage());
@@ -168,7 +254,7 @@ public class BundleList implements Serializable {
 		lock_.lock();
 		bundle.get_lock().lock();
 		try {
-			add_bundle(bundle, list_.size());
+			add_bundle(bundle, null);
 		
 		} catch (BundleLockNotHeldByCurrentThread e) {
 			Log.e(TAG, e.getMessage());
@@ -282,14 +368,21 @@ public class BundleList implements Serializable {
 	}
 
 	/**
-	 * Insert the given bundle sorted by the given sort method.
+	 * Insert the given bundle sorted by the given sort method. The list is
+	 * expected to be sorted already, the bundle goes after all the bundles
+	 * which do not sort after it, so insertions in sort order take constant time.
 	 */
 	public boolean insert_sorted(Bundle bundle, Comparator<Bundle> sort_comparator) {
 		lock_.lock();
 		bundle.get_lock().lock();
 		try {
-			add_bundle(bundle, list_.size());
-			Collections.sort(this.list_, sort_comparator);
+			Node before = null;
+			Node node = tail_;
+			while (node != null && sort_comparator.compare(node.bundle_, bundle) > 0) {
+				before = node;
+				node = node.prev_;
+			}
+			add_bundle(bundle, before);
 			return true;
 		} catch (BundleLockNotHeldByCurrentThread e) {
 			Log.e(TAG, e.getMessage());
@@ -312,11 +405,23 @@ public class BundleList implements Serializable {
 	/**
 	 * Sort the list according to the specified comparator.
 	 */
-	public boolean sort(Comparator<Bundle> sort_comparator) {
+	public boolean sort(final Comparator<Bundle> sort_comparator) {
 		lock_.lock();
 		try
 		{
-		Collections.sort(this.list_, sort_comparator);
+		ArrayList<Node> nodes = new ArrayList<Node>(size_);
+		for (Node node = head_; node != null; node = node.next_)
+			nodes.add(node);
+		Collections.sort(nodes, new Comparator<Node>() {
+			public int compare(Node arg0, Node arg1) {
+				return sort_comparator.compare(arg0.bundle_, arg1.bundle_);
+			}
+		});
+
+		head_ = null;
+		tail_ = null;
+		for (int i = 0; i < nodes.size(); i++)
+			link(nodes.get(i), null);
 		return true;
 		}
 		finally
@@ -335,7 +440,10 @@ public class BundleList implements Serializable {
 		try
 		{
 			int random_position = (int) (Math.random() * this.size());
-			add_bundle(bundle, random_position);
+			Node before = head_;
+			for (int i = 0; i < random_position; i++)
+				before = before.next_;
+			add_bundle(bundle, before);
 		} catch (BundleLockNotHeldByCurrentThread e) {
 			Log.e(TAG, e.getMessage());
 		} catch (InterruptedException e) {
@@ -359,12 +467,10 @@ public class BundleList implements Serializable {
 	public Bundle pop_front(boolean free) {
 		lock_.lock();
 		try {
-			if (list_.isEmpty())
+			if (head_ == null)
 				return null;
 
-			assert (!list_.isEmpty());
-
-			Bundle ret = del_bundle(0, free);
+			Bundle ret = del_bundle(head_, free);
 			
 			return ret;
 		} catch (BundleListLockNotHoldByCurrentThread e) {
@@ -382,10 +488,10 @@ public class BundleList implements Serializable {
 	public Bundle pop_back(boolean free) {
 		lock_.lock();
 		try {
-			if (list_.isEmpty())
+			if (tail_ == null)
 				return null;
 
-			Bundle ret = del_bundle(list_.size() - 1, free);
+			Bundle ret = del_bundle(tail_, free);
 		
 			return ret;
 		} catch (BundleListLockNotHoldByCurrentThread e) {
@@ -416,11 +522,11 @@ public class BundleList implements Serializable {
 		bundle.get_lock().lock();
 
 		try {
-			int pos = list_.indexOf(bundle);
-			if (pos == -1) return false;
+			Node node = nodes_.get(bundle.bundleid());
+			if (node == null || node.bundle_ != bundle) return false;
 
 
-			Bundle b = del_bundle(pos, free);
+			Bundle b = del_bundle(node, free);
 			assert (b == bundle);
 
 			
@@ -442,9 +548,12 @@ public class BundleList implements Serializable {
 	 * @return true if it's in the list, false if it's not
 	 */
 	public boolean contains(final Bundle bundle) {
+		if (bundle == null)
+			return false;
 		lock_.lock();
 		try {
-			return list_.contains(bundle);
+			Node node = nodes_.get(bundle.bundleid());
+			return node != null && node.bundle_ == bundle;
 		} finally {
 			lock_.unlock();
 		}
@@ -459,13 +568,8 @@ public class BundleList implements Serializable {
 
 		lock_.lock();
 		try {
-			Iterator<Bundle> iter = list_.iterator();
-			while (iter.hasNext()) {
-				Bundle bundle = iter.next();
-				if (bundle.bundleid() == bundleid)
-					return bundle;
-			}
-			return null;
+			Node node = nodes_.get(bundleid);
+			return node == null ? null : node.bundle_;
 
 		} finally {
 			lock_.unlock();
@@ -483,15 +587,8 @@ public class BundleList implements Serializable {
 		lock_.lock();
     	try
     	{
-    		Iterator<Bundle> iter = list_.iterator();
-    		while(iter.hasNext())
-    		{
-    			Bundle bundle = iter.next();
-    			if (bundle.creation_ts().equals(creation_ts)
-    					&& bundle.source().equals(source_eid))
-    				return bundle;
-    		}
-    		return null;
+    		ArrayList<Node> found = in_list_order(sources_.get(source_key(source_eid, creation_ts)));
+    		return found.isEmpty() ? null : found.get(0).bundle_;
     		
     	}
     	finally
@@ -509,20 +606,8 @@ public class BundleList implements Serializable {
 		lock_.lock();
     	try
     	{
-    		Iterator<Bundle> iter = list_.iterator();
-    		while(iter.hasNext())
-    		{
-    			Bundle bundle = iter.next();
-    			if (gbof_id.equals(
-    					bundle.source(), 
-    					bundle.creation_ts(), 
-    					bundle.is_fragment(),
-    					bundle.payload().length(), 
-    					bundle.frag_offset())
-    					)
-    				return bundle;
-    		}
-    		return null;
+    		java.util.List<Bundle> found = find_all(gbof_id);
+    		return found.isEmpty() ? null : found.get(0);
     		
     	}
     	finally
@@ -532,6 +617,40 @@ public class BundleList implements Serializable {
 
 	}
 
+	/**
+	 * Find all the bundles of the list with the given GbofId, in the order of
+	 * the list.
+	 * @param gbof_id the GbofId, for non fragments the fragment length and offset are ignored
+	 * @return the bundles, empty if there is none
+	 */
+	public java.util.List<Bundle> find_all(GbofId gbof_id) {
+		lock_.lock();
+		try {
+			ArrayList<Node> nodes = in_list_order(sources_.get(
+					source_key(gbof_id.source(), gbof_id.creation_ts())));
+			ArrayList<Bundle> found = new ArrayList<Bundle>(nodes.size());
+			for (int i = 0; i < nodes.size(); i++) {
+				Bundle bundle = nodes.get(i).bundle_;
+				if (gbof_id.equals(gbof_id(bundle)))
+					found.add(bundle);
+			}
+			return found;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * The GbofId of the bundle, with its payload length as fragment length
+	 * @param bundle the bundle
+	 * @return a new GbofId
+	 */
+	public static GbofId gbof_id(Bundle bundle) {
+		return new GbofId(bundle.source(), bundle.creation_ts(),
+				bundle.is_fragment(), bundle.payload().length(),
+				bundle.frag_offset());
+	}
+
 
 	/**
 	 * "Move all bundles from this list to another." [DTN2]
@@ -542,8 +661,23 @@ public class BundleList implements Serializable {
 			other.lock_.lock();
 			try {
 
-				other.list_.addAll(this.list_);
-				this.list_.clear();
+				while (head_ != null) {
+					Node node = head_;
+					Bundle b = node.bundle_;
+					unlink(node);
+					b.get_lock().lock();
+					try {
+						b.mappings().remove(this);
+						if (!b.is_queued_on(other)) {
+							other.link(node, null);
+							b.mappings().add(other);
+						}
+					} catch (BundleLockNotHeldByCurrentThread e) {
+						Log.e(TAG, e.getMessage());
+					} finally {
+						b.get_lock().unlock();
+					}
+				}
 			} finally {
 				other.get_lock().unlock();
 			}
@@ -559,7 +693,11 @@ public class BundleList implements Serializable {
 		this.lock_.lock();
 		try {
 
-			list_.clear();
+			head_ = null;
+			tail_ = null;
+			size_ = 0;
+			nodes_.clear();
+			sources_.clear();
 		} finally {
 			this.lock_.unlock();
 		}
@@ -571,7 +709,7 @@ public class BundleList implements Serializable {
 	public final int size() {
 		lock_.lock();
 		try {
-			return list_.size();
+			return size_;
 		} finally {
 			lock_.unlock();
 		}
@@ -584,7 +722,7 @@ public class BundleList implements Serializable {
 		lock_.lock();
 		try
 		{
-		return list_.isEmpty();
+		return size_ == 0;
 		}
 		finally
 		{
@@ -595,6 +733,7 @@ public class BundleList implements Serializable {
 	/**
 	 * "Iterator used to iterate through the list. Iterations _must_ be completed
 	 * while holding the list lock, and this method will assert as such." [DTN2]
+	 * Removing through the iterator removes the bundle like erase without freeing it.
 	 * 
 	 * @throws BundleListLockNotHoldByCurrentThread
 	 */
@@ -604,7 +743,7 @@ public class BundleList implements Serializable {
 			throw new BundleListLockNotHoldByCurrentThread();
 		}
 		
-		return list_.listIterator();
+		return new NodeIterator(head_, 0);
 	}
 
 	/**
@@ -617,7 +756,7 @@ public class BundleList implements Serializable {
 			throw new BundleListLockNotHoldByCurrentThread();
 		}
  
-		return list_.listIterator(list_.size());
+		return new NodeIterator(null, size_);
 	}
 
 	/**
@@ -627,49 +766,186 @@ public class BundleList implements Serializable {
 		return lock_;
 	}
 
+	/**
+	 * Iterator over the entries of the list, the lock has to be held to
+	 * change the list through it
+	 */
+	private final class NodeIterator implements ListIterator<Bundle> {
+
+		NodeIterator(Node next, int index) {
+			next_ = next;
+			index_ = index;
+		}
+
+		public boolean hasNext() {
+			return next_ != null;
+		}
+
+		public Bundle next() {
+			if (next_ == null)
+				throw new NoSuchElementException();
+			last_ = next_;
+			next_ = next_.next_;
+			index_++;
+			return last_.bundle_;
+		}
+
+		public boolean hasPrevious() {
+			return next_ != null ? next_.prev_ != null : tail_ != null;
+		}
+
+		public Bundle previous() {
+			Node prev = next_ != null ? next_.prev_ : tail_;
+			if (prev == null)
+				throw new NoSuchElementException();
+			next_ = prev;
+			last_ = prev;
+			index_--;
+			return prev.bundle_;
+		}
+
+		public int nextIndex() {
+			return index_;
+		}
+
+		public int previousIndex() {
+			return index_ - 1;
+		}
+
+		public void remove() {
+			if (last_ == null)
+				throw new IllegalStateException();
+			if (last_ == next_)
+				next_ = next_.next_;
+			else
+				index_--;
+			try {
+				del_bundle(last_, false);
+			} catch (BundleListLockNotHoldByCurrentThread e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+			last_ = null;
+		}
+
+		/**
+		 * Replace the bundle returned by the last call of next or previous
+		 * @throws IllegalArgumentException if the bundle is already on the list
+		 */
+		public void set(Bundle bundle) {
+			if (last_ == null)
+				throw new IllegalStateException();
+			if (last_.bundle_ == bundle)
+				return;
+			if (nodes_.containsKey(bundle.bundleid()))
+				throw new IllegalArgumentException("bundle already on list " + name_);
+
+			Node after = last_.next_;
+			boolean was_next = last_ == next_;
+			try {
+				del_bundle(last_, false);
+			} catch (BundleListLockNotHoldByCurrentThread e) {
+				throw new IllegalStateException(e.getMessage());
+			}
+			last_ = insert(bundle, after);
+			if (was_next)
+				next_ = last_;
+		}
+
+		/**
+		 * Add the bundle in front of the bundle the next call of next returns
+		 * @throws IllegalArgumentException if the bundle is already on the list
+		 */
+		public void add(Bundle bundle) {
+			insert(bundle, next_);
+			index_++;
+			last_ = null;
+		}
+
+		/**
+		 * Add the bundle in front of the given entry
+		 * @return the entry of the bundle
+		 */
+		private Node insert(Bundle bundle, Node before) {
+			Node node;
+			bundle.get_lock().lock();
+			try {
+				node = add_bundle(bundle, before);
+			} catch (BundleListLockNotHoldByCurrentThread e) {
+				throw new IllegalStateException(e.getMessage());
+			} catch (BundleLockNotHeldByCurrentThread e) {
+				throw new IllegalStateException(e.getMessage());
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e.getMessage());
+			} finally {
+				bundle.get_lock().unlock();
+			}
+			if (node == null)
+				throw new IllegalArgumentException("bundle already on list " + name_);
+			return node;
+		}
+
+		/**
+		 * Entry returned by the next call of next
+		 */
+		private Node next_;
+
+		/**
+		 * Entry returned by the last call of next or previous
+		 */
+		private Node last_;
+
+		/**
+		 * Index of next_
+		 */
+		private int index_;
+	}
+
 	/**
 	 * "Helper routine to add a bundle at the indicated position." [DTN2]
+	 * @param before entry to add the bundle in front of, null to add it at the end
+	 * @return the entry of the bundle, null if it was already on the list
 	 * @throws BundleLockNotHeldByCurrentThread 
 	 * @throws InterruptedException 
 	 */
-	private void add_bundle(final Bundle b, final int pos) throws BundleListLockNotHoldByCurrentThread, BundleLockNotHeldByCurrentThread, InterruptedException {
+	private Node add_bundle(final Bundle b, final Node before) throws BundleListLockNotHoldByCurrentThread, BundleLockNotHeldByCurrentThread, InterruptedException {
 		if(!lock_.isHeldByCurrentThread()) throw new BundleListLockNotHoldByCurrentThread();
 	    if(!b.get_lock().isHeldByCurrentThread()) throw new BundleLockNotHeldByCurrentThread();
 	    
-	    if (b.is_queued_on(this)) {
+	    if (b.is_queued_on(this) || nodes_.containsKey(b.bundleid())) {
 	        Log.e(TAG, String.format("ERROR in add bundle: " +
 	                "bundle id %d already on list [%s]",
 	                b.bundleid(), name_));
 	        
-	        return;
+	        return null;
 	    }
 	  
-	    list_.add(pos, b);
+	    Node node = new Node(b);
+	    link(node, before);
 	    
 	    
 	    b.mappings().add(this);
 	    
 	    
 
-	    Log.d(TAG, String.format("bundle id %d is added to list [%s] , the size become",
-	              b.bundleid(), name_, list_.size()));
-	    
+	    Log.d(TAG, String.format("bundle id %d is added to list [%s] , the size become %d",
+	              b.bundleid(), name_, size_));
+	    return node;
 	}
 
 	/**
 	 * Helper routine to remove a bundle from the indicated position. This is called by other public functions such as pop_front
 	 * This is the function will actually post the bundle free event to the Bundle daemon
-	 * @param pos
-	 *            Position to delete
+	 * @param node
+	 *            Entry to delete
 	 *            a flag indicate whether to free the bundle as well
 	 * @param free whether to free the bundle. This freeing will remove Bundle from storage including its payload
 	 * @throws BundleListLockNotHoldByCurrentThread 
 	 * @returns the bundle that, before this call, was at the position
 	 * 
 	 */
-	private Bundle del_bundle(final int pos, boolean free) throws BundleListLockNotHoldByCurrentThread {
+	private Bundle del_bundle(final Node node, boolean free) throws BundleListLockNotHoldByCurrentThread {
 
-		Bundle b = list_.get(pos);
+		Bundle b = node.bundle_;
 		assert (lock_.isHeldByCurrentThread());
 
 		if(!lock_.isHeldByCurrentThread()) throw new BundleListLockNotHoldByCurrentThread();
@@ -693,7 +969,7 @@ public class BundleList implements Serializable {
 			}
 
 			// "remove the bundle from the list" [DTN2]
-			list_.remove(b);
+			unlink(node);
 
 			if (free)
 			BundleDaemon.getInstance().post(new BundleFreeEvent(b));
@@ -709,6 +985,252 @@ public class BundleList implements Serializable {
 		}
 	}
 
+	/**
+	 * Link the entry in front of the given entry and add it to the indexes,
+	 * the lock has to be held
+	 * @param before entry to link the new one in front of, null to link it at the end
+	 */
+	private void link(Node node, Node before) {
+		node.next_ = before;
+		node.prev_ = before == null ? tail_ : before.prev_;
+		if (node.prev_ == null)
+			head_ = node;
+		else
+			node.prev_.next_ = node;
+		if (before == null)
+			tail_ = node;
+		else
+			before.prev_ = node;
+		size_++;
+		if (!order_stale_ && !label(node))
+			order_stale_ = true;
+
+		nodes_.put(node.bundle_.bundleid(), node);
+		ArrayList<Node> same_source = sources_.get(node.key_);
+		if (same_source == null) {
+			same_source = new ArrayList<Node>(1);
+			sources_.put(node.key_, same_source);
+		}
+		same_source.add(node);
+	}
+
+	/**
+	 * Unlink the entry and remove it from the indexes, the lock has to be held
+	 */
+	private void unlink(Node node) {
+		if (node.prev_ == null)
+			head_ = node.next_;
+		else
+			node.prev_.next_ = node.next_;
+		if (node.next_ == null)
+			tail_ = node.prev_;
+		else
+			node.next_.prev_ = node.prev_;
+		node.prev_ = null;
+		node.next_ = null;
+		size_--;
+		if (size_ == 0)
+			order_stale_ = false;
+
+		nodes_.remove(node.bundle_.bundleid());
+		ArrayList<Node> same_source = sources_.get(node.key_);
+		if (same_source != null) {
+			same_source.remove(node);
+			if (same_source.isEmpty())
+				sources_.remove(node.key_);
+		}
+	}
+
+	/**
+	 * Give the linked entry a position label between the labels of its
+	 * neighbours
+	 * @return false if there is no label left between them
+	 */
+	private boolean label(Node node) {
+		Node prev = node.prev_;
+		Node next = node.next_;
+		if (prev == null && next == null) {
+			node.order_ = 0;
+		} else if (next == null) {
+			if (prev.order_ > Long.MAX_VALUE - ORDER_GAP)
+				return false;
+			node.order_ = prev.order_ + ORDER_GAP;
+		} else if (prev == null) {
+			if (next.order_ < Long.MIN_VALUE + ORDER_GAP)
+				return false;
+			node.order_ = next.order_ - ORDER_GAP;
+		} else {
+			long middle = (prev.order_ >> 1) + (next.order_ >> 1)
+					+ (prev.order_ & next.order_ & 1);
+			if (middle <= prev.order_ || middle >= next.order_)
+				return false;
+			node.order_ = middle;
+		}
+		return true;
+	}
+
+	/**
+	 * Label all the entries again from the head, the lock has to be held
+	 */
+	private void renumber() {
+		long order = 0;
+		for (Node node = head_; node != null; node = node.next_) {
+			node.order_ = order;
+			order += ORDER_GAP;
+		}
+		order_stale_ = false;
+	}
+
+	/**
+	 * The entries in the order of the list, the lock has to be held. A
+	 * single entry is returned right away, several are sorted by their
+	 * position label.
+	 * @param nodes entries of the list in any order, can be null
+	 */
+	private ArrayList<Node> in_list_order(ArrayList<Node> nodes) {
+		if (nodes == null)
+			return new ArrayList<Node>(0);
+		ArrayList<Node> ordered = new ArrayList<Node>(nodes);
+		if (ordered.size() > 1) {
+			if (order_stale_)
+				renumber();
+			Collections.sort(ordered, LIST_ORDER);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Key of the source index, a non fragment GbofId
+	 */
+	private static GbofId source_key(EndpointID source, BundleTimestamp creation_ts) {
+		return new GbofId(source, creation_ts, false, 0, 0);
+	}
+
+	/**
+	 * Create the empty list and indexes
+	 */
+	private void init_entries() {
+		head_ = null;
+		tail_ = null;
+		size_ = 0;
+		nodes_ = new HashMap<Integer, Node>();
+		sources_ = new HashMap<GbofId, ArrayList<Node>>();
+		order_stale_ = false;
+	}
+
+	/**
+	 * Write the bundles of the list in order instead of the linked entries
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size_);
+		for (Node node = head_; node != null; node = node.next_)
+			out.writeObject(node.bundle_);
+	}
+
+	/**
+	 * Read the bundles written by writeObject and rebuild the entries
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		init_entries();
+		slot_ = BundleMappings.register(this);
+		int size = in.readInt();
+		for (int i = 0; i < size; i++)
+			link(new Node((Bundle) in.readObject()), null);
+	}
+
+	/**
+	 * Measure push_back, find by id, contains, erase and find by GbofId with
+	 * the given list sizes, compared with the linear search and the array
+	 * shifting of an ArrayList the list was based on before. Both erase the
+	 * same distinct bundles in the same order.
+	 * The times are logged and appended to the buffer.
+	 * @param sizes list sizes to measure, for example 1000, 10000 and 100000
+	 * @param lookups number of finds, contains and erases for every size
+	 * @param buf StringBuffer to append the results to
+	 * @return true if every lookup found its bundle in both lists
+	 */
+	public static boolean test_indexed_operations(int[] sizes, int lookups, StringBuffer buf) {
+		final String tag = "BundleList";
+		Random random = new Random(sizes.length);
+		boolean ok = true;
+		for (int s = 0; s < sizes.length; s++) {
+			int size = sizes[s];
+			Bundle[] bundles = new Bundle[size];
+			for (int i = 0; i < size; i++) {
+				bundles[i] = new Bundle(i + 1, BundlePayload.location_t.NODATA);
+				bundles[i].source().assign("dtn://node" + (i % 64) + ".dtn");
+			}
+			int[] picks = new int[lookups];
+			for (int i = 0; i < lookups; i++)
+				picks[i] = random.nextInt(size);
+			// distinct bundles to erase, the front of a shuffled index array
+			int erases = Math.min(lookups, size);
+			int[] erased = new int[size];
+			for (int i = 0; i < size; i++)
+				erased[i] = i;
+			for (int i = 0; i < erases; i++) {
+				int j = i + random.nextInt(size - i);
+				int swap = erased[i];
+				erased[i] = erased[j];
+				erased[j] = swap;
+			}
+
+			// previous layout, an ArrayList searched from the front
+			ArrayList<Bundle> array = new ArrayList<Bundle>();
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < size; i++)
+				array.add(bundles[i]);
+			long array_add = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < lookups; i++) {
+				Bundle found = null;
+				for (int j = 0; j < array.size() && found == null; j++)
+					if (array.get(j).bundleid() == picks[i] + 1)
+						found = array.get(j);
+				ok &= found == bundles[picks[i]];
+				ok &= array.contains(bundles[picks[i]]);
+			}
+			long array_find = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < erases; i++)
+				ok &= array.remove(bundles[erased[i]]);
+			long array_erase = System.currentTimeMillis() - start;
+
+			BundleList list = new BundleList("test_indexed_operations");
+			start = System.currentTimeMillis();
+			for (int i = 0; i < size; i++)
+				list.push_back(bundles[i]);
+			long list_add = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < lookups; i++) {
+				ok &= list.find(picks[i] + 1) == bundles[picks[i]];
+				ok &= list.contains(bundles[picks[i]]);
+			}
+			long list_find = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < lookups; i++)
+				ok &= list.find(gbof_id(bundles[picks[i]])) == bundles[picks[i]];
+			long list_gbof = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < erases; i++)
+				ok &= list.erase(bundles[erased[i]], false);
+			long list_erase = System.currentTimeMillis() - start;
+			ok &= list.size() == array.size();
+			list.clear();
+
+			String result = String.format("%d bundles, %d lookups: "
+					+ "ArrayList add %d ms find+contains %d ms erase %d ms, "
+					+ "BundleList add %d ms find+contains %d ms find gbof %d ms erase %d ms",
+					size, lookups, array_add, array_find, array_erase,
+					list_add, list_find, list_gbof, list_erase);
+			Log.d(tag, result);
+			buf.append(result).append("\n");
+		}
+		return ok;
+	}
+
 	/**
 	 * Getter for name of the list
 	 * 
@@ -718,11 +1240,23 @@ public class BundleList implements Serializable {
 		return name_;
 	}
 
+	/**
+	 * Slot id of the list in the BundleMappings of its bundles
+	 */
+	final int slot() {
+		return slot_;
+	}
+
 	/**
 	 * name of the list
 	 */
 	private String name_; 
 
+	/**
+	 * Slot id of the list in the BundleMappings of its bundles
+	 */
+	private transient int slot_;
+
 	
 
 	/**
@@ -0,0 +1,275 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.Set;
+import android.util.Log;
+
+/**
+ * The BundleLists a Bundle is queued on. Every BundleList gets a slot id when
+ * it is created and the mappings of a bundle are the sorted slot ids of its
+ * lists in a small int array, so checking a list is a search of a few ints
+ * and copying the mappings copies one array. Slot ids are never reused, a
+ * bundle left on a list which was collected can not appear queued on a new
+ * list. The mappings are protected by the lock of the bundle.
+ */
+public class BundleMappings implements Serializable {
+
+	/**
+	 * Serial version UID to support Java Serializable
+	 */
+	private static final long serialVersionUID = 3370981826618034237L;
+
+	/**
+	 * String TAG for supporting Android logging mechanism
+	 */
+	private static String TAG = "BundleMappings";
+
+	/**
+	 * Shared array of the mappings without any list
+	 */
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * Next slot id to hand out
+	 */
+	private static int next_slot_ = 0;
+
+	/**
+	 * The lists by slot id, for dumping and resolving the mappings
+	 */
+	private static final HashMap<Integer, SlotReference> lists_ = new HashMap<Integer, SlotReference>();
+
+	/**
+	 * Queue of the references of the collected lists
+	 */
+	private static final ReferenceQueue<BundleList> collected_ = new ReferenceQueue<BundleList>();
+
+	/**
+	 * Weak reference to a list remembering its slot id
+	 */
+	private static final class SlotReference extends WeakReference<BundleList> {
+		SlotReference(BundleList list, int slot) {
+			super(list, collected_);
+			slot_ = slot;
+		}
+
+		final int slot_;
+	}
+
+	/**
+	 * Give a new BundleList its slot id
+	 * @param list the list
+	 * @return the slot id
+	 */
+	static synchronized int register(BundleList list) {
+		Reference<? extends BundleList> ref;
+		while ((ref = collected_.poll()) != null)
+			lists_.remove(((SlotReference) ref).slot_);
+
+		int slot = next_slot_++;
+		lists_.put(slot, new SlotReference(list, slot));
+		return slot;
+	}
+
+	/**
+	 * The list with the slot id
+	 * @return the list or null if it was collected
+	 */
+	static synchronized BundleList list(int slot) {
+		SlotReference ref = lists_.get(slot);
+		return ref == null ? null : ref.get();
+	}
+
+	public BundleMappings() {
+		slots_ = EMPTY;
+		size_ = 0;
+	}
+
+	/**
+	 * Add the list to the mappings
+	 * @return false if the list was already there
+	 */
+	public boolean add(BundleList list) {
+		int slot = list.slot();
+		int pos = search(slot);
+		if (pos >= 0)
+			return false;
+		pos = -pos - 1;
+		if (size_ == slots_.length) {
+			int[] grown = new int[Math.max(2, size_ * 2)];
+			System.arraycopy(slots_, 0, grown, 0, size_);
+			slots_ = grown;
+		}
+		System.arraycopy(slots_, pos, slots_, pos + 1, size_ - pos);
+		slots_[pos] = slot;
+		size_++;
+		return true;
+	}
+
+	/**
+	 * Remove the list from the mappings
+	 * @return false if the list was not there
+	 */
+	public boolean remove(BundleList list) {
+		int pos = search(list.slot());
+		if (pos < 0)
+			return false;
+		System.arraycopy(slots_, pos + 1, slots_, pos, size_ - pos - 1);
+		size_--;
+		return true;
+	}
+
+	/**
+	 * Whether the list is in the mappings
+	 */
+	public boolean contains(BundleList list) {
+		return search(list.slot()) >= 0;
+	}
+
+	/**
+	 * Number of lists in the mappings
+	 */
+	public int size() {
+		return size_;
+	}
+
+	/**
+	 * Whether the mappings have no list
+	 */
+	public boolean isEmpty() {
+		return size_ == 0;
+	}
+
+	/**
+	 * Copy of the mappings, the copy shares nothing with this one
+	 */
+	public BundleMappings copy() {
+		BundleMappings copy = new BundleMappings();
+		if (size_ > 0) {
+			copy.slots_ = new int[size_];
+			System.arraycopy(slots_, 0, copy.slots_, 0, size_);
+			copy.size_ = size_;
+		}
+		return copy;
+	}
+
+	/**
+	 * Slot id of the i-th list of the mappings
+	 */
+	public int slot(int i) {
+		return slots_[i];
+	}
+
+	/**
+	 * The list of the i-th slot of the mappings
+	 * @return the list or null if it was collected
+	 */
+	public BundleList get(int i) {
+		return list(slots_[i]);
+	}
+
+	/**
+	 * Position of the slot id or -(insertion point) - 1
+	 */
+	private int search(int slot) {
+		int low = 0;
+		int high = size_ - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (slots_[mid] < slot)
+				low = mid + 1;
+			else if (slots_[mid] > slot)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Measure the heap used by the mappings of the given number of bundles,
+	 * each queued on two lists, with the previous Set of BundleLists and with
+	 * BundleMappings, and log the bytes per bundle of both.
+	 * @param bundles number of bundles, for example 100000
+	 * @param buf StringBuffer to append the result to
+	 * @return true if both kinds of mappings hold the two lists
+	 */
+	public static boolean test_mapping_memory(int bundles, StringBuffer buf) {
+		BundleList first = new BundleList("test_mapping_memory_first");
+		BundleList second = new BundleList("test_mapping_memory_second");
+
+		long before = used_heap();
+		Object[] sets = new Object[bundles];
+		for (int i = 0; i < bundles; i++) {
+			Set<BundleList> set = new Set<BundleList>();
+			set.add(first);
+			set.add(second);
+			sets[i] = set;
+		}
+		long set_bytes = used_heap() - before;
+		boolean ok = ((Set<?>) sets[bundles - 1]).size() == 2;
+		sets = null;
+
+		before = used_heap();
+		BundleMappings[] mappings = new BundleMappings[bundles];
+		for (int i = 0; i < bundles; i++) {
+			mappings[i] = new BundleMappings();
+			mappings[i].add(first);
+			mappings[i].add(second);
+		}
+		long mapping_bytes = used_heap() - before;
+		ok &= mappings[bundles - 1].contains(first) && mappings[bundles - 1].contains(second);
+
+		String result = String.format("%d bundles on 2 lists: Set %d bytes per bundle, "
+				+ "BundleMappings %d bytes per bundle", bundles,
+				set_bytes / bundles, mapping_bytes / bundles);
+		Log.d(TAG, result);
+		buf.append(result).append("\n");
+		return ok;
+	}
+
+	/**
+	 * Heap in use after a garbage collection
+	 */
+	private static long used_heap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			runtime.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Sorted slot ids of the lists, the first size_ are used
+	 */
+	private int[] slots_;
+
+	/**
+	 * Number of lists
+	 */
+	private int size_;
+}
@@ -26,8 +26,8 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
@@ -37,6 +37,7 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.R;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.exception.BundleLockNotHeldByCurrentThread;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.exception.BundlePayloadWrongTypeException;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.BundleStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.PayloadDedupStore;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.IByteBuffer;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.SerializableByteBuffer;
@@ -45,6 +46,15 @@ import android.util.Log;
 
 /**
  * This class is created separately from DTN Bundle for supporting different locations of the Bundle including memory, disk, or no data at all.
+ * A DISK payload starts inline, kept in memory and stored with the Bundle metadata
+ * by the BundleStore. It moves to its own payload file once it grows above the
+ * configured inline payload threshold or when its file is asked for.
+ * With the payload deduplication a finished payload file can be replaced by a
+ * content file of the PayloadDedupStore shared with other bundles, the payload
+ * gets its own file again before it is written.
+ * With the payload compression a finished payload file can be stored
+ * compressed in blocks by the CompressedPayload, it is read block by block and
+ * decompressed again before it is written. The length stays the raw length.
  * @author Rerngvit Yanggratoke (rerngvit@kth.se)
  */
 public class BundlePayload implements Serializable {
@@ -116,18 +126,248 @@ public class BundlePayload implements Serializable {
 		if (location == location_t.MEMORY)
 			 data_ = new byte[DEFAULT_DATA_BUFFER_SIZE];
 		if (location_ == location_t.DISK)
-		// Only when the location is DISK
-		file_ = BundleStore.getInstance().get_payload_file(bundleid);
+		{
+			// Only when the location is DISK
+			file_ = BundleStore.getInstance().get_payload_file(bundleid);
+			inline_threshold_ = BundleStore.getInstance().inline_payload_threshold();
+			if (inline_threshold_ > 0)
+				inline_data_ = new byte[0];
+		}
 
 	}
 
 	/** 
-	 * Get File object, this will be valid in case of Payload location as Disk
+	 * Get File object, this will be valid in case of Payload location as Disk.
+	 * An inline payload is written to its file first.
 	 */
 	public File file()
 	{
+		if (inline_data_ != null || compressed_) {
+			lock_.lock();
+			try {
+				spill_inline();
+				if (compressed_) {
+					unshare();
+					decompress();
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Writing payload file failed: " + e.getMessage());
+			} finally {
+				lock_.unlock();
+			}
+		}
 		return file_;
 	}
+
+	/**
+	 * Whether the DISK payload is kept inline instead of in its payload file
+	 */
+	public boolean is_inline() {
+		return inline_data_ != null;
+	}
+
+	/**
+	 * Get a copy of the inline payload data, used by the BundleStore to store it with the metadata.
+	 * @return the data or null if the payload is not inline
+	 */
+	public byte[] inline_data() {
+		lock_.lock();
+		try {
+			if (inline_data_ == null)
+				return null;
+			byte[] result = new byte[length_];
+			System.arraycopy(inline_data_, 0, result, 0, length_);
+			return result;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Restore an inline DISK payload loaded from the BundleStore.
+	 * @param data the payload data
+	 */
+	public void set_inline_data(byte[] data) {
+		lock_.lock();
+		try {
+			inline_data_ = data;
+			length_ = data.length;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Hash of the content shared through the PayloadDedupStore
+	 * @return the hash or null if the payload has its own file
+	 */
+	public String content_hash() {
+		return content_hash_;
+	}
+
+	/**
+	 * Replace the finished payload file by the content file of the PayloadDedupStore
+	 * with the same data. This is applicable only for DISK payloads in their file.
+	 * @return true if the payload data is on the disk
+	 */
+	public boolean dedup() {
+		lock_.lock();
+		try {
+			if (location_ != location_t.DISK || inline_data_ != null || content_hash_ != null)
+				return true;
+
+			String hash;
+			long stored_length = stored_length();
+			PayloadChannel channel = pin_file_handle();
+			try {
+				channel.truncate(stored_length);
+				hash = channel.digest(stored_length);
+				channel.flush();
+			} finally {
+				unpin_file_handle(channel);
+			}
+
+			PayloadChannelCache.getInstance().invalidate(bundleid_);
+			file_ = PayloadDedupStore.getInstance().share(bundleid_, hash, file_, stored_length);
+			content_hash_ = hash;
+			dirty_ = false;
+			return true;
+		} catch (FileNotFoundException e) {
+			Log.e(TAG, e.getMessage());
+			return false;
+		} catch (BundlePayloadWrongTypeException e) {
+			Log.e(TAG, e.getMessage());
+			return false;
+		} catch (IOException e) {
+			Log.e(TAG, "Payload deduplication failed: " + e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Whether the DISK payload file is stored compressed
+	 */
+	public boolean is_compressed() {
+		return compressed_;
+	}
+
+	/**
+	 * Size of the payload data on the disk, the size of the compressed file
+	 * if the payload is compressed else the payload length
+	 */
+	public long stored_length() {
+		return compressed_ ? compressed_length_ : length_;
+	}
+
+	/**
+	 * Store the finished payload file compressed. This is applicable only for
+	 * DISK payloads in their own file, payloads which do not get smaller are
+	 * left as they are.
+	 * @param block_size raw size of the compressed blocks
+	 * @param level deflate level
+	 * @return true if the payload data is on the disk
+	 */
+	public boolean compress(int block_size, int level) {
+		lock_.lock();
+		try {
+			if (location_ != location_t.DISK || inline_data_ != null || content_hash_ != null
+					|| compressed_ || length_ == 0)
+				return true;
+
+			long start = System.currentTimeMillis();
+			File file = new File(file_.getPath() + ".z");
+			long size;
+			PayloadChannel channel = pin_file_handle();
+			try {
+				PayloadChannel compressed = new PayloadChannel(file);
+				try {
+					size = CompressedPayload.compress(channel, length_, compressed, block_size, level);
+					if (size < length_)
+						compressed.flush();
+				} finally {
+					compressed.close();
+				}
+			} finally {
+				unpin_file_handle(channel);
+			}
+			CompressedPayload.account_time(System.currentTimeMillis() - start);
+			CompressedPayload.account(length_, size);
+
+			if (size >= length_) {
+				file.delete();
+				return true;
+			}
+
+			PayloadChannelCache.getInstance().invalidate(bundleid_);
+			if (!file.renameTo(file_)) {
+				file.delete();
+				throw new IOException("Renaming " + file.getName() + " failed");
+			}
+			compressed_ = true;
+			compressed_length_ = size;
+			reader_ = null;
+			dirty_ = false;
+			return true;
+		} catch (FileNotFoundException e) {
+			Log.e(TAG, e.getMessage());
+			return false;
+		} catch (BundlePayloadWrongTypeException e) {
+			Log.e(TAG, e.getMessage());
+			return false;
+		} catch (IOException e) {
+			Log.e(TAG, "Payload compression failed: " + e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Restore a DISK payload loaded from the BundleStore which is stored compressed.
+	 * @param size size of the compressed file
+	 */
+	public void set_compressed(long size) {
+		lock_.lock();
+		try {
+			compressed_ = true;
+			compressed_length_ = size;
+			reader_ = null;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Restore a DISK payload loaded from the BundleStore which refers to shared content.
+	 * The length and the compression have to be set before.
+	 * @param hash Hash of the content
+	 */
+	public void set_content_hash(String hash) {
+		lock_.lock();
+		try {
+			content_hash_ = hash;
+			file_ = PayloadDedupStore.getInstance().content_file(hash);
+			PayloadDedupStore.getInstance().restore_reference(bundleid_, hash, stored_length());
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Restore a DISK payload loaded from the BundleStore which is in its payload file.
+	 * @param length the payload length
+	 */
+	public void set_file_length(int length) {
+		lock_.lock();
+		try {
+			inline_data_ = null;
+			length_ = length;
+		} finally {
+			lock_.unlock();
+		}
+	}
 	/**
 	 * Set the payload length in preparation for filling in with data. This will
 	 * remove all existing data in case of Memory
@@ -135,6 +375,19 @@ public class BundlePayload implements Serializable {
 	public void set_length(int length) {
 
 		length_ = length;
+		if (location_ == location_t.DISK && inline_data_ != null) {
+			lock_.lock();
+			try {
+				if (length > inline_threshold_)
+					spill_inline();
+				else
+					resize_inline(length);
+			} catch (IOException e) {
+				Log.e(TAG, "Writing inline payload to file failed: " + e.getMessage());
+			} finally {
+				lock_.unlock();
+			}
+		}
 		if (location_ == location_t.MEMORY) {
 			lock_.lock();
 			try {
@@ -156,6 +409,41 @@ public class BundlePayload implements Serializable {
 		}
 	}
 
+	/**
+	 * Prepare for a payload of the given final length before its data arrives.
+	 * A DISK payload which will not fit inline is moved to its file and the file
+	 * is extended to the final length at once. The length itself is not changed.
+	 * @param total_length final payload length
+	 */
+	public void reserve(int total_length) {
+		if (location_ != location_t.DISK)
+			return;
+
+		lock_.lock();
+		try {
+			if (inline_data_ != null) {
+				if (total_length <= inline_threshold_)
+					return;
+				spill_inline();
+			}
+
+			unshare();
+			decompress();
+			PayloadChannel channel = pin_file_handle();
+			try {
+				channel.preallocate(total_length);
+			} finally {
+				unpin_file_handle(channel);
+			}
+		} catch (BundlePayloadWrongTypeException e) {
+			Log.e(TAG, e.getMessage());
+		} catch (IOException e) {
+			Log.e(TAG, "Preallocating payload file failed: " + e.getMessage());
+		} finally {
+			lock_.unlock();
+		}
+	}
+
 	/**
 	 * Move payload data from the current file object to the newly created file in API temp folder. 
 	 * @return
@@ -165,17 +453,25 @@ public class BundlePayload implements Serializable {
 		Context context = DTNService.context();
 		String TempPrefixName = context.getResources().getString(R.string.DTNAPITempFilePrefix);
 		File dir = DTNService.context().getDir(TempPrefixName, Context.MODE_PRIVATE);
+		lock_.lock();
 		try {
 			File file = File.createTempFile(
 					"bundle_payload_for_api_bid" + bundleid_, ".dat", dir);
 			copy_to_file(file);
 			
 			file_ = file;
+			inline_data_ = null;
+			compressed_ = false;
+			reader_ = null;
+			// the shared content is released when the bundle is deleted
+			content_hash_ = null;
 			
 			return true;
 		} catch (IOException e) {
 			Log.e(TAG, "migrate IO Exception");
 			return false;
+		} finally {
+			lock_.unlock();
 		}
 	}
 	
@@ -204,9 +500,19 @@ public class BundlePayload implements Serializable {
 				length_ = length;
 				break;
 			case DISK:
-				RandomAccessFile file_handle_ =   pin_file_handle();
-				file_handle_.setLength(length);
-				unpin_file_handle(file_handle_);
+				if (inline_data_ != null) {
+					resize_inline(length);
+					break;
+				}
+				unshare();
+				decompress();
+				PayloadChannel channel = pin_file_handle();
+				try {
+					channel.truncate(length);
+					dirty_ = true;
+				} finally {
+					unpin_file_handle(channel);
+				}
 				break;
 			case NODATA:
 			}
@@ -403,27 +709,39 @@ public class BundlePayload implements Serializable {
 	 */
 	public boolean replace_with_file(File file) {
 		lock_.lock();
-		FileInputStream in = null;
 		try {  
 			if (location_ != location_t.DISK) throw new BundlePayloadWrongTypeException();
 			assert location_ == location_t.DISK;
 
 			set_length((int)file.length());
-			in = new FileInputStream(file);
 
-			RandomAccessFile file_handle_ = pin_file_handle();
-			// Transfer bytes from in to out
-			byte[] buf = new byte[1024];
-			int len;
-			int offset = 0;
-			while ((len = in.read(buf)) > 0) {
+			if (inline_data_ != null) {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					int read = 0;
+					while (read < length_) {
+						int n = in.read(inline_data_, read, length_ - read);
+						if (n < 0)
+							break;
+						read += n;
+					}
+				} finally {
+					in.close();
+				}
+				return true;
+			}
 
-				file_handle_.write(buf, 0, len);
-				offset += len;
+			unshare();
+			decompress();
+			PayloadChannel channel = pin_file_handle();
+			try {
+				// Transfer bytes from the file to the payload file
+				channel.transfer_from(file);
+				dirty_ = true;
+			} finally {
+				unpin_file_handle(channel);
 			}
 			
-			unpin_file_handle(file_handle_);
-			
 		} catch (FileNotFoundException e) {
 			
 			Log.e(TAG, e.getMessage());
@@ -435,15 +753,7 @@ public class BundlePayload implements Serializable {
 			Log.e(TAG, e.getMessage());
 			return false;
 		} finally {
-			try {
-				in.close();
-
-			
-			} catch (IOException e) {
-				Log.e(TAG, e.getMessage());
 			lock_.unlock();
-			return false;
-			}
 		}
 		
 			return true;
@@ -474,12 +784,19 @@ public class BundlePayload implements Serializable {
 				break;
 
 			case DISK:
-				RandomAccessFile file_handle_ =  pin_file_handle();
-				file_handle_.seek(offset);
-				file_handle_.read(byte_array);
-			
-
-				unpin_file_handle(file_handle_);
+				if (inline_data_ != null) {
+					System.arraycopy(inline_data_, offset, byte_array, 0, len);
+					break;
+				}
+				PayloadChannel channel = pin_file_handle();
+				try {
+					if (compressed_)
+						compressed_reader(channel).read(channel, ByteBuffer.wrap(byte_array, 0, len), offset);
+					else
+						channel.read(ByteBuffer.wrap(byte_array, 0, len), offset);
+				} finally {
+					unpin_file_handle(channel);
+				}
 				break;
 
 			case NODATA:
@@ -531,13 +848,20 @@ public class BundlePayload implements Serializable {
 				break;
 
 			case DISK:
-				byte[] temp = new byte[len];
-				RandomAccessFile file_handle_ =  pin_file_handle();
-				 file_handle_.seek(offset);
-				file_handle_.read(temp);
-				buf.put(temp);
-
-				unpin_file_handle(file_handle_);
+				// read straight into the buffer, its position is not moved
+				if (inline_data_ != null) {
+					buf.asNioBuffer(len).put(inline_data_, offset, len);
+					break;
+				}
+				PayloadChannel channel = pin_file_handle();
+				try {
+					if (compressed_)
+						compressed_reader(channel).read(channel, buf.asNioBuffer(len), offset);
+					else
+						channel.read(buf.asNioBuffer(len), offset);
+				} finally {
+					unpin_file_handle(channel);
+				}
 				break;
 
 			case NODATA:
@@ -561,26 +885,60 @@ public class BundlePayload implements Serializable {
 	}
 
 	/**
-	 * Connect the file handle to internal file object for reading or writing.
+	 * Synchronize the payload file with the disk if it was written since the last flush.
+	 * Writes are not synchronized one by one, this has to be called once the payload is complete.
+	 * This is applicable only for the location type DISK, for other locations it does nothing.
+	 * @return true if the payload is on the disk
+	 */
+	public boolean flush() {
+		lock_.lock();
+		try {
+			if (location_ != location_t.DISK || inline_data_ != null || !dirty_)
+				return true;
+
+			PayloadChannel channel = pin_file_handle();
+			try {
+				channel.flush();
+				dirty_ = false;
+			} finally {
+				unpin_file_handle(channel);
+			}
+			return true;
+		} catch (FileNotFoundException e) {
+			Log.e(TAG, e.getMessage());
+			return false;
+		} catch (BundlePayloadWrongTypeException e) {
+			Log.e(TAG, e.getMessage());
+			return false;
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Connect the file channel to internal file object for reading or writing.
+	 * The channel is shared through the PayloadChannelCache so the file stays open between calls.
 	 * This is applicable only for the location type DISK.
 	 */
-	protected RandomAccessFile pin_file_handle() throws FileNotFoundException,
+	protected PayloadChannel pin_file_handle() throws FileNotFoundException,
 			BundlePayloadWrongTypeException {
 		if (location_ != location_t.DISK)
 			throw new BundlePayloadWrongTypeException();
 
-		return new RandomAccessFile(file_, "rwd");
+		return PayloadChannelCache.getInstance().pin(bundleid_, file_);
 	}
 
 	/**
-	 * Close the file_ to return resource
+	 * Return the file channel to the PayloadChannelCache
 	 */
-	protected void unpin_file_handle(RandomAccessFile file_handle_) throws IOException,
-			BundlePayloadWrongTypeException {
+	protected void unpin_file_handle(PayloadChannel channel) throws BundlePayloadWrongTypeException {
 		if (location_ != location_t.DISK)
 			throw new BundlePayloadWrongTypeException();
 
-		file_handle_.close();
+		PayloadChannelCache.getInstance().unpin(channel);
 	}
 
 	public final Lock test_get_lock() {
@@ -596,7 +954,6 @@ public class BundlePayload implements Serializable {
 		assert lock_.isHeldByCurrentThread() : "BundlePayload:internal_write, lock not held by current Thread";
 		assert length_ >= (offset + len) : "BundlePayload:internal_write, length_ is not longer than offset + len";
 
-		byte[] temp = new byte[len];
 		switch (location_) {
 
 		case MEMORY:
@@ -615,35 +972,126 @@ public class BundlePayload implements Serializable {
 			}
 			break;
 		case DISK:
-			// check if we need to seek
-			bp.mark();
+			// write straight from the buffer, its position is not moved
+			if (inline_data_ != null) {
+				bp.asNioBuffer(len).get(inline_data_, offset, len);
+				break;
+			}
 			try {
 				
-				RandomAccessFile file_handle_ =  pin_file_handle();
-				bp.get(temp);
-				file_handle_.seek(offset);
-
-				file_handle_.write(temp);
-
-				
-				
-				unpin_file_handle(file_handle_);
+				unshare();
+				decompress();
+				PayloadChannel channel = pin_file_handle();
+				try {
+					channel.write(bp.asNioBuffer(len), offset);
+					dirty_ = true;
+				} finally {
+					unpin_file_handle(channel);
+				}
 			} catch (BundlePayloadWrongTypeException e) {
 
 				Log.e(TAG, e.getMessage());
 			} catch (IOException e) {
 				Log.e(TAG, e.getMessage());
 			}
-			finally
-			{
-				bp.reset();
-			}
 			break;
 		case NODATA:
 			
 		}
 	}
 
+	/**
+	 * Resize the inline payload data keeping its content, the lock has to be held
+	 */
+	private void resize_inline(int length) {
+		if (inline_data_.length == length)
+			return;
+		byte[] data = new byte[length];
+		System.arraycopy(inline_data_, 0, data, 0, Math.min(length, inline_data_.length));
+		inline_data_ = data;
+	}
+
+	/**
+	 * Copy the shared content to the own payload file of the bundle before it is
+	 * written, the lock has to be held
+	 */
+	private void unshare() throws IOException {
+		if (content_hash_ == null)
+			return;
+
+		File file = BundleStore.getInstance().get_payload_file(bundleid_);
+		PayloadChannel copy = new PayloadChannel(file);
+		try {
+			copy.transfer_from(file_);
+		} finally {
+			copy.close();
+		}
+		PayloadChannelCache.getInstance().invalidate(bundleid_);
+		PayloadDedupStore.getInstance().release(bundleid_);
+		file_ = file;
+		content_hash_ = null;
+		dirty_ = true;
+	}
+
+	/**
+	 * Get the reader of the compressed payload file, the lock has to be held
+	 */
+	private CompressedPayload compressed_reader(PayloadChannel channel) throws IOException {
+		if (reader_ == null)
+			reader_ = new CompressedPayload(channel);
+		return reader_;
+	}
+
+	/**
+	 * Replace the compressed payload file by the raw data before it is written,
+	 * the lock has to be held and the payload must not be shared
+	 */
+	private void decompress() throws IOException {
+		if (!compressed_)
+			return;
+
+		long start = System.currentTimeMillis();
+		File file = new File(file_.getPath() + ".raw");
+		PayloadChannel channel = PayloadChannelCache.getInstance().pin(bundleid_, file_);
+		try {
+			PayloadChannel raw = new PayloadChannel(file);
+			try {
+				compressed_reader(channel).decompress(channel, raw);
+			} finally {
+				raw.close();
+			}
+		} finally {
+			PayloadChannelCache.getInstance().unpin(channel);
+		}
+		PayloadChannelCache.getInstance().invalidate(bundleid_);
+		if (!file.renameTo(file_)) {
+			file.delete();
+			throw new IOException("Renaming " + file.getName() + " failed");
+		}
+		CompressedPayload.account_time(System.currentTimeMillis() - start);
+		compressed_ = false;
+		reader_ = null;
+		dirty_ = true;
+	}
+
+	/**
+	 * Move the inline payload data to the payload file, the lock has to be held
+	 */
+	private void spill_inline() throws IOException {
+		if (inline_data_ == null)
+			return;
+
+		PayloadChannel channel = PayloadChannelCache.getInstance().pin(bundleid_, file_);
+		try {
+			channel.truncate(0);
+			channel.write(ByteBuffer.wrap(inline_data_), 0);
+			dirty_ = true;
+		} finally {
+			PayloadChannelCache.getInstance().unpin(channel);
+		}
+		inline_data_ = null;
+	}
+
 	/**
 	 * location of the data
 	 */
@@ -663,6 +1111,41 @@ public class BundlePayload implements Serializable {
 	 * file handle, for location = DISK only
 	 */
 	protected File file_;
+
+	/**
+	 * payload data while it is inline, for location = DISK only, null once the data is in the file
+	 */
+	protected byte[] inline_data_;
+
+	/**
+	 * size up to which the payload stays inline, for location = DISK only
+	 */
+	protected int inline_threshold_;
+
+	/**
+	 * hash of the content shared through the PayloadDedupStore, for location = DISK only, null if the payload has its own file
+	 */
+	protected String content_hash_;
+
+	/**
+	 * whether the payload file is stored compressed, for location = DISK only
+	 */
+	protected boolean compressed_;
+
+	/**
+	 * size of the compressed payload file, for location = DISK only
+	 */
+	protected long compressed_length_;
+
+	/**
+	 * reader of the compressed payload file, for location = DISK only
+	 */
+	protected transient CompressedPayload reader_;
+
+	/**
+	 * whether the payload file was written since the last flush, for location = DISK only
+	 */
+	protected transient boolean dirty_;
 	
 	/**
 	 * the lock for this Bundle payload to support mutual exclusion
@@ -0,0 +1,394 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.util.Log;
+
+/**
+ * Block-wise compressed payload file. The payload is cut into blocks of the
+ * same raw size which are deflated one by one, so a read at any offset only
+ * inflates the blocks it covers. The file is laid out as
+ *
+ * magic (4) | block size (4) | raw length (8) | blocks (4) | index | blocks
+ *
+ * with an index entry of file position (8) | compressed length (4) for every
+ * block. An instance reads a compressed file and keeps the last inflated
+ * block, it is used under the lock of the BundlePayload.
+ */
+public class CompressedPayload {
+
+	/**
+	 * String TAG to support Android logging system
+	 */
+	private static String TAG = "CompressedPayload";
+
+	/**
+	 * First bytes of a compressed payload file, "BWZ1"
+	 */
+	public static final int MAGIC = 0x42575a31;
+
+	/**
+	 * Raw size of the blocks
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 32 * 1024;
+
+	/**
+	 * Deflate level, the payloads are compressed on the phone so speed comes first
+	 */
+	public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+	/**
+	 * Length of the fixed part of the header
+	 */
+	private static final int HEADER_LENGTH = 20;
+
+	/**
+	 * Length of an index entry
+	 */
+	private static final int INDEX_ENTRY_LENGTH = 12;
+
+	/**
+	 * Compress the raw payload into the destination file.
+	 * @param src channel of the raw payload
+	 * @param length raw payload length
+	 * @param dst channel of the compressed file, written from its start
+	 * @param block_size raw size of the blocks
+	 * @param level deflate level
+	 * @return size of the compressed file
+	 * @throws IOException
+	 */
+	public static long compress(PayloadChannel src, long length, PayloadChannel dst,
+			int block_size, int level) throws IOException {
+		int blocks = (int) ((length + block_size - 1) / block_size);
+		ByteBuffer index = ByteBuffer.allocate(HEADER_LENGTH + blocks * INDEX_ENTRY_LENGTH);
+		index.putInt(MAGIC).putInt(block_size).putLong(length).putInt(blocks);
+
+		byte[] raw = new byte[block_size];
+		byte[] out = new byte[block_size];
+		long position = index.capacity();
+		Deflater deflater = new Deflater(level);
+		try {
+			for (int b = 0; b < blocks; b++) {
+				int raw_length = (int) Math.min(block_size, length - (long) b * block_size);
+				if (src.read(ByteBuffer.wrap(raw, 0, raw_length), (long) b * block_size) != raw_length)
+					throw new IOException("Payload shorter than " + length);
+
+				deflater.reset();
+				deflater.setInput(raw, 0, raw_length);
+				deflater.finish();
+				int compressed = 0;
+				while (!deflater.finished()) {
+					if (compressed == out.length) {
+						byte[] bigger = new byte[out.length * 2];
+						System.arraycopy(out, 0, bigger, 0, compressed);
+						out = bigger;
+					}
+					compressed += deflater.deflate(out, compressed, out.length - compressed);
+				}
+
+				dst.write(ByteBuffer.wrap(out, 0, compressed), position);
+				index.putLong(position).putInt(compressed);
+				position += compressed;
+			}
+		} finally {
+			deflater.end();
+		}
+
+		index.flip();
+		dst.write(index, 0);
+		dst.truncate(position);
+		return position;
+	}
+
+	/**
+	 * Read the header and the index of a compressed file.
+	 * @param channel channel of the compressed file
+	 * @throws IOException if the file is not a compressed payload
+	 */
+	public CompressedPayload(PayloadChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		if (channel.read(header, 0) != HEADER_LENGTH)
+			throw new IOException("Compressed payload header is truncated");
+		header.flip();
+		if (header.getInt() != MAGIC)
+			throw new IOException("Not a compressed payload");
+		block_size_ = header.getInt();
+		length_ = header.getLong();
+		int blocks = header.getInt();
+
+		ByteBuffer index = ByteBuffer.allocate(blocks * INDEX_ENTRY_LENGTH);
+		if (channel.read(index, HEADER_LENGTH) != index.capacity())
+			throw new IOException("Compressed payload index is truncated");
+		index.flip();
+		positions_ = new long[blocks];
+		lengths_ = new int[blocks];
+		for (int b = 0; b < blocks; b++) {
+			positions_[b] = index.getLong();
+			lengths_[b] = index.getInt();
+		}
+		block_ = new byte[block_size_];
+		cached_block_ = -1;
+	}
+
+	/**
+	 * Read raw payload data at the position until the buffer is full or the payload ends.
+	 * @param channel channel of the compressed file
+	 * @param dst buffer to read into from its position to its limit
+	 * @param position raw payload position to read from
+	 * @return number of bytes read
+	 * @throws IOException
+	 */
+	public int read(PayloadChannel channel, ByteBuffer dst, long position) throws IOException {
+		int total = 0;
+		while (dst.hasRemaining() && position < length_) {
+			int b = (int) (position / block_size_);
+			int block_length = inflate(channel, b);
+			int offset = (int) (position - (long) b * block_size_);
+			int n = Math.min(dst.remaining(), block_length - offset);
+			dst.put(block_, offset, n);
+			position += n;
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Write the whole raw payload to the destination file.
+	 * @param channel channel of the compressed file
+	 * @param dst channel of the raw file, written from its start
+	 * @throws IOException
+	 */
+	public void decompress(PayloadChannel channel, PayloadChannel dst) throws IOException {
+		for (int b = 0; b < positions_.length; b++) {
+			int block_length = inflate(channel, b);
+			dst.write(ByteBuffer.wrap(block_, 0, block_length), (long) b * block_size_);
+		}
+		dst.truncate(length_);
+	}
+
+	/**
+	 * Raw payload length
+	 */
+	public long length() {
+		return length_;
+	}
+
+	/**
+	 * Inflate the block into block_ unless it is already there
+	 * @return raw length of the block
+	 */
+	private int inflate(PayloadChannel channel, int b) throws IOException {
+		int block_length = (int) Math.min(block_size_, length_ - (long) b * block_size_);
+		if (cached_block_ == b)
+			return block_length;
+
+		// block_ is overwritten below, a failed inflate must not leave it cached
+		cached_block_ = -1;
+		byte[] compressed = new byte[lengths_[b]];
+		if (channel.read(ByteBuffer.wrap(compressed), positions_[b]) != compressed.length)
+			throw new IOException("Compressed block " + b + " is truncated");
+
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			int inflated = 0;
+			while (inflated < block_length && !inflater.finished()) {
+				int n = inflater.inflate(block_, inflated, block_length - inflated);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				inflated += n;
+			}
+			if (inflated != block_length)
+				throw new IOException("Compressed block " + b + " is corrupt");
+		} catch (DataFormatException e) {
+			throw new IOException("Compressed block " + b + " is corrupt: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		cached_block_ = b;
+		return block_length;
+	}
+
+	/**
+	 * Account a payload compressed or left raw because it did not get smaller
+	 * @param raw raw payload length
+	 * @param stored stored size, the raw length when it was left raw
+	 */
+	static synchronized void account(long raw, long stored) {
+		if (stored < raw) {
+			compressed_payloads_++;
+			raw_bytes_ += raw;
+			compressed_bytes_ += stored;
+		} else {
+			skipped_payloads_++;
+		}
+	}
+
+	/**
+	 * Account the time spent compressing or decompressing
+	 * @param millis the time in milliseconds
+	 */
+	static synchronized void account_time(long millis) {
+		cpu_time_ += millis;
+	}
+
+	/**
+	 * Format the given StringBuffer with the payload compression statistics.
+	 */
+	public static synchronized void get_stats(StringBuffer buf) {
+		buf.append(String.format("%d compressed_payloads -- " + "%d uncompressible_payloads -- "
+				+ "%d compression_bytes_saved -- " + "%d compression_ms -- ",
+				compressed_payloads_, skipped_payloads_, raw_bytes_ - compressed_bytes_, cpu_time_));
+	}
+
+	/**
+	 * Measure compressing a payload file and reading it back at random offsets
+	 * against reading the raw file, and log the sizes and the times.
+	 * @param dir directory for the temporary test files
+	 * @param sample data repeated to fill the payload
+	 * @param length payload length
+	 * @param read_size size of every read, like a transmitted segment
+	 * @param reads number of random reads
+	 * @param level deflate level
+	 * @return true if the compressed file read back the same data
+	 */
+	public static boolean test_compression_cost(File dir, byte[] sample, int length,
+			int read_size, int reads, int level) {
+		File raw_file = new File(dir, "compressed_payload_test_raw.dat");
+		File compressed_file = new File(dir, "compressed_payload_test_compressed.dat");
+		try {
+			PayloadChannel raw = new PayloadChannel(raw_file);
+			PayloadChannel compressed = new PayloadChannel(compressed_file);
+			try {
+				for (int position = 0; position < length; position += sample.length) {
+					raw.write(ByteBuffer.wrap(sample, 0, Math.min(sample.length, length - position)), position);
+				}
+
+				long start = System.currentTimeMillis();
+				long size = compress(raw, length, compressed, DEFAULT_BLOCK_SIZE, level);
+				long compress_time = System.currentTimeMillis() - start;
+
+				CompressedPayload reader = new CompressedPayload(compressed);
+				Random random = new Random(length);
+				long[] offsets = new long[reads];
+				for (int i = 0; i < reads; i++)
+					offsets[i] = random.nextInt(Math.max(1, length - read_size));
+
+				ByteBuffer expected = ByteBuffer.allocate(read_size);
+				ByteBuffer actual = ByteBuffer.allocate(read_size);
+				boolean ok = true;
+				long raw_time = 0;
+				long compressed_time = 0;
+				for (int i = 0; i < reads; i++) {
+					expected.clear();
+					actual.clear();
+					start = System.nanoTime();
+					raw.read(expected, offsets[i]);
+					raw_time += System.nanoTime() - start;
+					start = System.nanoTime();
+					reader.read(compressed, actual, offsets[i]);
+					compressed_time += System.nanoTime() - start;
+					expected.flip();
+					actual.flip();
+					ok &= expected.equals(actual);
+				}
+
+				Log.d(TAG, String.format("%d bytes compressed to %d (%d%%) in %d ms, "
+						+ "%d random reads of %d bytes: raw %d ms compressed %d ms",
+						length, size, size * 100 / Math.max(1, length), compress_time,
+						reads, read_size, raw_time / 1000000, compressed_time / 1000000));
+				return ok;
+			} finally {
+				raw.close();
+				compressed.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Compression test failed: " + e.getMessage());
+			return false;
+		} finally {
+			raw_file.delete();
+			compressed_file.delete();
+		}
+	}
+
+	/**
+	 * Raw size of the blocks
+	 */
+	private int block_size_;
+
+	/**
+	 * Raw payload length
+	 */
+	private long length_;
+
+	/**
+	 * File position of every block
+	 */
+	private long[] positions_;
+
+	/**
+	 * Compressed length of every block
+	 */
+	private int[] lengths_;
+
+	/**
+	 * The last inflated block
+	 */
+	private byte[] block_;
+
+	/**
+	 * Number of the block in block_, -1 if none
+	 */
+	private int cached_block_;
+
+	/**
+	 * Number of payloads stored compressed
+	 */
+	private static long compressed_payloads_;
+
+	/**
+	 * Number of payloads left raw because they did not get smaller
+	 */
+	private static long skipped_payloads_;
+
+	/**
+	 * Raw bytes of the compressed payloads
+	 */
+	private static long raw_bytes_;
+
+	/**
+	 * Stored bytes of the compressed payloads
+	 */
+	private static long compressed_bytes_;
+
+	/**
+	 * Time in milliseconds spent compressing and decompressing
+	 */
+	private static long cpu_time_;
+}
@@ -24,9 +24,9 @@ import java.io.Serializable;
 import java.util.Calendar;
 import java.util.Date;
 
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.CustodyTimeoutEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.Link;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.TimeHelper;
 import android.util.Log;
  
@@ -35,7 +35,7 @@ import android.util.Log;
  * A timer for retransmitting the bundle in custody of this node.
  * @author Rerngvit Yanggratoke (rerngvit@kth.se)
  */
-public class CustodyTimer extends VirtualTimerTask implements Serializable{
+public class CustodyTimer extends DaemonTimer implements Serializable{
 	/**
 	 * String TAG for using with Android Logging system
 	 */
@@ -120,9 +120,9 @@ public class CustodyTimer extends VirtualTimerTask implements Serializable{
 
 	
 	@Override
-	protected void timeout(Date now) {
+	protected BundleEvent expired_event(Date now) {
 		Log.i(TAG, "CustodyTimer::timeout");
-		BundleDaemon.getInstance().post(new CustodyTimeoutEvent(bundle_, link_));
+		return new CustodyTimeoutEvent(bundle_, link_);
 	}
 
 	
@@ -0,0 +1,74 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import java.util.Date;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
+
+/**
+ * Timer whose expiration is only an event for the BundleDaemon. The
+ * BundleDaemon takes the events of all the DaemonTimers expiring in the same
+ * tick of the TimingWheel and queues them at once.
+ */
+public abstract class DaemonTimer extends VirtualTimerTask {
+
+	/**
+	 * Serial version UID to support Java Serializable
+	 */
+	private static final long serialVersionUID = -2847736157240569035L;
+
+	/**
+	 * Post the event of the expiration to the BundleDaemon.
+	 * @param now Current time
+	 */
+	@Override
+	protected final void timeout(Date now) {
+		BundleEvent event = expired_event(now);
+		if (event != null)
+			BundleDaemon.getInstance().post_event(event, !at_head());
+	}
+
+	/**
+	 * Expire the timer and return its event without posting it.
+	 * @param now Current time
+	 * @return the event or null if there is nothing to post
+	 */
+	public final BundleEvent expire(Date now) {
+		mark_expired();
+		return expired_event(now);
+	}
+
+	/**
+	 * The event telling the BundleDaemon about the expiration
+	 * @param now Current time
+	 * @return the event or null if there is nothing to post
+	 */
+	protected abstract BundleEvent expired_event(Date now);
+
+	/**
+	 * Whether the event is posted at the head of the event queue
+	 */
+	protected boolean at_head() {
+		return false;
+	}
+}
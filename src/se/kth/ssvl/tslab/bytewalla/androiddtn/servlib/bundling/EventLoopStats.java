@@ -0,0 +1,257 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.event_type_t;
+
+/**
+ * Statistics of the BundleDaemon event loop by event type. For every type it
+ * counts the handled events and the slow ones and keeps histograms of the
+ * time the events waited in the queue and the time their handlers took. The
+ * histogram buckets are powers of two of microseconds, bucket 0 holds the
+ * times under 1 us and bucket i the times from 2^(i-1) up to 2^i us. The
+ * last bucket also holds all the longer times. Recording only updates atomic
+ * counters, so it is safe from the shard threads and takes no lock.
+ */
+public class EventLoopStats {
+
+	/**
+	 * Number of buckets of the histograms, the last one starts at about 4 s
+	 */
+	public static final int BUCKETS = 24;
+
+	/**
+	 * Number of event types
+	 */
+	private static final int TYPES = event_type_t.values().length;
+
+	/**
+	 * Counters of one type
+	 */
+	private static final int COUNT = 0;
+	private static final int SLOW = 1;
+	private static final int WAIT_NS = 2;
+	private static final int HANDLE_NS = 3;
+	private static final int COUNTERS = 4;
+
+	public EventLoopStats() {
+		counters_ = new AtomicLongArray(TYPES * COUNTERS);
+		wait_ = new AtomicLongArray(TYPES * BUCKETS);
+		handle_ = new AtomicLongArray(TYPES * BUCKETS);
+	}
+
+	/**
+	 * Account a handled event
+	 * @param type type of the event
+	 * @param wait_ns time in nanoseconds the event waited in the queue, negative if unknown
+	 * @param handle_ns time in nanoseconds the handlers took
+	 * @param slow whether the event is over the slow event threshold
+	 */
+	public void record(event_type_t type, long wait_ns, long handle_ns, boolean slow) {
+		int t = type.ordinal();
+		counters_.incrementAndGet(t * COUNTERS + COUNT);
+		if (slow)
+			counters_.incrementAndGet(t * COUNTERS + SLOW);
+		if (wait_ns >= 0) {
+			counters_.addAndGet(t * COUNTERS + WAIT_NS, wait_ns);
+			wait_.incrementAndGet(t * BUCKETS + bucket(wait_ns));
+		}
+		counters_.addAndGet(t * COUNTERS + HANDLE_NS, handle_ns);
+		handle_.incrementAndGet(t * BUCKETS + bucket(handle_ns));
+	}
+
+	/**
+	 * Copy the current statistics. The counters are read one by one while
+	 * events are still recorded, so the copy is consistent per counter only.
+	 * @return the copy
+	 */
+	public Snapshot snapshot() {
+		long[] counters = new long[TYPES * COUNTERS];
+		long[] wait = new long[TYPES * BUCKETS];
+		long[] handle = new long[TYPES * BUCKETS];
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = counters_.get(i);
+		for (int i = 0; i < wait.length; i++) {
+			wait[i] = wait_.get(i);
+			handle[i] = handle_.get(i);
+		}
+		return new Snapshot(counters, wait, handle);
+	}
+
+	/**
+	 * Format the given StringBuffer with the statistics of every event type
+	 * handled so far: count, mean and 99th percentile of the queue wait and
+	 * of the handling in ms, and the number of slow events.
+	 */
+	public void get_stats(StringBuffer buf) {
+		Snapshot snapshot = snapshot();
+		event_type_t[] types = event_type_t.values();
+		for (int i = 0; i < types.length; i++) {
+			if (snapshot.count(types[i]) == 0)
+				continue;
+			buf.append(String.format("%s %d events wait %.3f/%.3f ms handle %.3f/%.3f ms %d slow -- ",
+					types[i].getCaption(), snapshot.count(types[i]),
+					snapshot.mean_wait_ms(types[i]), snapshot.wait_percentile_ms(types[i], 0.99),
+					snapshot.mean_handle_ms(types[i]), snapshot.handle_percentile_ms(types[i], 0.99),
+					snapshot.slow(types[i])));
+		}
+	}
+
+	/**
+	 * Histogram bucket of a time
+	 */
+	private static int bucket(long ns) {
+		long us = ns / 1000;
+		int bucket = 0;
+		while (us > 0 && bucket < BUCKETS - 1) {
+			us >>= 1;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	/**
+	 * Copy of the EventLoopStats at one moment
+	 */
+	public static class Snapshot {
+
+		private Snapshot(long[] counters, long[] wait, long[] handle) {
+			counters_ = counters;
+			wait_ = wait;
+			handle_ = handle;
+		}
+
+		/**
+		 * Number of handled events of the type
+		 */
+		public long count(event_type_t type) {
+			return counters_[type.ordinal() * COUNTERS + COUNT];
+		}
+
+		/**
+		 * Number of events of the type over the slow event threshold
+		 */
+		public long slow(event_type_t type) {
+			return counters_[type.ordinal() * COUNTERS + SLOW];
+		}
+
+		/**
+		 * Mean time in milliseconds the events of the type waited in the queue
+		 */
+		public double mean_wait_ms(event_type_t type) {
+			long count = sum(wait_, type);
+			return count == 0 ? 0.0 : counters_[type.ordinal() * COUNTERS + WAIT_NS] / 1e6 / count;
+		}
+
+		/**
+		 * Mean time in milliseconds the handlers of the events of the type took
+		 */
+		public double mean_handle_ms(event_type_t type) {
+			long count = count(type);
+			return count == 0 ? 0.0 : counters_[type.ordinal() * COUNTERS + HANDLE_NS] / 1e6 / count;
+		}
+
+		/**
+		 * Upper bound in milliseconds of the queue wait of the fraction of the events of the type
+		 * @param fraction fraction of the events, for example 0.99
+		 */
+		public double wait_percentile_ms(event_type_t type, double fraction) {
+			return percentile(wait_, type, fraction);
+		}
+
+		/**
+		 * Upper bound in milliseconds of the handling time of the fraction of the events of the type
+		 * @param fraction fraction of the events, for example 0.99
+		 */
+		public double handle_percentile_ms(event_type_t type, double fraction) {
+			return percentile(handle_, type, fraction);
+		}
+
+		/**
+		 * Queue wait histogram of the type, see EventLoopStats for the buckets
+		 */
+		public long[] wait_histogram(event_type_t type) {
+			return histogram(wait_, type);
+		}
+
+		/**
+		 * Handling time histogram of the type, see EventLoopStats for the buckets
+		 */
+		public long[] handle_histogram(event_type_t type) {
+			return histogram(handle_, type);
+		}
+
+		private static long[] histogram(long[] buckets, event_type_t type) {
+			long[] histogram = new long[BUCKETS];
+			System.arraycopy(buckets, type.ordinal() * BUCKETS, histogram, 0, BUCKETS);
+			return histogram;
+		}
+
+		private static long sum(long[] buckets, event_type_t type) {
+			long sum = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				sum += buckets[type.ordinal() * BUCKETS + i];
+			return sum;
+		}
+
+		/**
+		 * Upper end of the bucket holding the fraction of the events, the
+		 * last bucket has no upper end and its start is returned
+		 */
+		private static double percentile(long[] buckets, event_type_t type, double fraction) {
+			long count = sum(buckets, type);
+			if (count == 0)
+				return 0.0;
+			long rank = (long) Math.ceil(count * fraction);
+			long seen = 0;
+			int i = 0;
+			for (; i < BUCKETS - 1; i++) {
+				seen += buckets[type.ordinal() * BUCKETS + i];
+				if (seen >= rank)
+					break;
+			}
+			if (i == BUCKETS - 1)
+				return (1L << (BUCKETS - 2)) / 1000.0;
+			return (1L << i) / 1000.0;
+		}
+
+		private long[] counters_;
+		private long[] wait_;
+		private long[] handle_;
+	}
+
+	/**
+	 * Count, slow count, total wait and total handling time of every type
+	 */
+	private AtomicLongArray counters_;
+
+	/**
+	 * Queue wait histogram of every type
+	 */
+	private AtomicLongArray wait_;
+
+	/**
+	 * Handling time histogram of every type
+	 */
+	private AtomicLongArray handle_;
+}
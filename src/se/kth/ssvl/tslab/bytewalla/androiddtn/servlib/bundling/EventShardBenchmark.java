@@ -0,0 +1,242 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload.location_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleReceivedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleTransmittedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ContactEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ContactUpEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.RouteAddEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.event_source_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.Contact;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.Link;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.conv_layers.ConvergenceLayer;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.conv_layers.LinkParams;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointIDPattern;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.routing.RouteEntry;
+import android.util.Log;
+
+/**
+ * Throughput measurement of the running BundleDaemon with 1 up to a number of
+ * event shards. The bundles are sent over a loopback link whose convergence
+ * layer reports every queued bundle as transmitted right away, so each bundle
+ * goes through the real handlers of its BUNDLE_RECEIVED, where it is stored
+ * and routed to the link, of its BUNDLE_TRANSMITTED, where it is deleted
+ * early, and of its STORE_COMPLETED and BUNDLE_FREE events, mixed as they
+ * come in the event queue. The link is set up and torn down with the usual
+ * link and contact events. The DTNService runs run() in its own thread at
+ * start when the DTNEventBenchmark resource is true.
+ */
+public class EventShardBenchmark {
+
+	/**
+	 * String TAG to support Android logging system
+	 */
+	private static String TAG = "EventShardBenchmark";
+
+	/**
+	 * Endpoint the bundles are sent to, routed to the loopback link
+	 */
+	private static final String REMOTE_EID = "dtn://event-shard-benchmark.bytewalla.com";
+
+	/**
+	 * Payload length of the bundles
+	 */
+	private static final int PAYLOAD_LENGTH = 1024;
+
+	/**
+	 * Maximum time in milliseconds to wait for the link to open or for one
+	 * measurement to finish
+	 */
+	private static final long TIMEOUT = 60000;
+
+	/**
+	 * Measure the bundles per second with 1 up to the given number of event
+	 * shards and restore the number of shards afterwards.
+	 * @param max_shards highest number of shards to measure
+	 * @param bundles number of bundles of each measurement
+	 * @param buf StringBuffer the results are appended to
+	 * @return true if every measurement transmitted all the bundles
+	 */
+	public static boolean run(int max_shards, int bundles, StringBuffer buf) {
+		BundleDaemon daemon = BundleDaemon.getInstance();
+		int shards_before = daemon.event_shards();
+
+		LoopbackConvergenceLayer cl = new LoopbackConvergenceLayer();
+		Link link = Link.create_link("event-shard-benchmark",
+				Link.link_type_t.ALWAYSON, cl, "127.0.0.1:0");
+		if (link == null || !daemon.contactmgr().add_new_link(link)) {
+			buf.append("unable to create the loopback link\n");
+			return false;
+		}
+
+		boolean ok = true;
+		try {
+			daemon.post(new RouteAddEvent(new RouteEntry(new EndpointIDPattern(
+					REMOTE_EID + "/*"), link)));
+			if (!wait_open(link)) {
+				buf.append("the loopback link didn't open\n");
+				return false;
+			}
+
+			for (int shards = 1; shards <= max_shards; shards++) {
+				daemon.set_event_shards(shards);
+				int transmitted = transmitted(link);
+
+				long start = System.currentTimeMillis();
+				for (int i = 0; i < bundles; i++)
+					daemon.post_with_backpressure(new BundleReceivedEvent(
+							create_bundle(daemon, i), event_source_t.EVENTSRC_APP));
+				boolean done = wait_transmitted(link, transmitted + bundles);
+				long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+				ok &= done;
+				String result = String.format("%d shards: %d bundles in %d ms, %d bundles/s%s",
+						daemon.event_shards(), bundles, elapsed, bundles * 1000L / elapsed,
+						done ? "" : " (timed out)");
+				Log.d(TAG, result);
+				buf.append(result).append("\n");
+			}
+		} catch (InterruptedException e) {
+			Log.e(TAG, "Interrupted while waiting for the bundles");
+			ok = false;
+		} finally {
+			daemon.set_event_shards(shards_before);
+			daemon.contactmgr().del_link(link, false, ContactEvent.reason_t.USER);
+		}
+		return ok;
+	}
+
+	/**
+	 * A bundle from the local endpoint to the loopback link
+	 */
+	private static Bundle create_bundle(BundleDaemon daemon, int i) {
+		Bundle bundle = new Bundle(location_t.MEMORY);
+		bundle.set_source(new EndpointID(daemon.local_eid()));
+		bundle.set_dest(new EndpointID(REMOTE_EID + "/" + i));
+		bundle.set_replyto(new EndpointID(daemon.local_eid()));
+		bundle.set_custodian(EndpointID.NULL_EID());
+		bundle.set_prevhop(daemon.local_eid());
+		bundle.set_singleton_dest(true);
+		bundle.set_expiration(3600);
+		bundle.payload().set_data(new byte[PAYLOAD_LENGTH]);
+		return bundle;
+	}
+
+	/**
+	 * Number of bundles transmitted on the link
+	 */
+	private static int transmitted(Link link) {
+		link.get_lock().lock();
+		try {
+			return link.stats().bundles_transmitted();
+		} finally {
+			link.get_lock().unlock();
+		}
+	}
+
+	/**
+	 * Wait until the daemon handled the given number of transmissions on the link
+	 * @return false if the timeout is over first
+	 */
+	private static boolean wait_transmitted(Link link, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (transmitted(link) < count) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Wait until the link is open
+	 * @return false if the timeout is over first
+	 */
+	private static boolean wait_open(Link link) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (!link.isopen()) {
+			if (System.currentTimeMillis() > deadline)
+				return false;
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	/**
+	 * Convergence layer of the loopback link. The contact is up as soon as it
+	 * is opened, and every queued bundle is moved in flight and reported
+	 * transmitted at once, the way a convergence layer does after sending it.
+	 */
+	private static class LoopbackConvergenceLayer extends ConvergenceLayer {
+
+		LoopbackConvergenceLayer() {
+			Testname("loopback");
+		}
+
+		@Override
+		public boolean init_link(Link link) {
+			return true;
+		}
+
+		@Override
+		public boolean parse_nexthop(Link link, LinkParams params) {
+			return true;
+		}
+
+		@Override
+		public boolean open_contact(Contact contact) {
+			BundleDaemon.getInstance().post(new ContactUpEvent(contact));
+			return true;
+		}
+
+		@Override
+		public boolean close_contact(Contact contact) {
+			return true;
+		}
+
+		@Override
+		public void bundle_queued(Link link, Bundle bundle) {
+			BlockInfoVec blocks = bundle.xmit_link_block_set().find_blocks(link);
+			if (blocks == null)
+				return;
+
+			int total_len = BundleProtocol.total_length(blocks);
+			link.get_lock().lock();
+			try {
+				if (!link.del_from_queue(bundle, total_len))
+					return;
+				link.add_to_inflight(bundle, total_len);
+			} finally {
+				link.get_lock().unlock();
+			}
+
+			BundleDaemon.getInstance().post(new BundleTransmittedEvent(bundle,
+					link.contact(), link, total_len, total_len));
+		}
+
+		@Override
+		public void set_local_port(short port) {
+		}
+	}
+}
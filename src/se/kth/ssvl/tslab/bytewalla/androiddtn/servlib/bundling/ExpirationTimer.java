@@ -22,8 +22,8 @@ package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
 import java.io.Serializable;
 import java.util.Date;
 
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleExpiredEvent;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
 
 
 /**
@@ -32,7 +32,7 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
  *  @author Sharjeel Ahmed (sharjeel@kth.se)
  */
 
-public class ExpirationTimer extends VirtualTimerTask implements Serializable{
+public class ExpirationTimer extends DaemonTimer implements Serializable{
 
 	/**
 	 * SerialVersionID to Support Serializable.
@@ -53,12 +53,20 @@ public class ExpirationTimer extends VirtualTimerTask implements Serializable{
 	 * @param now Current time
 	 */
 	@Override
-	protected void timeout(Date now) {
+	protected BundleEvent expired_event(Date now) {
 	    bundleref_.set_expiration_timer(null);
 
-	    BundleDaemon.getInstance().post_at_head(new BundleExpiredEvent(bundleref_));
+	    return new BundleExpiredEvent(bundleref_);
 
 	}
+
+	/**
+	 * The expiration is posted at the head of the event queue.
+	 */
+	@Override
+	protected boolean at_head() {
+		return true;
+	}
 	
     private Bundle bundleref_;
 }
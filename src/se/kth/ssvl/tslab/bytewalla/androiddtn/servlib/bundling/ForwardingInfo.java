@@ -298,6 +298,14 @@ public class ForwardingInfo implements Serializable{
     	remote_eid_ = eid; 
     }
     
+    /**
+     * Set the timestamp of the last state update. Used when the entry is restored from the storage.
+     * @param timestamp Timestamp to set
+     */
+    final public void set_timestamp(Date timestamp){ 
+    	timestamp_ = timestamp; 
+    }
+    
     /**
      * State of the transmission
      */
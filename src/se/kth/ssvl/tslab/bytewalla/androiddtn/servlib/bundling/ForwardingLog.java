@@ -440,6 +440,34 @@ public class ForwardingLog extends ArrayList<ForwardingInfo> implements Serializ
     	
     }
 
+    /**
+     * Add an already created forwarding info entry, used when the log is restored from the storage.
+     * @param info ForwardingInfo to add
+     */
+    public void add_entry(ForwardingInfo info){
+    	lock_.lock();
+
+    	try{
+    		log_.add(info);
+    	}finally{
+    		lock_.unlock();
+    	}
+    }
+
+    /**
+     * Get a copy of the log entries.
+     * @return Copy of all the ForwardingInfo entries in the order they were added
+     */
+    public ArrayList<ForwardingInfo> get_entries_copy(){
+    	lock_.lock();
+
+    	try{
+    		return new ArrayList<ForwardingInfo>(log_);
+    	}finally{
+    		lock_.unlock();
+    	}
+    }
+
     /**
      * Clear the log (used for testing).
      */
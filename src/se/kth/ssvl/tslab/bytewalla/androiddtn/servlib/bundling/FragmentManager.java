@@ -20,8 +20,8 @@
 
 package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
 
-import java.util.HashMap;
 import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload.location_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleProtocol.block_flag_t;
@@ -60,8 +60,8 @@ public class FragmentManager{
 	public static FragmentManager getInstance() {
 		if (instance_ == null) {
 			instance_ = new FragmentManager();
+			fragment_table_ = new ConcurrentHashMap<String, FragmentState>();
 		}
-		fragment_table_ = new HashMap<String, FragmentState>();  
 		return instance_;
 	}
 	
@@ -361,6 +361,7 @@ public class FragmentManager{
 
             fragment.copy_metadata(state.bundle());
             state.bundle().set_is_fragment(false);
+            state.bundle().payload().reserve(fragment.orig_length());
             state.bundle().payload().set_length(fragment.orig_length());
             fragment_table_.put(hash_key[0], state);
         } else {
@@ -505,9 +506,10 @@ public class FragmentManager{
     }
 
     /**
-     * Hash Table to store the partial bundles
+     * Hash Table to store the partial bundles. The fragments of one bundle
+     * are handled by one event shard, but the shards share the table.
      */
-    static HashMap<String, FragmentState> fragment_table_;  
+    static ConcurrentHashMap<String, FragmentState> fragment_table_;  
     
 }
 
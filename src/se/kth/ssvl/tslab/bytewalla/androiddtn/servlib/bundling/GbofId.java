@@ -35,10 +35,12 @@ public class GbofId {
 	 * Default constructor
 	 */
 	public GbofId(){
+		source_ = new EndpointID();
 	}
 
 	/**
-	 * Constructor
+	 * Constructor, the source and the creation time are copied so the id
+	 * does not change with the bundle it was made from
 	 * 
 	 * @param source Bundle source endpoint id
 	 * @param creation_ts Creation time of bundle
@@ -52,8 +54,8 @@ public class GbofId {
            long       frag_length,
            long       frag_offset){
 	    
-		  source_ = source;
-	      creation_ts_ = creation_ts;
+		  source_ = copy(source);
+	      creation_ts_ = copy(creation_ts);
 	      is_fragment_ = is_fragment;
 	      frag_length_ = frag_length;
 	      frag_offset_ = frag_offset;
@@ -71,7 +73,7 @@ public class GbofId {
                 is_fragment_          == id.is_fragment_ &&
                 (!is_fragment_ || 
                  (frag_length_ == id.frag_length_ && frag_offset_ == id.frag_offset_)) &&
-                source_.equals(id.source_)) 
+                same_source(source_, id.source_)) 
             {
                 return true;
             } else {
@@ -79,6 +81,44 @@ public class GbofId {
             }
     }
 
+	/**
+	 * Check if the object is a GbofId of the same bundle or fragment, so
+	 * GbofIds can be used as keys of hash tables
+	 * @param obj Other object to compare
+	 * @return True if both are the same else false
+	 */
+	public boolean equals(Object obj){
+		if (this == obj)
+			return true;
+		if (!(obj instanceof GbofId))
+			return false;
+		return equals((GbofId) obj);
+	}
+
+	/**
+	 * Compare two source endpoint ids, sources which are not set yet are equal
+	 */
+	private static boolean same_source(EndpointID source, EndpointID other){
+		if (source.uri() == null || other.uri() == null)
+			return source.uri() == other.uri();
+		return source.equals(other);
+	}
+
+	/**
+	 * Hash code consistent with equals, the fragment length and offset only
+	 * count for fragments
+	 */
+	public int hashCode(){
+		int hash = source_.uri() == null ? 0 : source_.uri().hashCode();
+		hash = 31 * hash + (int) (creation_ts_.seconds() ^ (creation_ts_.seconds() >>> 32));
+		hash = 31 * hash + (int) (creation_ts_.seqno() ^ (creation_ts_.seqno() >>> 32));
+		if (is_fragment_) {
+			hash = 31 * hash + (int) (frag_length_ ^ (frag_length_ >>> 32));
+			hash = 31 * hash + (int) (frag_offset_ ^ (frag_offset_ >>> 32));
+		}
+		return hash;
+	}
+
 	/**
 	 * Check if fields are equal to the this GbofId
 	 * @param source Endpoint id to compare with the endpoint id of this
@@ -152,10 +192,10 @@ public class GbofId {
 	}
 	/**
 	 * Set the source endpoint id
-	 * @param source the source_ to set
+	 * @param source the source_ to set, copied
 	 */
 	public void set_source(EndpointID source) {
-		source_ = source;
+		source_ = copy(source);
 	}
 	/**
 	 * Get the creation time
@@ -166,10 +206,28 @@ public class GbofId {
 	}
 	/**
 	 * Set the bundle creation time
-	 * @param creation_ts the creation_ts_ to set
+	 * @param creation_ts the creation_ts_ to set, copied
 	 */
 	public void set_creation_ts(BundleTimestamp creation_ts) {
-		creation_ts_ = creation_ts;
+		creation_ts_ = copy(creation_ts);
+	}
+
+	/**
+	 * Copy of the endpoint id, null if it is null. A source which is not set
+	 * stays unset instead of failing validation.
+	 */
+	private static EndpointID copy(EndpointID source) {
+		if (source == null)
+			return null;
+		return source.uri() == null ? new EndpointID() : new EndpointID(source);
+	}
+
+	/**
+	 * Copy of the timestamp, null if it is null
+	 */
+	private static BundleTimestamp copy(BundleTimestamp creation_ts) {
+		return creation_ts == null ? null : new BundleTimestamp(
+				creation_ts.seconds(), creation_ts.seqno());
 	}
 	/**
 	 * Get the bundle status if it's fragment or not
@@ -0,0 +1,131 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ContactDownEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ContactUpEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.LinkAvailableEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.LinkCreatedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.LinkDeleteRequest;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.LinkDeletedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.LinkStateChangeRequest;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.LinkUnavailableEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.event_type_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.Contact;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.Link;
+
+/**
+ * Coalescing rule of the BundleEventQueue for the link and contact events.
+ * After a link flaps, the same state change request, contact up or link
+ * available notification is often posted several times in a row. Every
+ * repetition only logs a warning in the daemon and makes the router look
+ * for bundles to forward on the link again, so it is dropped. An event is
+ * only dropped when it is handled right after the same event about its link
+ * and the link is still in the state that event left it in, so a request to
+ * open the link again after it failed is kept.
+ */
+public class LinkEventCoalescer implements BundleEventQueue.Coalescer {
+
+	/**
+	 * Event types compared by their link
+	 */
+	private static final event_type_t[] TYPES = {
+		event_type_t.LINK_STATE_CHANGE_REQUEST,
+		event_type_t.CONTACT_UP,
+		event_type_t.CONTACT_DOWN,
+		event_type_t.LINK_AVAILABLE,
+		event_type_t.LINK_UNAVAILABLE,
+		event_type_t.LINK_CREATED,
+		event_type_t.LINK_DELETE,
+		event_type_t.LINK_DELETED
+	};
+
+	/**
+	 * Set the rule for all the link and contact event types of the queue
+	 * @param queue the event queue
+	 */
+	public static void register(BundleEventQueue queue) {
+		LinkEventCoalescer coalescer = new LinkEventCoalescer();
+		for (int i = 0; i < TYPES.length; i++)
+			queue.set_coalescer(TYPES[i], coalescer);
+	}
+
+	/**
+	 * The link the event is about
+	 */
+	public Object key(BundleEvent event) {
+		switch (event.type()) {
+		case LINK_STATE_CHANGE_REQUEST:
+			return ((LinkStateChangeRequest) event).link();
+		case CONTACT_UP:
+			return ((ContactUpEvent) event).contact().link();
+		case CONTACT_DOWN:
+			return ((ContactDownEvent) event).contact().link();
+		case LINK_AVAILABLE:
+			return ((LinkAvailableEvent) event).link();
+		case LINK_UNAVAILABLE:
+			return ((LinkUnavailableEvent) event).link();
+		case LINK_CREATED:
+			return ((LinkCreatedEvent) event).link();
+		case LINK_DELETE:
+			return ((LinkDeleteRequest) event).link();
+		case LINK_DELETED:
+			return ((LinkDeletedEvent) event).link();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * The state of the link
+	 */
+	public Object state(Object key) {
+		return ((Link) key).state();
+	}
+
+	/**
+	 * Repeated state change requests to the same state for the same contact,
+	 * contact up events of the same contact and link available events for
+	 * the same reason are redundant, contact up events only while the contact
+	 * is still the one of the link.
+	 */
+	public boolean redundant(BundleEvent previous, BundleEvent event) {
+		switch (event.type()) {
+		case LINK_STATE_CHANGE_REQUEST: {
+			LinkStateChangeRequest last = (LinkStateChangeRequest) previous;
+			LinkStateChangeRequest request = (LinkStateChangeRequest) event;
+			return last.state() == request.state()
+					&& last.reason() == request.reason()
+					&& last.contact() == request.contact();
+		}
+		case CONTACT_UP: {
+			Contact contact = ((ContactUpEvent) event).contact();
+			return ((ContactUpEvent) previous).contact() == contact
+					&& contact.link().contact() == contact;
+		}
+		case LINK_AVAILABLE:
+			return ((LinkAvailableEvent) previous).reason() == ((LinkAvailableEvent) event).reason();
+		default:
+			return false;
+		}
+	}
+}
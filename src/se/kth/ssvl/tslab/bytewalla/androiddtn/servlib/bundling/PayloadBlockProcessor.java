@@ -133,6 +133,11 @@ public class PayloadBlockProcessor extends BlockProcessor implements Serializabl
         int remainder = block.data_length() - rcvd;
         int tocopy;
 
+        // the total length is known from the preamble, allocate the payload at once
+        if (rcvd == 0) {
+            bundle.payload().reserve(block.data_length());
+        }
+
         if (len >= remainder) {
             block.set_complete(true);
             tocopy = remainder;
@@ -0,0 +1,317 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.util.Log;
+
+/**
+ * FileChannel based access to the payload file of a Bundle stored on the disk.
+ * Reads and writes are positional and go directly from and into ByteBuffers,
+ * no memory mapping is made as every mapping holds native memory and address
+ * space until it is garbage collected. Writes are not
+ * synchronized with the disk until flush is called. The channels are shared
+ * through the PayloadChannelCache and can be used by several threads at once.
+ */
+public class PayloadChannel {
+
+	/**
+	 * String TAG to support Android logging system
+	 */
+	private static String TAG = "PayloadChannel";
+
+	/**
+	 * Size of the reads done to compute the digest of the file
+	 */
+	private static final int DIGEST_BUFFER_SIZE = 32 * 1024;
+
+	/**
+	 * Open the payload file for reading and writing. The file is created if it does not exist.
+	 * @param file the payload file
+	 * @throws FileNotFoundException if the file cannot be opened
+	 */
+	public PayloadChannel(File file) throws FileNotFoundException {
+		file_ = file;
+		raf_ = new RandomAccessFile(file, "rw");
+		channel_ = raf_.getChannel();
+	}
+
+	/**
+	 * Read from the file at the position until the buffer is full or the end of the file is reached.
+	 * @param dst buffer to read into from its position to its limit
+	 * @param position file position to read from
+	 * @return number of bytes read
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst, long position) throws IOException {
+		int total = 0;
+		while (dst.hasRemaining()) {
+			int read = channel_.read(dst, position + total);
+			if (read < 0)
+				break;
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Write the buffer to the file at the position, the file is extended if needed.
+	 * @param src buffer to write from its position to its limit
+	 * @param position file position to write to
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	public int write(ByteBuffer src, long position) throws IOException {
+		int total = 0;
+		while (src.hasRemaining()) {
+			total += channel_.write(src, position + total);
+		}
+		return total;
+	}
+
+	/**
+	 * Replace the content of the payload file with the content of the given file.
+	 * @param file file to copy from
+	 * @return number of bytes copied
+	 * @throws IOException
+	 */
+	public long transfer_from(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel src = in.getChannel();
+			long size = src.size();
+			channel_.truncate(0);
+			long total = 0;
+			while (total < size) {
+				long transferred = channel_.transferFrom(src, total, size - total);
+				if (transferred <= 0)
+					break;
+				total += transferred;
+			}
+			return total;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Cut the payload file to the given size.
+	 * @param size new size of the file
+	 * @throws IOException
+	 */
+	public void truncate(long size) throws IOException {
+		channel_.truncate(size);
+	}
+
+	/**
+	 * Extend the payload file to the given size so it is not grown by every
+	 * append. A file which is already larger is left as it is.
+	 * @param size final size of the file
+	 * @throws IOException
+	 */
+	public void preallocate(long size) throws IOException {
+		if (size > channel_.size())
+			raf_.setLength(size);
+	}
+
+	/**
+	 * Compute the SHA-256 hash of the start of the payload file.
+	 * @param length number of bytes to hash
+	 * @return the hash in hex
+	 * @throws IOException
+	 */
+	public String digest(long length) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-256 not available");
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+		long position = 0;
+		while (position < length) {
+			buf.clear();
+			if (length - position < buf.capacity())
+				buf.limit((int) (length - position));
+			int read = read(buf, position);
+			if (read <= 0)
+				throw new IOException("Unexpected end of " + file_.getName());
+			digest.update(buf.array(), 0, read);
+			position += read;
+		}
+
+		byte[] hash = digest.digest();
+		StringBuffer hex = new StringBuffer(hash.length * 2);
+		for (int i = 0; i < hash.length; i++) {
+			hex.append(Character.forDigit((hash[i] >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(hash[i] & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Current size of the payload file
+	 * @throws IOException
+	 */
+	public long size() throws IOException {
+		return channel_.size();
+	}
+
+	/**
+	 * Synchronize the data of the payload file with the disk.
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		channel_.force(false);
+	}
+
+	/**
+	 * Close the channel. Data not flushed stays in the operating system cache.
+	 */
+	public void close() {
+		try {
+			raf_.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Closing " + file_.getName() + " failed: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Accessor for the payload file
+	 */
+	public File file() {
+		return file_;
+	}
+
+	/**
+	 * Compare writing and reading a file in segments through the PayloadChannel
+	 * with the RandomAccessFile "rwd" access BundlePayload used before, and log
+	 * the time of both.
+	 * @param dir directory for the temporary test files
+	 * @param segment_size size of every read and write
+	 * @param segments number of segments in the file
+	 * @return true if both ways read back the written data
+	 */
+	public static boolean test_compare_with_random_access_file(File dir, int segment_size, int segments) {
+		File legacy_file = new File(dir, "payload_channel_test_legacy.dat");
+		File channel_file = new File(dir, "payload_channel_test_channel.dat");
+		byte[] segment = new byte[segment_size];
+		for (int i = 0; i < segment_size; i++)
+			segment[i] = (byte) i;
+
+		try {
+			// previous path, one RandomAccessFile in "rwd" mode for every access
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < segments; i++) {
+				RandomAccessFile handle = new RandomAccessFile(legacy_file, "rwd");
+				handle.seek((long) i * segment_size);
+				handle.write(segment);
+				handle.close();
+			}
+			long legacy_write = System.currentTimeMillis() - start;
+
+			boolean legacy_ok = true;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < segments; i++) {
+				byte[] temp = new byte[segment_size];
+				RandomAccessFile handle = new RandomAccessFile(legacy_file, "rwd");
+				handle.seek((long) i * segment_size);
+				handle.readFully(temp);
+				handle.close();
+				legacy_ok &= temp[segment_size - 1] == segment[segment_size - 1];
+			}
+			long legacy_read = System.currentTimeMillis() - start;
+
+			// channel path, positional I/O and one flush at the end
+			PayloadChannel channel = new PayloadChannel(channel_file);
+			boolean channel_ok = true;
+			long channel_write;
+			long channel_read;
+			try {
+				start = System.currentTimeMillis();
+				for (int i = 0; i < segments; i++) {
+					channel.write(ByteBuffer.wrap(segment), (long) i * segment_size);
+				}
+				channel.flush();
+				channel_write = System.currentTimeMillis() - start;
+
+				ByteBuffer temp = ByteBuffer.allocate(segment_size);
+				start = System.currentTimeMillis();
+				for (int i = 0; i < segments; i++) {
+					temp.clear();
+					channel.read(temp, (long) i * segment_size);
+					channel_ok &= temp.get(segment_size - 1) == segment[segment_size - 1];
+				}
+				channel_read = System.currentTimeMillis() - start;
+			} finally {
+				channel.close();
+			}
+
+			Log.d(TAG, String.format("%d segments of %d bytes: "
+					+ "RandomAccessFile write %d ms read %d ms, "
+					+ "PayloadChannel write %d ms read %d ms",
+					segments, segment_size, legacy_write, legacy_read,
+					channel_write, channel_read));
+			return legacy_ok && channel_ok;
+		} catch (IOException e) {
+			Log.e(TAG, "Payload I/O test failed: " + e.getMessage());
+			return false;
+		} finally {
+			legacy_file.delete();
+			channel_file.delete();
+		}
+	}
+
+	/**
+	 * The payload file
+	 */
+	private File file_;
+
+	/**
+	 * File handle owning the channel
+	 */
+	private RandomAccessFile raf_;
+
+	/**
+	 * Channel for the payload file
+	 */
+	private FileChannel channel_;
+
+	/**
+	 * Number of users of this channel, maintained by the PayloadChannelCache
+	 */
+	int pins_;
+
+	/**
+	 * Whether this channel is still in the PayloadChannelCache, maintained by the PayloadChannelCache
+	 */
+	boolean cached_;
+}
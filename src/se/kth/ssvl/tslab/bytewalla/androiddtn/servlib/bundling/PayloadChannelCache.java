@@ -0,0 +1,239 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+import android.util.Log;
+
+/**
+ * This class is implemented as Singleton to keep the payload files of the
+ * bundles open between reads and writes. The channels are kept by bundle id
+ * in least recently used order and the least recently used one is closed when
+ * more than the configured number are open. A channel which is still pinned
+ * when it is evicted or invalidated is closed by its last user.
+ */
+public class PayloadChannelCache {
+
+	/**
+	 *  Singleton instance Implementation of the PayloadChannelCache
+	 */
+	private static PayloadChannelCache instance_ = null;
+
+	/**
+	 * TAG for Android Logging
+	 */
+	private static String TAG = "PayloadChannelCache";
+
+	/**
+	 * Number of channels kept open if the configuration is not read yet
+	 */
+	private static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Singleton Implementation Getter function
+     * @return an singleton instance of PayloadChannelCache
+     */
+	public static PayloadChannelCache getInstance() {
+        if(instance_ == null) {
+           instance_ = new PayloadChannelCache();
+        }
+        return instance_;
+     }
+
+	/**
+	 * Private constructor for Singleton Implementation of the PayloadChannelCache
+	 */
+	private PayloadChannelCache() {
+		lock_ = new Lock();
+		channels_ = new LinkedHashMap<Integer, PayloadChannel>(DEFAULT_CAPACITY, 0.75f, true);
+		capacity_ = DEFAULT_CAPACITY;
+	}
+
+    /**
+     * Read the number of channels to keep open from the configuration.
+     * @param config Get the application configuration to get the storage settings
+     */
+	public void init(DTNConfiguration config) {
+		lock_.lock();
+		try {
+			capacity_ = Math.max(1, config.storage_setting().payload_channels());
+			Log.d(TAG, "Keeping up to " + capacity_ + " payload files open");
+			evict_over_capacity();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Get the open channel of the payload file of the bundle, the file is opened if needed.
+     * Every pin has to be followed by an unpin.
+     * @param bundleid Bundle id of the payload
+     * @param file Payload file
+     * @return the channel for the payload file
+     * @throws FileNotFoundException if the file cannot be opened
+     */
+	public PayloadChannel pin(int bundleid, File file) throws FileNotFoundException {
+		lock_.lock();
+		try {
+			PayloadChannel channel = channels_.get(bundleid);
+			if (channel != null) {
+				if (channel.file().equals(file)) {
+					hits_++;
+					channel.pins_++;
+					return channel;
+				}
+				// the payload was moved to another file
+				channels_.remove(bundleid);
+				release(channel);
+			}
+
+			misses_++;
+			channel = new PayloadChannel(file);
+			channel.pins_ = 1;
+			channel.cached_ = true;
+			channels_.put(bundleid, channel);
+			evict_over_capacity();
+			return channel;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Return a channel got from pin.
+     * @param channel the channel
+     */
+	public void unpin(PayloadChannel channel) {
+		lock_.lock();
+		try {
+			channel.pins_--;
+			if (!channel.cached_ && channel.pins_ == 0)
+				channel.close();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Close the channel of the bundle, called when the bundle is deleted.
+     * @param bundleid Bundle id of the payload
+     */
+	public void invalidate(int bundleid) {
+		lock_.lock();
+		try {
+			PayloadChannel channel = channels_.remove(bundleid);
+			if (channel != null)
+				release(channel);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Close all the channels, called when the storage is closed or reset.
+     */
+	public void clear() {
+		lock_.lock();
+		try {
+			Iterator<PayloadChannel> iter = channels_.values().iterator();
+			while (iter.hasNext()) {
+				PayloadChannel channel = iter.next();
+				iter.remove();
+				release(channel);
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Format the given StringBuffer with the payload channel statistics.
+	 */
+	public void get_stats(StringBuffer buf) {
+		lock_.lock();
+		try {
+			buf.append(String.format("%d open_payload_files -- " + "%d payload_file_hits -- "
+					+ "%d payload_file_opens -- " + "%d payload_file_evictions -- ",
+					channels_.size(), hits_, misses_, evictions_));
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Evict the least recently used channels until the capacity is kept, the lock has to be held
+	 */
+	private void evict_over_capacity() {
+		Iterator<Map.Entry<Integer, PayloadChannel>> iter = channels_.entrySet().iterator();
+		while (channels_.size() > capacity_ && iter.hasNext()) {
+			PayloadChannel channel = iter.next().getValue();
+			iter.remove();
+			release(channel);
+			evictions_++;
+		}
+	}
+
+	/**
+	 * Close a channel removed from the cache unless it is still pinned, the lock has to be held
+	 */
+	private void release(PayloadChannel channel) {
+		channel.cached_ = false;
+		if (channel.pins_ == 0)
+			channel.close();
+	}
+
+	/**
+	 * Lock protecting the channels and the statistics
+	 */
+	private Lock lock_;
+
+	/**
+	 * Open channels by bundle id in least recently used order
+	 */
+	private LinkedHashMap<Integer, PayloadChannel> channels_;
+
+	/**
+	 * Maximum number of channels kept open
+	 */
+	private int capacity_;
+
+	/**
+	 * Number of pins served by an open channel
+	 */
+	private long hits_;
+
+	/**
+	 * Number of pins which opened the file
+	 */
+	private long misses_;
+
+	/**
+	 * Number of channels closed to keep the capacity
+	 */
+	private long evictions_;
+}
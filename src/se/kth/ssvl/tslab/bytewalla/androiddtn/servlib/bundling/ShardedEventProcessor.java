@@ -0,0 +1,416 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleDeleteRequest;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleDeliveredEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleExpiredEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleFreeEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleReceivedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleSendCancelledEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleTransmittedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.CustodyTimeoutEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+import android.util.Log;
+
+/**
+ * Parallel processing of the BundleDaemon events by a number of shard threads.
+ * The daemon thread still takes the events from its queue in priority order
+ * and hands them to the shards. Events about one bundle go to the shard chosen
+ * by the bundle identity, source and creation timestamp, so all the events of
+ * a bundle and its duplicates and fragments are handled in order by the same
+ * thread. All other events, the link and contact events among them, change
+ * state shared by everything, so the daemon thread waits until the shards
+ * have handled all the events handed to them and handles the event itself,
+ * which works as a barrier.
+ *
+ * The events keep their queue order in these pairs: two events about the same
+ * bundle, and a bundle event and any other event. For example a
+ * BUNDLE_TRANSMITTED is handled before the CONTACT_DOWN of its link posted
+ * after it, and a LINK_STATE_CHANGE_REQUEST before the bundles received after
+ * it are routed. Only the events about different bundles are handled in any
+ * order and at the same time. The handler has to lock the state they share,
+ * the links, the lists and the caches.
+ *
+ * Every shard holds at most a fixed number of events. When the shard of an
+ * event is full, dispatch waits, so the daemon stops taking events and its
+ * queue applies the backpressure to the producers.
+ */
+public class ShardedEventProcessor {
+
+	/**
+	 * String TAG to support Android logging system
+	 */
+	private static String TAG = "ShardedEventProcessor";
+
+	/**
+	 * Shard key of the events handled behind the barrier
+	 */
+	private static final int GLOBAL = -1;
+
+	/**
+	 * Default number of events a shard holds
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Interface to handle the events, called from the shard threads
+	 */
+	public static interface Handler {
+		/**
+		 * Handle one event
+		 * @param event the event
+		 */
+		public void handle(BundleEvent event);
+	}
+
+	/**
+	 * Create the processor with shards holding DEFAULT_CAPACITY events, the
+	 * threads are started by start().
+	 * @param name prefix of the thread names
+	 * @param handler handler of the events
+	 * @param shards number of shard threads
+	 */
+	public ShardedEventProcessor(String name, Handler handler, int shards) {
+		this(name, handler, shards, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create the processor, the threads are started by start().
+	 * @param name prefix of the thread names
+	 * @param handler handler of the events
+	 * @param shards number of shard threads
+	 * @param capacity number of events a shard holds
+	 */
+	public ShardedEventProcessor(String name, Handler handler, int shards, int capacity) {
+		name_ = name;
+		handler_ = handler;
+		lock_ = new Lock();
+		idle_ = lock_.newCondition();
+		shards_ = new Shard[shards];
+		for (int i = 0; i < shards; i++)
+			shards_[i] = new Shard(Math.max(1, capacity));
+	}
+
+	/**
+	 * Start the shard threads.
+	 */
+	public void start() {
+		for (int i = 0; i < shards_.length; i++) {
+			final Shard shard = shards_[i];
+			shard.thread_ = new Thread(new Runnable() {
+				public void run() {
+					process(shard);
+				}
+			}, name_ + "-" + i);
+			shard.thread_.setDaemon(true);
+			shard.thread_.start();
+		}
+	}
+
+	/**
+	 * Hand the event to its shard, waiting while the shard is full, or wait
+	 * for all the shards and handle it in the calling thread if it is not
+	 * about one bundle. Called only from the thread taking the events from
+	 * the queue.
+	 * @param event the event
+	 * @throws InterruptedException
+	 */
+	public void dispatch(BundleEvent event) throws InterruptedException {
+		int key = shard_key(event);
+		if (key == GLOBAL) {
+			long start = System.currentTimeMillis();
+			await_idle();
+			lock_.lock();
+			try {
+				barriers_++;
+				barrier_time_ += System.currentTimeMillis() - start;
+			} finally {
+				lock_.unlock();
+			}
+			handler_.handle(event);
+			return;
+		}
+
+		lock_.lock();
+		try {
+			outstanding_++;
+		} finally {
+			lock_.unlock();
+		}
+
+		Shard shard = shards_[(key & 0x7fffffff) % shards_.length];
+		if (!shard.queue_.offer(event)) {
+			long start = System.currentTimeMillis();
+			try {
+				shard.queue_.put(event);
+			} catch (InterruptedException e) {
+				lock_.lock();
+				try {
+					if (--outstanding_ == 0)
+						idle_.signalAll();
+				} finally {
+					lock_.unlock();
+				}
+				throw e;
+			}
+			lock_.lock();
+			try {
+				full_waits_++;
+				full_time_ += System.currentTimeMillis() - start;
+			} finally {
+				lock_.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Wait until the shards have handled all the events handed to them.
+	 * @throws InterruptedException
+	 */
+	public void await_idle() throws InterruptedException {
+		lock_.lock();
+		try {
+			while (outstanding_ > 0)
+				idle_.await();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Stop the shard threads, the events not handled yet are dropped.
+	 */
+	public void stop() {
+		for (int i = 0; i < shards_.length; i++) {
+			if (shards_[i].thread_ != null)
+				shards_[i].thread_.interrupt();
+		}
+		for (int i = 0; i < shards_.length; i++) {
+			Thread thread = shards_[i].thread_;
+			if (thread == null)
+				continue;
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted while waiting for " + thread.getName());
+			}
+			shards_[i].thread_ = null;
+		}
+	}
+
+	/**
+	 * Whether the thread is one of the shard threads
+	 * @param thread the thread
+	 */
+	public boolean is_shard_thread(Thread thread) {
+		for (int i = 0; i < shards_.length; i++) {
+			if (shards_[i].thread_ == thread)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Number of events handed to the shards and not handled yet
+	 */
+	public int outstanding() {
+		lock_.lock();
+		try {
+			return outstanding_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Format the given StringBuffer with the shard statistics.
+	 */
+	public void get_stats(StringBuffer buf) {
+		lock_.lock();
+		try {
+			buf.append(String.format("%d event_shards -- " + "%d shard_events_pending -- "
+					+ "%d shard_barriers -- " + "%d shard_barrier_ms -- " + "%d shard_full_waits -- "
+					+ "%d shard_full_ms -- " + "shard_events_handled",
+					shards_.length, outstanding_, barriers_, barrier_time_, full_waits_, full_time_));
+			for (int i = 0; i < shards_.length; i++)
+				buf.append(i == 0 ? " " : "/").append(shards_[i].handled_);
+			buf.append(" -- ");
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Shard key of the event, GLOBAL if it has to be handled behind the barrier
+	 * @param event the event
+	 * @return hash of the bundle identity
+	 */
+	static int shard_key(BundleEvent event) {
+		switch (event.type()) {
+		case BUNDLE_RECEIVED:
+			return bundle_key(((BundleReceivedEvent) event).bundle());
+		case BUNDLE_TRANSMITTED:
+			return bundle_key(((BundleTransmittedEvent) event).bundle());
+		case BUNDLE_DELIVERED:
+			return bundle_key(((BundleDeliveredEvent) event).bundle());
+		case BUNDLE_EXPIRED:
+			return bundle_key(((BundleExpiredEvent) event).bundle());
+		case BUNDLE_FREE:
+			return bundle_key(((BundleFreeEvent) event).bundle());
+		case STORE_COMPLETED:
+			return bundle_key(((StoreCompletedEvent) event).bundle());
+		case BUNDLE_DELETE:
+			return bundle_key(((BundleDeleteRequest) event).bundle());
+		case BUNDLE_CANCELLED:
+			return bundle_key(((BundleSendCancelledEvent) event).bundle());
+		case CUSTODY_TIMEOUT:
+			return bundle_key(((CustodyTimeoutEvent) event).bundle());
+		default:
+			return GLOBAL;
+		}
+	}
+
+	/**
+	 * Shard key of a bundle from its source and creation timestamp, which
+	 * are the same for its duplicates and fragments
+	 */
+	private static int bundle_key(Bundle bundle) {
+		if (bundle == null)
+			return GLOBAL;
+		long seconds = bundle.creation_ts().seconds();
+		long seqno = bundle.creation_ts().seqno();
+		String source = bundle.source().str();
+		int key = source == null ? 0 : source.hashCode();
+		key = key * 31 + (int) (seconds ^ (seconds >>> 32));
+		key = key * 31 + (int) (seqno ^ (seqno >>> 32));
+		return key == GLOBAL ? 0 : key;
+	}
+
+	/**
+	 * Shard thread, handles the events of its queue in order
+	 */
+	private void process(Shard shard) {
+		while (true) {
+			BundleEvent event;
+			try {
+				event = shard.queue_.take();
+			} catch (InterruptedException e) {
+				Log.d(TAG, Thread.currentThread().getName() + " stopped");
+				return;
+			}
+
+			try {
+				handler_.handle(event);
+			} catch (RuntimeException e) {
+				Log.e(TAG, String.format("handling %s failed: %s", event.type().getCaption(), e.toString()));
+			} finally {
+				lock_.lock();
+				try {
+					shard.handled_++;
+					if (--outstanding_ == 0)
+						idle_.signalAll();
+				} finally {
+					lock_.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prefix of the thread names
+	 */
+	private String name_;
+
+	/**
+	 * Handler of the events
+	 */
+	private Handler handler_;
+
+	/**
+	 * Lock protecting the counters
+	 */
+	private Lock lock_;
+
+	/**
+	 * Condition signalled when the shards handled all the events handed to them
+	 */
+	private Condition idle_;
+
+	/**
+	 * Event queue, thread and counter of one shard
+	 */
+	private static class Shard {
+		Shard(int capacity) {
+			queue_ = new LinkedBlockingQueue<BundleEvent>(capacity);
+		}
+
+		/**
+		 * Events handed to the shard and not taken yet, at most the capacity
+		 */
+		final LinkedBlockingQueue<BundleEvent> queue_;
+
+		/**
+		 * Thread of the shard, null if it is not running
+		 */
+		volatile Thread thread_;
+
+		/**
+		 * Number of events handled by the shard, guarded by lock_
+		 */
+		long handled_;
+	}
+
+	/**
+	 * The shards
+	 */
+	private Shard[] shards_;
+
+	/**
+	 * Number of events handed to the shards and not handled yet
+	 */
+	private int outstanding_;
+
+	/**
+	 * Number of events handled behind the barrier
+	 */
+	private long barriers_;
+
+	/**
+	 * Total time in milliseconds the barrier waited for the shards
+	 */
+	private long barrier_time_;
+
+	/**
+	 * Number of times dispatch waited for a full shard
+	 */
+	private long full_waits_;
+
+	/**
+	 * Total time in milliseconds dispatch waited for full shards
+	 */
+	private long full_time_;
+}
@@ -22,8 +22,6 @@ package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event;
 
 import java.util.Date;
 
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.MsgBlockingQueue;
-
 /**
  * Bundle Event class used in DTN System for communicating between different components.
  * @author Rerngvit Yanggratoke (rerngvit@kth.se)
@@ -39,22 +37,44 @@ public class BundleEvent {
 	 */
 	protected boolean daemon_only_ = false;
 
+	/**
+	 * Priority of the events without a more urgent priority, like the bundle traffic
+	 */
+	public static final int PRIORITY_NORMAL = 0;
+
+	/**
+	 * Priority of the expirations and timeouts of bundles, so expired bundles
+	 * are not forwarded while they wait behind the bundle traffic
+	 */
+	public static final int PRIORITY_TIMEOUT = 1;
+
+	/**
+	 * Priority of the link and contact events, so bundles are not sent to a
+	 * link which is already down while the event waits behind the bundle traffic
+	 */
+	public static final int PRIORITY_LINK = 2;
+
 	/**
 	 * Priority value to sort BundleEvent to be run in the Bundle Daemon
 	 */
-	private int priority_; 
+	private int priority_ = PRIORITY_NORMAL; 
 	
 	
 	/**
-	 * Notifier to be notified when the event is completed.
+	 * Future to be completed when the event is handled, null if nobody waits for it.
 	 */
-	public MsgBlockingQueue<Integer> processed_notifier_ = null;
+	private BundleEventFuture<?> completion_ = null;
 
 	/**
 	 * The time the event is posted to BundleDaemon's queue.
 	 */
 	protected Date posted_time_;
 
+	/**
+	 * System.nanoTime when the event is posted, for measuring its wait in the queue.
+	 */
+	protected long posted_nanos_;
+
 	/**
 	 * Used for printing
 	 */
@@ -69,7 +89,7 @@ public class BundleEvent {
 	public BundleEvent(event_type_t type) {
 		type_ = type;
 		daemon_only_ = false;
-		processed_notifier_ =  null;
+		completion_ =  null;
 	}
 
 	/**
@@ -105,19 +125,19 @@ public class BundleEvent {
 	}
 
 	/**
-	 * Accessor for the Notifier to be notified when the event is completed
-	 * @return the processed_notifier_
+	 * Accessor for the Future to be completed when the event is handled
+	 * @return the completion_
 	 */
-	public MsgBlockingQueue<Integer> processed_notifier() {
-		return processed_notifier_;
+	public BundleEventFuture<?> completion() {
+		return completion_;
 	}
 
 	/**
-	 * Setter for the Notifier to be notified when the event is completed
-	 * @param processedNotifier the processed_notifier_ to set
+	 * Setter for the Future to be completed when the event is handled
+	 * @param completion the completion_ to set
 	 */
-	public void set_processed_notifier(MsgBlockingQueue<Integer> processed_notifier) {
-		processed_notifier_ = processed_notifier;
+	public void set_completion(BundleEventFuture<?> completion) {
+		completion_ = completion;
 	}
 
 	/**
@@ -136,6 +156,22 @@ public class BundleEvent {
 		posted_time_ = postedTime;
 	}
 
+	/**
+	 * Accessor for the System.nanoTime when the event is posted, 0 if it was not posted
+	 * @return the posted_nanos_
+	 */
+	public long posted_nanos() {
+		return posted_nanos_;
+	}
+
+	/**
+	 * Setter for the System.nanoTime when the event is posted
+	 * @param posted_nanos the posted_nanos_ to set
+	 */
+	public void set_posted_nanos(long posted_nanos) {
+		posted_nanos_ = posted_nanos;
+	}
+
 	/**
 	 * Accessor for the priority value to sort BundleEvent to be run in the Bundle Daemon
 	 * @return the priority
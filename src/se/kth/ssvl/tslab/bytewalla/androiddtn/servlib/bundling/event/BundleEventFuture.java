@@ -0,0 +1,237 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+
+/**
+ * Future of an event submitted to the BundleDaemon. It is done when all the
+ * handlers of the event have finished and its result is the event itself,
+ * so the values filled in by the handlers, like the result of a
+ * BundleAcceptRequest, are read from it. Several events can be submitted
+ * before waiting for any of them.
+ */
+public class BundleEventFuture<E extends BundleEvent> implements Future<E> {
+
+	/**
+	 * Create the future of the event and attach it to the event
+	 * @param event the submitted event
+	 */
+	public BundleEventFuture(E event) {
+		assert (event.completion() == null) : "BundleEventFuture: event already submitted";
+		event_ = event;
+		lock_ = new Lock();
+		done_ = lock_.newCondition();
+		event.set_completion(this);
+	}
+
+	/**
+	 * Called by the BundleDaemon before it handles the event. From then on
+	 * the future can no longer be cancelled.
+	 * @return false if the future was cancelled and the event must not be handled
+	 */
+	public boolean start() {
+		lock_.lock();
+		try {
+			if (finished_)
+				return false;
+			started_ = true;
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Called by the BundleDaemon when the handlers of the event have finished
+	 */
+	public void complete() {
+		finish(false, null);
+	}
+
+	/**
+	 * Called by the BundleDaemon when a handler of the event failed, the
+	 * waiting threads get an ExecutionException with the cause
+	 * @param cause the exception thrown by the handler
+	 */
+	public void fail(Throwable cause) {
+		finish(false, cause);
+	}
+
+	/**
+	 * Cancel the event if the BundleDaemon has not started to handle it yet,
+	 * it is then skipped when its turn comes.
+	 * @return false if the event is being handled or was already handled
+	 */
+	public boolean cancel(boolean may_interrupt) {
+		lock_.lock();
+		try {
+			if (started_)
+				return false;
+			return finish(true, null);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the event is handled
+	 * @return the event
+	 * @throws ExecutionException if a handler of the event failed
+	 * @throws CancellationException if the future was cancelled
+	 */
+	public E get() throws InterruptedException, ExecutionException {
+		lock_.lock();
+		try {
+			while (!finished_)
+				done_.await();
+			return result();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the event is handled or the timeout is over
+	 * @return the event
+	 * @throws TimeoutException if the event is not handled in time
+	 * @throws ExecutionException if a handler of the event failed
+	 * @throws CancellationException if the future was cancelled
+	 */
+	public E get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		lock_.lock();
+		try {
+			long nanos = unit.toNanos(timeout);
+			while (!finished_) {
+				if (nanos <= 0)
+					throw new TimeoutException(event_.type_str() + " not handled in time");
+				nanos = done_.awaitNanos(nanos);
+			}
+			return result();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Whether the event is handled or the future was cancelled
+	 */
+	public boolean isDone() {
+		lock_.lock();
+		try {
+			return finished_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Whether the future was cancelled before the event was handled
+	 */
+	public boolean isCancelled() {
+		lock_.lock();
+		try {
+			return cancelled_;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Accessor for the submitted event
+	 * @return the event_
+	 */
+	public E event() {
+		return event_;
+	}
+
+	/**
+	 * Mark the future finished and wake up the waiting threads
+	 * @return false if it was already finished
+	 */
+	private boolean finish(boolean cancelled, Throwable cause) {
+		lock_.lock();
+		try {
+			if (finished_)
+				return false;
+			finished_ = true;
+			cancelled_ = cancelled;
+			cause_ = cause;
+			done_.signalAll();
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * The result of a finished future, the lock has to be held
+	 */
+	private E result() throws ExecutionException {
+		if (cancelled_)
+			throw new CancellationException(event_.type_str() + " cancelled");
+		if (cause_ != null)
+			throw new ExecutionException(cause_);
+		return event_;
+	}
+
+	/**
+	 * The submitted event
+	 */
+	private E event_;
+
+	/**
+	 * Lock protecting the state
+	 */
+	private Lock lock_;
+
+	/**
+	 * Condition signalled when the future is finished
+	 */
+	private Condition done_;
+
+	/**
+	 * Whether the event is handled or the future was cancelled
+	 */
+	private boolean finished_;
+
+	/**
+	 * Whether the future was cancelled
+	 */
+	private boolean cancelled_;
+
+	/**
+	 * Whether the BundleDaemon started to handle the event
+	 */
+	private boolean started_;
+
+	/**
+	 * Exception thrown by the failed handler, null if it did not fail
+	 */
+	private Throwable cause_;
+}
@@ -31,6 +31,7 @@ public class BundleExpiredEvent extends BundleEvent {
 		
 		super(event_type_t.BUNDLE_EXPIRED);
 		bundle_ = bundle;
+		set_priority(PRIORITY_TIMEOUT);
 	
 	}
 
@@ -103,6 +103,8 @@ public class ContactEvent extends BundleEvent {
 		super(type);
 		type_ = type;
 		reason_ = reason;
+		// all the link events share the lane to keep their order
+		set_priority(PRIORITY_LINK);
 
 	}
 
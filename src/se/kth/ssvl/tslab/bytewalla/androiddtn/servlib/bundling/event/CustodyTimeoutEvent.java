@@ -31,6 +31,7 @@ public class CustodyTimeoutEvent  extends BundleEvent {
 		super(event_type_t.CUSTODY_TIMEOUT);
 		bundle_ = bundle;
 		link_   = link;
+		set_priority(PRIORITY_TIMEOUT);
 	}
 
 	/**
@@ -0,0 +1,110 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
+
+/**
+ * Event class posted by the storage executor when an asynchronous storage
+ * operation on a Bundle has finished.
+ */
+public class StoreCompletedEvent extends BundleEvent {
+
+	/**
+	 * Storage operation which completed
+	 */
+	public static enum store_op_t {
+		STORE_ADD("add"),
+		STORE_UPDATE("update"),
+		STORE_DEL("del");
+
+		private String caption;
+
+		private store_op_t(String caption) {
+			this.caption = caption;
+		}
+
+		public String getCaption() {
+			return caption;
+		}
+	}
+
+	public StoreCompletedEvent(store_op_t op, Bundle bundle, boolean success, long latency) {
+		super(event_type_t.STORE_COMPLETED);
+		// should be processed only by the daemon
+		daemon_only_ = true;
+		op_ = op;
+		bundle_ = bundle;
+		success_ = success;
+		latency_ = latency;
+	}
+
+	/**
+	 * The storage operation
+	 */
+	private store_op_t op_;
+
+	/**
+	 * The Bundle the operation was done on
+	 */
+	private Bundle bundle_;
+
+	/**
+	 * Whether the operation succeeded
+	 */
+	private boolean success_;
+
+	/**
+	 * Time in milliseconds from submitting the operation until it finished
+	 */
+	private long latency_;
+
+	/**
+	 * Accessor for the storage operation
+	 * @return the op_
+	 */
+	public store_op_t op() {
+		return op_;
+	}
+
+	/**
+	 * Accessor for the Bundle the operation was done on
+	 * @return the bundle_
+	 */
+	public Bundle bundle() {
+		return bundle_;
+	}
+
+	/**
+	 * Accessor for the result of the operation
+	 * @return the success_
+	 */
+	public boolean success() {
+		return success_;
+	}
+
+	/**
+	 * Accessor for the time in milliseconds from submitting the operation until it finished
+	 * @return the latency_
+	 */
+	public long latency() {
+		return latency_;
+	}
+};
@@ -37,6 +37,7 @@ public enum event_type_t {
 	BUNDLE_EXPIRED("BUNDLE_EXPIRED"), // /< Bundle expired
 	BUNDLE_NOT_NEEDED("BUNDLE_NOT_NEEDED"), // /< Bundle no longer needed
 	BUNDLE_FREE("BUNDLE_FREE"), // /< No more references to the bundle
+	STORE_COMPLETED("STORE_COMPLETED"), // /< Asynchronous storage operation done
 	BUNDLE_FORWARD_TIMEOUT("BUNDLE_FORWARD_TIMEOUT"), // /< A Mapping timed out
 	BUNDLE_SEND("BUNDLE_SEND"), // /< Send a bundle
 	BUNDLE_CANCEL("BUNDLE_CANCEL"), // /< Cancel a bundle transmission
@@ -36,6 +36,10 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DiscoveriesSetting.
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.InterfacesSetting.InterfaceEntry;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.LinksSetting.LinkEntry;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.RoutesSetting.RouteEntry;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.bundle_store_layout_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.durability_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.metadata_store_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.eviction_policy_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.storage_type_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.Link.link_type_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.routing.BundleRouter.router_type_t;
@@ -338,6 +342,30 @@ public class DTNConfigurationParser {
 			throw new InvalidDTNConfigurationException("Invalid DTN Config Exception: Router Type is invalid");
 		}
 		
+		Attr event_shards = config_element.getAttributeNode("event_shards");
+		if (event_shards != null)
+			config.routes_setting().set_event_shards(Integer.parseInt(event_shards.getValue()));
+		
+		Attr event_queue_high_watermark = config_element.getAttributeNode("event_queue_high_watermark");
+		if (event_queue_high_watermark != null)
+			config.routes_setting().set_event_queue_high_watermark(Integer.parseInt(event_queue_high_watermark.getValue()));
+		
+		Attr event_queue_low_watermark = config_element.getAttributeNode("event_queue_low_watermark");
+		if (event_queue_low_watermark != null)
+			config.routes_setting().set_event_queue_low_watermark(Integer.parseInt(event_queue_low_watermark.getValue()));
+		
+		Attr event_batch = config_element.getAttributeNode("event_batch");
+		if (event_batch != null)
+			config.routes_setting().set_event_batch(Integer.parseInt(event_batch.getValue()));
+		
+		Attr slow_event_threshold = config_element.getAttributeNode("slow_event_threshold");
+		if (slow_event_threshold != null)
+			config.routes_setting().set_slow_event_threshold(Integer.parseInt(slow_event_threshold.getValue()));
+		
+		Attr timer_tick = config_element.getAttributeNode("timer_tick");
+		if (timer_tick != null)
+			config.routes_setting().set_timer_tick(Integer.parseInt(timer_tick.getValue()));
+		
 		
 //		Attr local_eid = config_element.getAttributeNode("local_eid");
 //		
@@ -489,6 +517,98 @@ public class DTNConfigurationParser {
 		Attr storage_path = config_element.getAttributeNode("storage_path");
 		config.storage_setting().set_storage_path(storage_path.getValue());
 		
+		Attr bundle_store = config_element.getAttributeNode("bundle_store");
+		if (bundle_store != null)
+		{
+			bundle_store_layout_t layout = bundle_store_layout_t.get(bundle_store.getValue());
+			if (layout == null)
+				throw new InvalidDTNConfigurationException("Bundle store layout not known exception");
+			config.storage_setting().set_bundle_store_layout(layout);
+		}
+		else
+		{
+			config.storage_setting().set_bundle_store_layout(bundle_store_layout_t.FILE);
+		}
+		
+		Attr metadata_store = config_element.getAttributeNode("metadata_store");
+		if (metadata_store != null)
+		{
+			metadata_store_t value = metadata_store_t.get(metadata_store.getValue());
+			if (value == null)
+				throw new InvalidDTNConfigurationException("Metadata store not known exception");
+			config.storage_setting().set_metadata_store(value);
+		}
+		else
+		{
+			config.storage_setting().set_metadata_store(metadata_store_t.SQLITE);
+		}
+		
+		Attr durability = config_element.getAttributeNode("durability");
+		if (durability != null)
+		{
+			durability_t value = durability_t.get(durability.getValue());
+			if (value == null)
+				throw new InvalidDTNConfigurationException("Storage durability not known exception");
+			config.storage_setting().set_durability(value);
+		}
+		else
+		{
+			config.storage_setting().set_durability(durability_t.IMMEDIATE);
+		}
+		
+		Attr flush_interval = config_element.getAttributeNode("flush_interval");
+		if (flush_interval != null)
+			config.storage_setting().set_flush_interval(Integer.parseInt(flush_interval.getValue()));
+		
+		Attr flush_batch = config_element.getAttributeNode("flush_batch");
+		if (flush_batch != null)
+			config.storage_setting().set_flush_batch(Integer.parseInt(flush_batch.getValue()));
+		
+		Attr payload_channels = config_element.getAttributeNode("payload_channels");
+		if (payload_channels != null)
+			config.storage_setting().set_payload_channels(Integer.parseInt(payload_channels.getValue()));
+		
+		Attr inline_payload_threshold = config_element.getAttributeNode("inline_payload_threshold");
+		if (inline_payload_threshold != null)
+			config.storage_setting().set_inline_payload_threshold(Integer.parseInt(inline_payload_threshold.getValue()));
+		
+		Attr payload_dedup = config_element.getAttributeNode("payload_dedup");
+		if (payload_dedup != null)
+			config.storage_setting().set_payload_dedup(Boolean.parseBoolean(payload_dedup.getValue()));
+		
+		Attr payload_compression = config_element.getAttributeNode("payload_compression");
+		if (payload_compression != null)
+			config.storage_setting().set_payload_compression(Boolean.parseBoolean(payload_compression.getValue()));
+		
+		Attr eviction_policy = config_element.getAttributeNode("eviction_policy");
+		if (eviction_policy != null)
+		{
+			eviction_policy_t value = eviction_policy_t.get(eviction_policy.getValue());
+			if (value == null)
+				throw new InvalidDTNConfigurationException("Storage eviction policy not known exception");
+			config.storage_setting().set_eviction_policy(value);
+		}
+		else
+		{
+			config.storage_setting().set_eviction_policy(eviction_policy_t.NONE);
+		}
+		
+		Attr eviction_threshold = config_element.getAttributeNode("eviction_threshold");
+		if (eviction_threshold != null)
+			config.storage_setting().set_eviction_threshold(Integer.parseInt(eviction_threshold.getValue()));
+		
+		Attr evict_custody = config_element.getAttributeNode("evict_custody");
+		if (evict_custody != null)
+			config.storage_setting().set_evict_custody(Boolean.parseBoolean(evict_custody.getValue()));
+		
+		Attr gc_interval = config_element.getAttributeNode("gc_interval");
+		if (gc_interval != null)
+			config.storage_setting().set_gc_interval(Integer.parseInt(gc_interval.getValue()));
+		
+		Attr gc_batch = config_element.getAttributeNode("gc_batch");
+		if (gc_batch != null)
+			config.storage_setting().set_gc_batch(Integer.parseInt(gc_batch.getValue()));
+		
 		
 		return;
 	}
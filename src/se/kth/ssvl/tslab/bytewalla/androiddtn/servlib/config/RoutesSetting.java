@@ -146,5 +146,125 @@ public class RoutesSetting {
 		local_eid = localEid;
 	}
 	
+	/**
+	 * Number of threads handling the BundleDaemon events, 0 for one per processor
+	 */
+	private int event_shards_ = 1;
+	
+	/**
+	 * Accessor for the number of threads handling the BundleDaemon events
+	 * @return the event_shards_
+	 */
+	public int event_shards() {
+		return event_shards_;
+	}
+	/**
+	 * Setter for the number of threads handling the BundleDaemon events
+	 * @param event_shards the event_shards_ to set
+	 */
+	public void set_event_shards(int event_shards) {
+		event_shards_ = event_shards;
+	}
+	
+	/**
+	 * Number of queued BundleDaemon events at which new bundles are held back, 0 to never hold them
+	 */
+	private int event_queue_high_watermark_ = 1000;
+	
+	/**
+	 * Number of queued BundleDaemon events at which held back bundles continue
+	 */
+	private int event_queue_low_watermark_ = 500;
+	
+	/**
+	 * Accessor for the number of queued events at which new bundles are held back
+	 * @return the event_queue_high_watermark_
+	 */
+	public int event_queue_high_watermark() {
+		return event_queue_high_watermark_;
+	}
+	/**
+	 * Setter for the number of queued events at which new bundles are held back
+	 * @param event_queue_high_watermark the event_queue_high_watermark_ to set
+	 */
+	public void set_event_queue_high_watermark(int event_queue_high_watermark) {
+		event_queue_high_watermark_ = event_queue_high_watermark;
+	}
+	
+	/**
+	 * Accessor for the number of queued events at which held back bundles continue
+	 * @return the event_queue_low_watermark_
+	 */
+	public int event_queue_low_watermark() {
+		return event_queue_low_watermark_;
+	}
+	/**
+	 * Setter for the number of queued events at which held back bundles continue
+	 * @param event_queue_low_watermark the event_queue_low_watermark_ to set
+	 */
+	public void set_event_queue_low_watermark(int event_queue_low_watermark) {
+		event_queue_low_watermark_ = event_queue_low_watermark;
+	}
+	
+	/**
+	 * Maximum number of events the BundleDaemon takes from its queue at once
+	 */
+	private int event_batch_ = 32;
+	
+	/**
+	 * Accessor for the maximum number of events the BundleDaemon takes from its queue at once
+	 * @return the event_batch_
+	 */
+	public int event_batch() {
+		return event_batch_;
+	}
+	/**
+	 * Setter for the maximum number of events the BundleDaemon takes from its queue at once
+	 * @param event_batch the event_batch_ to set
+	 */
+	public void set_event_batch(int event_batch) {
+		event_batch_ = event_batch;
+	}
+	
+	/**
+	 * Handling time in milliseconds above which a BundleDaemon event is logged as slow, 0 to never log
+	 */
+	private int slow_event_threshold_ = 100;
+	
+	/**
+	 * Accessor for the handling time in milliseconds above which an event is logged as slow
+	 * @return the slow_event_threshold_
+	 */
+	public int slow_event_threshold() {
+		return slow_event_threshold_;
+	}
+	/**
+	 * Setter for the handling time in milliseconds above which an event is logged as slow
+	 * @param slow_event_threshold the slow_event_threshold_ to set
+	 */
+	public void set_slow_event_threshold(int slow_event_threshold) {
+		slow_event_threshold_ = slow_event_threshold;
+	}
+	
+	/**
+	 * Tick of the TimingWheel running the timers in milliseconds
+	 */
+	private int timer_tick_ = 100;
+	
+	/**
+	 * Accessor for the tick of the TimingWheel in milliseconds
+	 * @return the timer_tick_
+	 */
+	public int timer_tick() {
+		return timer_tick_;
+	}
+	/**
+	 * Setter for the tick of the TimingWheel in milliseconds
+	 * @param timer_tick the timer_tick_ to set
+	 */
+	public void set_timer_tick(int timer_tick) {
+		timer_tick_ = timer_tick;
+	}
+	
 	public ProphetSetting prophet = new ProphetSetting();
 }
@@ -64,6 +64,212 @@ public class StorageSetting {
 		}
 	} 
 	
+	/**
+	 * Layout used by the BundleStore to keep the Bundle metadata on the disk
+	 */
+	public static enum bundle_store_layout_t
+	{
+		/**
+		 * One serialized file per Bundle
+		 */
+		FILE("file"),
+		
+		/**
+		 * Append-only segment files shared by all the Bundles
+		 */
+		LOG("log"),
+		
+		/**
+		 * Only in memory, lost at shutdown
+		 */
+		MEMORY("memory");
+		
+		private static final Map<String, bundle_store_layout_t> lookupCaption = new HashMap<String, bundle_store_layout_t>();
+
+		static {
+			for (bundle_store_layout_t s : EnumSet
+					.allOf(bundle_store_layout_t.class))
+				{ 
+				  lookupCaption.put(s.getCaption(), s);
+				}
+		}
+
+		private String caption;
+		private bundle_store_layout_t(String caption) {
+
+			this.caption = caption;
+		}
+
+		public String getCaption() {
+			return caption;
+		}
+		
+		/**
+		 * Lookup the layout from its caption in the configuration file
+		 * @param caption the caption to lookup
+		 * @return the layout or null if the caption is unknown
+		 */
+		public static bundle_store_layout_t get(String caption) {
+			return lookupCaption.get(caption);
+		}
+	} 
+	
+	/**
+	 * Backend keeping the tables of the BundleStore and the RegistrationStore
+	 */
+	public static enum metadata_store_t
+	{
+		/**
+		 * SQLite database of the application
+		 */
+		SQLITE("sqlite"),
+		
+		/**
+		 * Journal files in the storage folder, no SQL database needed
+		 */
+		FILE("file"),
+		
+		/**
+		 * Only in memory, lost at shutdown
+		 */
+		MEMORY("memory");
+		
+		private static final Map<String, metadata_store_t> lookupCaption = new HashMap<String, metadata_store_t>();
+
+		static {
+			for (metadata_store_t s : EnumSet
+					.allOf(metadata_store_t.class))
+				{ 
+				  lookupCaption.put(s.getCaption(), s);
+				}
+		}
+
+		private String caption;
+		private metadata_store_t(String caption) {
+
+			this.caption = caption;
+		}
+
+		public String getCaption() {
+			return caption;
+		}
+		
+		/**
+		 * Lookup the backend from its caption in the configuration file
+		 * @param caption the caption to lookup
+		 * @return the backend or null if the caption is unknown
+		 */
+		public static metadata_store_t get(String caption) {
+			return lookupCaption.get(caption);
+		}
+	} 
+	
+	/**
+	 * Durability of the Bundle and Registration updates
+	 */
+	public static enum durability_t
+	{
+		/**
+		 * Every update is written to the storage before returning
+		 */
+		IMMEDIATE("immediate"),
+		
+		/**
+		 * Updates are queued and written in one transaction when the flush
+		 * batch is full or the flush interval is over
+		 */
+		GROUP("group"),
+		
+		/**
+		 * Updates are queued and only written when the flush interval is over
+		 */
+		LAZY("lazy");
+		
+		private static final Map<String, durability_t> lookupCaption = new HashMap<String, durability_t>();
+
+		static {
+			for (durability_t s : EnumSet
+					.allOf(durability_t.class))
+				{ 
+				  lookupCaption.put(s.getCaption(), s);
+				}
+		}
+
+		private String caption;
+		private durability_t(String caption) {
+
+			this.caption = caption;
+		}
+
+		public String getCaption() {
+			return caption;
+		}
+		
+		/**
+		 * Lookup the durability from its caption in the configuration file
+		 * @param caption the caption to lookup
+		 * @return the durability or null if the caption is unknown
+		 */
+		public static durability_t get(String caption) {
+			return lookupCaption.get(caption);
+		}
+	} 
+	
+	/**
+	 * Policy to choose the bundles deleted when the storage quota is approached
+	 */
+	public static enum eviction_policy_t
+	{
+		/**
+		 * No bundle is deleted, new bundles are rejected when the quota is reached
+		 */
+		NONE("none"),
+		
+		/**
+		 * The bundles which expire first are deleted first
+		 */
+		EXPIRE_SOONEST("expire_soonest"),
+		
+		/**
+		 * The bundles with the lowest priority are deleted first, the oldest of them first
+		 */
+		LOWEST_PRIORITY("lowest_priority"),
+		
+		/**
+		 * The bundles with the oldest creation time are deleted first
+		 */
+		OLDEST("oldest");
+		
+		private static final Map<String, eviction_policy_t> lookupCaption = new HashMap<String, eviction_policy_t>();
+
+		static {
+			for (eviction_policy_t s : EnumSet
+					.allOf(eviction_policy_t.class))
+				{ 
+				  lookupCaption.put(s.getCaption(), s);
+				}
+		}
+
+		private String caption;
+		private eviction_policy_t(String caption) {
+
+			this.caption = caption;
+		}
+
+		public String getCaption() {
+			return caption;
+		}
+		
+		/**
+		 * Lookup the eviction policy from its caption in the configuration file
+		 * @param caption the caption to lookup
+		 * @return the eviction policy or null if the caption is unknown
+		 */
+		public static eviction_policy_t get(String caption) {
+			return lookupCaption.get(caption);
+		}
+	} 
+	
 	/**
 	 * Relative storage path where to put DTNBundle data.
 	 * If the storage type is SDCard, it's relative to root of the SDCard ( normally "/sdcard" in filesystem ).
@@ -77,6 +283,76 @@ public class StorageSetting {
 	 *  Quota of storage to consume, Unit is in MB
 	 */
 	private int quota;
+	
+	/**
+	 * Layout of the Bundle metadata on the disk, default is one file per Bundle
+	 */
+	private bundle_store_layout_t bundle_store_layout_ = bundle_store_layout_t.FILE;
+	
+	/**
+	 * Backend of the Bundle and Registration tables, default is the SQLite database
+	 */
+	private metadata_store_t metadata_store_ = metadata_store_t.SQLITE;
+	
+	/**
+	 * Durability of the updates, default is to write every update immediately
+	 */
+	private durability_t durability_ = durability_t.IMMEDIATE;
+	
+	/**
+	 * Maximum time in milliseconds a queued update waits before it is written
+	 */
+	private int flush_interval_ = 1000;
+	
+	/**
+	 * Number of queued updates which triggers a write with the group durability
+	 */
+	private int flush_batch_ = 32;
+	
+	/**
+	 * Maximum number of payload files kept open
+	 */
+	private int payload_channels_ = 16;
+	
+	/**
+	 * Payloads up to this many bytes are stored in the Bundle metadata instead of their own file, 0 to disable
+	 */
+	private int inline_payload_threshold_ = 1024;
+	
+	/**
+	 * Whether identical payloads are stored only once, default is off
+	 */
+	private boolean payload_dedup_ = false;
+	
+	/**
+	 * Whether finished payload files are stored compressed, default is off
+	 */
+	private boolean payload_compression_ = false;
+	
+	/**
+	 * Policy to choose the bundles deleted when the quota is approached, default is to delete none
+	 */
+	private eviction_policy_t eviction_policy_ = eviction_policy_t.NONE;
+	
+	/**
+	 * Percentage of the quota above which bundles are evicted
+	 */
+	private int eviction_threshold_ = 90;
+	
+	/**
+	 * Whether bundles in local custody can be evicted, default is never
+	 */
+	private boolean evict_custody_ = false;
+	
+	/**
+	 * Time in milliseconds between the steps of the background garbage collection, 0 to disable
+	 */
+	private int gc_interval_ = 1000;
+	
+	/**
+	 * Number of rows or files checked by one step of the background garbage collection
+	 */
+	private int gc_batch_ = 64;
 
 	/**
 	 * Accessor for the storage_type_t of this storage setting
@@ -131,5 +407,235 @@ public class StorageSetting {
 	public void set_storage_path(String storagePath) {
 		storage_path_ = storagePath;
 	}
+
+	/**
+	 * Accessor for the layout of the Bundle metadata on the disk
+	 * @return the bundle_store_layout_
+	 * @see bundle_store_layout_t
+	 */
+	public bundle_store_layout_t bundle_store_layout() {
+		return bundle_store_layout_;
+	}
+
+	/**
+	 * Setter for the layout of the Bundle metadata on the disk
+	 * @param bundle_store_layout the bundle_store_layout_ to set
+	 * @see bundle_store_layout_t
+	 */
+	public void set_bundle_store_layout(bundle_store_layout_t bundle_store_layout) {
+		bundle_store_layout_ = bundle_store_layout;
+	}
+
+	/**
+	 * Accessor for the backend of the Bundle and Registration tables
+	 * @return the metadata_store_
+	 * @see metadata_store_t
+	 */
+	public metadata_store_t metadata_store() {
+		return metadata_store_;
+	}
+
+	/**
+	 * Setter for the backend of the Bundle and Registration tables
+	 * @param metadata_store the metadata_store_ to set
+	 * @see metadata_store_t
+	 */
+	public void set_metadata_store(metadata_store_t metadata_store) {
+		metadata_store_ = metadata_store;
+	}
+
+	/**
+	 * Accessor for the durability of the updates
+	 * @return the durability_
+	 * @see durability_t
+	 */
+	public durability_t durability() {
+		return durability_;
+	}
+
+	/**
+	 * Setter for the durability of the updates
+	 * @param durability the durability_ to set
+	 * @see durability_t
+	 */
+	public void set_durability(durability_t durability) {
+		durability_ = durability;
+	}
+
+	/**
+	 * Accessor for the maximum time in milliseconds a queued update waits before it is written
+	 * @return the flush_interval_
+	 */
+	public int flush_interval() {
+		return flush_interval_;
+	}
+
+	/**
+	 * Setter for the maximum time in milliseconds a queued update waits before it is written
+	 * @param flush_interval the flush_interval_ to set
+	 */
+	public void set_flush_interval(int flush_interval) {
+		flush_interval_ = flush_interval;
+	}
+
+	/**
+	 * Accessor for the number of queued updates which triggers a write
+	 * @return the flush_batch_
+	 */
+	public int flush_batch() {
+		return flush_batch_;
+	}
+
+	/**
+	 * Setter for the number of queued updates which triggers a write
+	 * @param flush_batch the flush_batch_ to set
+	 */
+	public void set_flush_batch(int flush_batch) {
+		flush_batch_ = flush_batch;
+	}
+
+	/**
+	 * Accessor for the maximum number of payload files kept open
+	 * @return the payload_channels_
+	 */
+	public int payload_channels() {
+		return payload_channels_;
+	}
+
+	/**
+	 * Setter for the maximum number of payload files kept open
+	 * @param payload_channels the payload_channels_ to set
+	 */
+	public void set_payload_channels(int payload_channels) {
+		payload_channels_ = payload_channels;
+	}
+
+	/**
+	 * Accessor for the size up to which payloads are stored in the Bundle metadata
+	 * @return the inline_payload_threshold_
+	 */
+	public int inline_payload_threshold() {
+		return inline_payload_threshold_;
+	}
+
+	/**
+	 * Setter for the size up to which payloads are stored in the Bundle metadata
+	 * @param inline_payload_threshold the inline_payload_threshold_ to set
+	 */
+	public void set_inline_payload_threshold(int inline_payload_threshold) {
+		inline_payload_threshold_ = inline_payload_threshold;
+	}
+
+	/**
+	 * Accessor for whether identical payloads are stored only once
+	 * @return the payload_dedup_
+	 */
+	public boolean payload_dedup() {
+		return payload_dedup_;
+	}
+
+	/**
+	 * Setter for whether identical payloads are stored only once
+	 * @param payload_dedup the payload_dedup_ to set
+	 */
+	public void set_payload_dedup(boolean payload_dedup) {
+		payload_dedup_ = payload_dedup;
+	}
+
+	/**
+	 * Accessor for whether finished payload files are stored compressed
+	 * @return the payload_compression_
+	 */
+	public boolean payload_compression() {
+		return payload_compression_;
+	}
+
+	/**
+	 * Setter for whether finished payload files are stored compressed
+	 * @param payload_compression the payload_compression_ to set
+	 */
+	public void set_payload_compression(boolean payload_compression) {
+		payload_compression_ = payload_compression;
+	}
+
+	/**
+	 * Accessor for the eviction policy
+	 * @return the eviction_policy_
+	 */
+	public eviction_policy_t eviction_policy() {
+		return eviction_policy_;
+	}
+
+	/**
+	 * Setter for the eviction policy
+	 * @param eviction_policy the eviction_policy_ to set
+	 */
+	public void set_eviction_policy(eviction_policy_t eviction_policy) {
+		eviction_policy_ = eviction_policy;
+	}
+
+	/**
+	 * Accessor for the percentage of the quota above which bundles are evicted
+	 * @return the eviction_threshold_
+	 */
+	public int eviction_threshold() {
+		return eviction_threshold_;
+	}
+
+	/**
+	 * Setter for the percentage of the quota above which bundles are evicted
+	 * @param eviction_threshold the eviction_threshold_ to set
+	 */
+	public void set_eviction_threshold(int eviction_threshold) {
+		eviction_threshold_ = eviction_threshold;
+	}
+
+	/**
+	 * Accessor for whether bundles in local custody can be evicted
+	 * @return the evict_custody_
+	 */
+	public boolean evict_custody() {
+		return evict_custody_;
+	}
+
+	/**
+	 * Setter for whether bundles in local custody can be evicted
+	 * @param evict_custody the evict_custody_ to set
+	 */
+	public void set_evict_custody(boolean evict_custody) {
+		evict_custody_ = evict_custody;
+	}
+
+	/**
+	 * Accessor for the time in milliseconds between the garbage collection steps
+	 * @return the gc_interval_
+	 */
+	public int gc_interval() {
+		return gc_interval_;
+	}
+
+	/**
+	 * Setter for the time in milliseconds between the garbage collection steps
+	 * @param gc_interval the gc_interval_ to set
+	 */
+	public void set_gc_interval(int gc_interval) {
+		gc_interval_ = gc_interval;
+	}
+
+	/**
+	 * Accessor for the number of rows or files checked by one garbage collection step
+	 * @return the gc_batch_
+	 */
+	public int gc_batch() {
+		return gc_batch_;
+	}
+
+	/**
+	 * Setter for the number of rows or files checked by one garbage collection step
+	 * @param gc_batch the gc_batch_ to set
+	 */
+	public void set_gc_batch(int gc_batch) {
+		gc_batch_ = gc_batch;
+	}
 	
 }
@@ -86,13 +86,13 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.RouteReport
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.SetLinkDefaultsRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ShutdownRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StatusRequest;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.LinksSetting.LinkEntry;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.contacts.Link.Params;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.conv_layers.ConvergenceLayer;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.MsgBlockingQueue;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.List;
 import android.util.Log;
@@ -327,12 +327,9 @@ public class ContactManager extends BundleEventHandler {
 			// the lock will remain locked, and an event ahead of the
 			// LinkDeletedEvent may wait for the lock, causing deadlock [DTN2]
 			assert (!get_lock().isHeldByCurrentThread());
-			MsgBlockingQueue<Integer> notifier = new MsgBlockingQueue<Integer>(
-					5);
-
 			BundleDaemon BD = BundleDaemon.getInstance();
 			LinkDeletedEvent event = new LinkDeletedEvent(link, reason);
-			BD.post_and_wait(event, notifier, -1, true);
+			BD.submit_and_wait(event);
 
 			link.delete_link();
 		} else {
@@ -922,6 +919,13 @@ public class ContactManager extends BundleEventHandler {
 	}
 
 	
+	@Override
+	protected void handle_store_completed(StoreCompletedEvent event) {
+		// TODO Auto-generated method stub
+
+	}
+
+	
 	@Override
 	protected void handle_bundle_inject(BundleInjectRequest event) {
 		// TODO Auto-generated method stub
@@ -803,7 +803,7 @@ public abstract class Connection extends CLConnection {
 			Log.d(TAG, text);
 
 			
-			BundleDaemon.getInstance().post(new BundleReceivedEvent(incoming.bundle(), event_source_t.EVENTSRC_PEER, incoming.total_length(), contact_
+			BundleDaemon.getInstance().post_with_backpressure(new BundleReceivedEvent(incoming.bundle(), event_source_t.EVENTSRC_PEER, incoming.total_length(), contact_
 							.link().remote_eid(), contact_.link()));
 			
 			
@@ -1771,7 +1771,7 @@ public abstract class Connection extends CLConnection {
 		{
 		BundleDaemon Daemon = BundleDaemon.getInstance();
 		
-		Daemon.post(new BundleReceivedEvent(incoming.bundle(),
+		Daemon.post_with_backpressure(new BundleReceivedEvent(incoming.bundle(),
 				event_source_t.EVENTSRC_PEER, incoming.total_length(), contact_
 						.link().remote_eid(), contact_.link()));
 		}
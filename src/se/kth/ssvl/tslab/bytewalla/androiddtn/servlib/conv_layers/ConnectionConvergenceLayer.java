@@ -333,7 +333,7 @@ public abstract class ConnectionConvergenceLayer extends ConvergenceLayer {
 					Log.d(TAG, text);
 
 					BundleDaemon Daemon = BundleDaemon.getInstance();
-					Daemon.post(new BundleReceivedEvent(incoming.bundle(),
+					Daemon.post_with_backpressure(new BundleReceivedEvent(incoming.bundle(),
 							event_source_t.EVENTSRC_PEER, rcvd_len, contact
 									.link().remote_eid(), contact.link()));
 				}
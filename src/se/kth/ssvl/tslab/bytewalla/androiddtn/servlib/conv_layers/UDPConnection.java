@@ -442,7 +442,7 @@ public class UDPConnection extends CLConnection {
 		if (!params_.segment_ack_enabled()) {
 			BundleDaemon Daemon = BundleDaemon.getInstance();
 
-			Daemon.post(new BundleReceivedEvent(incoming.bundle(),
+			Daemon.post_with_backpressure(new BundleReceivedEvent(incoming.bundle(),
 					event_source_t.EVENTSRC_PEER, incoming.total_length(),
 					contact_.link().remote_eid(), contact_.link()));
 		}
@@ -1380,7 +1380,7 @@ public class UDPConnection extends CLConnection {
 					incoming.total_length(), incoming.bundle().bundleid());
 			Log.d(TAG, text);
 
-			BundleDaemon.getInstance().post(
+			BundleDaemon.getInstance().post_with_backpressure(
 					new BundleReceivedEvent(incoming.bundle(),
 							event_source_t.EVENTSRC_PEER, incoming
 									.total_length(), contact_.link()
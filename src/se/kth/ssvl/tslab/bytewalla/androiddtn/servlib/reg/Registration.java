@@ -29,14 +29,14 @@ import java.util.Iterator;
 import java.util.Map;
 
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleDaemon;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleInfoCache;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.DaemonTimer;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload.location_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.BundleEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.RegistrationExpiredEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointIDPattern;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.List;
 import android.util.Log;
 
@@ -348,7 +348,7 @@ public abstract class Registration implements Serializable{
      * Protected class to handle automatic expiration of the registerations. 
      */
 
-    protected static class ExpirationTimer extends VirtualTimerTask implements Serializable{
+    protected static class ExpirationTimer extends DaemonTimer implements Serializable{
 
 		private static final long serialVersionUID = -5622142083769634464L;
 
@@ -364,13 +364,14 @@ public abstract class Registration implements Serializable{
 	     */
 
 		@Override
-		protected void timeout(Date now) {
+		protected BundleEvent expired_event(Date now) {
 			
 			reg_.set_expired(true);
 	        
 	        if (! reg_.active()) {
-	            BundleDaemon.getInstance().post(new RegistrationExpiredEvent(reg_));
+	            return new RegistrationExpiredEvent(reg_);
 	        }			
+	        return null;
 		}
 
 		
@@ -27,6 +27,7 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.R;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointIDPattern;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.RegistrationStore;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.WriteBehindQueue;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.VirtualTimerTask;
 import android.content.Context;
@@ -248,7 +249,7 @@ public class RegistrationTable{
     	        return false;
     	    }
     	    
-    	    if (! RegistrationStore.getInstance().update(api_reg)) {
+    	    if (! WriteBehindQueue.getInstance().update(api_reg)) {
     	        Log.e(TAG, String.format("error updating registration %s/%s: error in persistent store",
     	                reg.regid(), reg.endpoint().str()));
     	        return false;
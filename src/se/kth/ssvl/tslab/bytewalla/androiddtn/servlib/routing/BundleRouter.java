@@ -314,7 +314,7 @@ public abstract class BundleRouter extends BundleEventHandler {
 			BundleProtocol.status_report_reason_t[] error_status) {
 		BundleStore bs = BundleStore.getInstance();
 		if (bs.quota() != 0
-				&& (GlobalStorage.getInstance().get_total_size()
+				&& (GlobalStorage.getInstance().get_effective_size()
 						+ bundle.payload().length() > bs.quota())) {
 			Log
 					.i(
@@ -354,6 +354,16 @@ public abstract class BundleRouter extends BundleEventHandler {
 		return true;
 	}
 
+	/**
+	 * Whether the router can handle the events about different bundles from
+	 * several event shard threads at once. The other events are always
+	 * handled one at a time. The default is false, the BundleDaemon then
+	 * handles all the events in its own thread.
+	 */
+	public boolean concurrent_bundle_events() {
+		return false;
+	}
+
 	/**
 	 * "Synchronous call indicating that the bundle is being deleted from the
 	 * system and that the router should remove it from any lists where it may
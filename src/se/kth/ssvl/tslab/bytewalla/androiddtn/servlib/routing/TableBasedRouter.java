@@ -89,6 +89,7 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.RouteReport
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.SetLinkDefaultsRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.ShutdownRequest;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StatusRequest;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.exception.BundleListLockNotHoldByCurrentThread;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.RoutesSetting;
@@ -296,26 +297,34 @@ public abstract class TableBasedRouter extends BundleRouter {
 			Log.d(TAG, String.format("checking route entry %s link %s (%s)",
 					route.toString(), route.link().name(), route.link()));
 
-			if (!should_fwd(bundle, route)) {
-				continue;
-			}
+			// bundles are routed by several event shards at once, the link
+			// lock keeps the deferred list and the queue of the link
+			// consistent between the checks and the queuing below
+			route.link().get_lock().lock();
+			try {
+				if (!should_fwd(bundle, route)) {
+					continue;
+				}
 
-			if (deferred_list(route.link()).list().contains(bundle)) {
-				Log.d(TAG, String.format("route_bundle bundle %d: "
-						+ "ignoring link %s since already deferred", bundle
-						.bundleid(), route.link().name()));
-				continue;
-			}
+				if (deferred_list(route.link()).list().contains(bundle)) {
+					Log.d(TAG, String.format("route_bundle bundle %d: "
+							+ "ignoring link %s since already deferred", bundle
+							.bundleid(), route.link().name()));
+					continue;
+				}
 
-			// "because there may be bundles that already have deferred
-			// transmission on the link, we first call check_next_hop to
-			// get them into the queue before trying to route the new
-			// arrival, otherwise it might leapfrog the other deferred
-			// bundles" [DTN2]
-			check_next_hop(route.link());
+				// "because there may be bundles that already have deferred
+				// transmission on the link, we first call check_next_hop to
+				// get them into the queue before trying to route the new
+				// arrival, otherwise it might leapfrog the other deferred
+				// bundles" [DTN2]
+				check_next_hop(route.link());
 
-			if (!fwd_to_nexthop(bundle, route)) {
-				continue;
+				if (!fwd_to_nexthop(bundle, route)) {
+					continue;
+				}
+			} finally {
+				route.link().get_lock().unlock();
 			}
 
 			++count;
@@ -344,8 +353,22 @@ public abstract class TableBasedRouter extends BundleRouter {
 	 * completed and it's no longer busy).
 	 * 
 	 * Loops through the bundle list and calls fwd_to_matching on all bundles." [DTN2]
+	 * 
+	 * The link lock is taken before the deferred list lock.
 	 */
 	protected void check_next_hop(Link next_hop) {
+		next_hop.get_lock().lock();
+		try {
+			check_next_hop_locked(next_hop);
+		} finally {
+			next_hop.get_lock().unlock();
+		}
+	}
+
+	/**
+	 * check_next_hop with the link lock held
+	 */
+	private void check_next_hop_locked(Link next_hop) {
 
 		// "if the link isn't open, there's nothing to do now" [DTN2]
 		if (!next_hop.isopen()) {
@@ -540,6 +563,15 @@ public abstract class TableBasedRouter extends BundleRouter {
 		return true;
 	}
 
+	/**
+	 * The bundle events only share the routes, the links and the reception
+	 * cache, which are locked, so they can be handled by several shards.
+	 */
+	@Override
+	public boolean concurrent_bundle_events() {
+		return true;
+	}
+
 	/**
 	 * "Hook to tell the router that the bundle should be deleted." [DTN2]
 	 */
@@ -558,14 +590,21 @@ public abstract class TableBasedRouter extends BundleRouter {
 
 		ContactManager cm = BundleDaemon.getInstance().contactmgr();
 
+		// the links are locked one by one after releasing the contact
+		// manager lock, routing takes the link lock first
+		java.util.List<Link> links = new java.util.ArrayList<Link>();
 		cm.get_lock().lock();
 		try {
-			final LinkSet links = cm.links();
-			Iterator<Link> iter = links.iterator();
-
-			while (iter.hasNext()) {
-				Link link = iter.next();
+			links.addAll(cm.links());
+		} finally {
+			cm.get_lock().unlock();
+		}
 
+		Iterator<Link> iter = links.iterator();
+		while (iter.hasNext()) {
+			Link link = iter.next();
+			link.get_lock().lock();
+			try {
 				// "a bundle might be deleted immediately after being loaded
 				// from storage, meaning that remove_from_deferred is called
 				// before the deferred list is created (since the link isn't
@@ -589,9 +628,9 @@ public abstract class TableBasedRouter extends BundleRouter {
 						deferred.del(bundle);
 					}
 				}
+			} finally {
+				link.get_lock().unlock();
 			}
-		} finally {
-			cm.get_lock().unlock();
 		}
 
 	}
@@ -873,6 +912,13 @@ public abstract class TableBasedRouter extends BundleRouter {
 	}
 
 	
+	@Override
+	protected void handle_store_completed(StoreCompletedEvent event) {
+		//NOT IMPLEMENTED IN THIS ROUTER
+
+	}
+
+	
 	@Override
 	protected void handle_bundle_inject(BundleInjectRequest event) {
 		//NOT IMPLEMENTED IN THIS ROUTER
@@ -200,6 +200,16 @@ public class ProphetBundleRouter extends TableBasedRouter {
 		return new String(b);
 	}
 
+	/**
+	 * The neighbor table is changed by the delivered Prophet bundles, which
+	 * may be handled by several event shards, so the events are handled one
+	 * at a time.
+	 */
+	@Override
+	public boolean concurrent_bundle_events() {
+		return false;
+	}
+
 	public void deliver_bundle(Bundle bundle) {
 		IByteBuffer buf = new SerializableByteBuffer(1000);
 
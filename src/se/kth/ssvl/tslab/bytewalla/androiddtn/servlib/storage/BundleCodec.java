@@ -0,0 +1,362 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BlockInfo;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BlockInfoVec;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BlockProcessor;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleProtocol;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleTimestamp;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.CustodyTimerSpec;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Dictionary;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.ForwardingInfo;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.UnknownBlockProcessor;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle.priority_values_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload.location_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleProtocol.bundle_block_type_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.ForwardingInfo.action_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.ForwardingInfo.state_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.IByteBuffer;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util.SerializableByteBuffer;
+
+/**
+ * Binary codec for the bundle metadata stored by BundleStore.
+ * The primary header fields, the payload metadata, the received blocks and the
+ * forwarding log are stored. Timers, the transmit blocks and the list mappings
+ * are runtime state and are rebuilt when the bundle is loaded.
+ */
+
+public class BundleCodec extends StorageCodec<Bundle> {
+
+	/**
+	 * Current version of the bundle record, version 2 added the inline DISK payloads
+	 * version 3 the hash of the shared payload content and version 4 the size of the
+	 * compressed payload file
+	 */
+	private static final int VERSION = 4;
+
+	/**
+	 * Bit positions of the boolean fields in the flags number
+	 */
+	private static final int FLAG_IS_FRAGMENT = 1 << 0;
+	private static final int FLAG_IS_ADMIN = 1 << 1;
+	private static final int FLAG_DO_NOT_FRAGMENT = 1 << 2;
+	private static final int FLAG_CUSTODY_REQUESTED = 1 << 3;
+	private static final int FLAG_SINGLETON_DEST = 1 << 4;
+	private static final int FLAG_RECEIVE_RCPT = 1 << 5;
+	private static final int FLAG_CUSTODY_RCPT = 1 << 6;
+	private static final int FLAG_FORWARD_RCPT = 1 << 7;
+	private static final int FLAG_DELIVERY_RCPT = 1 << 8;
+	private static final int FLAG_DELETION_RCPT = 1 << 9;
+	private static final int FLAG_APP_ACKED_RCPT = 1 << 10;
+	private static final int FLAG_LOCAL_CUSTODY = 1 << 11;
+	private static final int FLAG_FRAGMENTED_INCOMING = 1 << 12;
+	private static final int FLAG_COMPLETE = 1 << 13;
+
+	@Override
+	public int version() {
+		return VERSION;
+	}
+
+	@Override
+	protected void encode_fields(Bundle bundle, Encoder encoder) throws IOException {
+		encoder.write_sdnv(bundle.bundleid());
+
+		BundlePayload payload = bundle.payload();
+		encoder.write_byte(payload.location().getCode());
+		encoder.write_sdnv(payload.length());
+		if (payload.location() == location_t.MEMORY) {
+			byte[] data = new byte[payload.length()];
+			payload.read_data(0, payload.length(), data);
+			encoder.write_bytes(data, 0, data.length);
+		} else if (payload.location() == location_t.DISK) {
+			byte[] data = payload.inline_data();
+			if (data != null) {
+				encoder.write_byte(1);
+				encoder.write_bytes(data, 0, data.length);
+			} else {
+				encoder.write_byte(0);
+				String hash = payload.content_hash();
+				encoder.write_string(hash == null ? "" : hash);
+				encoder.write_sdnv(payload.is_compressed() ? payload.stored_length() : 0);
+			}
+		}
+
+		int flags = 0;
+		if (bundle.is_fragment()) flags |= FLAG_IS_FRAGMENT;
+		if (bundle.is_admin()) flags |= FLAG_IS_ADMIN;
+		if (bundle.do_not_fragment()) flags |= FLAG_DO_NOT_FRAGMENT;
+		if (bundle.custody_requested()) flags |= FLAG_CUSTODY_REQUESTED;
+		if (bundle.singleton_dest()) flags |= FLAG_SINGLETON_DEST;
+		if (bundle.receive_rcpt()) flags |= FLAG_RECEIVE_RCPT;
+		if (bundle.custody_rcpt()) flags |= FLAG_CUSTODY_RCPT;
+		if (bundle.forward_rcpt()) flags |= FLAG_FORWARD_RCPT;
+		if (bundle.delivery_rcpt()) flags |= FLAG_DELIVERY_RCPT;
+		if (bundle.deletion_rcpt()) flags |= FLAG_DELETION_RCPT;
+		if (bundle.app_acked_rcpt()) flags |= FLAG_APP_ACKED_RCPT;
+		if (bundle.local_custody()) flags |= FLAG_LOCAL_CUSTODY;
+		if (bundle.fragmented_incoming()) flags |= FLAG_FRAGMENTED_INCOMING;
+		if (bundle.complete()) flags |= FLAG_COMPLETE;
+		encoder.write_sdnv(flags);
+		encoder.write_sdnv(bundle.priority().getCode());
+
+		encoder.write_eid(bundle.source().str());
+		encoder.write_eid(bundle.dest().str());
+		encoder.write_eid(bundle.custodian().str());
+		encoder.write_eid(bundle.replyto().str());
+		encoder.write_eid(bundle.prevhop().str());
+
+		encoder.write_sdnv(bundle.creation_ts().seconds());
+		encoder.write_sdnv(bundle.creation_ts().seqno());
+		encoder.write_sdnv(bundle.expiration());
+		encoder.write_sdnv(bundle.frag_offset());
+		encoder.write_sdnv(bundle.orig_length());
+		encoder.write_string(bundle.owner());
+
+		encode_blocks(bundle.recv_blocks(), encoder);
+		encode_fwdlog(bundle, encoder);
+	}
+
+	@Override
+	protected Bundle decode_fields(int version, Decoder decoder) throws IOException {
+		int bundleid = decoder.read_int();
+
+		location_t location = location_t.get(decoder.read_byte());
+		if (location == null)
+			throw new IOException("Unknown payload location");
+		Bundle bundle = new Bundle(bundleid, location);
+		int length = decoder.read_int();
+		if (location == location_t.MEMORY) {
+			bundle.payload().set_data(decoder.read_bytes());
+		} else if (location == location_t.DISK) {
+			if (version >= 2 && decoder.read_byte() != 0) {
+				bundle.payload().set_inline_data(decoder.read_bytes());
+			} else {
+				bundle.payload().set_file_length(length);
+				String hash = version >= 3 ? decoder.read_string() : "";
+				long compressed_length = version >= 4 ? decoder.read_sdnv() : 0;
+				if (compressed_length > 0)
+					bundle.payload().set_compressed(compressed_length);
+				if (hash.length() > 0)
+					bundle.payload().set_content_hash(hash);
+			}
+		} else {
+			bundle.payload().set_length(length);
+		}
+
+		int flags = decoder.read_int();
+		bundle.set_is_fragment((flags & FLAG_IS_FRAGMENT) != 0);
+		bundle.set_is_admin((flags & FLAG_IS_ADMIN) != 0);
+		bundle.set_do_not_fragment((flags & FLAG_DO_NOT_FRAGMENT) != 0);
+		bundle.set_custody_requested((flags & FLAG_CUSTODY_REQUESTED) != 0);
+		bundle.set_singleton_dest((flags & FLAG_SINGLETON_DEST) != 0);
+		bundle.set_receive_rcpt((flags & FLAG_RECEIVE_RCPT) != 0);
+		bundle.set_custody_rcpt((flags & FLAG_CUSTODY_RCPT) != 0);
+		bundle.set_forward_rcpt((flags & FLAG_FORWARD_RCPT) != 0);
+		bundle.set_delivery_rcpt((flags & FLAG_DELIVERY_RCPT) != 0);
+		bundle.set_deletion_rcpt((flags & FLAG_DELETION_RCPT) != 0);
+		bundle.set_app_acked_rcpt((flags & FLAG_APP_ACKED_RCPT) != 0);
+		bundle.set_local_custody((flags & FLAG_LOCAL_CUSTODY) != 0);
+		bundle.set_fragmented_incoming((flags & FLAG_FRAGMENTED_INCOMING) != 0);
+		bundle.set_complete((flags & FLAG_COMPLETE) != 0);
+
+		priority_values_t priority = priority_values_t.get(decoder.read_int());
+		if (priority != null)
+			bundle.set_priority(priority);
+
+		bundle.set_source(read_eid(decoder));
+		bundle.set_dest(read_eid(decoder));
+		bundle.set_custodian(read_eid(decoder));
+		bundle.set_replyto(read_eid(decoder));
+		bundle.set_prevhop(read_eid(decoder));
+
+		long seconds = decoder.read_sdnv();
+		long seqno = decoder.read_sdnv();
+		bundle.set_creation_ts(new BundleTimestamp(seconds, seqno));
+		bundle.set_expiration(decoder.read_int());
+		bundle.set_frag_offset(decoder.read_int());
+		bundle.set_orig_length(decoder.read_int());
+		String owner = decoder.read_string();
+		bundle.set_owner(owner == null ? "" : owner);
+
+		decode_blocks(bundle.recv_blocks(), decoder);
+		decode_fwdlog(bundle, decoder);
+		return bundle;
+	}
+
+	/**
+	 * Encode the received blocks with their raw contents and the dictionary
+	 */
+	private void encode_blocks(BlockInfoVec blocks, Encoder encoder) throws IOException {
+		encoder.write_sdnv(blocks.size());
+		Iterator<BlockInfo> iter = blocks.iterator();
+		while (iter.hasNext()) {
+			BlockInfo block = iter.next();
+			encoder.write_byte(block.type().getCode());
+
+			IByteBuffer contents = block.contents();
+			int used = Math.min(contents.capacity(),
+					Math.max(contents.position(), block.full_length()));
+			byte[] data = new byte[used];
+			for (int i = 0; i < used; i++) {
+				data[i] = contents.get(i);
+			}
+			encoder.write_sdnv(contents.capacity());
+			encoder.write_sdnv(contents.position());
+			encoder.write_bytes(data, 0, used);
+
+			encoder.write_sdnv(block.data_offset());
+			encoder.write_sdnv(block.data_length());
+			encoder.write_byte(block.complete() ? 1 : 0);
+
+			encoder.write_sdnv(block.eid_list().size());
+			Iterator<EndpointID> eids = block.eid_list().iterator();
+			while (eids.hasNext()) {
+				encoder.write_eid(eids.next().str());
+			}
+		}
+
+		Dictionary dict = blocks.dict();
+		if (dict.dict() == null) {
+			encoder.write_bytes(new byte[0], 0, 0);
+		} else {
+			encoder.write_bytes(dict.dict(), 0, dict.length());
+		}
+	}
+
+	/**
+	 * Decode the received blocks, the owner is looked up by the block type
+	 */
+	private void decode_blocks(BlockInfoVec blocks, Decoder decoder) throws IOException {
+		int count = decoder.read_int();
+		for (int i = 0; i < count; i++) {
+			bundle_block_type_t type = bundle_block_type_t.get((byte) decoder.read_byte());
+			BlockProcessor owner = null;
+			if (type != null)
+				owner = BundleProtocol.find_processor(type);
+			if (owner == null)
+				owner = UnknownBlockProcessor.getInstance();
+
+			BlockInfo block = blocks.append_block(owner, null);
+
+			int capacity = decoder.read_int();
+			int position = decoder.read_int();
+			byte[] data = decoder.read_bytes();
+			IByteBuffer contents = new SerializableByteBuffer(Math.max(capacity, data.length));
+			contents.put(data);
+			contents.position(position);
+			block.set_contents(contents);
+
+			block.set_data_offset(decoder.read_int());
+			block.set_data_length(decoder.read_int());
+			block.set_complete(decoder.read_byte() != 0);
+			block.set_reloaded(true);
+
+			int eid_count = decoder.read_int();
+			for (int j = 0; j < eid_count; j++) {
+				block.add_eid(read_eid(decoder));
+			}
+		}
+
+		byte[] dict = decoder.read_bytes();
+		if (dict.length > 0) {
+			IByteBuffer buf = new SerializableByteBuffer(dict.length);
+			buf.put(dict);
+			buf.rewind();
+			blocks.dict().set_dict(buf, dict.length);
+		}
+	}
+
+	/**
+	 * Encode the forwarding log entries
+	 */
+	private void encode_fwdlog(Bundle bundle, Encoder encoder) throws IOException {
+		ArrayList<ForwardingInfo> entries = bundle.fwdlog().get_entries_copy();
+		encoder.write_sdnv(entries.size());
+		Iterator<ForwardingInfo> iter = entries.iterator();
+		while (iter.hasNext()) {
+			ForwardingInfo info = iter.next();
+			encoder.write_sdnv(info.state().getCode());
+			encoder.write_sdnv(info.action().getCode());
+			encoder.write_string(info.link_name());
+			encoder.write_signed(info.regid());
+			encoder.write_eid(info.remote_eid() == null ? null : info.remote_eid().str());
+			encoder.write_signed(info.timestamp() == null ? -1 : info.timestamp().getTime());
+
+			CustodyTimerSpec spec = info.custody_spec();
+			if (spec == null) {
+				encoder.write_byte(0);
+			} else {
+				encoder.write_byte(1);
+				encoder.write_sdnv(spec.min());
+				encoder.write_sdnv(spec.lifetime_pct());
+				encoder.write_sdnv(spec.max());
+			}
+		}
+	}
+
+	/**
+	 * Decode the forwarding log entries
+	 */
+	private void decode_fwdlog(Bundle bundle, Decoder decoder) throws IOException {
+		int count = decoder.read_int();
+		for (int i = 0; i < count; i++) {
+			state_t state = state_t.get(decoder.read_int());
+			action_t action = action_t.get(decoder.read_int());
+			String link_name = decoder.read_string();
+			int regid = (int) decoder.read_signed();
+			String remote_eid = decoder.read_eid();
+			long timestamp = decoder.read_signed();
+
+			CustodyTimerSpec spec = null;
+			if (decoder.read_byte() != 0) {
+				int min = decoder.read_int();
+				int lifetime_pct = decoder.read_int();
+				int max = decoder.read_int();
+				spec = new CustodyTimerSpec(min, lifetime_pct, max);
+			}
+
+			ForwardingInfo info = new ForwardingInfo(state, action, link_name, regid,
+					remote_eid == null ? null : new EndpointID(remote_eid), spec);
+			if (timestamp >= 0)
+				info.set_timestamp(new Date(timestamp));
+			bundle.fwdlog().add_entry(info);
+		}
+	}
+
+	/**
+	 * Read an EID, a missing EID is restored as an empty EndpointID like in a new bundle
+	 */
+	private EndpointID read_eid(Decoder decoder) throws IOException {
+		String eid = decoder.read_eid();
+		if (eid == null)
+			return new EndpointID();
+		return new EndpointID(eid);
+	}
+}
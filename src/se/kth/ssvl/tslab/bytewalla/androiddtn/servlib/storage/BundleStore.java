@@ -21,26 +21,43 @@
 
 package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload.location_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.CompressedPayload;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.PayloadChannelCache;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent.store_op_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.storage_type_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.bundle_store_layout_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.storage.StorageIterator;
-import android.content.ContentValues;
-import android.content.Context;
-import android.os.Environment;
 import android.util.Log;
 
 /**
  * This class is implemented as Singleton to store bundles.
  * This class generates bundle id, stores bundle metadata on the disk 
  * and creates separate file for storing payload on the disk. This class also
- * uses Generic StorageImplementation and SQLiteImplementation to store bundles.
+ * uses Generic StorageImplementation and the MetadataStore handed over in
+ * init() to store bundles.
+ * The bundle metadata is kept by the ObjectStore chosen with the bundle_store
+ * setting, one file per bundle, the segments of LogStructuredImplementation
+ * or only in memory.
  * 
  * @author Sharjeel Ahmed (sharjeel@kth.se)
  */
@@ -57,12 +74,71 @@ public class BundleStore  {
 	 */
 	private static String TAG = "BundleStore";
 	
+	/**
+	 * Number of bundles handed over together by restore
+	 */
+	private static final int RESTORE_BATCH_SIZE = 64;
+	
+	/**
+	 * Maximum number of threads loading the bundles in restore
+	 */
+	private static final int RESTORE_MAX_THREADS = 4;
+	
+	/**
+	 * Number of bundle ids leased at a time by writing the high-water mark
+	 */
+	private static final int ID_LEASE_BLOCK = 1000;
+	
+	/**
+	 * Number of times writing the high-water mark is tried before next_id() fails
+	 */
+	private static final int ID_LEASE_ATTEMPTS = 3;
+	
+	/**
+	 * Version of the layout of the files in the storage folder. Version 1 kept
+	 * all the files in the folder itself, version 2 spreads the bundle and
+	 * payload files over the FileObjectStore shard subfolders.
+	 */
+	private static final int STORAGE_LAYOUT_VERSION = 2;
+	
+	/**
+	 * Name of the file keeping the layout version in the storage folder
+	 */
+	private static final String LAYOUT_FILE_NAME = "layout_version";
+	
 	/**
 	 * SQL Query for creating new Bundle in the SQLite database. 
 	 */
     private static final String Table_CREATE_BUNDLES = 
         "create table IF NOT EXISTS  bundles (id integer primary key autoincrement, " 
-            + "type integer not null);";
+            + "type integer not null, source text, dest text, creation_time integer, "
+            + "creation_seqno integer, expiration_time integer, payload_length integer, "
+            + "priority integer);";
+    
+	/**
+	 * SQL Query for creating the table keeping the high-water mark of the leased bundle ids. 
+	 */
+    private static final String Table_CREATE_BUNDLE_IDS = 
+        "create table IF NOT EXISTS bundle_ids (id integer primary key, high_water integer not null);";
+    
+	/**
+	 * Metadata columns added to the bundles table after the first version, for migrating old databases. 
+	 */
+    private static final String[] Table_METADATA_COLUMNS = {
+    	"source text", "dest text", "creation_time integer", "creation_seqno integer",
+    	"expiration_time integer", "payload_length integer", "priority integer"
+    };
+    
+	/**
+	 * SQL Queries for creating the indexes on the metadata columns of the bundles table. 
+	 */
+    private static final String[] Table_INDEX_BUNDLES = {
+    	"create index IF NOT EXISTS bundles_dest on bundles (dest);",
+    	"create index IF NOT EXISTS bundles_creation on bundles (source, creation_time, creation_seqno);",
+    	"create index IF NOT EXISTS bundles_expiration on bundles (expiration_time);",
+    	"create index IF NOT EXISTS bundles_payload_length on bundles (payload_length);",
+    	"create index IF NOT EXISTS bundles_priority on bundles (priority);"
+    };
     
 
     /**
@@ -85,36 +161,63 @@ public class BundleStore  {
     
     /**
      * This function initiate the Bundle Storage for storing bundles.
-     * This function creates StorageImplementation & SQLiteImplementation instances,
-     * set storage directory path & counts valid number of bundles.
-     * @param context The application context for getting for application paths  
+     * This function creates the StorageImplementation instance, creates the tables
+     * of the MetadataStore, set storage directory path & counts valid number of bundles.
+     * @param metadata MetadataStore keeping the bundles table, it is closed by close()  
+     * @param app_path Path of the application folder, the bundles are kept in its storage subfolder  
      * @param config Get the application configuration to get the memory usage parameters 
      * @return returns true on success
      */        
     
-    public boolean init(Context context, DTNConfiguration config){
+    public boolean init(MetadataStore metadata, String app_path, DTNConfiguration config){
     	
     	config_ = config;
     	
     	Log.d(TAG, "Going to init" );
     
     	if(!init_) {
-    		impt_sqlite_ = new SQLiteImplementation(context,Table_CREATE_BUNDLES);
-    		impt_storage_ = new StorageImplementation<Bundle>(context);
+    		impt_storage_ = new StorageImplementation<Bundle>(new BundleCodec());
     		init_ = true;
     		saved_bundles_ = new HashMap<Integer, Long>();
     	}	
-		String app_folder = "/"+config_.storage_setting().storage_path();
-
-		Log.d(TAG, "Current Path: "+path_);
-		if(config.storage_setting().storage_type()==storage_type_t.PHONE){
-    		path_ = context.getFilesDir().getAbsolutePath().concat(app_folder).concat("/storage");
-    	}else{
-    		path_ = Environment.getExternalStorageDirectory().getAbsolutePath().concat(app_folder).concat("/storage");
+    	if(impt_sqlite_!=null && impt_sqlite_!=metadata){
+    		impt_sqlite_.close();
+    	}
+    	impt_sqlite_ = metadata;
+    	if(!impt_sqlite_.create_table(Table_CREATE_BUNDLES)){
+    		return false;
     	}
+    	// updates and deletes account the sizes even before a restore
+    	global_storage_ = GlobalStorage.getInstance();
+
+		path_ = app_path.concat("/storage");
 		Log.d(TAG, "Current Path: "+path_);
 		impt_storage_.create_dir(path_);
 		
+		if(!migrate_storage_layout()){
+			return false;
+		}
+		
+		if(!PayloadDedupStore.getInstance().init(path_)){
+			return false;
+		}
+		
+		if(object_store_!=null){
+			object_store_.close();
+		}
+		object_store_ = create_object_store(config_.storage_setting().bundle_store_layout());
+		if(!object_store_.open(path_)){
+			return false;
+		}
+		
+		if(!migrate_metadata_columns()){
+			return false;
+		}
+		
+		if(!init_id_allocator()){
+			return false;
+		}
+		
     	String condition = " type = "+location_t.DISK.getCode();
     	String[] field = new String[1];
     	field[0] = "count(id)";
@@ -126,6 +229,18 @@ public class BundleStore  {
     }
     
 
+    /**
+     * Get the size up to which payloads are stored with the bundle metadata
+     * instead of their own payload file.
+     * @return Size in bytes, 0 if payloads always get a file
+     */        
+    public int inline_payload_threshold(){
+    	if(config_==null){
+    		return 0;
+    	}
+    	return config_.storage_setting().inline_payload_threshold();
+    }
+
     /**
      * Get the payload file of bundle and return the file handler. 
      * @param bundleid Get the Bundle with this bundleid
@@ -135,7 +250,18 @@ public class BundleStore  {
     public File get_payload_file(int bundleid)
     {
 	    	String payload_filname = payloadFileName+bundleid;
-	    	return impt_storage_.get_file(payload_filname);
+	    	return new File(new File(path_, FileObjectStore.shard_name(bundleid)), payload_filname);
+    }
+    
+    /**
+     * Delete the payload file of bundle. 
+     * @param bundleid Bundle id of the payload
+     * @return returns true if the file does not exist anymore
+     */        
+    private boolean delete_payload_file(int bundleid)
+    {
+	    	File file = get_payload_file(bundleid);
+	    	return !file.exists() || file.delete();
     }
     
 
@@ -144,23 +270,23 @@ public class BundleStore  {
      * @param bundle Bundle that function will store on the Disk
      * @return return true if bundle successfully saved otherwise return false
      */        
-    public boolean add(Bundle bundle){
+    public synchronized boolean add(Bundle bundle){
 	    	try{
 	    		
 	    		if(bundle.payload().location()==BundlePayload.location_t.DISK){
 		    		Log.d(TAG, "Going to add bundle in database with eids"+bundle.source().uri() );
 		    		int bundleid = bundle.bundleid();
+		    		if(bundleid<0){
+		    			Log.e(TAG, "Not adding bundle without a valid id");
+		    			return false;
+		    		}
 		    		
-		    		ContentValues values = new ContentValues();
-		    		values.put("type", bundle.payload().location().getCode());
-		    		
-		    		String condition = "id = "+bundleid;
+		    		Map<String, Object> values = metadata_values(bundle);
+		    		values.put("id", bundleid);
 		    	
-			    	if(impt_sqlite_.update(table, values, condition, null)){
+			    	if(impt_sqlite_.replace(table, values)==bundleid){
 			    		
-			    		String bundle_filname = bundleFileName+bundleid;
-		
-			    		if(impt_storage_.add_object(bundle, bundle_filname)){
+			    		if(store_object(bundle)){
 			    			bundle_count_ += 1;
 			            }
 			    		else{
@@ -168,9 +294,10 @@ public class BundleStore  {
 			    		}
 			    		if(bundle.payload().location()==BundlePayload.location_t.DISK){
 
-			    			String payload_filname = payloadFileName+bundleid;
-			    			
-			    			impt_storage_.create_file(payload_filname);
+			    			// inline payloads are stored in the metadata record
+			    			if(!bundle.payload().is_inline()){
+			    				get_payload_file(bundleid).createNewFile();
+			    			}
 			    			return true;
 			    		}
 			    		
@@ -192,9 +319,11 @@ public class BundleStore  {
     public Bundle get(int bundleid){
     	
     	try{	
-	    	String filename = bundleFileName+bundleid;
 	    	Log.d(TAG, "Going to get bundle in database : "+bundleid );
-	    	Bundle bundle = impt_storage_.get_object(filename);
+	    	Bundle bundle = WriteBehindQueue.getInstance().pending_bundle(bundleid);
+	    	if(bundle==null){
+	    		bundle = load_object(bundleid);
+	    	}
 			return bundle;
     	}catch(Exception e){
     		Log.e(TAG, e.toString());
@@ -207,7 +336,7 @@ public class BundleStore  {
      * @param bundle Get the Bundle to update
      * @return return true if bundle successfully updated otherwise return false
      */        
-    public boolean update(Bundle bundle){
+    public synchronized boolean update(Bundle bundle){
     	int id = bundle.bundleid();
     	String condition_is_record = " id = "+id;
     	String limit = "1";   		
@@ -219,26 +348,23 @@ public class BundleStore  {
 
     		int bundleid = bundle.bundleid();
 			Log.d(TAG, "Going to update bundle in database : "+bundleid );		
-			ContentValues values = new ContentValues();
-			values.put("type", bundle.payload().location().getCode());
+			Map<String, Object> values = metadata_values(bundle);
 			
 			String condition = "id = "+bundleid;
 			
 			if(impt_sqlite_.update(table, values, condition, null)){
 				if(!saved_bundles_.containsKey(bundle.bundleid())){
-					long bundle_size = impt_storage_.get_file_size_with_name(bundleFileName+bundle.durable_key());
+					long bundle_size = stored_object_size(bundle.durable_key());
 					bundle_size += bundle.durable_size();
 					saved_bundles_.put(bundle.bundleid(), bundle_size);
 					global_storage_.add_total_size(bundle_size);
+					global_storage_.track(bundle, bundle_size);
 					Log.d(TAG, "Added size : "+ bundle.durable_size()+ " to "+ global_storage_.get_total_size());
 				}
-				String bundle_filname = bundleFileName+bundle.durable_key();
-				
-
 				Log.e(TAG, "Updating One by One");
 				//Testing functions
 				Log.e(TAG, "Updating Object");
-				boolean result = impt_storage_.add_object(bundle, bundle_filname);
+				boolean result = store_object(bundle);
 				
 				return result;
 			}
@@ -247,26 +373,54 @@ public class BundleStore  {
     }
 
     
+    /**
+     * Update a batch of bundles in one database transaction.
+     * @param bundles Bundles to update
+     * @param failed List the bundles which could not be updated are added to, may be null
+     * @return Number of successfully updated bundles
+     */        
+    public synchronized int update_batch(Collection<Bundle> bundles, List<Bundle> failed){
+    	int count = 0;
+    	impt_sqlite_.begin_transaction();
+    	try{
+    		Iterator<Bundle> iter = bundles.iterator();
+    		while(iter.hasNext()){
+    			Bundle bundle = iter.next();
+    			if(update(bundle)){
+    				count++;
+    			}else if(failed != null){
+    				failed.add(bundle);
+    			}
+    		}
+    		impt_sqlite_.set_transaction_successful();
+    	}finally{
+    		impt_sqlite_.end_transaction();
+    	}
+    	return count;
+    }
+
     /**
      * Delete the bundle if bundle exists. 
      * @param bundle Get the Bundle to delete
      * @return true if bundle successfully deleted otherwise return false
      */        
 
-    public boolean del(Bundle bundle){
+    public synchronized boolean del(Bundle bundle){
+    	WriteBehindQueue.getInstance().cancel_bundle(bundle.bundleid());
+    	PayloadChannelCache.getInstance().invalidate(bundle.bundleid());
+    	PayloadDedupStore.getInstance().release(bundle.bundleid());
+    	GlobalStorage.getInstance().untrack(bundle);
     	if(bundle.payload().location()==BundlePayload.location_t.DISK){
     		String condition = "id = "+bundle.durable_key();
 	    	Log.d(TAG, "Going to Del bundle in database: "+bundle.durable_key() );
 	    	if(impt_sqlite_.delete_record(table,condition)){
-	    		String filename = bundleFileName+bundle.durable_key();
-	    		String filename_payload = payloadFileName+bundle.durable_key();
 				if(saved_bundles_.containsKey(bundle.bundleid())){
 					long bundle_size = saved_bundles_.get(bundle.bundleid());
 					saved_bundles_.remove(bundle.bundleid());
 					global_storage_.remove_total_size(bundle_size);
 					Log.d(TAG, "deleteing size : "+ bundle_size);
 				}
-	    		if(impt_storage_.delete_file(filename) && impt_storage_.delete_file(filename_payload)){
+	    		if(delete_object(bundle.durable_key()) && delete_payload_file(bundle.durable_key())){
 		    		bundle_count_ -= 1;
 		    		return true;
 	    		}
@@ -281,45 +435,234 @@ public class BundleStore  {
      * @return return true if bundle successfully deleted otherwise return false
      */        
 
-    public boolean del(int bundleid){
+    public synchronized boolean del(int bundleid){
+	    	WriteBehindQueue.getInstance().cancel_bundle(bundleid);
+	    	PayloadChannelCache.getInstance().invalidate(bundleid);
+	    	PayloadDedupStore.getInstance().release(bundleid);
+	    	GlobalStorage.getInstance().untrack(bundleid);
 	    	String condition = "id = "+bundleid;
 	    	Log.d(TAG, "Going to Del bundle in database:"+bundleid);    	
 	    	if(impt_sqlite_.delete_record(table,condition)){
-	    		String filename = bundleFileName+bundleid;
-	    		String filename_payload = payloadFileName+bundleid;
 	    		Log.d(TAG, "Going to Del bundle on disk:"+bundleid);
 	    		bundle_count_ -= 1;
-	    		impt_storage_.delete_file(filename);
-	    		impt_storage_.delete_file(filename_payload);
+	    		delete_object(bundleid);
+	    		delete_payload_file(bundleid);
 	    		return true;
 	    	}
 			return false;
     }    
 
     /**
-     * Generate an unique bundle id for new bundle. 
-     * @return the next bundle id
+     * Store the new bundle on the disk from the storage executor thread. 
+     * @param bundle Bundle that function will store on the Disk
+     * @return Future with true if bundle successfully saved otherwise false
+     */        
+    public Future<Boolean> add_async(final Bundle bundle){
+    	return StorageExecutor.getInstance().submit(store_op_t.STORE_ADD, bundle,
+    			new Callable<Boolean>() {
+    		public Boolean call(){
+    			// payload writes are not synchronized one by one, make the
+    			// payload durable before the bundle is recorded as stored
+    			if(!bundle.payload().flush()){
+    				return false;
+    			}
+    			if(config_.storage_setting().payload_compression()){
+    				// a failed compression leaves the payload uncompressed
+    				bundle.payload().compress(CompressedPayload.DEFAULT_BLOCK_SIZE,
+    						CompressedPayload.DEFAULT_LEVEL);
+    			}
+    			if(config_.storage_setting().payload_dedup()){
+    				// a failed deduplication leaves the payload in its own file
+    				bundle.payload().dedup();
+    			}
+    			return add(bundle);
+    		}
+    	});
+    }
+
+    /**
+     * Update the bundle from the storage executor thread. 
+     * @param bundle Get the Bundle to update
+     * @return Future with true if bundle successfully updated otherwise false
+     */        
+    public Future<Boolean> update_async(final Bundle bundle){
+    	return StorageExecutor.getInstance().submit(store_op_t.STORE_UPDATE, bundle,
+    			new Callable<Boolean>() {
+    		public Boolean call(){
+    			return update(bundle);
+    		}
+    	});
+    }
+
+    /**
+     * Delete the bundle from the storage executor thread. 
+     * @param bundle Get the Bundle to delete
+     * @return Future with true if bundle successfully deleted otherwise false
+     */        
+    public Future<Boolean> del_async(final Bundle bundle){
+    	// updates queued before the delete must not be written after it
+    	WriteBehindQueue.getInstance().cancel_bundle(bundle.bundleid());
+    	return StorageExecutor.getInstance().submit(store_op_t.STORE_DEL, bundle,
+    			new Callable<Boolean>() {
+    		public Boolean call(){
+    			return del(bundle);
+    		}
+    	});
+    }
+
+    /**
+     * Generate an unique bundle id for new bundle. The ids are handed out from
+     * memory, only every ID_LEASE_BLOCK ids the high-water mark of the next
+     * block is written to the database before its first id is returned. No id
+     * beyond the written high-water mark is ever handed out, the write is tried
+     * ID_LEASE_ATTEMPTS times before giving up. 
+     * @return the next bundle id, -1 if the high-water mark couldn't be written
      */        
     public int next_id(){
-			ContentValues values = new ContentValues();
-			values.put("type", -1);
-			
-			int result =  impt_sqlite_.add(table, values);
-			Log.d(TAG, "Returing new id:"+result);
-			return result;
+    	synchronized(id_lock_){
+    		if(next_id_>leased_id_){
+    			long high_water = next_id_+ID_LEASE_BLOCK-1;
+    			Map<String, Object> values = new HashMap<String, Object>();
+    			values.put("id", 1);
+    			values.put("high_water", high_water);
+    			int attempts = 1;
+    			while(impt_sqlite_.replace(id_table, values)<0){
+    				if(attempts++>=ID_LEASE_ATTEMPTS){
+    					Log.e(TAG, "Unable to lease bundle ids up to "+high_water);
+    					return -1;
+    				}
+    			}
+    			leased_id_ = high_water;
+    		}
+    		int result = (int) next_id_++;
+    		Log.d(TAG, "Returing new id:"+result);
+    		return result;
+    	}
+    }
+    
+    /**
+     * Bring the files in the storage folder to the current layout version. The
+     * bundle and payload files of a version 1 folder are moved into their shard
+     * subfolders. The version is written after all the files are moved, so an
+     * interrupted migration is continued at the next start.
+     * @return True on success else false
+     */        
+    private boolean migrate_storage_layout(){
+    	File dir = new File(path_);
+    	File layout_file = new File(dir, LAYOUT_FILE_NAME);
+    	int version = 1;
+    	if(layout_file.exists()){
+    		try{
+    			BufferedReader in = new BufferedReader(new FileReader(layout_file));
+    			try{
+    				version = Integer.parseInt(in.readLine().trim());
+    			}finally{
+    				in.close();
+    			}
+    		}catch(Exception e){
+    			Log.e(TAG, "Unable to read the storage layout version: "+e.toString());
+    			return false;
+    		}
+    	}
+    	
+    	if(version>STORAGE_LAYOUT_VERSION){
+    		Log.e(TAG, "Storage layout version "+version+" is newer than "+STORAGE_LAYOUT_VERSION);
+    		return false;
+    	}
+    	
+    	if(!FileObjectStore.create_shards(dir)){
+    		Log.e(TAG, "Unable to create the storage shard folders");
+    		return false;
+    	}
+    	
+    	if(version==STORAGE_LAYOUT_VERSION){
+    		return true;
+    	}
+    	
+    	Log.i(TAG, "Migrating the storage folder from layout version "+version);
+    	int moved = 0;
+    	File[] files = dir.listFiles();
+    	for(int i=0; files!=null && i<files.length; i++){
+    		String name = files[i].getName();
+    		String prefix = name.startsWith(bundleFileName) ? bundleFileName
+    				: name.startsWith(payloadFileName) ? payloadFileName : null;
+    		if(prefix==null || !files[i].isFile()){
+    			continue;
+    		}
+    		
+    		int bundleid;
+    		try{
+    			bundleid = Integer.parseInt(name.substring(prefix.length()));
+    		}catch(NumberFormatException e){
+    			continue;
+    		}
+    		File target = new File(new File(dir, FileObjectStore.shard_name(bundleid)), name);
+    		if(!files[i].renameTo(target)){
+    			Log.e(TAG, "Unable to move "+name+" to its shard folder");
+    			return false;
+    		}
+    		moved++;
+    	}
+    	Log.i(TAG, "Moved "+moved+" files to the shard folders");
+    	
+    	return write_layout_version();
+    }
+    
+    /**
+     * Write the current layout version to the storage folder.
+     * @return True on success else false
+     */        
+    private boolean write_layout_version(){
+    	try{
+    		FileWriter out = new FileWriter(new File(path_, LAYOUT_FILE_NAME));
+    		try{
+    			out.write(Integer.toString(STORAGE_LAYOUT_VERSION));
+    		}finally{
+    			out.close();
+    		}
+    		return true;
+    	}catch(IOException e){
+    		Log.e(TAG, "Unable to write the storage layout version: "+e.toString());
+    		return false;
+    	}
+    }
+    
+    /**
+     * Start the bundle id allocator after the highest id which may have been
+     * handed out before. After a crash this is the high-water mark of the last
+     * leased block. Databases written before the allocator existed take the
+     * highest autoincrement id instead, and the placeholder rows they kept for
+     * the allocated ids are deleted.
+     * @return True on success else false
+     */        
+    private boolean init_id_allocator(){
+    	if(!impt_sqlite_.execute(Table_CREATE_BUNDLE_IDS)){
+    		return false;
+    	}
+    	impt_sqlite_.delete_record(table, "type = -1");
+    	
+    	long last = impt_sqlite_.get_count(id_table, "id = 1", new String[]{"high_water"});
+    	last = Math.max(last, impt_sqlite_.get_count(table, null, new String[]{"max(id)"}));
+    	last = Math.max(last, impt_sqlite_.get_count("sqlite_sequence", "name = '"+table+"'", new String[]{"seq"}));
+    	
+    	synchronized(id_lock_){
+    		next_id_ = last+1;
+    		leased_id_ = last;
+    	}
+    	first_run_id_ = last+1;
+    	Log.d(TAG, "Allocating bundle ids from "+(last+1));
+    	return true;
     }
     
     /**
      * Create a new iterator to iterator all the bundles.
-     * This function also calls clean_garbage_bundles() to clean all the 
-     * garbage bundles from disk before creating new iterator.
+     * The garbage left by bundles which were not deleted completely is
+     * reclaimed in the background by the GarbageCollector.
      * @return New bundle iterator to iterator bundles
      */        
 
     public Iterator<Bundle> new_iterator(){
     	
-    	clean_garbage_bundles(); // first cleanup garbage bundles
-    	
     	BundleStoreIterator itr_ = new BundleStoreIterator() ;
     	String pre_condition = " id > ";
     	String post_condition = " AND type = "+location_t.DISK.getCode();
@@ -344,7 +687,7 @@ public class BundleStore  {
         /**
          * Set the iterator for bundles before iterating bundles.
          * Iterator checks for the next bundle in the database.  
-         * @param  impt_sqlite SQLite obejct to access database
+         * @param  impt_sqlite MetadataStore obejct to access database
          * @param bundle_store to access bundle_store objects
          * @param table database table name 
          * @param pre_condition Database query condition has two parts pre_condition & post_condition  
@@ -352,7 +695,7 @@ public class BundleStore  {
          * @param first_condition Database query condition for initializing iterator
          */        
 
-    	public void set_itr(SQLiteImplementation impt_sqlite, BundleStore bundle_store, String table, String pre_condition, String post_condition, String first_condition)
+    	public void set_itr(MetadataStore impt_sqlite, BundleStore bundle_store, String table, String pre_condition, String post_condition, String first_condition)
 		{
 	    	itr_ = new StorageIterator<Integer>(impt_sqlite, table, pre_condition, post_condition, first_condition);
 		}
@@ -385,11 +728,16 @@ public class BundleStore  {
     }
     
     /**
-     * This function closes SQLite connection.
+     * This function closes the MetadataStore.
      */        
 
     public void close(){
+    	PayloadChannelCache.getInstance().clear();
     	impt_sqlite_.close();
+    	if(object_store_!=null){
+    		object_store_.close();
+    		object_store_ = null;
+    	}
     	init_ = false;
     }
     
@@ -431,13 +779,29 @@ public class BundleStore  {
 
     public boolean reset_storage(){
     	Log.d(TAG, "Going to delete Files");
+    	WriteBehindQueue.getInstance().clear();
+    	PayloadChannelCache.getInstance().clear();
+    	GlobalStorage.getInstance().clear_candidates();
+    	PayloadDedupStore.getInstance().reset();
+    	GarbageCollector.getInstance().reset();
+    	for(int i=0; i<FileObjectStore.SHARDS; i++){
+    		impt_storage_.delete_dir(new File(path_, FileObjectStore.shard_name(i)).getAbsolutePath());
+    	}
     	if(!impt_storage_.delete_dir(path_)){
     		return false;
     	}
     	
+    	if(object_store_!=null && !object_store_.reset()){
+    		return false;
+    	}
+    	
+    	if(!FileObjectStore.create_shards(new File(path_)) || !write_layout_version()){
+    		return false;
+    	}
+    	
     	if(impt_sqlite_.drop_table(table)){
     		if(impt_sqlite_.create_table(Table_CREATE_BUNDLES)){
-    			return true;
+    			return create_indexes();
     		}
     	}
     	
@@ -459,8 +823,7 @@ public class BundleStore  {
      */        
     
     public boolean test_is_bundle_file(int bundleid){
-    	String filename = bundleFileName+bundleid;
-    	return impt_storage_.is_bundle_file(filename);
+    	return object_store_.contains(bundleid);
     }
     
     /**
@@ -479,56 +842,363 @@ public class BundleStore  {
 
 
     /**
-     * Delete all the invalid bundles from database and disk
+     * Find the stored bundles which expire at or before the given time without loading them.
+     * @param expiration_time Time in seconds since 1/1/2000
+     * @return Bundle ids ordered by the expiration time
+     */        
+    public List<Integer> find_expired(long expiration_time){
+    	return impt_sqlite_.get_records(table, "type = "+location_t.DISK.getCode()+" AND expiration_time <= ?",
+    			new String[]{ Long.toString(expiration_time) }, "id", "expiration_time", null);
+    }
+
+    /**
+     * Find the stored bundles for the destination without loading them.
+     * @param dest Destination endpoint id
+     * @return Bundle ids ordered by the bundle id
+     */        
+    public List<Integer> find_by_dest(String dest){
+    	return impt_sqlite_.get_records(table, "type = "+location_t.DISK.getCode()+" AND dest = ?",
+    			new String[]{ dest }, "id", "id", null);
+    }
+
+    /**
+     * Find the stored bundles with the source and creation timestamp without loading them,
+     * for example to check for duplicates.
+     * @param source Source endpoint id
+     * @param creation_time Creation timestamp seconds
+     * @param creation_seqno Creation timestamp sequence number
+     * @return Bundle ids ordered by the bundle id
+     */        
+    public List<Integer> find_by_creation(String source, long creation_time, long creation_seqno){
+    	return impt_sqlite_.get_records(table, "type = "+location_t.DISK.getCode()
+    			+" AND source = ? AND creation_time = ? AND creation_seqno = ?",
+    			new String[]{ source, Long.toString(creation_time), Long.toString(creation_seqno) },
+    			"id", "id", null);
+    }
+
+    /**
+     * Build the values of the bundles table row for the bundle.
+     * @param bundle The bundle
+     * @return The type and the metadata columns
+     */        
+    private Map<String, Object> metadata_values(Bundle bundle){
+    	Map<String, Object> values = new HashMap<String, Object>();
+    	values.put("type", bundle.payload().location().getCode());
+    	values.put("source", bundle.source().str());
+    	values.put("dest", bundle.dest().str());
+    	values.put("creation_time", bundle.creation_ts().seconds());
+    	values.put("creation_seqno", bundle.creation_ts().seqno());
+    	values.put("expiration_time", bundle.creation_ts().seconds() + bundle.expiration());
+    	values.put("payload_length", bundle.payload().length());
+    	values.put("priority", bundle.priority().getCode());
+    	return values;
+    }
+
+    /**
+     * Add the metadata columns to a bundles table created before they existed and fill
+     * them from the stored bundles, then create the indexes.
+     * @return True on success else false
      */        
-    public void clean_garbage_bundles(){
+    private boolean migrate_metadata_columns(){
+    	if(!impt_sqlite_.has_column(table, "dest")){
+    		Log.i(TAG, "Migrating the bundles table to the metadata columns");
+    		for(int i=0; i<Table_METADATA_COLUMNS.length; i++){
+    			String column = Table_METADATA_COLUMNS[i];
+    			if(!impt_sqlite_.has_column(table, column.substring(0, column.indexOf(' ')))
+    					&& !impt_sqlite_.execute("ALTER TABLE "+table+" ADD COLUMN "+column)){
+    				return false;
+    			}
+    		}
+    		
+    		List<Integer> ids = impt_sqlite_.get_records(table, "type = "+location_t.DISK.getCode(),
+    				null, "id", null, null);
+    		impt_sqlite_.begin_transaction();
+    		try{
+    			Iterator<Integer> iter = ids.iterator();
+    			while(iter.hasNext()){
+    				int id = iter.next();
+    				Bundle bundle = load_object(id);
+    				if(bundle!=null){
+    					impt_sqlite_.update(table, metadata_values(bundle), "id = "+id, null);
+    				}
+    			}
+    			impt_sqlite_.set_transaction_successful();
+    		}finally{
+    			impt_sqlite_.end_transaction();
+    		}
+    		Log.i(TAG, "Migrated "+ids.size()+" bundles");
+    	}
+    	
+    	return create_indexes();
+    }
+
+    /**
+     * Create the indexes of the bundles table if they do not exist.
+     * @return true if all the indexes exist otherwise false
+     */        
+    private boolean create_indexes(){
+    	for(int i=0; i<Table_INDEX_BUNDLES.length; i++){
+    		if(!impt_sqlite_.execute(Table_INDEX_BUNDLES[i])){
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+
+    /**
+     * Interface to receive the bundles loaded by restore.
+     */        
+    public static interface RestoreHandler{
+    	/**
+    	 * Called for every batch of restored bundles in the order of the bundle ids.
+    	 * @param bundles Valid and complete bundles loaded from the storage
+    	 */
+    	public void restored(Collection<Bundle> bundles);
+    }
+
+    /**
+     * Load all the stored bundles at startup. The bundle ids are read in one
+     * database query and the bundles are loaded by a pool of threads while the
+     * previous batch is handed to the handler. Invalid and incomplete bundles
+     * are deleted. Afterwards the GarbageCollector is started. A thread
+     * interrupted while restoring stops, keeps its interrupt status and
+     * leaves the stored content alone.
+     * @param handler Receiver of the restored bundles
+     * @return Number of restored bundles
+     */        
+    public int restore(RestoreHandler handler){
+    	ArrayList<Integer> ids = new ArrayList<Integer>();
+    	Iterator<Integer> iterator = impt_sqlite_.get_all_bundles();
+    	while(iterator.hasNext()){
+    		ids.add(iterator.next());
+    	}
+    	global_storage_ = GlobalStorage.getInstance();
+    	
+    	int threads = Math.max(1, Math.min(RESTORE_MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    	Log.d(TAG, "Restoring "+ids.size()+" bundles with "+threads+" threads");
+    	ExecutorService pool = Executors.newFixedThreadPool(threads);
+    	int restored = 0;
+    	boolean interrupted = false;
+    	try{
+    		ArrayList<Future<Bundle>> current = submit_restore_batch(pool, ids, 0);
+    		for(int start=0; start<ids.size() && !interrupted; start+=RESTORE_BATCH_SIZE){
+    			// load the next batch while the current one is validated and handed over
+    			ArrayList<Future<Bundle>> next = submit_restore_batch(pool, ids, start+RESTORE_BATCH_SIZE);
+    			ArrayList<Bundle> batch = new ArrayList<Bundle>(current.size());
+    			for(int i=0; i<current.size(); i++){
+    				int id = ids.get(start+i);
+    				Bundle b;
+    				try{
+    					b = current.get(i).get();
+    				}catch(ExecutionException e){
+    					Log.e(TAG, "Restoring bundle "+id+" failed: "+e.getCause());
+    					continue;
+    				}catch(InterruptedException e){
+    					Log.e(TAG, "Interrupted while restoring bundle "+id+", stopping the restore");
+    					Thread.currentThread().interrupt();
+    					interrupted = true;
+    					break;
+    				}
+    				if(validate_restored(id, b)){
+    					batch.add(b);
+    				}
+    			}
+    			if(!batch.isEmpty()){
+    				handler.restored(batch);
+    				restored += batch.size();
+    			}
+    			current = next;
+    		}
+    	}finally{
+    		if(interrupted){
+    			pool.shutdownNow();
+    		}else{
+    			pool.shutdown();
+    		}
+    	}
     	
-		Iterator<Integer> iterator = impt_sqlite_.get_all_bundles();
-		int id;
-		Bundle b;
-		global_storage_ = GlobalStorage.getInstance();
-		int count = 0;
-		while(iterator.hasNext()){
-			count++;
-			id = iterator.next();
-			b = get(id);
-			Log.d(TAG, "Validating Bundles: "+id);
-			if(b==null){
-				//delete id
-				Log.d(TAG, "Validating Bundles deleting(bundle is null): "+id);
-				this.del(id);
-			}
-			else{
-				if(b.source().valid()){
-					if(b.dest().valid()){
-						Log.d(TAG, "Source and dest EIDs validated: "+id);
-						long bundle_size = impt_storage_.get_file_size_with_name(bundleFileName+b.durable_key());
-						bundle_size += b.durable_size();
-						saved_bundles_.put(b.bundleid(), bundle_size);
-						global_storage_.add_total_size(bundle_size);
-					}
-					else{
-						Log.d(TAG, "Only Source EID validated: "+id);
-					}
-				}
-				else{
-					Log.d(TAG, "EIDs not validated: "+id);
-				}
-				
-				if(!b.complete()){
-					this.del(id);
-				}
-			}
-			
-		}
-		
 		// Update Bundle Count
     	String condition = " type = "+location_t.DISK.getCode();
     	String[] field = new String[1];
     	field[0] = "count(id)";
     	bundle_count_ = impt_sqlite_.get_count(table,condition, field );
     	
-    	Log.d(TAG, "Total Valid Bundles: "+bundle_count_);
+    	Log.d(TAG, "Restored bundles: "+restored+", total valid bundles: "+bundle_count_);
+    	if(interrupted){
+    		// the content of the bundles not restored yet must not be swept
+    		return restored;
+    	}
+    	PayloadDedupStore.getInstance().sweep();
+    	GarbageCollector.getInstance().start();
+    	return restored;
+    }
+
+    /**
+     * Submit the loading of the batch of bundles starting at the index to the pool.
+     * @param pool Threads loading the bundles
+     * @param ids All the bundle ids to restore
+     * @param start Index of the first bundle id of the batch
+     * @return Futures of the loaded bundles in the order of the ids
+     */        
+    private ArrayList<Future<Bundle>> submit_restore_batch(ExecutorService pool, ArrayList<Integer> ids, int start){
+    	int end = Math.min(ids.size(), start+RESTORE_BATCH_SIZE);
+    	ArrayList<Future<Bundle>> futures = new ArrayList<Future<Bundle>>(Math.max(0, end-start));
+    	for(int i=start; i<end; i++){
+    		final int id = ids.get(i);
+    		futures.add(pool.submit(new Callable<Bundle>() {
+    			public Bundle call(){
+    				return load_object(id);
+    			}
+    		}));
+    	}
+    	return futures;
+    }
+
+    /**
+     * Check a bundle loaded by restore, account its size and delete it if it is not usable.
+     * @param id Bundle id
+     * @param b The loaded bundle or null if it could not be loaded
+     * @return True if the bundle should be restored else false
+     */        
+    private synchronized boolean validate_restored(int id, Bundle b){
+		if(b==null){
+			Log.d(TAG, "Validating Bundles deleting(bundle is null): "+id);
+			del(id);
+			return false;
+		}
+		if(!b.complete()){
+			Log.d(TAG, "Validating Bundles deleting(bundle is incomplete): "+id);
+			del(id);
+			return false;
+		}
+		if(b.source().valid() && b.dest().valid()){
+			long bundle_size = stored_object_size(b.durable_key());
+			bundle_size += b.durable_size();
+			saved_bundles_.put(b.bundleid(), bundle_size);
+			global_storage_.add_total_size(bundle_size);
+			global_storage_.track(b, bundle_size);
+		}
+		else{
+			Log.d(TAG, "EIDs not validated: "+id);
+		}
+		return true;
+    }
+
+    /**
+     * Get the bundle ids after the given one for the GarbageCollector.
+     * @param after Bundle id to start after
+     * @param count Maximum number of ids
+     * @return Bundle ids in ascending order
+     */        
+    List<Integer> next_bundle_ids(int after, int count){
+    	return impt_sqlite_.get_records(table, "id > ?",
+    			new String[]{ Integer.toString(after) }, "id", "id", Integer.toString(count));
+    }
+
+    /**
+     * Delete the row of the bundle if its metadata is not stored, called by the GarbageCollector.
+     * @param bundleid Bundle id of the row
+     * @return True if the row was deleted else false
+     */        
+    synchronized boolean collect_row(int bundleid){
+    	if(object_store_.contains(bundleid) || WriteBehindQueue.getInstance().pending_bundle(bundleid)!=null){
+    		return false;
+    	}
+    	return del(bundleid);
+    }
+
+    /**
+     * Delete a file of a shard folder if it belongs to no stored bundle, called by
+     * the GarbageCollector. Files of bundles from this start are kept because the
+     * payload file is written before the bundle is added, and so are the files
+     * which are not bundle or payload files.
+     * @param file File in a shard folder
+     * @return True if the file was deleted else false
+     */        
+    synchronized boolean collect_file(File file){
+    	String name = file.getName();
+    	String prefix = name.startsWith(bundleFileName) ? bundleFileName
+    			: name.startsWith(payloadFileName) ? payloadFileName : null;
+    	if(prefix==null || !file.isFile()){
+    		return false;
+    	}
+    	
+    	// temporary files of the payload compression have a suffix
+    	int end = name.indexOf('.', prefix.length());
+    	int bundleid;
+    	try{
+    		bundleid = Integer.parseInt(name.substring(prefix.length(), end<0 ? name.length() : end));
+    	}catch(NumberFormatException e){
+    		return false;
+    	}
+    	if(bundleid>=first_run_id_){
+    		return false;
+    	}
+    	if(end<0 && impt_sqlite_.find_record(table, "id = "+bundleid)){
+    		return false;
+    	}
+    	return file.delete();
+    }
+
+    /**
+     * Get a shard folder of the storage folder, used by the GarbageCollector.
+     * @param shard Number of the shard
+     * @return The shard folder
+     */        
+    File shard_dir(int shard){
+    	return new File(path_, FileObjectStore.shard_name(shard));
+    }
+    
+    /**
+     * Create the backend keeping the bundle metadata for the layout.
+     * @param layout Configured layout
+     * @return The ObjectStore, not opened yet
+     */        
+    static ObjectStore<Bundle> create_object_store(bundle_store_layout_t layout){
+    	switch(layout){
+    	case LOG:
+    		return new LogStructuredImplementation<Bundle>(new BundleCodec());
+    	case MEMORY:
+    		return new MemoryObjectStore<Bundle>(new BundleCodec());
+    	default:
+    		return new FileObjectStore<Bundle>(bundleFileName, new BundleCodec(), true);
+    	}
+    }
+    
+    /**
+     * Write the bundle metadata to the ObjectStore.
+     * @param bundle Bundle to write
+     * @return True on success else false
+     */        
+    private boolean store_object(Bundle bundle){
+    	return object_store_.add_object(bundle, bundle.durable_key());
+    }
+    
+    /**
+     * Read the bundle metadata from the ObjectStore.
+     * @param bundleid Bundle id to read
+     * @return The stored bundle or null if not found
+     */        
+    private Bundle load_object(int bundleid){
+    	return object_store_.get_object(bundleid);
+    }
+    
+    /**
+     * Delete the bundle metadata from the ObjectStore.
+     * @param bundleid Bundle id to delete
+     * @return True on success else false
+     */        
+    private boolean delete_object(int bundleid){
+    	return object_store_.delete_object(bundleid);
+    }
+    
+    /**
+     * Get the size of the stored bundle metadata.
+     * @param bundleid Bundle id
+     * @return Size in bytes or 0 if not stored
+     */        
+    private long stored_object_size(int bundleid){
+    	return object_store_.get_record_size(bundleid);
     }
     
 	/**
@@ -543,9 +1213,14 @@ public class BundleStore  {
     private static StorageImplementation<Bundle> impt_storage_;
 
 	/**
-	 * SQLiteImplementation object 
+	 * MetadataStore object keeping the bundles table 
 	 */
-    private static SQLiteImplementation impt_sqlite_;
+    private static MetadataStore impt_sqlite_;
+
+	/**
+	 * ObjectStore keeping the bundle metadata with the configured layout 
+	 */
+    private static ObjectStore<Bundle> object_store_;
 
 	/**
 	 * DTNConfiguration to stores the application configurations,  
@@ -572,13 +1247,38 @@ public class BundleStore  {
 	 */
     private static String table = "bundles";
 
+	/**
+	 * Database table name for storing the leased bundle ids.  
+	 */
+    private static String id_table = "bundle_ids";
+
 	/**
 	 * GlobalStorage object  
 	 */
     GlobalStorage global_storage_;
     
 	/**
-	 * init_ to make sure in init() it only makes SQLiteImplementation only once   
+	 * Lock of the bundle id allocator  
+	 */
+    private final Object id_lock_ = new Object();
+    
+	/**
+	 * Next bundle id to hand out  
+	 */
+    private long next_id_;
+    
+	/**
+	 * Highest bundle id leased in the database  
+	 */
+    private long leased_id_;
+    
+	/**
+	 * First bundle id handed out since the start, older ids belong to stored bundles  
+	 */
+    private volatile long first_run_id_;
+    
+	/**
+	 * init_ to make sure in init() it only makes StorageImplementation only once   
 	 */
 	private static boolean init_ = false;
 
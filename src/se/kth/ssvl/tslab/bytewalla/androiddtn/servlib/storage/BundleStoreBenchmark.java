@@ -0,0 +1,178 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.File;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload.location_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.bundle_store_layout_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointID;
+
+/**
+ * Throughput measurement of the BundleStore API. Every MetadataStore is run
+ * with every bundle store layout through the same add, get, update and del
+ * rounds of the BundleStore after a warm up round, so the rates include the
+ * table rows, the codec and the ObjectStore the way the daemon uses them.
+ * The BundleStore is initialized in a folder of its own for every run and
+ * reset afterwards, so it has to be initialized again for the node. The
+ * DTNService runs run_all() at start when the DTNStorageBenchmark resource
+ * is true.
+ * @see ObjectStoreBenchmark
+ */
+public class BundleStoreBenchmark {
+
+	/**
+	 * Number of bundles used to warm up every run before measuring
+	 */
+	private static final int WARMUP_BUNDLES = 100;
+
+	/**
+	 * Run the memory and file MetadataStores, and the given SQLite one, with
+	 * every layout.
+	 * @param dir directory of the runs, the stores in it are emptied afterwards
+	 * @param config configuration of the node, the layout is restored afterwards
+	 * @param sqlite SQLite backend on a database of its own, null to leave it out
+	 * @param bundles number of bundles in every round
+	 * @param buf StringBuffer the results are appended to
+	 * @return true if every run read back what was written
+	 */
+	public static boolean run_all(File dir, DTNConfiguration config, MetadataStore sqlite,
+			int bundles, StringBuffer buf) {
+		boolean result = true;
+		result &= run_layouts("memory", new MemoryMetadataStore(), new File(dir, "memory"),
+				config, bundles, buf);
+		File file_dir = new File(dir, "file");
+		result &= run_layouts("file", new FileMetadataStore(new File(file_dir, "metadata")
+				.getAbsolutePath()), file_dir, config, bundles, buf);
+		if (sqlite != null)
+			result &= run_layouts("sqlite", sqlite, new File(dir, "sqlite"), config, bundles, buf);
+		return result;
+	}
+
+	/**
+	 * Run one MetadataStore with every layout
+	 */
+	private static boolean run_layouts(String name, MetadataStore metadata, File dir,
+			DTNConfiguration config, int bundles, StringBuffer buf) {
+		boolean result = true;
+		bundle_store_layout_t[] layouts = bundle_store_layout_t.values();
+		for (int i = 0; i < layouts.length; i++)
+			result &= run(name, metadata, layouts[i], new File(dir, layouts[i].getCaption()),
+					config, bundles, buf);
+		return result;
+	}
+
+	/**
+	 * Measure the BundleStore with one MetadataStore and layout. The BundleStore
+	 * is initialized in the directory and reset afterwards.
+	 * @param name name of the MetadataStore in the results
+	 * @param metadata the MetadataStore
+	 * @param layout the layout
+	 * @param dir application folder of the BundleStore
+	 * @param config configuration of the node, the layout is restored afterwards
+	 * @param bundles number of bundles in every round
+	 * @param buf StringBuffer the results are appended to
+	 * @return true if the BundleStore read back what was written
+	 */
+	public static boolean run(String name, MetadataStore metadata, bundle_store_layout_t layout,
+			File dir, DTNConfiguration config, int bundles, StringBuffer buf) {
+		String run = String.format("%s metadata, %s layout", name, layout.getCaption());
+		bundle_store_layout_t layout_before = config.storage_setting().bundle_store_layout();
+		config.storage_setting().set_bundle_store_layout(layout);
+		BundleStore store = BundleStore.getInstance();
+		try {
+			if (!store.init(metadata, dir.getAbsolutePath(), config)) {
+				buf.append(String.format("%s: unable to init in %s\n", run, dir.getAbsolutePath()));
+				return false;
+			}
+
+			// warm up the code paths before measuring
+			Bundle[] warmup = create_bundles(store, WARMUP_BUNDLES);
+			for (int i = 0; i < warmup.length; i++) {
+				store.add(warmup[i]);
+				store.get(warmup[i].bundleid());
+				store.update(warmup[i]);
+				store.del(warmup[i]);
+			}
+
+			Bundle[] sample = create_bundles(store, bundles);
+			int count_before = store.get_bundle_count();
+			boolean ok = true;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < sample.length; i++)
+				ok &= store.add(sample[i]);
+			long add = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < sample.length; i++)
+				ok &= store.get(sample[i].bundleid()) != null;
+			long get = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < sample.length; i++)
+				ok &= store.update(sample[i]);
+			long update = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < sample.length; i++)
+				ok &= store.del(sample[i]);
+			long del = System.nanoTime() - start;
+
+			ok &= store.get_bundle_count() == count_before;
+
+			buf.append(String.format("%s: %d bundles -- %d add/s -- %d get/s -- "
+					+ "%d update/s -- %d del/s\n", run, bundles, rate(bundles, add),
+					rate(bundles, get), rate(bundles, update), rate(bundles, del)));
+			return ok;
+		} finally {
+			store.reset_storage();
+			config.storage_setting().set_bundle_store_layout(layout_before);
+		}
+	}
+
+	/**
+	 * Bundles with new ids which are not stored yet
+	 */
+	private static Bundle[] create_bundles(BundleStore store, int count) {
+		Bundle[] bundles = new Bundle[count];
+		for (int i = 0; i < count; i++) {
+			// the restore constructor doesn't add the bundle to the BundleStore
+			Bundle bundle = new Bundle(store.next_id(), location_t.DISK);
+			bundle.set_source(new EndpointID("dtn://benchmark.bytewalla.com/source"));
+			bundle.set_dest(new EndpointID("dtn://benchmark.bytewalla.com/" + (i % 16)));
+			bundle.set_expiration(3600);
+			bundles[i] = bundle;
+		}
+		return bundles;
+	}
+
+	/**
+	 * Operations per second
+	 */
+	private static long rate(int ops, long nanos) {
+		if (nanos <= 0)
+			return 0;
+		return ops * 1000000000L / nanos;
+	}
+}
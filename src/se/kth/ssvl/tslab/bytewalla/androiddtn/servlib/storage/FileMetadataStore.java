@@ -0,0 +1,491 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * MetadataStore keeping the tables of MemoryMetadataStore in a journal
+ * file. Every committed change, or every transaction, is appended as one
+ * batch of records, and the journal is replayed when the store is created.
+ * When the journal holds more than twice as many records as there are rows,
+ * it is rewritten with only the current tables. Like the log layout of the
+ * BundleStore the batches are not synced, a torn batch at the end of the
+ * journal is cut off at the next start.
+ *
+ * Batch layout: length (4) | crc32 (4) | records (length)
+ */
+public class FileMetadataStore extends MemoryMetadataStore {
+
+	/**
+	 * TAG for Android Logging
+	 */
+	private static final String TAG = "FileMetadataStore";
+
+	/**
+	 * Record of a created or altered table
+	 */
+	private static final byte RECORD_TABLE = 1;
+
+	/**
+	 * Record of a dropped table
+	 */
+	private static final byte RECORD_DROP = 2;
+
+	/**
+	 * Record of an inserted or updated row
+	 */
+	private static final byte RECORD_PUT = 3;
+
+	/**
+	 * Record of a deleted row
+	 */
+	private static final byte RECORD_DEL = 4;
+
+	/**
+	 * Length of the batch header in bytes
+	 */
+	private static final int BATCH_HEADER_LENGTH = 8;
+
+	/**
+	 * The journal is not rewritten below this number of records
+	 */
+	private static final int COMPACTION_MIN_RECORDS = 1024;
+
+	/**
+	 * Number of rows written in one batch when the journal is rewritten
+	 */
+	private static final int COMPACTION_BATCH_ROWS = 256;
+
+	/**
+	 * Value tags of the row records
+	 */
+	private static final byte VALUE_NULL = 0;
+	private static final byte VALUE_LONG = 1;
+	private static final byte VALUE_DOUBLE = 2;
+	private static final byte VALUE_TEXT = 3;
+	private static final byte VALUE_BLOB = 4;
+
+	/**
+	 * Constructor, the tables in the journal are loaded
+	 * @param path Journal file, its folder is created if needed
+	 */
+	public FileMetadataStore(String path) {
+		file_ = new File(path);
+		pending_ = new ByteArrayOutputStream();
+		out_ = new DataOutputStream(pending_);
+
+		lock_.lock();
+		try {
+			File dir = file_.getParentFile();
+			if (dir != null && !dir.exists() && !dir.mkdirs())
+				throw new IOException("Unable to create " + dir.getAbsolutePath());
+			journal_ = new RandomAccessFile(file_, "rw");
+			replay();
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open the journal " + path + ": " + e.toString());
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Get the journal file
+	 * @return The journal file
+	 */
+	public File file() {
+		return file_;
+	}
+
+	@Override
+	public void close() {
+		lock_.lock();
+		try {
+			super.close();
+			if (journal_ != null)
+				journal_.close();
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to close the journal: " + e.toString());
+		} finally {
+			journal_ = null;
+			lock_.unlock();
+		}
+	}
+
+	@Override
+	protected void changed_row(Table table, long key, Map<String, Object> row) {
+		try {
+			if (row == null) {
+				out_.writeByte(RECORD_DEL);
+				out_.writeUTF(table.name_);
+				out_.writeLong(key);
+			} else {
+				write_row(out_, table, key, row);
+			}
+			pending_records_++;
+		} catch (IOException e) {
+			// not thrown by the ByteArrayOutputStream
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	@Override
+	protected void changed_table(String name, Table table) {
+		try {
+			if (table == null) {
+				out_.writeByte(RECORD_DROP);
+				out_.writeUTF(name);
+			} else {
+				write_table(out_, table);
+			}
+			pending_records_++;
+		} catch (IOException e) {
+			throw new IllegalStateException(e.toString());
+		}
+	}
+
+	@Override
+	protected void committed() {
+		if (pending_records_ == 0)
+			return;
+		try {
+			if (journal_ == null)
+				throw new IOException("Journal not open");
+			append_batch(journal_, pending_.toByteArray());
+			records_ += pending_records_;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to write the journal: " + e.toString());
+		} finally {
+			pending_.reset();
+			pending_records_ = 0;
+		}
+
+		if (records_ > COMPACTION_MIN_RECORDS && records_ > 2 * live_records())
+			compact();
+	}
+
+	@Override
+	protected void rolled_back() {
+		pending_.reset();
+		pending_records_ = 0;
+	}
+
+	/**
+	 * Rewrite the journal with only the current tables. The new journal is
+	 * synced before it replaces the old one.
+	 */
+	private void compact() {
+		File temp = new File(file_.getAbsolutePath() + ".tmp");
+		try {
+			RandomAccessFile compacted = new RandomAccessFile(temp, "rw");
+			long records = 0;
+			try {
+				compacted.setLength(0);
+				ByteArrayOutputStream batch = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(batch);
+				Iterator<Table> tables = tables_.values().iterator();
+				while (tables.hasNext()) {
+					Table table = tables.next();
+					write_table(out, table);
+					records++;
+					int rows = 0;
+					Iterator<Map.Entry<Long, Map<String, Object>>> iter = table.rows_.entrySet().iterator();
+					while (iter.hasNext()) {
+						Map.Entry<Long, Map<String, Object>> entry = iter.next();
+						write_row(out, table, entry.getKey().longValue(), entry.getValue());
+						records++;
+						if (++rows % COMPACTION_BATCH_ROWS == 0) {
+							append_batch(compacted, batch.toByteArray());
+							batch.reset();
+						}
+					}
+				}
+				if (batch.size() > 0)
+					append_batch(compacted, batch.toByteArray());
+				compacted.getFD().sync();
+			} finally {
+				compacted.close();
+			}
+
+			journal_.close();
+			journal_ = null;
+			if (!temp.renameTo(file_))
+				throw new IOException("Unable to rename " + temp.getName());
+			Log.i(TAG, String.format("Compacted the journal from %d to %d records", records_, records));
+			records_ = records;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to compact the journal: " + e.toString());
+			temp.delete();
+		} finally {
+			try {
+				if (journal_ == null) {
+					journal_ = new RandomAccessFile(file_, "rw");
+					journal_.seek(journal_.length());
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Unable to reopen the journal: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Number of records a compacted journal has
+	 */
+	private long live_records() {
+		long records = tables_.size();
+		Iterator<Table> tables = tables_.values().iterator();
+		while (tables.hasNext())
+			records += tables.next().rows_.size();
+		return records;
+	}
+
+	/**
+	 * Apply all the batches of the journal to the tables. A torn or corrupted
+	 * tail left by a crash is cut off.
+	 */
+	private void replay() throws IOException {
+		long size = journal_.length();
+		long offset = 0;
+		while (offset + BATCH_HEADER_LENGTH <= size) {
+			journal_.seek(offset);
+			int length = journal_.readInt();
+			long crc = journal_.readInt() & 0xffffffffL;
+			if (length < 0 || offset + BATCH_HEADER_LENGTH + length > size)
+				break;
+
+			byte[] data = new byte[length];
+			journal_.readFully(data);
+			if (checksum(data) != crc)
+				break;
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			while (in.available() > 0) {
+				apply_record(in);
+				records_++;
+			}
+			offset += BATCH_HEADER_LENGTH + length;
+		}
+
+		if (offset < size) {
+			Log.e(TAG, String.format("Truncating the journal from %d to %d bytes", size, offset));
+			journal_.setLength(offset);
+		}
+		journal_.seek(offset);
+	}
+
+	/**
+	 * Apply one record of the journal to the tables
+	 */
+	private void apply_record(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		String name = in.readUTF();
+		Table table = tables_.get(name);
+		switch (type) {
+		case RECORD_TABLE:
+			if (table == null) {
+				table = new Table(name);
+				tables_.put(name, table);
+			}
+			String key = in.readUTF();
+			table.key_ = key.length() == 0 ? null : key;
+			table.autoincrement_ = in.readBoolean();
+			table.sequence_ = Math.max(table.sequence_, in.readLong());
+			table.columns_.clear();
+			int columns = in.readInt();
+			for (int i = 0; i < columns; i++) {
+				String column = in.readUTF();
+				table.columns_.put(column, Character.valueOf((char) in.readByte()));
+			}
+			break;
+		case RECORD_DROP:
+			tables_.remove(name);
+			break;
+		case RECORD_PUT:
+			long put_key = in.readLong();
+			Map<String, Object> row = new HashMap<String, Object>();
+			int values = in.readInt();
+			for (int i = 0; i < values; i++) {
+				String column = in.readUTF();
+				row.put(column, read_value(in));
+			}
+			if (table == null)
+				throw new IOException("Row of the unknown table " + name);
+			table.rows_.put(put_key, row);
+			if (table.autoincrement_ && put_key > table.sequence_)
+				table.sequence_ = put_key;
+			break;
+		case RECORD_DEL:
+			long del_key = in.readLong();
+			if (table != null)
+				table.rows_.remove(del_key);
+			break;
+		default:
+			throw new IOException("Unknown record type " + type);
+		}
+	}
+
+	/**
+	 * Write the definition of a table
+	 */
+	private static void write_table(DataOutputStream out, Table table) throws IOException {
+		out.writeByte(RECORD_TABLE);
+		out.writeUTF(table.name_);
+		out.writeUTF(table.key_ == null ? "" : table.key_);
+		out.writeBoolean(table.autoincrement_);
+		out.writeLong(table.sequence_);
+		out.writeInt(table.columns_.size());
+		Iterator<Map.Entry<String, Character>> iter = table.columns_.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Character> entry = iter.next();
+			out.writeUTF(entry.getKey());
+			out.writeByte(entry.getValue().charValue());
+		}
+	}
+
+	/**
+	 * Write a row with all its values
+	 */
+	private static void write_row(DataOutputStream out, Table table, long key,
+			Map<String, Object> row) throws IOException {
+		out.writeByte(RECORD_PUT);
+		out.writeUTF(table.name_);
+		out.writeLong(key);
+		out.writeInt(row.size());
+		Iterator<Map.Entry<String, Object>> iter = row.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Object> entry = iter.next();
+			out.writeUTF(entry.getKey());
+			write_value(out, entry.getValue());
+		}
+	}
+
+	/**
+	 * Write a value with its tag
+	 */
+	private static void write_value(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(VALUE_NULL);
+		} else if (value instanceof Long) {
+			out.writeByte(VALUE_LONG);
+			out.writeLong(((Long) value).longValue());
+		} else if (value instanceof Number) {
+			out.writeByte(VALUE_DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof byte[]) {
+			byte[] data = (byte[]) value;
+			out.writeByte(VALUE_BLOB);
+			out.writeInt(data.length);
+			out.write(data);
+		} else {
+			// writeUTF is limited to 64 KB
+			byte[] data = value.toString().getBytes("UTF-8");
+			out.writeByte(VALUE_TEXT);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	/**
+	 * Read a value written by write_value
+	 */
+	private static Object read_value(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case VALUE_NULL:
+			return null;
+		case VALUE_LONG:
+			return Long.valueOf(in.readLong());
+		case VALUE_DOUBLE:
+			return Double.valueOf(in.readDouble());
+		case VALUE_TEXT:
+		case VALUE_BLOB:
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+			return tag == VALUE_TEXT ? new String(data, "UTF-8") : data;
+		default:
+			throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
+	/**
+	 * Append a batch with its header at the end of the file
+	 */
+	private static void append_batch(RandomAccessFile file, byte[] data) throws IOException {
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(BATCH_HEADER_LENGTH + data.length);
+		DataOutputStream out = new DataOutputStream(batch);
+		out.writeInt(data.length);
+		out.writeInt((int) checksum(data));
+		out.write(data);
+		file.seek(file.length());
+		file.write(batch.toByteArray());
+	}
+
+	/**
+	 * CRC32 of the records of a batch
+	 */
+	private static long checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	/**
+	 * The journal file
+	 */
+	private final File file_;
+
+	/**
+	 * Open journal, null if it couldn't be opened
+	 */
+	private RandomAccessFile journal_;
+
+	/**
+	 * Records of the changes not committed yet
+	 */
+	private final ByteArrayOutputStream pending_;
+
+	/**
+	 * Stream writing to pending_
+	 */
+	private final DataOutputStream out_;
+
+	/**
+	 * Number of records in pending_
+	 */
+	private int pending_records_;
+
+	/**
+	 * Number of records in the journal
+	 */
+	private long records_;
+}
@@ -0,0 +1,225 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+/**
+ * ObjectStore keeping every object in its own file named by a prefix and the
+ * key. The files are written in the same format as the StorageImplementation,
+ * so files stored before can still be read. When sharded, the files are
+ * spread over SHARDS subdirectories chosen by the low bits of the key so no
+ * directory gets too large. Only java.io is used so the backend can also be
+ * run on a plain JVM.
+ */
+public class FileObjectStore<Type> implements ObjectStore<Type> {
+
+	/**
+	 * Number of subdirectories of a sharded store
+	 */
+	public static final int SHARDS = 256;
+
+	/**
+	 * Names of the subdirectories, two hex digits
+	 */
+	private static final String[] SHARD_NAMES = new String[SHARDS];
+
+	static {
+		for (int i = 0; i < SHARDS; i++) {
+			SHARD_NAMES[i] = (i < 16 ? "0" : "") + Integer.toHexString(i);
+		}
+	}
+
+	/**
+	 * Name of the subdirectory of the key in a sharded directory
+	 * @param key Key of the object
+	 * @return the subdirectory name
+	 */
+	public static String shard_name(int key) {
+		return SHARD_NAMES[key & (SHARDS - 1)];
+	}
+
+	/**
+	 * Create all the subdirectories of a sharded directory
+	 * @param dir the sharded directory
+	 * @return True if all the subdirectories exist else false
+	 */
+	public static boolean create_shards(File dir) {
+		boolean result = true;
+		for (int i = 0; i < SHARDS; i++) {
+			File shard = new File(dir, SHARD_NAMES[i]);
+			result &= shard.isDirectory() || shard.mkdirs();
+		}
+		return result;
+	}
+
+	/**
+	 * Constructor of a store keeping all the files in one directory
+	 * @param prefix Prefix of the file names, followed by the key
+	 * @param codec Codec to encode and decode the objects
+	 */
+	public FileObjectStore(String prefix, StorageCodec<Type> codec) {
+		this(prefix, codec, false);
+	}
+
+	/**
+	 * Constructor
+	 * @param prefix Prefix of the file names, followed by the key
+	 * @param codec Codec to encode and decode the objects
+	 * @param sharded Whether the files are spread over the subdirectories
+	 */
+	public FileObjectStore(String prefix, StorageCodec<Type> codec, boolean sharded) {
+		prefix_ = prefix;
+		codec_ = codec;
+		sharded_ = sharded;
+	}
+
+	public boolean open(String path) {
+		dir_ = new File(path);
+		if (!dir_.isDirectory() && !dir_.mkdirs())
+			return false;
+		return !sharded_ || create_shards(dir_);
+	}
+
+	public boolean add_object(Type object, int key) {
+		byte[] data = codec_.encode(object);
+		if (data == null)
+			return false;
+
+		try {
+			FileOutputStream out = new FileOutputStream(file(key));
+			try {
+				out.write(data);
+				out.flush();
+			} finally {
+				out.close();
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public Type get_object(int key) {
+		File f = file(key);
+		if (!f.exists())
+			return null;
+
+		try {
+			FileInputStream in = new FileInputStream(f);
+			byte[] data;
+			try {
+				data = new byte[(int) f.length()];
+				int read = 0;
+				while (read < data.length) {
+					int n = in.read(data, read, data.length - read);
+					if (n < 0)
+						break;
+					read += n;
+				}
+			} finally {
+				in.close();
+			}
+			return codec_.decode(data);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public boolean delete_object(int key) {
+		File f = file(key);
+		return !f.exists() || f.delete();
+	}
+
+	public boolean contains(int key) {
+		return file(key).exists();
+	}
+
+	public long get_record_size(int key) {
+		return file(key).length();
+	}
+
+	public boolean reset() {
+		if (!sharded_)
+			return reset(dir_);
+
+		boolean result = true;
+		for (int i = 0; i < SHARDS; i++) {
+			result &= reset(new File(dir_, SHARD_NAMES[i]));
+		}
+		return result;
+	}
+
+	public void close() {
+	}
+
+	/**
+	 * Delete the files of the objects in the directory
+	 */
+	private boolean reset(File dir) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix_);
+			}
+		});
+		if (files == null)
+			return dir.mkdirs();
+
+		boolean result = true;
+		for (int i = 0; i < files.length; i++) {
+			result &= files[i].delete();
+		}
+		return result;
+	}
+
+	/**
+	 * File of the object stored under the key
+	 */
+	private File file(int key) {
+		if (sharded_)
+			return new File(new File(dir_, shard_name(key)), prefix_ + key);
+		return new File(dir_, prefix_ + key);
+	}
+
+	/**
+	 * Directory of the files
+	 */
+	private File dir_;
+
+	/**
+	 * Whether the files are spread over the subdirectories
+	 */
+	private boolean sharded_;
+
+	/**
+	 * Prefix of the file names
+	 */
+	private String prefix_;
+
+	/**
+	 * Codec to encode and decode the objects
+	 */
+	private StorageCodec<Type> codec_;
+}
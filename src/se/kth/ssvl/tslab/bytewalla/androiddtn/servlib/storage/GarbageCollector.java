@@ -0,0 +1,337 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+import android.util.Log;
+
+/**
+ * This class is implemented as Singleton to reclaim the storage left behind
+ * by bundles which were not deleted completely, for example when the phone
+ * was switched off in the middle. A background thread checks a small batch at
+ * a time and sleeps between the steps, first the rows of the bundles table
+ * whose bundle metadata is missing and then the bundle and payload files of
+ * the shard folders whose row is missing. The position is kept in cursors so
+ * every step continues where the last one stopped. Only files of bundles
+ * from before this start are deleted, the files of new bundles appear before
+ * their row is added.
+ */
+
+public class GarbageCollector implements Runnable {
+
+	/**
+	 *  Singleton instance Implementation of the GarbageCollector
+	 */
+	private static GarbageCollector instance_ = null;
+
+	/**
+	 * TAG for Android Logging
+	 */
+	private static String TAG = "GarbageCollector";
+
+    /**
+     * Singleton Implementation Getter function
+     * @return an singleton instance of GarbageCollector
+     */
+	public static GarbageCollector getInstance() {
+        if(instance_ == null) {
+           instance_ = new GarbageCollector();
+        }
+        return instance_;
+     }
+
+	/**
+	 * Private constructor for Singleton Implementation of the GarbageCollector
+	 */
+	private GarbageCollector() {
+		lock_ = new Lock();
+		wakeup_ = lock_.newCondition();
+	}
+
+    /**
+     * Read the garbage collection settings. The thread is started by start().
+     * @param config Get the application configuration to get the storage settings
+     */
+	public void init(DTNConfiguration config) {
+		interval_ = config.storage_setting().gc_interval();
+		batch_ = Math.max(1, config.storage_setting().gc_batch());
+		Log.d(TAG, String.format("gc interval %d ms, gc batch %d", interval_, batch_));
+	}
+
+    /**
+     * Start the background thread, called once the stored bundles are restored.
+     */
+	public void start() {
+		if (interval_ <= 0 || thread_ != null)
+			return;
+
+		stopped_ = false;
+		thread_ = new Thread(this, TAG);
+		thread_.setDaemon(true);
+		thread_.setPriority(Thread.MIN_PRIORITY);
+		thread_.start();
+	}
+
+    /**
+     * Background thread, runs one step every interval.
+     */
+	public void run() {
+		while (true) {
+			lock_.lock();
+			try {
+				if (stopped_)
+					break;
+				wakeup_.await(interval_, TimeUnit.MILLISECONDS);
+				if (stopped_)
+					break;
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Garbage collection thread interrupted");
+				break;
+			} finally {
+				lock_.unlock();
+			}
+			step();
+		}
+	}
+
+    /**
+     * Check the next batch of rows or files.
+     */
+	public void step() {
+		lock_.lock();
+		try {
+			long start = System.currentTimeMillis();
+			if (shard_ < 0)
+				collect_rows();
+			else
+				collect_files();
+			step_time_ += System.currentTimeMillis() - start;
+			steps_++;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Stop the background thread.
+     */
+	public void close() {
+		Thread thread = thread_;
+		lock_.lock();
+		try {
+			stopped_ = true;
+			wakeup_.signal();
+		} finally {
+			lock_.unlock();
+		}
+
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted while waiting for the garbage collection thread");
+			}
+		}
+		thread_ = null;
+	}
+
+    /**
+     * Start over from the first row, called when the storage is reset.
+     */
+	public void reset() {
+		lock_.lock();
+		try {
+			row_cursor_ = 0;
+			shard_ = -1;
+			files_ = null;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Format the given StringBuffer with the garbage collection statistics.
+	 */
+	public void get_stats(StringBuffer buf) {
+		lock_.lock();
+		try {
+			buf.append(String.format("%d gc_passes -- " + "%d gc_steps -- " + "%d gc_ms -- "
+					+ "%d gc_rows_checked -- " + "%d gc_rows_reclaimed -- "
+					+ "%d gc_files_checked -- " + "%d gc_files_reclaimed -- "
+					+ "%d gc_bytes_reclaimed -- " + "%s gc_cursor -- ",
+					passes_, steps_, step_time_, rows_checked_, rows_reclaimed_,
+					files_checked_, files_reclaimed_, bytes_reclaimed_,
+					shard_ < 0 ? "row " + row_cursor_ : "shard " + shard_));
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Check the rows after the row cursor, the lock has to be held
+	 */
+	private void collect_rows() {
+		List<Integer> ids = BundleStore.getInstance().next_bundle_ids(row_cursor_, batch_);
+		for (int i = 0; i < ids.size(); i++) {
+			int id = ids.get(i);
+			rows_checked_++;
+			if (BundleStore.getInstance().collect_row(id)) {
+				Log.d(TAG, "Deleted the row of bundle " + id + " without metadata");
+				rows_reclaimed_++;
+			}
+			row_cursor_ = id;
+		}
+
+		if (ids.size() < batch_) {
+			row_cursor_ = 0;
+			shard_ = 0;
+			files_ = null;
+		}
+	}
+
+	/**
+	 * Check the next files of the current shard folder, the lock has to be held
+	 */
+	private void collect_files() {
+		if (files_ == null) {
+			files_ = BundleStore.getInstance().shard_dir(shard_).listFiles();
+			if (files_ == null)
+				files_ = new File[0];
+			file_cursor_ = 0;
+		}
+
+		int end = Math.min(files_.length, file_cursor_ + batch_);
+		for (; file_cursor_ < end; file_cursor_++) {
+			File file = files_[file_cursor_];
+			long length = file.length();
+			files_checked_++;
+			if (BundleStore.getInstance().collect_file(file)) {
+				Log.d(TAG, "Deleted " + file.getName() + " without bundle");
+				files_reclaimed_++;
+				bytes_reclaimed_ += length;
+			}
+		}
+
+		if (file_cursor_ >= files_.length) {
+			files_ = null;
+			if (++shard_ >= FileObjectStore.SHARDS) {
+				shard_ = -1;
+				passes_++;
+			}
+		}
+	}
+
+	/**
+	 * Lock protecting the cursors and the statistics
+	 */
+	private Lock lock_;
+
+	/**
+	 * Condition to wake up the thread when it is stopped
+	 */
+	private Condition wakeup_;
+
+	/**
+	 * Time in milliseconds between the steps
+	 */
+	private int interval_;
+
+	/**
+	 * Number of rows or files checked by one step
+	 */
+	private int batch_;
+
+	/**
+	 * Background thread, null when not running
+	 */
+	private volatile Thread thread_;
+
+	/**
+	 * Flag to stop the thread
+	 */
+	private boolean stopped_;
+
+	/**
+	 * Last bundle id checked in the bundles table
+	 */
+	private int row_cursor_;
+
+	/**
+	 * Shard folder checked, -1 while the rows are checked
+	 */
+	private int shard_ = -1;
+
+	/**
+	 * Files of the shard folder checked
+	 */
+	private File[] files_;
+
+	/**
+	 * Index of the next file to check in files_
+	 */
+	private int file_cursor_;
+
+	/**
+	 * Number of finished passes over the rows and the files
+	 */
+	private long passes_;
+
+	/**
+	 * Number of steps
+	 */
+	private long steps_;
+
+	/**
+	 * Total time in milliseconds spent in steps
+	 */
+	private long step_time_;
+
+	/**
+	 * Number of rows checked
+	 */
+	private long rows_checked_;
+
+	/**
+	 * Number of rows deleted
+	 */
+	private long rows_reclaimed_;
+
+	/**
+	 * Number of files checked
+	 */
+	private long files_checked_;
+
+	/**
+	 * Number of files deleted
+	 */
+	private long files_reclaimed_;
+
+	/**
+	 * Number of bytes of the deleted files
+	 */
+	private long bytes_reclaimed_;
+}
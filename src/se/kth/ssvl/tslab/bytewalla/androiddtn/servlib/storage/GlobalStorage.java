@@ -20,15 +20,22 @@
 
 package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.storage_type_t;
-import android.content.Context;
-import android.os.Environment;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.eviction_policy_t;
 import android.util.Log;
 
 /**
  * GlobalStorage class is implemented as Singleton to keep the total application size.
+ * It also keeps the stored bundles ordered by the configured eviction policy
+ * to choose the bundles to delete when the storage quota is approached.
  * 
  * @author Sharjeel Ahmed (sharjeel@kth.se)
  */
@@ -60,35 +67,38 @@ public class GlobalStorage {
 	
     /**
      * This function initiate the Global Storage and calculate the total size application size.
-     * @param context The application context for getting for application paths  
+     * @param app_path Path of the application folder the stores keep their files in  
+     * @param metadata_path Database file or folder of the tables of the stores, null if they are only in memory  
      * @param config Get the application configuration to get the memory usage parameters 
      * @return returns true on success
      */        
     
 	
-    public boolean init(Context context, DTNConfiguration config){
+    public boolean init(String app_path, String metadata_path, DTNConfiguration config){
     	config_ = config;
-
-    	impt_storage_ = new StorageImplementation<Bundle>(context);
     	
-		String app_folder = "/"+config_.storage_setting().storage_path();
-		String path;
-		
-		if(config.storage_setting().storage_type()==storage_type_t.PHONE){
-    		path = context.getFilesDir().getAbsolutePath().concat(app_folder);
-    	}else{
-    		path = Environment.getExternalStorageDirectory().getAbsolutePath().concat(app_folder);
-    	}
+    	policy_ = config.storage_setting().eviction_policy();
+    	evict_custody_ = config.storage_setting().evict_custody();
+    	candidates_ = new TreeSet<Bundle>(comparator(policy_));
+    	index_.clear();
+    	candidate_size_ = 0;
+    	Log.d(TAG, "Eviction policy: "+policy_.getCaption()+(evict_custody_ ? "" : ", never evicting custody bundles"));
 
-		String path_registration = path+"/registration";
-		
-		String path_database = context.getDatabasePath(config.storage_setting().storage_path()).getAbsolutePath();
+    	impt_storage_ = new StorageImplementation<Bundle>();
+    	
+		String path_registration = app_path+"/registration";
 	
 		// Total bundles size will be calculated in BundleStorge and added here 
 	//total_size_ += impt_storage_.get_directory_size(path_storage);
 		total_size_ += impt_storage_.get_directory_size(path_registration);
 		Log.d(TAG, "Total Size of DTN Folder:"+total_size_);
-		total_size_ += impt_storage_.get_file_size(path_database);
+		if(metadata_path!=null){
+			if(new File(metadata_path).isDirectory()){
+				total_size_ += impt_storage_.get_directory_size(metadata_path);
+			}else{
+				total_size_ += impt_storage_.get_file_size(metadata_path);
+			}
+		}
     	Log.d(TAG, "Total Size of DTN Folder:"+total_size_);
 
     	return true;
@@ -99,6 +109,11 @@ public class GlobalStorage {
 	 */
     private  GlobalStorage(){
 		total_size_ = 0;
+		policy_ = eviction_policy_t.NONE;
+		candidates_ = new TreeSet<Bundle>(comparator(policy_));
+		sizes_ = new HashMap<Integer, Long>();
+		index_ = new HashMap<Integer, Bundle>();
+		evicting_ = new HashMap<Integer, Long>();
 	}
 
     /**
@@ -141,6 +156,212 @@ public class GlobalStorage {
 	public void remove_total_size(long size){
 		total_size_ -= size;
 	}
+
+    /**
+     * Add a stored bundle to the eviction candidates.
+     * @param bundle The bundle
+     * @param size Number of bytes the bundle uses in the storage
+     */        
+	public synchronized void track(Bundle bundle, long size){
+		if(sizes_.put(bundle.bundleid(), size)==null && evictable(bundle)){
+			add_candidate(bundle, size);
+		}
+	}
+
+    /**
+     * Remove a deleted bundle from the eviction candidates.
+     * @param bundleid Bundle id of the deleted bundle
+     */        
+	public synchronized void untrack(int bundleid){
+		remove_candidate(bundleid);
+		sizes_.remove(bundleid);
+		evicting_size_ -= value(evicting_.remove(bundleid));
+	}
+
+    /**
+     * Remove a deleted bundle from the eviction candidates.
+     * @param bundle The deleted bundle
+     */        
+	public synchronized void untrack(Bundle bundle){
+		untrack(bundle.bundleid());
+	}
+
+    /**
+     * Update the eviction candidates after the local custody of a stored bundle
+     * was taken or released. Custody bundles are no candidates unless evicting
+     * them is allowed.
+     * @param bundle The bundle
+     */        
+	public synchronized void custody_changed(Bundle bundle){
+		Long size = sizes_.get(bundle.bundleid());
+		if(size==null){
+			return;
+		}
+		if(evictable(bundle)){
+			if(!index_.containsKey(bundle.bundleid())){
+				add_candidate(bundle, size.longValue());
+			}
+		}else{
+			remove_candidate(bundle.bundleid());
+		}
+	}
+
+    /**
+     * Storage in use without the bundles already chosen for eviction which are not deleted yet.
+     * @return Number of bytes
+     */        
+	public synchronized long get_effective_size(){
+		return total_size_ - evicting_size_;
+	}
+
+    /**
+     * Choose the bundles to delete so that a new bundle of the given size keeps the
+     * storage under the eviction threshold of the quota, or at least under the quota
+     * if the threshold can't be reached. Nothing is chosen if the bundle can't fit
+     * even after evicting all the candidates. Each victim is taken from the head of
+     * the ordered candidates in O(log n). The chosen bundles are no candidates anymore
+     * and their size is not counted by get_effective_size() until they are deleted.
+     * @param needed Number of bytes of the new bundle
+     * @param quota Storage quota in bytes, 0 for no quota
+     * @return The bundles to delete, empty if nothing has to or can be deleted
+     */        
+	public synchronized List<Bundle> select_victims(long needed, long quota){
+		List<Bundle> victims = new ArrayList<Bundle>();
+		if(policy_==eviction_policy_t.NONE || quota==0){
+			return victims;
+		}
+		
+		long limit = quota / 100 * config_.storage_setting().eviction_threshold();
+		long used = total_size_ - evicting_size_;
+		if(used + needed <= limit){
+			return victims;
+		}
+		
+		long least = used - candidate_size_ + needed;
+		if(least > limit){
+			if(least > quota){
+				Log.d(TAG, "Not evicting, "+needed+" bytes don't fit in the quota even without the "
+						+candidates_.size()+" candidates");
+				return victims;
+			}
+			limit = quota;
+		}
+		
+		while(used + needed > limit){
+			Bundle bundle = candidates_.first();
+			long size = remove_candidate(bundle.bundleid());
+			sizes_.remove(bundle.bundleid());
+			evicting_.put(bundle.bundleid(), size);
+			evicting_size_ += size;
+			used -= size;
+			victims.add(bundle);
+		}
+		
+		Log.d(TAG, "Evicting "+victims.size()+" bundles");
+		return victims;
+	}
+
+    /**
+     * Drop all the eviction candidates, called when the storage is reset.
+     */        
+	public synchronized void clear_candidates(){
+		candidates_.clear();
+		index_.clear();
+		candidate_size_ = 0;
+		sizes_.clear();
+		evicting_.clear();
+		evicting_size_ = 0;
+	}
+
+    /**
+     * Whether the bundle can be chosen for eviction
+     */        
+	private boolean evictable(Bundle bundle){
+		return evict_custody_ || !bundle.local_custody();
+	}
+
+    /**
+     * Add a bundle to the ordered candidates and the id index
+     */        
+	private void add_candidate(Bundle bundle, long size){
+		candidates_.add(bundle);
+		index_.put(bundle.bundleid(), bundle);
+		candidate_size_ += size;
+	}
+
+    /**
+     * Remove a bundle from the ordered candidates and the id index in O(log n)
+     * @return Number of bytes the removed candidate uses, 0 if it was no candidate
+     */        
+	private long remove_candidate(int bundleid){
+		Bundle bundle = index_.remove(bundleid);
+		if(bundle==null){
+			return 0;
+		}
+		candidates_.remove(bundle);
+		long size = value(sizes_.get(bundleid));
+		candidate_size_ -= size;
+		return size;
+	}
+
+    /**
+     * Build the order of the eviction candidates for the policy, the first is evicted first.
+     * All the compared fields are fixed when the bundle is stored. Ties are broken by the bundle id.
+     * @param policy The eviction policy
+     * @return The comparator
+     */        
+	private static Comparator<Bundle> comparator(final eviction_policy_t policy){
+		return new Comparator<Bundle>() {
+			public int compare(Bundle b1, Bundle b2) {
+				int result = 0;
+				switch(policy){
+				case EXPIRE_SOONEST:
+					result = compare_long(b1.creation_ts().seconds() + b1.expiration(),
+							b2.creation_ts().seconds() + b2.expiration());
+					break;
+				case LOWEST_PRIORITY:
+					result = compare_long(b1.priority().getCode(), b2.priority().getCode());
+					if(result==0){
+						result = compare_creation(b1, b2);
+					}
+					break;
+				case OLDEST:
+					result = compare_creation(b1, b2);
+					break;
+				case NONE:
+				}
+				if(result==0){
+					result = compare_long(b1.bundleid(), b2.bundleid());
+				}
+				return result;
+			}
+		};
+	}
+
+    /**
+     * Compare the creation timestamps of the bundles
+     */        
+	private static int compare_creation(Bundle b1, Bundle b2){
+		int result = compare_long(b1.creation_ts().seconds(), b2.creation_ts().seconds());
+		if(result==0){
+			result = compare_long(b1.creation_ts().seqno(), b2.creation_ts().seqno());
+		}
+		return result;
+	}
+
+    /**
+     * Compare two long values
+     */        
+	private static int compare_long(long a, long b){
+		return a < b ? -1 : (a > b ? 1 : 0);
+	}
+
+    /**
+     * Value of a nullable size
+     */        
+	private static long value(Long size){
+		return size==null ? 0 : size.longValue();
+	}
 	/**
 	 * Total memory consumption 
 	 */
@@ -151,6 +372,46 @@ public class GlobalStorage {
 	 * DTNConfiguration to stores the application configurations,  
 	 */
 	private DTNConfiguration config_;
+	
+	/**
+	 * Configured eviction policy
+	 */
+	private eviction_policy_t policy_;
+	
+	/**
+	 * Whether bundles in local custody can be evicted
+	 */
+	private boolean evict_custody_;
+	
+	/**
+	 * Stored bundles in the order they are evicted
+	 */
+	private TreeSet<Bundle> candidates_;
+	
+	/**
+	 * Eviction candidates by bundle id
+	 */
+	private HashMap<Integer, Bundle> index_;
+	
+	/**
+	 * Total storage size of the eviction candidates
+	 */
+	private long candidate_size_;
+	
+	/**
+	 * Storage size of the stored bundles by bundle id
+	 */
+	private HashMap<Integer, Long> sizes_;
+	
+	/**
+	 * Storage size of the bundles chosen for eviction which are not deleted yet, by bundle id
+	 */
+	private HashMap<Integer, Long> evicting_;
+	
+	/**
+	 * Total storage size of the bundles chosen for eviction which are not deleted yet
+	 */
+	private long evicting_size_;
 
 	/**
 	 * StorageImplementation object to use with bundle 
@@ -0,0 +1,849 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.zip.CRC32;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+import android.util.Log;
+
+/**
+ * This class is the log-structured implementation of Storage.
+ * Objects are appended as records to segment files, an in-memory index keeps
+ * the location of the latest record of every key and a background thread
+ * compacts the segments which are mostly garbage. The index is rebuilt by
+ * scanning the segments when the storage is opened. Only failures are
+ * logged, the normal path uses no Android APIs.
+ *
+ * Record layout: magic (4) | type (1) | key (4) | length (4) | crc32 (4) | data (length)
+ */
+
+public class LogStructuredImplementation<Type> implements ObjectStore<Type> {
+
+	/**
+	 * TAG for Android Logging
+	 */
+	public static String TAG = "LogStructuredImplementation";
+
+	/**
+	 * Magic number at the beginning of every record
+	 */
+	private static final int RECORD_MAGIC = 0x44544E4C;
+
+	/**
+	 * Record type for a stored object
+	 */
+	private static final byte RECORD_PUT = 1;
+
+	/**
+	 * Record type for a deleted object (tombstone)
+	 */
+	private static final byte RECORD_DEL = 2;
+
+	/**
+	 * Length of the record header in bytes
+	 */
+	private static final int RECORD_HEADER_LENGTH = 17;
+
+	/**
+	 * Default size after which the active segment is sealed and a new one is started
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+	/**
+	 * A sealed segment is compacted when less than this fraction of it is live
+	 */
+	private static final double COMPACTION_LIVE_RATIO = 0.5;
+
+	/**
+	 * Interval in seconds in which the compactor checks the segments even without being signaled
+	 */
+	private static final int COMPACTION_INTERVAL = 60;
+
+	/**
+	 * default segment file name
+	 */
+	private static String segmentFileName = "segment_";
+
+	/**
+	 * Location of a record in the log
+	 */
+	private static class RecordLocation {
+
+		/**
+		 * Segment number holding the record
+		 */
+		int segment_;
+
+		/**
+		 * Offset of the record header in the segment
+		 */
+		long offset_;
+
+		/**
+		 * Total length of the record including the header
+		 */
+		int length_;
+
+		RecordLocation(int segment, long offset, int length) {
+			segment_ = segment;
+			offset_ = offset;
+			length_ = length;
+		}
+	}
+
+	/**
+	 * Segment file with its accounting
+	 */
+	private static class Segment {
+
+		/**
+		 * Segment number, segments are ordered by their number
+		 */
+		int number_;
+
+		/**
+		 * Segment file
+		 */
+		File file_;
+
+		/**
+		 * Open file handle
+		 */
+		RandomAccessFile handle_;
+
+		/**
+		 * Bytes written to the segment
+		 */
+		long size_;
+
+		/**
+		 * Bytes still referenced by the index
+		 */
+		long live_;
+
+		/**
+		 * Keys of the stored objects in the segment, live or not
+		 */
+		HashSet<Integer> keys_ = new HashSet<Integer>();
+
+		double live_ratio() {
+			if (size_ == 0)
+				return 1.0;
+			return (double) live_ / (double) size_;
+		}
+	}
+
+	/**
+	 * Constructor
+	 */
+	public LogStructuredImplementation() {
+		this(null);
+	}
+
+	/**
+	 * Constructor with a binary codec used instead of the Java serialization
+	 * @param codec Codec to encode and decode the objects
+	 */
+	public LogStructuredImplementation(StorageCodec<Type> codec) {
+		codec_ = codec;
+		lock_ = new Lock();
+		compaction_needed_ = lock_.newCondition();
+		index_ = new HashMap<Integer, RecordLocation>();
+		segments_ = new TreeMap<Integer, Segment>();
+		segment_size_ = DEFAULT_SEGMENT_SIZE;
+	}
+
+	/**
+	 * Open the log in the directory. Existing segments are scanned to rebuild the index
+	 * and the compaction thread is started.
+	 * @param path Directory of the segment files
+	 * @return True if the log is ready to be used else false
+	 */
+	public boolean open(String path) {
+		lock_.lock();
+		try {
+			dir_ = new File(path);
+			if (!dir_.isDirectory() && !dir_.mkdirs()) {
+				Log.e(TAG, "Unable to create log directory " + path);
+				return false;
+			}
+
+			File[] files = dir_.listFiles(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.startsWith(segmentFileName);
+				}
+			});
+			Arrays.sort(files);
+
+			for (int i = 0; i < files.length; i++) {
+				int number;
+				try {
+					number = Integer.parseInt(files[i].getName().substring(
+							segmentFileName.length()));
+				} catch (NumberFormatException e) {
+					Log.e(TAG, "Ignoring unknown file in log directory " + files[i].getName());
+					continue;
+				}
+				Segment segment = open_segment(number);
+				scan_segment(segment);
+			}
+
+			if (segments_.isEmpty()) {
+				active_ = open_segment(1);
+			} else {
+				active_ = segments_.get(segments_.lastKey());
+			}
+
+			start_compactor();
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open log: " + e.toString());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Append the object to the log under the key
+	 * @param object Object to store
+	 * @param key Key of the object
+	 * @return True if the record was successfully appended else false
+	 */
+	public boolean add_object(Type object, int key) {
+		byte[] data = encode(object);
+		if (data == null)
+			return false;
+
+		lock_.lock();
+		try {
+			RecordLocation location = append_record(RECORD_PUT, key, data);
+			RecordLocation old = index_.put(key, location);
+			if (old != null) {
+				release(old);
+			}
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Appending record " + key + ":" + e.toString());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Read the latest stored object under the key
+	 * @param key Key of the object
+	 * @return The stored object or null if there is none
+	 */
+	public Type get_object(int key) {
+		byte[] data;
+		lock_.lock();
+		try {
+			RecordLocation location = index_.get(key);
+			if (location == null)
+				return null;
+
+			data = read_record_data(location);
+		} catch (IOException e) {
+			Log.e(TAG, "Reading record " + key + ":" + e.toString());
+			return null;
+		} finally {
+			lock_.unlock();
+		}
+		return decode(data);
+	}
+
+	/**
+	 * Delete the object stored under the key by appending a tombstone
+	 * @param key Key of the object
+	 * @return True if the object existed and was deleted else false
+	 */
+	public boolean delete_object(int key) {
+		lock_.lock();
+		try {
+			RecordLocation old = index_.remove(key);
+			if (old == null)
+				return false;
+
+			release(old);
+			RecordLocation tombstone = append_record(RECORD_DEL, key, new byte[0]);
+			// tombstones are garbage as soon as the record they shadow is compacted
+			segments_.get(tombstone.segment_).live_ -= tombstone.length_;
+			garbage_appended();
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Appending tombstone " + key + ":" + e.toString());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Check if there is an object stored under the key
+	 * @param key Key of the object
+	 * @return True if the object exists else false
+	 */
+	public boolean contains(int key) {
+		lock_.lock();
+		try {
+			return index_.containsKey(key);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Get the length of the data of the latest record stored under the key
+	 * @param key Key of the object
+	 * @return Length in bytes or 0 if there is no object
+	 */
+	public long get_record_size(int key) {
+		lock_.lock();
+		try {
+			RecordLocation location = index_.get(key);
+			if (location == null)
+				return 0;
+			return location.length_ - RECORD_HEADER_LENGTH;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Get the total size of all the segment files
+	 * @return Total size in bytes
+	 */
+	public long get_total_size() {
+		lock_.lock();
+		try {
+			long result = 0;
+			Iterator<Segment> iter = segments_.values().iterator();
+			while (iter.hasNext()) {
+				result += iter.next().size_;
+			}
+			return result;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Get number of the live records
+	 * @return Number of keys in the index
+	 */
+	public int get_record_count() {
+		lock_.lock();
+		try {
+			return index_.size();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Setter for the size after which the active segment is sealed
+	 * @param segment_size Segment size in bytes
+	 */
+	public void set_segment_size(long segment_size) {
+		segment_size_ = segment_size;
+	}
+
+	/**
+	 * Force the active segment to the disk
+	 * @return True on success else false
+	 */
+	public boolean sync() {
+		lock_.lock();
+		try {
+			if (active_ != null)
+				active_.handle_.getFD().sync();
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to sync log: " + e.toString());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Delete all the segments and start with an empty log
+	 * @return True on success else false
+	 */
+	public boolean reset() {
+		lock_.lock();
+		try {
+			Iterator<Segment> iter = segments_.values().iterator();
+			while (iter.hasNext()) {
+				Segment segment = iter.next();
+				segment.handle_.close();
+				segment.file_.delete();
+			}
+			segments_.clear();
+			index_.clear();
+			active_ = open_segment(1);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to reset log: " + e.toString());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Stop the compactor and close all the segments
+	 */
+	public void close() {
+		Thread compactor;
+		lock_.lock();
+		try {
+			closed_ = true;
+			compaction_needed_.signalAll();
+			compactor = compactor_;
+			compactor_ = null;
+		} finally {
+			lock_.unlock();
+		}
+
+		if (compactor != null) {
+			try {
+				compactor.join();
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted while waiting for the compactor");
+			}
+		}
+
+		lock_.lock();
+		try {
+			Iterator<Segment> iter = segments_.values().iterator();
+			while (iter.hasNext()) {
+				try {
+					iter.next().handle_.close();
+				} catch (IOException e) {
+					Log.e(TAG, "Unable to close segment: " + e.toString());
+				}
+			}
+			segments_.clear();
+			index_.clear();
+			active_ = null;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Compact the sealed segment with the lowest live ratio if it is below the threshold.
+	 * Live records are copied to the active segment one at a time, so puts and gets
+	 * continue during the compaction. The segments the records were copied to are
+	 * synced before the old segment is deleted.
+	 * @return True if a segment was compacted else false
+	 */
+	public boolean compact() {
+		Segment victim = null;
+		int first_written;
+		lock_.lock();
+		try {
+			Iterator<Segment> iter = segments_.values().iterator();
+			while (iter.hasNext()) {
+				Segment segment = iter.next();
+				if (segment == active_)
+					continue;
+				if (segment.live_ratio() < COMPACTION_LIVE_RATIO
+						&& (victim == null || segment.live_ratio() < victim.live_ratio())) {
+					victim = segment;
+				}
+			}
+
+			if (victim == null)
+				return false;
+
+			first_written = active_.number_;
+		} finally {
+			lock_.unlock();
+		}
+
+		try {
+			long offset = 0;
+			while (offset + RECORD_HEADER_LENGTH <= victim.size_) {
+				lock_.lock();
+				try {
+					if (closed_ || segments_.get(victim.number_) != victim)
+						return false;
+					offset += copy_if_live(victim, offset);
+				} finally {
+					lock_.unlock();
+				}
+			}
+
+			lock_.lock();
+			try {
+				if (closed_ || segments_.get(victim.number_) != victim)
+					return false;
+
+				// the copies have to be on the disk before the only other copy is gone
+				Iterator<Segment> written = segments_.tailMap(first_written).values().iterator();
+				while (written.hasNext())
+					written.next().handle_.getFD().sync();
+
+				segments_.remove(victim.number_);
+				victim.handle_.close();
+				if (!victim.file_.delete()) {
+					Log.e(TAG, "Unable to delete compacted segment " + victim.file_.getName());
+				}
+				return true;
+			} finally {
+				lock_.unlock();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Compaction failed: " + e.toString());
+			return false;
+		}
+	}
+
+	/**
+	 * Copy the record at the offset of the victim segment to the active segment
+	 * if it is still needed, the lock has to be held
+	 * @return the length of the record
+	 */
+	private int copy_if_live(Segment victim, long offset) throws IOException {
+		victim.handle_.seek(offset);
+		victim.handle_.readInt();
+		byte type = victim.handle_.readByte();
+		int key = victim.handle_.readInt();
+		int length = victim.handle_.readInt();
+
+		RecordLocation location = index_.get(key);
+		if (type == RECORD_PUT && location != null
+				&& location.segment_ == victim.number_
+				&& location.offset_ == offset) {
+			byte[] data = read_record_data(location);
+			index_.put(key, append_record(RECORD_PUT, key, data));
+		} else if (type == RECORD_DEL && location == null
+				&& older_segment_has(key, victim.number_)) {
+			// keep the tombstone as long as an older segment still holds the object
+			RecordLocation tombstone = append_record(RECORD_DEL, key, new byte[0]);
+			segments_.get(tombstone.segment_).live_ -= tombstone.length_;
+		}
+		return RECORD_HEADER_LENGTH + length;
+	}
+
+	/**
+	 * Whether a segment older than the given one has a stored object under the key, the lock has to be held
+	 */
+	private boolean older_segment_has(int key, int number) {
+		Iterator<Segment> iter = segments_.headMap(number).values().iterator();
+		while (iter.hasNext()) {
+			if (iter.next().keys_.contains(key))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Serialize the object to a byte array with the codec or the Java serialization
+	 */
+	protected byte[] encode(Type object) {
+		if (codec_ != null)
+			return codec_.encode(object);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ObjectOutputStream objStream = new ObjectOutputStream(out);
+			objStream.writeObject(object);
+			objStream.close();
+			return out.toByteArray();
+		} catch (Throwable t) {
+			Log.e(TAG, "Unable to serialize object:" + t.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Deserialize the object from a byte array with the codec or the Java serialization
+	 */
+	@SuppressWarnings("unchecked")
+	protected Type decode(byte[] data) {
+		if (codec_ != null)
+			return codec_.decode(data);
+		try {
+			ObjectInputStream objStream = new ObjectInputStream(
+					new ByteArrayInputStream(data));
+			Type object = (Type) objStream.readObject();
+			objStream.close();
+			return object;
+		} catch (Throwable t) {
+			Log.e(TAG, "Unable to deserialize object:" + t.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Open or create the segment file with the given number and register it
+	 */
+	private Segment open_segment(int number) throws IOException {
+		Segment segment = new Segment();
+		segment.number_ = number;
+		segment.file_ = new File(dir_, String.format("%s%08d", segmentFileName, number));
+		segment.handle_ = new RandomAccessFile(segment.file_, "rw");
+		segment.size_ = segment.handle_.length();
+		segment.live_ = 0;
+		segments_.put(number, segment);
+		return segment;
+	}
+
+	/**
+	 * Scan a segment and apply its records to the index. A torn or corrupted
+	 * tail left by a crash is cut off.
+	 */
+	private void scan_segment(Segment segment) throws IOException {
+		long offset = 0;
+		RandomAccessFile handle = segment.handle_;
+		while (offset + RECORD_HEADER_LENGTH <= segment.size_) {
+			handle.seek(offset);
+			int magic = handle.readInt();
+			byte type = handle.readByte();
+			int key = handle.readInt();
+			int length = handle.readInt();
+			long crc = handle.readInt() & 0xffffffffL;
+
+			if (magic != RECORD_MAGIC || length < 0
+					|| offset + RECORD_HEADER_LENGTH + length > segment.size_) {
+				break;
+			}
+
+			byte[] data = new byte[length];
+			handle.readFully(data);
+			if (checksum(type, key, data) != crc) {
+				break;
+			}
+
+			int record_length = RECORD_HEADER_LENGTH + length;
+			RecordLocation old;
+			if (type == RECORD_PUT) {
+				old = index_.put(key, new RecordLocation(segment.number_, offset, record_length));
+				segment.live_ += record_length;
+				segment.keys_.add(key);
+			} else {
+				old = index_.remove(key);
+			}
+			if (old != null) {
+				segments_.get(old.segment_).live_ -= old.length_;
+			}
+			offset += record_length;
+		}
+
+		if (offset < segment.size_) {
+			Log.e(TAG, String.format("Truncating segment %d from %d to %d bytes",
+					segment.number_, segment.size_, offset));
+			handle.setLength(offset);
+			segment.size_ = offset;
+		}
+	}
+
+	/**
+	 * Append a record to the active segment, sealing it first if it is full
+	 */
+	private RecordLocation append_record(byte type, int key, byte[] data) throws IOException {
+		if (active_.size_ >= segment_size_) {
+			active_ = open_segment(segments_.lastKey() + 1);
+		}
+
+		ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_LENGTH + data.length);
+		write_int(record, RECORD_MAGIC);
+		record.write(type);
+		write_int(record, key);
+		write_int(record, data.length);
+		write_int(record, (int) checksum(type, key, data));
+		record.write(data, 0, data.length);
+
+		long offset = active_.size_;
+		active_.handle_.seek(offset);
+		active_.handle_.write(record.toByteArray());
+
+		int record_length = RECORD_HEADER_LENGTH + data.length;
+		active_.size_ += record_length;
+		active_.live_ += record_length;
+		if (type == RECORD_PUT)
+			active_.keys_.add(key);
+		return new RecordLocation(active_.number_, offset, record_length);
+	}
+
+	/**
+	 * Read the data part of a record
+	 */
+	private byte[] read_record_data(RecordLocation location) throws IOException {
+		Segment segment = segments_.get(location.segment_);
+		byte[] data = new byte[location.length_ - RECORD_HEADER_LENGTH];
+		segment.handle_.seek(location.offset_ + RECORD_HEADER_LENGTH);
+		segment.handle_.readFully(data);
+		return data;
+	}
+
+	/**
+	 * Account a record which is not referenced by the index anymore
+	 */
+	private void release(RecordLocation location) {
+		Segment segment = segments_.get(location.segment_);
+		if (segment != null) {
+			segment.live_ -= location.length_;
+		}
+		garbage_appended();
+	}
+
+	/**
+	 * Wake up the compactor if a sealed segment became worth compacting
+	 */
+	private void garbage_appended() {
+		if (segments_.size() > 1) {
+			compaction_requested_ = true;
+			compaction_needed_.signal();
+		}
+	}
+
+	/**
+	 * Start the background compaction thread
+	 */
+	private void start_compactor() {
+		closed_ = false;
+		compactor_ = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (!closed_) {
+						if (compact())
+							continue;
+
+						// the lock is only held while waiting, compact takes it itself
+						lock_.lock();
+						try {
+							if (!closed_ && !compaction_requested_)
+								compaction_needed_.await(COMPACTION_INTERVAL, TimeUnit.SECONDS);
+							compaction_requested_ = false;
+						} finally {
+							lock_.unlock();
+						}
+					}
+				} catch (InterruptedException e) {
+					Log.e(TAG, "Compactor interrupted");
+				}
+			}
+		}, TAG);
+		compactor_.setDaemon(true);
+		compactor_.start();
+	}
+
+	/**
+	 * Checksum over the record type, key and data
+	 */
+	private static long checksum(byte type, int key, byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(type);
+		crc.update(key >>> 24);
+		crc.update(key >>> 16);
+		crc.update(key >>> 8);
+		crc.update(key);
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+
+	/**
+	 * Write an integer in the network byte order
+	 */
+	private static void write_int(ByteArrayOutputStream out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	/**
+	 * Codec to encode the objects, null to use the Java serialization
+	 */
+	private StorageCodec<Type> codec_;
+
+	/**
+	 * Directory of the segment files
+	 */
+	private File dir_;
+
+	/**
+	 * Lock protecting the index and the segments
+	 */
+	private Lock lock_;
+
+	/**
+	 * Condition to wake up the compactor
+	 */
+	private Condition compaction_needed_;
+
+	/**
+	 * Index from key to the location of its latest record
+	 */
+	private Map<Integer, RecordLocation> index_;
+
+	/**
+	 * All the segments ordered by their number
+	 */
+	private TreeMap<Integer, Segment> segments_;
+
+	/**
+	 * Segment currently appended to
+	 */
+	private Segment active_;
+
+	/**
+	 * Size after which the active segment is sealed
+	 */
+	private long segment_size_;
+
+	/**
+	 * Background compaction thread
+	 */
+	private Thread compactor_;
+
+	/**
+	 * Flag to stop the compactor
+	 */
+	private volatile boolean closed_;
+
+	/**
+	 * Flag set when garbage was appended since the compactor last looked
+	 */
+	private boolean compaction_requested_;
+}
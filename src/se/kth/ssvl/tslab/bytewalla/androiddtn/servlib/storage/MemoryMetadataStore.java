@@ -0,0 +1,1177 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+import android.util.Log;
+
+/**
+ * MetadataStore keeping the tables in memory, without a database. The rows
+ * of a table are ordered by their integer primary key. Of the SQLite dialect
+ * only the part used by the BundleStore and the RegistrationStore is
+ * understood:
+ * <ul>
+ * <li>create table with the column types, an integer primary key and
+ * autoincrement, alter table add column and drop table. create index is
+ * accepted and ignored.</li>
+ * <li>conditions of terms joined with AND, each comparing a column with =,
+ * !=, &lt;, &lt;=, &gt;, &gt;= or LIKE to a number, a quoted string or a ?
+ * argument. Terms on the primary key narrow the rows which are scanned.</li>
+ * <li>order by columns with ASC or DESC, a number as limit and the
+ * aggregates count, max, min and sum over a column.</li>
+ * </ul>
+ * Anything else is logged and fails like a query error of the SQLite
+ * backend. The tables are gone after close(), FileMetadataStore keeps them
+ * in a file. A transaction holds the lock of the store until it ends, so
+ * other threads wait for it like for the SQLite database, and its changes
+ * are rolled back unless it was marked successful.
+ * @see FileMetadataStore
+ */
+public class MemoryMetadataStore implements MetadataStore {
+
+	/**
+	 * TAG for Android Logging
+	 */
+	private static final String TAG = "MemoryMetadataStore";
+
+	/**
+	 * Column affinity of integer columns, values are kept as Long
+	 */
+	protected static final char AFFINITY_INTEGER = 'i';
+
+	/**
+	 * Column affinity of text columns, values are kept as String
+	 */
+	protected static final char AFFINITY_TEXT = 't';
+
+	/**
+	 * Column affinity of columns without a type, values are kept as they are
+	 */
+	protected static final char AFFINITY_NONE = 'n';
+
+	/**
+	 * Definition and rows of a table
+	 */
+	protected static class Table {
+
+		/**
+		 * Name of the table
+		 */
+		String name_;
+
+		/**
+		 * Column names with their affinity in the order of the definition
+		 */
+		LinkedHashMap<String, Character> columns_ = new LinkedHashMap<String, Character>();
+
+		/**
+		 * Integer primary key column, null if the rows only have an internal key
+		 */
+		String key_;
+
+		/**
+		 * Whether keys of deleted rows are never handed out again
+		 */
+		boolean autoincrement_;
+
+		/**
+		 * Highest key handed out with autoincrement
+		 */
+		long sequence_;
+
+		/**
+		 * Rows by their key
+		 */
+		TreeMap<Long, Map<String, Object>> rows_ = new TreeMap<Long, Map<String, Object>>();
+
+		Table(String name) {
+			name_ = name;
+		}
+	}
+
+	/**
+	 * Change of a transaction which can be rolled back
+	 */
+	private static abstract class Undo {
+		abstract void undo();
+	}
+
+	/**
+	 * One comparison of a condition
+	 */
+	private static class Term {
+		String column_;
+		String op_;
+		Object value_;
+	}
+
+	/**
+	 * Token of a statement, a word, a quoted string or a symbol
+	 */
+	private static class Token {
+		static final int WORD = 0;
+		static final int STRING = 1;
+		static final int SYMBOL = 2;
+
+		int kind_;
+		String text_;
+
+		Token(int kind, String text) {
+			kind_ = kind;
+			text_ = text;
+		}
+
+		boolean is(String word) {
+			return kind_ != STRING && text_.equalsIgnoreCase(word);
+		}
+	}
+
+	/**
+	 * Constructor
+	 */
+	public MemoryMetadataStore() {
+		lock_ = new Lock();
+		tables_ = new HashMap<String, Table>();
+		undo_ = new ArrayList<Undo>();
+		successful_ = new ArrayList<Boolean>();
+	}
+
+	public int add(String table, Map<String, Object> values) {
+		return insert(table, values, false);
+	}
+
+	public int replace(String table, Map<String, Object> values) {
+		return insert(table, values, true);
+	}
+
+	public boolean update(String table, Map<String, Object> values, String where, String[] whereArgs) {
+		lock_.lock();
+		try {
+			Table t = table(table);
+			List<Map<String, Object>> rows = select(t, where, whereArgs, null, null);
+			for (int i = 0; i < rows.size(); i++) {
+				Map<String, Object> row = new HashMap<String, Object>(rows.get(i));
+				Long old_key = (Long) row.get(t.key_);
+				set_values(t, row, values);
+				Long key = (Long) row.get(t.key_);
+				if (t.key_ != null && !old_key.equals(key)) {
+					if (key == null || t.rows_.containsKey(key))
+						throw new IllegalArgumentException("Primary key of " + t.name_ + " not unique");
+					remove_row(t, old_key.longValue());
+				}
+				put_row(t, key == null ? key_of(t, rows.get(i)) : key.longValue(), row);
+			}
+			changed();
+			return true;
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to update " + table + ": " + e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public int get_record(String table, String condition, String field, String orderBy, String limit) {
+		lock_.lock();
+		try {
+			Table t = table(table);
+			String column = column(t, field);
+			List<Map<String, Object>> rows = select(t, condition, null, orderBy, "1");
+			if (rows.isEmpty())
+				return -1;
+			return int_value(rows.get(0).get(column));
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to query " + table + ": " + e.getMessage());
+			return -1;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public List<Integer> get_records(String table, String condition, String field) {
+		return get_records(table, condition, null, field, null, null);
+	}
+
+	public List<Integer> get_records(String table, String condition, String[] args, String field,
+			String orderBy, String limit) {
+		List<Integer> result = new ArrayList<Integer>();
+		lock_.lock();
+		try {
+			Table t = table(table);
+			String column = column(t, field);
+			List<Map<String, Object>> rows = select(t, condition, args, orderBy, limit);
+			for (int i = 0; i < rows.size(); i++)
+				result.add(int_value(rows.get(i).get(column)));
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to query " + table + ": " + e.getMessage());
+		} finally {
+			lock_.unlock();
+		}
+		return result;
+	}
+
+	public int get_count(String table, String condition, String[] field) {
+		lock_.lock();
+		try {
+			Table t = tables_.get(table.toLowerCase());
+			if (t == null) {
+				// like sqlite_sequence, which only exists in the SQLite backend
+				Log.d(TAG, "No table " + table + " to count");
+				return 0;
+			}
+			return aggregate(t, field[0], select(t, condition, null, null, null));
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to count " + table + ": " + e.getMessage());
+			return 0;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public Iterator<Integer> get_all_bundles() {
+		return get_records("bundles", null, "id").iterator();
+	}
+
+	public boolean find_record(String table, String condition) {
+		lock_.lock();
+		try {
+			return !select(table(table), condition, null, null, "1").isEmpty();
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to query " + table + ": " + e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public boolean delete_record(String table, String condition) {
+		lock_.lock();
+		try {
+			Table t = table(table);
+			List<Map<String, Object>> rows = select(t, condition, null, null, null);
+			for (int i = 0; i < rows.size(); i++)
+				remove_row(t, key_of(t, rows.get(i)));
+			changed();
+			return !rows.isEmpty();
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to delete from " + table + ": " + e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public boolean has_column(String table, String column) {
+		lock_.lock();
+		try {
+			Table t = tables_.get(table.toLowerCase());
+			return t != null && t.columns_.containsKey(column.toLowerCase());
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public boolean execute(String sql) {
+		lock_.lock();
+		try {
+			Tokenizer tokens = new Tokenizer(sql);
+			Token first = tokens.expect_word();
+			if (first.is("create")) {
+				Token second = tokens.expect_word();
+				if (second.is("table"))
+					return create_table(sql);
+				if (second.is("index") || second.is("unique"))
+					return true;
+			} else if (first.is("alter")) {
+				tokens.expect("table");
+				Table t = table(tokens.expect_word().text_);
+				tokens.expect("add");
+				List<Token> definition = tokens.rest();
+				if (!definition.isEmpty() && definition.get(0).is("column"))
+					definition.remove(0);
+				Table altered = copy_definition(t);
+				add_column(altered, definition);
+				put_table(altered);
+				changed();
+				return true;
+			} else if (first.is("drop")) {
+				tokens.expect("table");
+				return drop_table(tokens.expect_word().text_);
+			}
+			throw new IllegalArgumentException("Statement not supported");
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to execute " + sql + ": " + e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public boolean create_table(String create_table_query) {
+		lock_.lock();
+		try {
+			Tokenizer tokens = new Tokenizer(create_table_query);
+			tokens.expect("create");
+			tokens.expect("table");
+			Token name = tokens.expect_word();
+			boolean if_not_exists = false;
+			if (name.is("if")) {
+				tokens.expect("not");
+				tokens.expect("exists");
+				name = tokens.expect_word();
+				if_not_exists = true;
+			}
+			if (tables_.containsKey(name.text_.toLowerCase())) {
+				if (if_not_exists)
+					return true;
+				throw new IllegalArgumentException("Table " + name.text_ + " exists");
+			}
+
+			Table t = new Table(name.text_.toLowerCase());
+			tokens.expect("(");
+			List<Token> definition = new ArrayList<Token>();
+			int depth = 0;
+			for (Token token = tokens.next(); ; token = tokens.next()) {
+				if (token == null)
+					throw new IllegalArgumentException("Missing )");
+				if (depth == 0 && (token.is(",") || token.is(")"))) {
+					add_column(t, definition);
+					definition.clear();
+					if (token.is(")"))
+						break;
+					continue;
+				}
+				if (token.is("("))
+					depth++;
+				else if (token.is(")"))
+					depth--;
+				definition.add(token);
+			}
+			put_table(t);
+			changed();
+			return true;
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to create table: " + e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public boolean drop_table(String tableName) {
+		lock_.lock();
+		try {
+			final Table t = table(tableName);
+			tables_.remove(t.name_);
+			if (depth_ > 0) {
+				undo_.add(new Undo() {
+					void undo() {
+						tables_.put(t.name_, t);
+					}
+				});
+			}
+			changed_table(t.name_, null);
+			changed();
+			return true;
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to drop table: " + e.getMessage());
+			return false;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public void begin_transaction() {
+		lock_.lock();
+		if (depth_ == 0)
+			failed_ = false;
+		depth_++;
+		successful_.add(Boolean.FALSE);
+	}
+
+	public void set_transaction_successful() {
+		lock_.lock();
+		try {
+			if (depth_ == 0) {
+				Log.e(TAG, "No transaction to mark successful");
+				return;
+			}
+			successful_.set(depth_ - 1, Boolean.TRUE);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public void end_transaction() {
+		if (!lock_.isHeldByCurrentThread() || depth_ == 0) {
+			Log.e(TAG, "No transaction to end");
+			return;
+		}
+		try {
+			if (!successful_.remove(depth_ - 1).booleanValue())
+				failed_ = true;
+			depth_--;
+			if (depth_ == 0) {
+				if (failed_) {
+					for (int i = undo_.size() - 1; i >= 0; i--)
+						undo_.get(i).undo();
+					rolled_back();
+				} else {
+					committed();
+				}
+				undo_.clear();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	public void close() {
+		lock_.lock();
+		try {
+			tables_.clear();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Called with the lock held for every changed row, outside of a
+	 * transaction the change is committed afterwards
+	 * @param table Table of the row
+	 * @param key Key of the row
+	 * @param row The new row, null if it was deleted
+	 */
+	protected void changed_row(Table table, long key, Map<String, Object> row) {
+	}
+
+	/**
+	 * Called with the lock held for every created, altered or dropped table
+	 * @param name Name of the table
+	 * @param table The new definition, null if the table was dropped
+	 */
+	protected void changed_table(String name, Table table) {
+	}
+
+	/**
+	 * Called with the lock held when the changes since the last call are
+	 * committed, after every change outside of a transaction
+	 */
+	protected void committed() {
+	}
+
+	/**
+	 * Called with the lock held when the changes since the last commit were
+	 * rolled back
+	 */
+	protected void rolled_back() {
+	}
+
+	/**
+	 * Insert a row, keeping the key if one is given or taking the next one
+	 */
+	private int insert(String table, Map<String, Object> values, boolean replace) {
+		lock_.lock();
+		try {
+			Table t = table(table);
+			Map<String, Object> row = new HashMap<String, Object>();
+			Iterator<String> columns = t.columns_.keySet().iterator();
+			while (columns.hasNext())
+				row.put(columns.next(), null);
+			set_values(t, row, values);
+
+			Long key = t.key_ == null ? null : (Long) row.get(t.key_);
+			if (key == null) {
+				key = next_key(t);
+				if (t.key_ != null)
+					row.put(t.key_, key);
+			} else if (!replace && t.rows_.containsKey(key)) {
+				throw new IllegalArgumentException("Primary key " + key + " of " + t.name_ + " not unique");
+			}
+			put_row(t, key.longValue(), row);
+			changed();
+			return key.intValue();
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unable to insert into " + table + ": " + e.getMessage());
+			return -1;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Commit a change made outside of a transaction
+	 */
+	private void changed() {
+		if (depth_ == 0)
+			committed();
+	}
+
+	/**
+	 * Store a row and remember how to roll it back
+	 */
+	private void put_row(final Table t, final long key, Map<String, Object> row) {
+		final Map<String, Object> old = t.rows_.put(key, row);
+		final long sequence = t.sequence_;
+		if (t.autoincrement_ && key > t.sequence_)
+			t.sequence_ = key;
+		if (depth_ > 0) {
+			undo_.add(new Undo() {
+				void undo() {
+					if (old == null)
+						t.rows_.remove(key);
+					else
+						t.rows_.put(key, old);
+					t.sequence_ = sequence;
+				}
+			});
+		}
+		changed_row(t, key, row);
+	}
+
+	/**
+	 * Delete a row and remember how to roll it back
+	 */
+	private void remove_row(final Table t, final long key) {
+		final Map<String, Object> old = t.rows_.remove(key);
+		if (old == null)
+			return;
+		if (depth_ > 0) {
+			undo_.add(new Undo() {
+				void undo() {
+					t.rows_.put(key, old);
+				}
+			});
+		}
+		changed_row(t, key, null);
+	}
+
+	/**
+	 * Create or replace a table definition and remember how to roll it back
+	 */
+	private void put_table(final Table t) {
+		final Table old = tables_.put(t.name_, t);
+		if (depth_ > 0) {
+			undo_.add(new Undo() {
+				void undo() {
+					if (old == null)
+						tables_.remove(t.name_);
+					else
+						tables_.put(t.name_, old);
+				}
+			});
+		}
+		changed_table(t.name_, t);
+	}
+
+	/**
+	 * Copy of the table definition sharing the rows
+	 */
+	private static Table copy_definition(Table t) {
+		Table copy = new Table(t.name_);
+		copy.columns_.putAll(t.columns_);
+		copy.key_ = t.key_;
+		copy.autoincrement_ = t.autoincrement_;
+		copy.sequence_ = t.sequence_;
+		copy.rows_ = t.rows_;
+		return copy;
+	}
+
+	/**
+	 * Add the column of a definition like "id integer primary key autoincrement"
+	 */
+	private static void add_column(Table t, List<Token> definition) {
+		if (definition.isEmpty())
+			throw new IllegalArgumentException("Empty column definition");
+		Token name = definition.get(0);
+		if (name.kind_ != Token.WORD || name.is("primary") || name.is("unique")
+				|| name.is("constraint") || name.is("foreign") || name.is("check"))
+			throw new IllegalArgumentException("Table constraints not supported");
+
+		String column = name.text_.toLowerCase();
+		if (t.columns_.containsKey(column))
+			throw new IllegalArgumentException("Duplicate column " + column);
+
+		// the type is made of the words before the first constraint
+		StringBuffer type = new StringBuffer();
+		boolean in_type = true;
+		boolean primary_key = false;
+		for (int i = 1; i < definition.size(); i++) {
+			Token token = definition.get(i);
+			if (token.is("primary")) {
+				primary_key = true;
+				in_type = false;
+			} else if (token.is("autoincrement")) {
+				t.autoincrement_ = true;
+				in_type = false;
+			} else if (token.is("not") || token.is("null") || token.is("default")
+					|| token.is("unique") || token.is("check") || token.is("collate")
+					|| token.is("references") || token.is("constraint")) {
+				// constraints which are not checked
+				in_type = false;
+			} else if (in_type && token.kind_ == Token.WORD) {
+				type.append(' ').append(token.text_.toLowerCase());
+			}
+		}
+
+		char affinity = affinity(type.toString());
+		t.columns_.put(column, affinity);
+		if (primary_key) {
+			if (affinity != AFFINITY_INTEGER || t.key_ != null)
+				throw new IllegalArgumentException("Only one integer primary key supported");
+			t.key_ = column;
+		} else if (t.autoincrement_ && t.key_ == null) {
+			throw new IllegalArgumentException("autoincrement without integer primary key");
+		}
+	}
+
+	/**
+	 * Affinity of a column type the way SQLite determines it
+	 */
+	private static char affinity(String type) {
+		if (type.indexOf("int") >= 0)
+			return AFFINITY_INTEGER;
+		if (type.indexOf("char") >= 0 || type.indexOf("clob") >= 0 || type.indexOf("text") >= 0)
+			return AFFINITY_TEXT;
+		return AFFINITY_NONE;
+	}
+
+	/**
+	 * Set the column values of a row converted to the column affinity
+	 */
+	private static void set_values(Table t, Map<String, Object> row, Map<String, Object> values) {
+		Iterator<Map.Entry<String, Object>> iter = values.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Object> entry = iter.next();
+			String column = column(t, entry.getKey());
+			row.put(column, convert(t.columns_.get(column).charValue(), entry.getValue()));
+		}
+	}
+
+	/**
+	 * Convert a value to the affinity of its column
+	 */
+	protected static Object convert(char affinity, Object value) {
+		if (value == null || value instanceof byte[])
+			return value;
+		if (value instanceof Boolean)
+			value = ((Boolean) value).booleanValue() ? 1L : 0L;
+		if (affinity == AFFINITY_TEXT)
+			return value.toString();
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return Long.valueOf(((Number) value).longValue());
+		if (affinity == AFFINITY_INTEGER && value instanceof String) {
+			Object number = number((String) value);
+			if (number != null)
+				return number;
+		}
+		return value;
+	}
+
+	/**
+	 * Next key of a new row
+	 */
+	private static Long next_key(Table t) {
+		long last = t.rows_.isEmpty() ? 0 : t.rows_.lastKey().longValue();
+		if (t.autoincrement_)
+			last = Math.max(last, t.sequence_);
+		return Long.valueOf(last + 1);
+	}
+
+	/**
+	 * Key of a stored row
+	 */
+	private static long key_of(Table t, Map<String, Object> row) {
+		if (t.key_ != null)
+			return ((Long) row.get(t.key_)).longValue();
+		Iterator<Map.Entry<Long, Map<String, Object>>> iter = t.rows_.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Long, Map<String, Object>> entry = iter.next();
+			if (entry.getValue() == row)
+				return entry.getKey().longValue();
+		}
+		throw new IllegalArgumentException("Row not stored");
+	}
+
+	/**
+	 * Get the table by name
+	 */
+	private Table table(String name) {
+		Table t = tables_.get(name.toLowerCase());
+		if (t == null)
+			throw new IllegalArgumentException("No table " + name);
+		return t;
+	}
+
+	/**
+	 * Get the name of a column of the table
+	 */
+	private static String column(Table t, String name) {
+		String column = name.trim().toLowerCase();
+		if (!t.columns_.containsKey(column))
+			throw new IllegalArgumentException("No column " + name + " in " + t.name_);
+		return column;
+	}
+
+	/**
+	 * The rows matching the condition in the order of their key, sorted and limited
+	 */
+	private List<Map<String, Object>> select(Table t, String condition, String[] args,
+			String orderBy, String limit) {
+		List<Term> terms = parse_condition(t, condition, args);
+		List<String[]> order = parse_order(t, orderBy);
+		int max = Integer.MAX_VALUE;
+		if (limit != null && limit.trim().length() > 0) {
+			try {
+				max = Integer.parseInt(limit.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Limit " + limit + " not supported");
+			}
+		}
+
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+		// rows are scanned in key order, so without sorting the limit can stop the scan
+		int scan_limit = order.isEmpty() ? max : Integer.MAX_VALUE;
+		Iterator<Map<String, Object>> rows = key_range(t, terms).values().iterator();
+		while (rows.hasNext() && result.size() < scan_limit) {
+			Map<String, Object> row = rows.next();
+			if (matches(row, terms))
+				result.add(row);
+		}
+
+		if (!order.isEmpty()) {
+			final List<String[]> sort = order;
+			// the sort is stable, rows with the same values stay in key order
+			Collections.sort(result, new Comparator<Map<String, Object>>() {
+				public int compare(Map<String, Object> a, Map<String, Object> b) {
+					for (int i = 0; i < sort.size(); i++) {
+						String[] column = sort.get(i);
+						int c = compare_values(a.get(column[0]), b.get(column[0]));
+						if (c != 0)
+							return column[1] == null ? c : -c;
+					}
+					return 0;
+				}
+			});
+			if (result.size() > max)
+				result = new ArrayList<Map<String, Object>>(result.subList(0, max));
+		}
+		return result;
+	}
+
+	/**
+	 * The rows in the key range given by the terms on the primary key
+	 */
+	private static SortedMap<Long, Map<String, Object>> key_range(Table t, List<Term> terms) {
+		long low = Long.MIN_VALUE;
+		long high = Long.MAX_VALUE;
+		for (int i = 0; i < terms.size(); i++) {
+			Term term = terms.get(i);
+			if (!term.column_.equals(t.key_) || !(term.value_ instanceof Long))
+				continue;
+			long value = ((Long) term.value_).longValue();
+			if (term.op_.equals("=")) {
+				low = Math.max(low, value);
+				high = Math.min(high, value);
+			} else if (term.op_.equals(">") && value < Long.MAX_VALUE) {
+				low = Math.max(low, value + 1);
+			} else if (term.op_.equals(">=")) {
+				low = Math.max(low, value);
+			} else if (term.op_.equals("<") && value > Long.MIN_VALUE) {
+				high = Math.min(high, value - 1);
+			} else if (term.op_.equals("<=")) {
+				high = Math.min(high, value);
+			}
+		}
+		if (low > high)
+			return new TreeMap<Long, Map<String, Object>>();
+		if (high == Long.MAX_VALUE)
+			return t.rows_.tailMap(low);
+		return t.rows_.subMap(low, high + 1);
+	}
+
+	/**
+	 * Check the row against all the terms
+	 */
+	private static boolean matches(Map<String, Object> row, List<Term> terms) {
+		for (int i = 0; i < terms.size(); i++) {
+			Term term = terms.get(i);
+			Object value = row.get(term.column_);
+			// comparisons with NULL are never true
+			if (value == null || term.value_ == null)
+				return false;
+			if (term.op_.equals("like")) {
+				if (!((Pattern) term.value_).matcher(value.toString()).matches())
+					return false;
+				continue;
+			}
+			int c = compare_values(value, term.value_);
+			boolean match;
+			if (term.op_.equals("=") || term.op_.equals("=="))
+				match = c == 0;
+			else if (term.op_.equals("!=") || term.op_.equals("<>"))
+				match = c != 0;
+			else if (term.op_.equals("<"))
+				match = c < 0;
+			else if (term.op_.equals("<="))
+				match = c <= 0;
+			else if (term.op_.equals(">"))
+				match = c > 0;
+			else
+				match = c >= 0;
+			if (!match)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Compare two values the way SQLite does, NULL first, then numbers, then text
+	 */
+	private static int compare_values(Object a, Object b) {
+		if (a == null || b == null)
+			return a == null ? (b == null ? 0 : -1) : 1;
+		if (a instanceof byte[])
+			a = new String((byte[]) a);
+		if (b instanceof byte[])
+			b = new String((byte[]) b);
+		if (a instanceof String && b instanceof Number) {
+			Object number = number((String) a);
+			if (number == null)
+				return 1;
+			a = number;
+		} else if (a instanceof Number && b instanceof String) {
+			Object number = number((String) b);
+			if (number == null)
+				return -1;
+			b = number;
+		}
+		if (a instanceof Number && b instanceof Number) {
+			if (a instanceof Long && b instanceof Long)
+				return ((Long) a).compareTo((Long) b);
+			return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+		}
+		return a.toString().compareTo(b.toString());
+	}
+
+	/**
+	 * The number in a string as Long or Double, null if it is no number
+	 */
+	private static Object number(String text) {
+		String s = text.trim();
+		try {
+			return Long.valueOf(Long.parseLong(s));
+		} catch (NumberFormatException e) {
+		}
+		try {
+			return Double.valueOf(Double.parseDouble(s));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Value of an integer field, NULL and text read as 0 like from a Cursor
+	 */
+	private static int int_value(Object value) {
+		if (value instanceof Number)
+			return ((Number) value).intValue();
+		if (value instanceof String) {
+			Object number = number((String) value);
+			if (number != null)
+				return ((Number) number).intValue();
+		}
+		return 0;
+	}
+
+	/**
+	 * Value of a field like count(id), max(id) or a column over the rows
+	 */
+	private static int aggregate(Table t, String field, List<Map<String, Object>> rows) {
+		Tokenizer tokens = new Tokenizer(field);
+		Token function = tokens.expect_word();
+		Token next = tokens.next();
+		if (next == null) {
+			// a plain column is read from the first row
+			String column = column(t, function.text_);
+			return rows.isEmpty() ? 0 : int_value(rows.get(0).get(column));
+		}
+		if (!next.is("("))
+			throw new IllegalArgumentException("Field " + field + " not supported");
+		Token argument = tokens.next();
+		if (argument == null)
+			throw new IllegalArgumentException("Field " + field + " not supported");
+		String column = argument.is("*") ? null : column(t, argument.text_);
+		tokens.expect(")");
+
+		long count = 0;
+		long sum = 0;
+		Object best = null;
+		for (int i = 0; i < rows.size(); i++) {
+			Object value = column == null ? Long.valueOf(1) : rows.get(i).get(column);
+			if (value == null)
+				continue;
+			count++;
+			sum += int_value(value);
+			int c = best == null ? 0 : compare_values(value, best);
+			if (best == null || (function.is("max") && c > 0) || (function.is("min") && c < 0))
+				best = value;
+		}
+		if (function.is("count"))
+			return (int) count;
+		if (function.is("sum") || function.is("total"))
+			return (int) sum;
+		if (function.is("max") || function.is("min"))
+			return int_value(best);
+		throw new IllegalArgumentException("Function " + function.text_ + " not supported");
+	}
+
+	/**
+	 * Parse a condition like "type = 1 AND dest = ?", the ? are replaced by the arguments
+	 */
+	private static List<Term> parse_condition(Table t, String condition, String[] args) {
+		List<Term> terms = new ArrayList<Term>();
+		if (condition == null || condition.trim().length() == 0)
+			return terms;
+
+		Tokenizer tokens = new Tokenizer(condition);
+		int arg = 0;
+		while (true) {
+			Term term = new Term();
+			term.column_ = column(t, tokens.expect_word().text_);
+
+			Token op = tokens.next();
+			if (op == null || op.kind_ == Token.STRING)
+				throw new IllegalArgumentException("Missing operator in " + condition);
+			term.op_ = op.text_.toLowerCase();
+			if (!(term.op_.equals("=") || term.op_.equals("==") || term.op_.equals("!=")
+					|| term.op_.equals("<>") || term.op_.equals("<") || term.op_.equals("<=")
+					|| term.op_.equals(">") || term.op_.equals(">=") || term.op_.equals("like")))
+				throw new IllegalArgumentException("Operator " + op.text_ + " not supported");
+
+			Token operand = tokens.next();
+			if (operand == null)
+				throw new IllegalArgumentException("Missing value in " + condition);
+			Object value;
+			if (operand.kind_ == Token.STRING) {
+				value = operand.text_;
+			} else if (operand.is("?")) {
+				if (args == null || arg >= args.length)
+					throw new IllegalArgumentException("Missing argument in " + condition);
+				value = args[arg++];
+			} else if (operand.is("null")) {
+				value = null;
+			} else {
+				value = number(operand.text_);
+				if (value == null)
+					throw new IllegalArgumentException("Value " + operand.text_ + " not supported");
+			}
+			if (term.op_.equals("like"))
+				value = value == null ? null : like_pattern(value.toString());
+			else
+				value = convert(t.columns_.get(term.column_).charValue(), value);
+			term.value_ = value;
+			terms.add(term);
+
+			Token next = tokens.next();
+			if (next == null || next.is(";"))
+				break;
+			if (!next.is("and"))
+				throw new IllegalArgumentException("Only AND supported in " + condition);
+		}
+		return terms;
+	}
+
+	/**
+	 * Parse a sort order like "expiration_time" or "id DESC, dest"
+	 * @return the columns with null for ascending or "desc"
+	 */
+	private static List<String[]> parse_order(Table t, String orderBy) {
+		List<String[]> order = new ArrayList<String[]>();
+		if (orderBy == null || orderBy.trim().length() == 0)
+			return order;
+
+		String[] parts = orderBy.split(",");
+		for (int i = 0; i < parts.length; i++) {
+			String[] words = parts[i].trim().split("\\s+");
+			if (words.length > 2 || (words.length == 2
+					&& !words[1].equalsIgnoreCase("asc") && !words[1].equalsIgnoreCase("desc")))
+				throw new IllegalArgumentException("Order " + orderBy + " not supported");
+			boolean descending = words.length == 2 && words[1].equalsIgnoreCase("desc");
+			order.add(new String[] { column(t, words[0]), descending ? "desc" : null });
+		}
+		// the rows are already in key order
+		if (order.size() == 1 && order.get(0)[0].equals(t.key_) && order.get(0)[1] == null)
+			order.clear();
+		return order;
+	}
+
+	/**
+	 * Pattern of a LIKE, % matches any text and _ any character, ignoring the case
+	 */
+	private static Pattern like_pattern(String like) {
+		StringBuffer regex = new StringBuffer();
+		for (int i = 0; i < like.length(); i++) {
+			char c = like.charAt(i);
+			if (c == '%')
+				regex.append(".*");
+			else if (c == '_')
+				regex.append('.');
+			else
+				regex.append(Pattern.quote(String.valueOf(c)));
+		}
+		return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	}
+
+	/**
+	 * Splits a statement into words, quoted strings and symbols
+	 */
+	private static class Tokenizer {
+
+		private final String text_;
+		private int pos_;
+
+		Tokenizer(String text) {
+			text_ = text;
+			pos_ = 0;
+		}
+
+		/**
+		 * The next token, null at the end
+		 */
+		Token next() {
+			while (pos_ < text_.length() && Character.isWhitespace(text_.charAt(pos_)))
+				pos_++;
+			if (pos_ >= text_.length())
+				return null;
+
+			char c = text_.charAt(pos_);
+			int start = pos_;
+			if (c == '\'') {
+				StringBuffer value = new StringBuffer();
+				pos_++;
+				while (true) {
+					if (pos_ >= text_.length())
+						throw new IllegalArgumentException("Unterminated string in " + text_);
+					char s = text_.charAt(pos_++);
+					if (s == '\'') {
+						if (pos_ < text_.length() && text_.charAt(pos_) == '\'') {
+							pos_++;
+						} else {
+							break;
+						}
+					}
+					value.append(s);
+				}
+				return new Token(Token.STRING, value.toString());
+			}
+			if (word_char(c) || (c == '-' && pos_ + 1 < text_.length()
+					&& Character.isDigit(text_.charAt(pos_ + 1)))) {
+				pos_++;
+				while (pos_ < text_.length() && word_char(text_.charAt(pos_)))
+					pos_++;
+				return new Token(Token.WORD, text_.substring(start, pos_));
+			}
+			if ("<>=!".indexOf(c) >= 0) {
+				while (pos_ < text_.length() && "<>=!".indexOf(text_.charAt(pos_)) >= 0)
+					pos_++;
+				return new Token(Token.SYMBOL, text_.substring(start, pos_));
+			}
+			pos_++;
+			return new Token(Token.SYMBOL, String.valueOf(c));
+		}
+
+		/**
+		 * The next token which has to be a word
+		 */
+		Token expect_word() {
+			Token token = next();
+			if (token == null || token.kind_ != Token.WORD)
+				throw new IllegalArgumentException("Name expected in " + text_);
+			return token;
+		}
+
+		/**
+		 * Skip the next token which has to be the given word or symbol
+		 */
+		void expect(String word) {
+			Token token = next();
+			if (token == null || !token.is(word))
+				throw new IllegalArgumentException(word + " expected in " + text_);
+		}
+
+		/**
+		 * The remaining tokens without a closing ;
+		 */
+		List<Token> rest() {
+			List<Token> tokens = new ArrayList<Token>();
+			for (Token token = next(); token != null && !token.is(";"); token = next())
+				tokens.add(token);
+			return tokens;
+		}
+
+		private static boolean word_char(char c) {
+			return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+		}
+	}
+
+	/**
+	 * Lock of the tables, held from the begin to the end of a transaction
+	 */
+	protected final Lock lock_;
+
+	/**
+	 * Tables by their lower case name
+	 */
+	protected final HashMap<String, Table> tables_;
+
+	/**
+	 * Changes of the current transaction in the order they were made
+	 */
+	private final ArrayList<Undo> undo_;
+
+	/**
+	 * Whether each nested transaction was marked successful
+	 */
+	private final ArrayList<Boolean> successful_;
+
+	/**
+	 * Number of nested transactions
+	 */
+	private int depth_;
+
+	/**
+	 * Whether a nested transaction ended without being marked successful
+	 */
+	private boolean failed_;
+}
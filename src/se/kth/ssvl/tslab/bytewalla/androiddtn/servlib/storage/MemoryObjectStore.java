@@ -0,0 +1,108 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.util.HashMap;
+
+/**
+ * ObjectStore keeping the encoded objects in memory. Nothing survives a
+ * restart, so bundles restored from the database without their object are
+ * deleted. The objects are still encoded so every read returns a new copy
+ * like the disk backends do, and the backend can be used to measure the
+ * cost of the codec apart from the disk.
+ */
+public class MemoryObjectStore<Type> implements ObjectStore<Type> {
+
+	/**
+	 * Constructor
+	 * @param codec Codec to encode and decode the objects
+	 */
+	public MemoryObjectStore(StorageCodec<Type> codec) {
+		codec_ = codec;
+		records_ = new HashMap<Integer, byte[]>();
+	}
+
+	public boolean open(String path) {
+		return true;
+	}
+
+	public boolean add_object(Type object, int key) {
+		byte[] data = codec_.encode(object);
+		if (data == null)
+			return false;
+
+		synchronized (records_) {
+			records_.put(key, data);
+		}
+		return true;
+	}
+
+	public Type get_object(int key) {
+		byte[] data;
+		synchronized (records_) {
+			data = records_.get(key);
+		}
+		if (data == null)
+			return null;
+		return codec_.decode(data);
+	}
+
+	public boolean delete_object(int key) {
+		synchronized (records_) {
+			records_.remove(key);
+		}
+		return true;
+	}
+
+	public boolean contains(int key) {
+		synchronized (records_) {
+			return records_.containsKey(key);
+		}
+	}
+
+	public long get_record_size(int key) {
+		synchronized (records_) {
+			byte[] data = records_.get(key);
+			return data == null ? 0 : data.length;
+		}
+	}
+
+	public boolean reset() {
+		synchronized (records_) {
+			records_.clear();
+		}
+		return true;
+	}
+
+	public void close() {
+		reset();
+	}
+
+	/**
+	 * Encoded objects by key
+	 */
+	private HashMap<Integer, byte[]> records_;
+
+	/**
+	 * Codec to encode and decode the objects
+	 */
+	private StorageCodec<Type> codec_;
+}
@@ -0,0 +1,178 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interface of the table backend keeping the rows of the BundleStore and the
+ * RegistrationStore, the ids and the metadata of the stored objects. The
+ * stores only talk to this interface and get it handed over in init(), so
+ * they don't depend on the Android database classes. Table definitions,
+ * conditions and fields are given in the SQL dialect of SQLite. The backend
+ * is chosen with the metadata_store storage setting.
+ * @see SQLiteImplementation
+ * @see MemoryMetadataStore
+ * @see FileMetadataStore
+ */
+public interface MetadataStore {
+
+	/**
+	 * Add new row to the table
+	 * @param table Name of the table
+	 * @param values Column values of the new row
+	 * @return The id of the new row or -1 on failure
+	 */
+	public int add(String table, Map<String, Object> values);
+
+	/**
+	 * Insert new row in the table or replace the row with the same primary key
+	 * @param table Name of the table
+	 * @param values Column values of the row with the primary key
+	 * @return The id of the row or -1 on failure
+	 */
+	public int replace(String table, Map<String, Object> values);
+
+	/**
+	 * Update the rows matching the condition
+	 * @param table Name of the table
+	 * @param values Updated column values
+	 * @param where Condition of the updated rows
+	 * @param whereArgs Arguments replacing the ? of the condition
+	 * @return True on success else false
+	 */
+	public boolean update(String table, Map<String, Object> values, String where, String[] whereArgs);
+
+	/**
+	 * Get one field of the first row matching the condition
+	 * @param table Name of the table
+	 * @param condition Condition of the row
+	 * @param field Field to get
+	 * @param orderBy Sort order of the rows, null for no order
+	 * @param limit Maximum number of rows, null for all
+	 * @return The field value or -1 if no row matches
+	 */
+	public int get_record(String table, String condition, String field, String orderBy, String limit);
+
+	/**
+	 * Get one field of all the rows matching the condition
+	 * @param table Name of the table
+	 * @param condition Condition of the rows
+	 * @param field Field to get
+	 * @return The field values, empty if no row matches
+	 */
+	public List<Integer> get_records(String table, String condition, String field);
+
+	/**
+	 * Get one field of the rows matching the condition with arguments, sorted and limited
+	 * @param table Name of the table
+	 * @param condition Condition of the rows, ? are replaced by args
+	 * @param args Arguments of the condition
+	 * @param field Field to get
+	 * @param orderBy Sort order of the rows, null for no order
+	 * @param limit Maximum number of rows, null for all
+	 * @return The field values, empty if no row matches
+	 */
+	public List<Integer> get_records(String table, String condition, String[] args, String field, String orderBy, String limit);
+
+	/**
+	 * Get the value of an aggregate over the rows matching the condition, like count(id)
+	 * @param table Name of the table
+	 * @param condition Condition of the rows
+	 * @param field The aggregate
+	 * @return The value, 0 if there is none
+	 */
+	public int get_count(String table, String condition, String[] field);
+
+	/**
+	 * Get the ids of all the stored bundles
+	 * @return Iterator over the bundle ids
+	 */
+	public Iterator<Integer> get_all_bundles();
+
+	/**
+	 * Check if any row matches the condition
+	 * @param table Name of the table
+	 * @param condition Condition of the row
+	 * @return True if a row was found else false
+	 */
+	public boolean find_record(String table, String condition);
+
+	/**
+	 * Delete the rows matching the condition
+	 * @param table Name of the table
+	 * @param condition Condition of the rows
+	 * @return True if rows were deleted else false
+	 */
+	public boolean delete_record(String table, String condition);
+
+	/**
+	 * Check if the table has the column
+	 * @param table Name of the table
+	 * @param column Name of the column
+	 * @return True if the column exists else false
+	 */
+	public boolean has_column(String table, String column);
+
+	/**
+	 * Execute a statement which returns no data, like ALTER TABLE or CREATE INDEX
+	 * @param sql The statement
+	 * @return True on success else false
+	 */
+	public boolean execute(String sql);
+
+	/**
+	 * Create a table if it doesn't exist yet
+	 * @param create_table_query The table definition
+	 * @return True on success else false
+	 */
+	public boolean create_table(String create_table_query);
+
+	/**
+	 * Delete the table with all its rows
+	 * @param tableName Name of the table
+	 * @return True on success else false
+	 */
+	public boolean drop_table(String tableName);
+
+	/**
+	 * Begin a transaction, the following operations are committed together
+	 * in end_transaction() if set_transaction_successful() was called.
+	 */
+	public void begin_transaction();
+
+	/**
+	 * Mark the current transaction as successful so it is committed
+	 */
+	public void set_transaction_successful();
+
+	/**
+	 * End the current transaction, commit it if it was marked successful otherwise roll it back
+	 */
+	public void end_transaction();
+
+	/**
+	 * Release the resources of the backend
+	 */
+	public void close();
+}
@@ -0,0 +1,87 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+/**
+ * Interface of the backends keeping the stored objects of the BundleStore and
+ * the RegistrationStore by their integer key. The backend is chosen with the
+ * bundle_store setting. Implementations have to be safe for use by several
+ * threads at once.
+ * @see FileObjectStore
+ * @see MemoryObjectStore
+ * @see LogStructuredImplementation
+ */
+public interface ObjectStore<Type> {
+
+	/**
+	 * Open the backend with its data in the directory, the directory is created if needed.
+	 * @param path Directory of the backend
+	 * @return True if the backend is ready to be used else false
+	 */
+	public boolean open(String path);
+
+	/**
+	 * Store the object under the key, replacing the object stored before
+	 * @param object Object to store
+	 * @param key Key of the object
+	 * @return True on success else false
+	 */
+	public boolean add_object(Type object, int key);
+
+	/**
+	 * Read the object stored under the key
+	 * @param key Key of the object
+	 * @return The stored object or null if there is none
+	 */
+	public Type get_object(int key);
+
+	/**
+	 * Delete the object stored under the key
+	 * @param key Key of the object
+	 * @return True on success else false
+	 */
+	public boolean delete_object(int key);
+
+	/**
+	 * Check if there is an object stored under the key
+	 * @param key Key of the object
+	 * @return True if the object exists else false
+	 */
+	public boolean contains(int key);
+
+	/**
+	 * Get the size of the stored object
+	 * @param key Key of the object
+	 * @return Size in bytes or 0 if there is no object
+	 */
+	public long get_record_size(int key);
+
+	/**
+	 * Delete all the stored objects
+	 * @return True on success else false
+	 */
+	public boolean reset();
+
+	/**
+	 * Release the resources of the backend
+	 */
+	public void close();
+}
@@ -0,0 +1,155 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.File;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundlePayload.location_t;
+
+/**
+ * Throughput measurement of the ObjectStore backends. Every backend is run
+ * through the same add, get, update and del rounds over a number of keys
+ * after a warm up round, and the operations per second of every round are
+ * reported. The DTNService runs run_bundles() at start when the
+ * DTNStorageBenchmark resource is true. Nothing here needs the Android APIs
+ * apart from the codec logging its failures, so the measurement can be run
+ * on a plain JVM as well.
+ */
+public class ObjectStoreBenchmark {
+
+	/**
+	 * Number of keys used to warm up every backend before measuring
+	 */
+	private static final int WARMUP_KEYS = 1000;
+
+	/**
+	 * Run all the backends with bundle metadata records, the way the BundleStore uses them.
+	 * @param dir directory for the files of the disk backends, emptied afterwards
+	 * @param keys number of keys in every round
+	 * @param buf StringBuffer the results are appended to
+	 * @return true if every backend read back what was written
+	 */
+	public static boolean run_bundles(File dir, int keys, StringBuffer buf) {
+		// the restore constructor takes no id and doesn't touch the BundleStore
+		Bundle sample = new Bundle(0, location_t.MEMORY);
+		return run_all(dir, "bundle_", new BundleCodec(), sample, keys, buf);
+	}
+
+	/**
+	 * Run all the backends with the objects in the directory.
+	 * @param dir directory for the files of the disk backends, emptied afterwards
+	 * @param prefix prefix of the file names of the file backend
+	 * @param codec codec of the objects
+	 * @param sample object stored under every key
+	 * @param keys number of keys in every round
+	 * @param buf StringBuffer the results are appended to
+	 * @return true if every backend read back what was written
+	 */
+	public static <Type> boolean run_all(File dir, String prefix, StorageCodec<Type> codec,
+			Type sample, int keys, StringBuffer buf) {
+		boolean result = true;
+		result &= run("memory", new MemoryObjectStore<Type>(codec), new File(dir, "memory"),
+				sample, keys, buf);
+		result &= run("file", new FileObjectStore<Type>(prefix, codec), new File(dir, "file"),
+				sample, keys, buf);
+		result &= run("log", new LogStructuredImplementation<Type>(codec), new File(dir, "log"),
+				sample, keys, buf);
+		return result;
+	}
+
+	/**
+	 * Measure one backend. The backend is opened in the directory and reset afterwards.
+	 * @param name name of the backend in the results
+	 * @param store the backend
+	 * @param dir directory of the backend
+	 * @param sample object stored under every key
+	 * @param keys number of keys in every round
+	 * @param buf StringBuffer the results are appended to
+	 * @return true if the backend read back what was written
+	 */
+	public static <Type> boolean run(String name, ObjectStore<Type> store, File dir,
+			Type sample, int keys, StringBuffer buf) {
+		if (!store.open(dir.getAbsolutePath())) {
+			buf.append(String.format("%s: unable to open %s\n", name, dir.getAbsolutePath()));
+			return false;
+		}
+
+		try {
+			// warm up the code paths before measuring
+			round(store, sample, 0, WARMUP_KEYS);
+			store.reset();
+
+			long start = System.nanoTime();
+			for (int key = 0; key < keys; key++)
+				store.add_object(sample, key);
+			long add = System.nanoTime() - start;
+
+			boolean ok = true;
+			start = System.nanoTime();
+			for (int key = 0; key < keys; key++)
+				ok &= store.get_object(key) != null;
+			long get = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int key = 0; key < keys; key++)
+				store.add_object(sample, key);
+			long update = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int key = 0; key < keys; key++)
+				store.delete_object(key);
+			long del = System.nanoTime() - start;
+
+			for (int key = 0; key < keys; key++)
+				ok &= !store.contains(key);
+
+			buf.append(String.format("%s: %d keys -- %d add/s -- %d get/s -- "
+					+ "%d update/s -- %d del/s\n", name, keys, rate(keys, add),
+					rate(keys, get), rate(keys, update), rate(keys, del)));
+			return ok;
+		} finally {
+			store.reset();
+			store.close();
+		}
+	}
+
+	/**
+	 * One add, get, update and del of every key without measuring
+	 */
+	private static <Type> void round(ObjectStore<Type> store, Type sample, int first, int keys) {
+		for (int key = first; key < first + keys; key++) {
+			store.add_object(sample, key);
+			store.get_object(key);
+			store.add_object(sample, key);
+			store.delete_object(key);
+		}
+	}
+
+	/**
+	 * Operations per second
+	 */
+	private static long rate(int ops, long nanos) {
+		if (nanos <= 0)
+			return 0;
+		return ops * 1000000000L / nanos;
+	}
+}
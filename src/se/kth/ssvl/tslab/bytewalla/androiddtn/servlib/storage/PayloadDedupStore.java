@@ -0,0 +1,316 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+import android.util.Log;
+
+/**
+ * This class is implemented as Singleton to store the identical payloads of
+ * several bundles only once. A finished payload file is moved to a content
+ * file named by the SHA-256 hash of its data, or deleted if a content file
+ * with the same hash already exists. The content files are counted by the
+ * bundles referring to them and deleted with the last one. The references
+ * are not stored separately, they are rebuilt from the hashes in the bundle
+ * records while the bundles are restored.
+ */
+public class PayloadDedupStore {
+
+	/**
+	 *  Singleton instance Implementation of the PayloadDedupStore
+	 */
+	private static PayloadDedupStore instance_ = null;
+
+	/**
+	 * TAG for Android Logging
+	 */
+	private static String TAG = "PayloadDedupStore";
+
+	/**
+	 * Name of the folder of the content files in the storage folder
+	 */
+	public static final String CONTENT_FOLDER = "content";
+
+	/**
+	 * A content file and the number of bundles referring to it
+	 */
+	private static class Content {
+
+		/**
+		 * Length of the content in bytes
+		 */
+		long length_;
+
+		/**
+		 * Number of bundles referring to the content
+		 */
+		int refs_;
+
+		Content(long length) {
+			length_ = length;
+		}
+	}
+
+    /**
+     * Singleton Implementation Getter function
+     * @return an singleton instance of PayloadDedupStore
+     */
+	public static PayloadDedupStore getInstance() {
+        if(instance_ == null) {
+           instance_ = new PayloadDedupStore();
+        }
+        return instance_;
+     }
+
+	/**
+	 * Private constructor for Singleton Implementation of the PayloadDedupStore
+	 */
+	private PayloadDedupStore() {
+		lock_ = new Lock();
+		contents_ = new HashMap<String, Content>();
+		bundle_hashes_ = new HashMap<Integer, String>();
+	}
+
+    /**
+     * Set the folder of the content files and forget the references, called before the bundles are restored.
+     * @param path Storage folder of the bundles
+     * @return True if the content folder is ready else false
+     */
+	public boolean init(String path) {
+		lock_.lock();
+		try {
+			dir_ = new File(path, CONTENT_FOLDER);
+			contents_.clear();
+			bundle_hashes_.clear();
+			logical_bytes_ = 0;
+			physical_bytes_ = 0;
+			return FileObjectStore.create_shards(dir_);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Get the content file of the hash
+     * @param hash Hex SHA-256 hash of the content
+     * @return the content file, which may not exist
+     */
+	public File content_file(String hash) {
+		return new File(new File(dir_, hash.substring(0, 2)), hash);
+	}
+
+    /**
+     * Make the finished payload file of the bundle a reference to the content with the hash.
+     * The payload file is moved to the content file or deleted if the content is already stored.
+     * @param bundleid Bundle id of the payload
+     * @param hash Hex SHA-256 hash of the payload
+     * @param file Payload file
+     * @param length Payload length
+     * @return the content file now holding the payload
+     * @throws IOException if the payload file cannot be moved
+     */
+	public File share(int bundleid, String hash, File file, long length) throws IOException {
+		lock_.lock();
+		try {
+			File target = content_file(hash);
+			Content content = contents_.get(hash);
+			if (content != null && target.exists()) {
+				file.delete();
+				shared_++;
+			} else {
+				if (!file.renameTo(target))
+					throw new IOException("Unable to move " + file.getName() + " to " + target.getName());
+				if (content == null) {
+					content = new Content(length);
+					contents_.put(hash, content);
+					physical_bytes_ += length;
+				}
+			}
+			add_reference(bundleid, hash, content);
+			return target;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Count the reference of a restored bundle to the content with the hash. Repeated calls
+     * for the same bundle are counted once.
+     * @param bundleid Bundle id of the payload
+     * @param hash Hex SHA-256 hash of the payload
+     * @param length Payload length
+     */
+	public void restore_reference(int bundleid, String hash, long length) {
+		lock_.lock();
+		try {
+			Content content = contents_.get(hash);
+			if (content == null) {
+				content = new Content(length);
+				contents_.put(hash, content);
+				physical_bytes_ += length;
+			}
+			add_reference(bundleid, hash, content);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Drop the reference of the bundle, the content file is deleted with its last reference.
+     * Bundles without a reference are ignored.
+     * @param bundleid Bundle id of the payload
+     */
+	public void release(int bundleid) {
+		lock_.lock();
+		try {
+			String hash = bundle_hashes_.remove(bundleid);
+			if (hash == null)
+				return;
+
+			Content content = contents_.get(hash);
+			content.refs_--;
+			logical_bytes_ -= content.length_;
+			if (content.refs_ == 0) {
+				contents_.remove(hash);
+				physical_bytes_ -= content.length_;
+				content_file(hash).delete();
+			}
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Delete the content files no restored bundle refers to, called after the bundles are restored.
+     * @return Number of deleted content files
+     */
+	public int sweep() {
+		lock_.lock();
+		try {
+			int deleted = 0;
+			for (int i = 0; i < FileObjectStore.SHARDS; i++) {
+				File[] files = new File(dir_, FileObjectStore.shard_name(i)).listFiles();
+				for (int j = 0; files != null && j < files.length; j++) {
+					if (!contents_.containsKey(files[j].getName()) && files[j].delete())
+						deleted++;
+				}
+			}
+			if (deleted > 0)
+				Log.i(TAG, "Deleted " + deleted + " unreferenced content files");
+			return deleted;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Delete all the content files and the references, called when the storage is reset.
+     */
+	public void reset() {
+		lock_.lock();
+		try {
+			Iterator<String> iter = contents_.keySet().iterator();
+			while (iter.hasNext()) {
+				content_file(iter.next()).delete();
+			}
+			contents_.clear();
+			bundle_hashes_.clear();
+			logical_bytes_ = 0;
+			physical_bytes_ = 0;
+		} finally {
+			lock_.unlock();
+		}
+		sweep();
+	}
+
+	/**
+	 * Format the given StringBuffer with the payload deduplication statistics.
+	 */
+	public void get_stats(StringBuffer buf) {
+		lock_.lock();
+		try {
+			buf.append(String.format("%d dedup_contents -- " + "%d dedup_references -- "
+					+ "%d dedup_hits -- " + "%d dedup_bytes_saved -- " + "%.2f dedup_ratio -- ",
+					contents_.size(), bundle_hashes_.size(), shared_,
+					logical_bytes_ - physical_bytes_,
+					physical_bytes_ == 0 ? 1.0 : (double) logical_bytes_ / physical_bytes_));
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Count the reference of the bundle unless it is already counted, the lock has to be held
+	 */
+	private void add_reference(int bundleid, String hash, Content content) {
+		String old = bundle_hashes_.put(bundleid, hash);
+		if (hash.equals(old))
+			return;
+		if (old != null) {
+			// the bundle referred to other content before
+			bundle_hashes_.put(bundleid, old);
+			release(bundleid);
+			bundle_hashes_.put(bundleid, hash);
+		}
+		content.refs_++;
+		logical_bytes_ += content.length_;
+	}
+
+	/**
+	 * Lock protecting the references and the statistics
+	 */
+	private Lock lock_;
+
+	/**
+	 * Folder of the content files
+	 */
+	private File dir_;
+
+	/**
+	 * Stored contents by hash
+	 */
+	private HashMap<String, Content> contents_;
+
+	/**
+	 * Hash of the content every bundle refers to by bundle id
+	 */
+	private HashMap<Integer, String> bundle_hashes_;
+
+	/**
+	 * Number of payloads which were already stored
+	 */
+	private long shared_;
+
+	/**
+	 * Bytes of all the payloads referring to the contents
+	 */
+	private long logical_bytes_;
+
+	/**
+	 * Bytes of the content files
+	 */
+	private long physical_bytes_;
+}
@@ -0,0 +1,85 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.IOException;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.naming.EndpointIDPattern;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.APIRegistration;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.Registration;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.Registration.failure_action_t;
+
+/**
+ * Binary codec for the registrations stored by RegistrationStore.
+ * Only APIRegistrations are persistent, the queued bundles and the delivery
+ * cache are runtime state and are not stored.
+ */
+
+public class RegistrationCodec extends StorageCodec<Registration> {
+
+	/**
+	 * Current version of the registration record
+	 */
+	private static final int VERSION = 1;
+
+	/**
+	 * Record kind for an APIRegistration
+	 */
+	private static final int KIND_API = 1;
+
+	@Override
+	public int version() {
+		return VERSION;
+	}
+
+	@Override
+	protected void encode_fields(Registration reg, Encoder encoder) throws IOException {
+		if (!(reg instanceof APIRegistration))
+			throw new IOException("Only API registrations can be stored");
+
+		encoder.write_byte(KIND_API);
+		encoder.write_sdnv(reg.regid());
+		encoder.write_eid(reg.endpoint().str());
+		encoder.write_sdnv(reg.failure_action().getCode());
+		encoder.write_signed(reg.session_flags());
+		encoder.write_signed(reg.expiration());
+		encoder.write_string(reg.script());
+	}
+
+	@Override
+	protected Registration decode_fields(int version, Decoder decoder) throws IOException {
+		int kind = decoder.read_byte();
+		if (kind != KIND_API)
+			throw new IOException("Unknown registration kind " + kind);
+
+		int regid = decoder.read_int();
+		String endpoint = decoder.read_eid();
+		failure_action_t action = failure_action_t.get(decoder.read_int());
+		decoder.read_signed(); // session flags, always -1 for API registrations
+		int expiration = (int) decoder.read_signed();
+		decoder.read_string(); // script, always empty for API registrations
+
+		if (endpoint == null || action == null)
+			throw new IOException("Incomplete registration record");
+
+		return new APIRegistration(regid, new EndpointIDPattern(endpoint), action, expiration);
+	}
+}
@@ -22,17 +22,17 @@
 
 package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
-import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.storage_type_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.bundle_store_layout_t;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.Registration;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.RegistrationList;
 import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.storage.StorageIterator;
-import android.content.ContentValues;
-import android.content.Context;
-import android.os.Environment;
 import android.util.Log;
 
 
@@ -44,7 +44,7 @@ import android.util.Log;
  * This class is implemented as Singleton to Registration.
  * This class generates registration id, stores registration on the disk 
  * . This class also uses Generic StorageImplementation and 
- * SQLiteImplementation to store registration.
+ * the MetadataStore handed over in init() to store registration.
  * 
  * @author Sharjeel Ahmed (sharjeel@kth.se)
  */
@@ -102,44 +102,55 @@ public class RegistrationStore{
     
     /**
      * This function initiate the Registration Storage for storing Registration.
-     * This function creates StorageImplementation & SQLiteImplementation instances,
-     * set storage directory path & counts valid number of registrations.
-     * @param context The application context for getting for application paths  
+     * This function creates the StorageImplementation instance, creates the table
+     * of the MetadataStore, set storage directory path & counts valid number of registrations.
+     * @param metadata MetadataStore keeping the registration table, it is closed by close()  
+     * @param app_path Path of the application folder, the registrations are kept in its registration subfolder  
      * @param config Get the application configuration to get the memory usage parameters 
      * @return returns true on success
      */        
     
-    public boolean init(Context context, DTNConfiguration config){
+    public boolean init(MetadataStore metadata, String app_path, DTNConfiguration config){
 
     	config_ = config;
     	
     	Log.d(TAG, "Going to init" );
     	if(!init_){
-    		impt_sqlite_ = new SQLiteImplementation(context, Table_CREATE_Registration);
-    		impt_storage_ = new StorageImplementation<Registration>(context);
+    		impt_storage_ = new StorageImplementation<Registration>(new RegistrationCodec());
     		init_ = true;
     	}
+    	if(impt_sqlite_!=null && impt_sqlite_!=metadata){
+    		impt_sqlite_.close();
+    	}
+    	impt_sqlite_ = metadata;
+    	if(!impt_sqlite_.create_table(Table_CREATE_Registration)){
+    		return false;
+    	}
     	String cond_find_record = "id = "+Registration.MAX_RESERVED_REGID;
     	
     	if(!impt_sqlite_.find_record(table, cond_find_record)){
-    		ContentValues values = new ContentValues();
+    		Map<String, Object> values = new HashMap<String, Object>();
     		values.put("id", Registration.MAX_RESERVED_REGID);
     		values.put("uri", "");
     		impt_sqlite_.add(table, values);
     	}
-    	String app_folder = "/"+config_.storage_setting().storage_path();
+    	path_ = app_path.concat("/registration");
 		
-    	if(config.storage_setting().storage_type()==storage_type_t.PHONE){
-    		path_ = context.getFilesDir().getAbsolutePath().concat(app_folder).concat("/registration");
+    	String condition = "id > "+Registration.MAX_RESERVED_REGID;
+    	
+    	// there are only a few registrations, so the log layout keeps them in files
+    	if(config.storage_setting().bundle_store_layout()==bundle_store_layout_t.MEMORY){
+    		// the objects of the last run are gone, so are their rows
+    		impt_sqlite_.delete_record(table, condition);
+    		object_store_ = new MemoryObjectStore<Registration>(new RegistrationCodec());
     	}else{
-    		path_ = Environment.getExternalStorageDirectory().getAbsolutePath().concat(app_folder).concat("/registration");
+    		object_store_ = new FileObjectStore<Registration>(registrationFileName, new RegistrationCodec());
     	}
-		
-    	String condition = "id > "+Registration.MAX_RESERVED_REGID;
+    	
     	String[] field = new String[1];
     	field[0] = "count(id)";
     	registration_count_ = impt_sqlite_.get_count(table,condition, field );
-		return impt_storage_.create_dir(path_);    	
+		return object_store_.open(path_);    	
     }
 
     /**
@@ -148,19 +159,17 @@ public class RegistrationStore{
      * @return return true if bundle successfully saved otherwise return false
      */        
     
-    public boolean add(Registration reg){
+    public synchronized boolean add(Registration reg){
     	// check If there no reg and endpoint then add
     	
     	if(isUnique(reg)){
-    		ContentValues values = new ContentValues();
+    		Map<String, Object> values = new HashMap<String, Object>();
     		values.put("uri", reg.endpoint().str());
     		String condition = "id = "+reg.regid();
     		
     		if(impt_sqlite_.update(table, values, condition, null)){
 
-    			String filename = registrationFileName+reg.regid();
-    			
-    			if(impt_storage_.add_object(reg, filename)){
+    			if(object_store_.add_object(reg, reg.regid())){
     				registration_count_ += 1;
     				return true;
     			}
@@ -175,14 +184,13 @@ public class RegistrationStore{
      * @return true if bundle successfully deleted otherwise return false
      */        
 
-    public boolean del(Registration reg){
+    public synchronized boolean del(Registration reg){
+    	WriteBehindQueue.getInstance().cancel_registration(reg.regid());
     	String condition = " id = "+reg.regid();
     	
 		if(impt_sqlite_.delete_record(table, condition)){
 			
-			String filename = registrationFileName+reg.regid();
-			
-			if(impt_storage_.delete_file(filename)){
+			if(object_store_.delete_object(reg.regid())){
 				registration_count_ -= 1;
 				return true;
 			}
@@ -196,18 +204,40 @@ public class RegistrationStore{
      * @return return true if bundle successfully updated otherwise return false
      */        
     
-    public boolean update(Registration reg){
-    	ContentValues values = new ContentValues();
+    public synchronized boolean update(Registration reg){
+    	Map<String, Object> values = new HashMap<String, Object>();
     	values.put("uri", reg.endpoint().uri().toString());
 		String condition = "id = "+reg.regid();
 		
 		if(impt_sqlite_.update(table, values, condition, null)){
-			String filename = registrationFileName+reg.regid();
-			return impt_storage_.add_object(reg, filename );
+			return object_store_.add_object(reg, reg.regid());
 		}
 		return false;
     }
 
+    /**
+     * Update a batch of registrations in one database transaction.
+     * @param regs Registrations to update
+     * @return Number of successfully updated registrations
+     */        
+    
+    public synchronized int update_batch(Collection<Registration> regs){
+    	int count = 0;
+    	impt_sqlite_.begin_transaction();
+    	try{
+    		Iterator<Registration> iter = regs.iterator();
+    		while(iter.hasNext()){
+    			if(update(iter.next())){
+    				count++;
+    			}
+    		}
+    		impt_sqlite_.set_transaction_successful();
+    	}finally{
+    		impt_sqlite_.end_transaction();
+    	}
+    	return count;
+    }
+
     /**
      * Get the registration from storage based on regid and return the registration. 
      * @param regid Get the registration with this regid from storage
@@ -215,8 +245,7 @@ public class RegistrationStore{
      */        
 
     public Registration get(int regid){
-    	String filename = registrationFileName+regid;
-    	return impt_storage_.get_object(filename);
+    	return object_store_.get_object(regid);
     }
 
     /**
@@ -246,7 +275,7 @@ public class RegistrationStore{
      */        
 
     public int next_regid(){
-		ContentValues values = new ContentValues();
+		Map<String, Object> values = new HashMap<String, Object>();
 		values.put("uri", "");
 
 		return impt_sqlite_.add(table, values);
@@ -259,17 +288,18 @@ public class RegistrationStore{
      */        
     
     public boolean reset_storage(){
+    	WriteBehindQueue.getInstance().clear();
 
     	
     	if(impt_sqlite_.drop_table(table)){
     		
-        	if(!impt_storage_.delete_dir(path_)){
+        	if(!impt_storage_.delete_dir(path_) || !object_store_.reset()){
         		return false;
         	}
 
     		if(impt_sqlite_.create_table(Table_CREATE_Registration)){
 
-    			ContentValues values = new ContentValues();
+    			Map<String, Object> values = new HashMap<String, Object>();
     			values.put("id", Registration.MAX_RESERVED_REGID);
     			values.put("uri", "");
 
@@ -301,7 +331,7 @@ public class RegistrationStore{
     }
 
     /**
-     * Close the SQLite connection.
+     * Close the MetadataStore.
      */        
     
     public void close(){
@@ -328,8 +358,7 @@ public class RegistrationStore{
      */        
 
     public boolean test_is_registration_file(int regid){
-    	String filename = registrationFileName+regid;
-    	return impt_storage_.is_bundle_file(filename);
+    	return object_store_.contains(regid);
     }
 
     /**
@@ -365,7 +394,7 @@ public class RegistrationStore{
         /**
          * Set the iterator for registrations before iterating registrations.
          * Iterator checks for the next registration in the database.  
-         * @param  impt_sqlite SQLite obejct to access database
+         * @param  impt_sqlite MetadataStore obejct to access database
          * @param registration_store to access registration_store objects
          * @param table database table name 
          * @param pre_condition Database query condition has two parts pre_condition & post_condition  
@@ -374,7 +403,7 @@ public class RegistrationStore{
          */        
 		
 		
-		public void set_itr(SQLiteImplementation impt_sqlite, RegistrationStore registration_store, String table, String pre_condition, String post_condition, String first_condition)
+		public void set_itr(MetadataStore impt_sqlite, RegistrationStore registration_store, String table, String pre_condition, String post_condition, String first_condition)
 		{
 	    	itr_ = new StorageIterator<Registration>(impt_sqlite, table, pre_condition, post_condition, first_condition);
 		}
@@ -413,10 +442,15 @@ public class RegistrationStore{
     
     private static StorageImplementation<Registration> impt_storage_;
 
+	/**
+	 * ObjectStore keeping the registrations 
+	 */
+    private static ObjectStore<Registration> object_store_;
+
     /**
-	 * SQLiteImplementation object 
+	 * MetadataStore object keeping the registration table 
 	 */
-    private static SQLiteImplementation impt_sqlite_;
+    private static MetadataStore impt_sqlite_;
 
     /**
 	 * Number of registrations stored  
@@ -429,7 +463,7 @@ public class RegistrationStore{
     private DTNConfiguration config_;
 
 	/**
-	 * init_ to make sure in init() it only makes SQLiteImplementation only once   
+	 * init_ to make sure in init() it only makes StorageImplementation only once   
 	 */
 
     private static boolean init_ = false;
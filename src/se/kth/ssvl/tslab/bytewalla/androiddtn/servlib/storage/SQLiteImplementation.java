@@ -24,6 +24,7 @@ package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -35,12 +36,13 @@ import android.util.Log;
 /**
  * This class is the implementation of SQLite.
  * This class directly interact with SQLite and 
- * add, delete, get and update records.  
+ * add, delete, get and update records. It is the MetadataStore of the
+ * BundleStore and the RegistrationStore on Android.
  * @author Sharjeel Ahmed (sharjeel@kth.se)
  */
 
 
-public class SQLiteImplementation {
+public class SQLiteImplementation implements MetadataStore {
 	
 	/**
 	 * TAG for Android Logging
@@ -66,11 +68,21 @@ public class SQLiteImplementation {
 	 */
     
     public SQLiteImplementation(Context ctx, String table){
+    	this(ctx);
+    	if(db!=null){
+    		init(table);
+    	}
+    }
+    
+	/**
+	 * Construct without creating a table, the tables are created by the user of the database
+	 * @param ctx Application context to open the database file
+	 */
+    
+    public SQLiteImplementation(Context ctx){
     	try{
     		db = ctx.openOrCreateDatabase(DATABASE_NAME, 1, null);
     		
-    		init(table);
-    		
     		Log.d(TAG, "Can open database");
     		
     	}catch(SQLiteException e){
@@ -78,40 +90,84 @@ public class SQLiteImplementation {
     	}
     }
     
+	/**
+	 * Open a database other than the one of the stores, for example for a measurement
+	 * @param ctx Application context to open the database file
+	 * @param database Name of the database
+	 * @return The implementation, every operation fails if the database couldn't be opened
+	 */
+    
+    public static SQLiteImplementation open_database(Context ctx, String database){
+    	SQLiteDatabase db = null;
+    	try{
+    		db = ctx.openOrCreateDatabase(database, 1, null);
+    	}catch(SQLiteException e){
+    		Log.e(TAG, "SQLite Exception while opening "+database);
+    	}
+    	return new SQLiteImplementation(db);
+    }
+    
+	/**
+	 * Construct with an open database
+	 * @param db The database
+	 */
+    
+    private SQLiteImplementation(SQLiteDatabase db){
+    	this.db = db;
+    }
+    
 	/**
 	 * Add new record to database table
 	 * @param table Name of table in which function will add record
-	 * @param values ContentValues object contain all the values that
+	 * @param values Map object contain all the values that
 	 *  this function will add.
 	 *  @return If new row successfully added then return the newly added id
 	 *  otherwise return -1
 	 */
 
-    public int add(String table, ContentValues values){
+    public int add(String table, Map<String, Object> values){
         try{
         	Log.d(TAG, "Adding Row");
-        	return (int)db.insert(table, null, values);
+        	return (int)db.insert(table, null, content_values(values));
 		} catch (SQLiteException e) {
 			Log.e(TAG, "SQLite Exception while adding a row");
 			return -1;
 		} 
 
+    }
+
+	/**
+	 * Insert new row in database table or replace the row with the same primary key
+	 * @param table Name of table in which new row should be stored
+	 * @param values Map object contain all the values with the primary key 
+	 * @return The row id if successfully stored otherwise return -1
+	 */
+
+    public int replace(String table, Map<String, Object> values){
+        try{
+        	Log.d(TAG, "Replacing Row");
+        	return (int)db.replace(table, null, content_values(values));
+		} catch (SQLiteException e) {
+			Log.e(TAG, "SQLite Exception while replacing a row");
+			return -1;
+		} 
+
     }
 
 	/**
 	 * Update record in database table
 	 * @param table Name of table in which record already exist
-	 * @param values ContentValues object contain all the updated values 
+	 * @param values Map object contain all the updated values 
 	 * @param where Condition: Update record if this condition match
 	 * @param whereArgs 
 	 * @return True If new row successfully updated else return false
 	 *  otherwise return -1
 	 */
 
-    public boolean update(String table, ContentValues values, String where, String[] whereArgs){
+    public boolean update(String table, Map<String, Object> values, String where, String[] whereArgs){
         try{
         	Log.d(TAG, "Updating Row");
-        	db.update(table, values, where, whereArgs);
+        	db.update(table, content_values(values), where, whereArgs);
         	return true;
 		} catch (SQLiteException e) {
 			Log.e(TAG, "SQLite Exception while updating a row");
@@ -199,6 +255,78 @@ public class SQLiteImplementation {
 		return list;
     }    	
 
+	/**
+	 * Get multiple record from database based on condition with arguments, sorted and limited.
+	 * @param table Name of table in which record already exist
+	 * @param condition Get records where this condition matches, ? are replaced by args
+	 * @param args Arguments of the condition
+	 * @param field Only get this field from resulted row
+	 * @param orderBy Sort order of the rows, null for no order
+	 * @param limit Maximum number of rows, null for all
+	 * @return The list of required field values, empty if nothing found
+	 */
+    
+    public List<Integer> get_records(String table, String condition, String[] args, String field, String orderBy, String limit){
+    	List<Integer> list = new ArrayList<Integer>();
+    	try{
+	    	Cursor cursor =db.query(table, new String[]{field}, condition, args, null, null, orderBy, limit);
+	    	if(cursor!=null){
+	    		if (cursor.moveToFirst()){
+		    		do{
+		    			list.add(cursor.getInt(0));
+		    		}while(cursor.moveToNext());
+	    		}
+	    		cursor.close();
+	    	}
+    	}
+    	catch(SQLiteException e){
+    		Log.e(TAG, "Coundn't run the query");
+    	}
+		return list;
+    }    	
+
+	/**
+	 * Check if the table has the column.
+	 * @param table Name of table
+	 * @param column Name of the column
+	 * @return True if the column exists else false
+	 */
+    public boolean has_column(String table, String column){
+    	boolean found = false;
+    	try{
+	    	Cursor cursor = db.rawQuery("PRAGMA table_info("+table+")", null);
+	    	if(cursor!=null){
+	    		int nameColumn = cursor.getColumnIndex("name");
+	    		while(cursor.moveToNext()){
+	    			if(column.equals(cursor.getString(nameColumn))){
+	    				found = true;
+	    				break;
+	    			}
+	    		}
+	    		cursor.close();
+	    	}
+    	}
+    	catch(SQLiteException e){
+    		Log.e(TAG, "Coundn't read the columns of "+table);
+    	}
+    	return found;
+    }
+
+	/**
+	 * Execute a SQL statement which returns no data, like ALTER TABLE or CREATE INDEX.
+	 * @param sql The statement
+	 * @return True on success else false
+	 */
+    public boolean execute(String sql){
+    	try{
+	        db.execSQL(sql);
+	        return true;
+		}catch(SQLiteException e){
+			Log.e(TAG, "Coundn't execute: "+sql);
+		}
+		return false;
+    }
+
 	/**
 	 * Get the row count based on condition.
 	 * @param table Name of table in which record already exist
@@ -396,6 +524,32 @@ public class SQLiteImplementation {
     	}
     }
     
+	/**
+	 * Begin a transaction, the following operations are committed together
+	 * in end_transaction() if set_transaction_successful() was called.
+	 */
+    public void begin_transaction(){
+    	db.beginTransaction();
+    }
+
+	/**
+	 * Mark the current transaction as successful so it is committed
+	 */
+    public void set_transaction_successful(){
+    	db.setTransactionSuccessful();
+    }
+
+	/**
+	 * End the current transaction, commit it if it was marked successful otherwise roll it back
+	 */
+    public void end_transaction(){
+    	try{
+    		db.endTransaction();
+    	}catch(SQLiteException e){
+    		Log.e(TAG, "SQLite Exception while ending a transaction");
+    	}
+    }
+    
 	/**
 	 * Close database connection at the end of application
 	*/
@@ -403,4 +557,32 @@ public class SQLiteImplementation {
     	db.close();
     }    
 
+	/**
+	 * Convert the column values to the ContentValues of the database
+	 * @param values Column values, null values are stored as NULL
+	 * @return The ContentValues
+	 */
+    private static ContentValues content_values(Map<String, Object> values){
+    	ContentValues result = new ContentValues();
+    	Iterator<Map.Entry<String, Object>> iter = values.entrySet().iterator();
+    	while(iter.hasNext()){
+    		Map.Entry<String, Object> entry = iter.next();
+    		Object value = entry.getValue();
+    		if(value==null){
+    			result.putNull(entry.getKey());
+    		}else if(value instanceof Integer){
+    			result.put(entry.getKey(), (Integer)value);
+    		}else if(value instanceof Long){
+    			result.put(entry.getKey(), (Long)value);
+    		}else if(value instanceof Double){
+    			result.put(entry.getKey(), (Double)value);
+    		}else if(value instanceof byte[]){
+    			result.put(entry.getKey(), (byte[])value);
+    		}else{
+    			result.put(entry.getKey(), value.toString());
+    		}
+    	}
+    	return result;
+    }
+
 }
@@ -0,0 +1,409 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.util.Log;
+
+/**
+ * Base class of the binary codecs used to store objects instead of the Java
+ * serialization. A record is laid out as
+ *
+ * magic (1) | version (1) | eid dictionary | fields
+ *
+ * Numbers are written as SDNVs and every EndpointID is written as an index
+ * into the dictionary of the record, so an EID shared by several fields is
+ * only stored once. Records which do not start with the magic are read with
+ * ObjectInputStream so files written before the codec was introduced can
+ * still be loaded.
+ */
+
+public abstract class StorageCodec<Type> {
+
+	/**
+	 * TAG for Android Logging
+	 */
+	public static String TAG = "StorageCodec";
+
+	/**
+	 * First byte of every encoded record. A Java serialization stream starts with 0xAC.
+	 */
+	public static final byte CODEC_MAGIC = (byte) 0xDB;
+
+	/**
+	 * Encode the fields of the object
+	 * @param object Object to encode
+	 * @param encoder Encoder to write the fields to
+	 */
+	protected abstract void encode_fields(Type object, Encoder encoder) throws IOException;
+
+	/**
+	 * Decode the fields of the object
+	 * @param version Codec version the record was written with
+	 * @param decoder Decoder to read the fields from
+	 * @return The decoded object
+	 */
+	protected abstract Type decode_fields(int version, Decoder decoder) throws IOException;
+
+	/**
+	 * Current version of the codec, written in every record
+	 * @return Codec version
+	 */
+	public abstract int version();
+
+	/**
+	 * Encode the object to a record
+	 * @param object Object to encode
+	 * @return Encoded record or null on failure
+	 */
+	public byte[] encode(Type object) {
+		try {
+			Encoder encoder = new Encoder();
+			encode_fields(object, encoder);
+			return encoder.to_byte_array(version());
+		} catch (Throwable t) {
+			Log.e(TAG, "Unable to encode object:" + t.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Decode the object from a record. Records not written by a codec are
+	 * read with the Java serialization.
+	 * @param data Encoded record
+	 * @return The decoded object or null on failure
+	 */
+	@SuppressWarnings("unchecked")
+	public Type decode(byte[] data) {
+		try {
+			if (!is_encoded(data)) {
+				ObjectInputStream objStream = new ObjectInputStream(
+						new ByteArrayInputStream(data));
+				Type object = (Type) objStream.readObject();
+				objStream.close();
+				return object;
+			}
+
+			int version = data[1] & 0xff;
+			if (version > version()) {
+				Log.e(TAG, "Record version " + version + " is newer than codec version " + version());
+				return null;
+			}
+			Decoder decoder = new Decoder(data, 2);
+			return decode_fields(version, decoder);
+		} catch (Throwable t) {
+			Log.e(TAG, "Unable to decode object:" + t.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Check whether the data is a record written by a codec
+	 * @param data Stored data
+	 * @return True if the data starts with the codec magic
+	 */
+	public static boolean is_encoded(byte[] data) {
+		return data.length >= 2 && data[0] == CODEC_MAGIC;
+	}
+
+	/**
+	 * Compare the codec with the Java serialization. The object is encoded and
+	 * decoded the given number of times with both and the record sizes and
+	 * the elapsed times are reported.
+	 * @param object Object to encode
+	 * @param iterations Number of round trips
+	 * @return Human readable report
+	 */
+	public String test_compare_with_serialization(Type object, int iterations) {
+		try {
+			byte[] record = null;
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				record = encode(object);
+				decode(record);
+			}
+			long codec_time = System.nanoTime() - start;
+
+			byte[] serialized = null;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				ObjectOutputStream objStream = new ObjectOutputStream(out);
+				objStream.writeObject(object);
+				objStream.close();
+				serialized = out.toByteArray();
+
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+				in.readObject();
+				in.close();
+			}
+			long serialization_time = System.nanoTime() - start;
+
+			return String.format("codec: %d bytes %d us/op, serialization: %d bytes %d us/op",
+					record.length, codec_time / iterations / 1000,
+					serialized.length, serialization_time / iterations / 1000);
+		} catch (Throwable t) {
+			Log.e(TAG, "Comparison failed:" + t.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Writer for the fields of a record. EID strings are collected in the
+	 * dictionary which is written in front of the fields.
+	 */
+	public static class Encoder {
+
+		/**
+		 * Encoded fields
+		 */
+		private ByteArrayOutputStream out_;
+
+		/**
+		 * Dictionary strings in the order of their index
+		 */
+		private ArrayList<String> dict_;
+
+		/**
+		 * Lookup from dictionary string to its index
+		 */
+		private HashMap<String, Integer> dict_index_;
+
+		Encoder() {
+			out_ = new ByteArrayOutputStream(256);
+			dict_ = new ArrayList<String>();
+			dict_index_ = new HashMap<String, Integer>();
+		}
+
+		/**
+		 * Write an unsigned number as SDNV
+		 */
+		public void write_sdnv(long value) {
+			write_sdnv(out_, value);
+		}
+
+		/**
+		 * Write a signed number, zigzag coded so small negative numbers stay short
+		 */
+		public void write_signed(long value) {
+			write_sdnv(out_, (value << 1) ^ (value >> 63));
+		}
+
+		/**
+		 * Write a single byte
+		 */
+		public void write_byte(int value) {
+			out_.write(value);
+		}
+
+		/**
+		 * Write the length followed by the bytes
+		 */
+		public void write_bytes(byte[] data, int offset, int length) {
+			write_sdnv(out_, length);
+			out_.write(data, offset, length);
+		}
+
+		/**
+		 * Write a string in UTF-8, null is written as length 0 with a marker
+		 */
+		public void write_string(String value) throws UnsupportedEncodingException {
+			if (value == null) {
+				out_.write(0);
+				return;
+			}
+			out_.write(1);
+			byte[] data = value.getBytes("UTF-8");
+			write_bytes(data, 0, data.length);
+		}
+
+		/**
+		 * Write an EID string as a dictionary reference, 0 is null
+		 */
+		public void write_eid(String eid) {
+			if (eid == null) {
+				write_sdnv(out_, 0);
+				return;
+			}
+			Integer index = dict_index_.get(eid);
+			if (index == null) {
+				index = dict_.size();
+				dict_.add(eid);
+				dict_index_.put(eid, index);
+			}
+			write_sdnv(out_, index + 1);
+		}
+
+		/**
+		 * Build the record from the header, the dictionary and the fields
+		 */
+		byte[] to_byte_array(int version) throws UnsupportedEncodingException {
+			ByteArrayOutputStream record = new ByteArrayOutputStream(out_.size() + 64);
+			record.write(CODEC_MAGIC);
+			record.write(version);
+			write_sdnv(record, dict_.size());
+			for (int i = 0; i < dict_.size(); i++) {
+				byte[] data = dict_.get(i).getBytes("UTF-8");
+				write_sdnv(record, data.length);
+				record.write(data, 0, data.length);
+			}
+			byte[] fields = out_.toByteArray();
+			record.write(fields, 0, fields.length);
+			return record.toByteArray();
+		}
+
+		/**
+		 * SDNV encoding, seven bits per byte with the high bit set on all but the last byte
+		 */
+		private static void write_sdnv(ByteArrayOutputStream out, long value) {
+			int shift = 63;
+			while (shift > 0 && (value >>> shift) == 0) {
+				shift -= 7;
+			}
+			for (; shift > 0; shift -= 7) {
+				out.write((int) ((value >>> shift) & 0x7f) | 0x80);
+			}
+			out.write((int) (value & 0x7f));
+		}
+	}
+
+	/**
+	 * Reader for the fields of a record.
+	 */
+	public static class Decoder {
+
+		/**
+		 * Record data
+		 */
+		private byte[] data_;
+
+		/**
+		 * Current read position
+		 */
+		private int position_;
+
+		/**
+		 * Dictionary of the record
+		 */
+		private String[] dict_;
+
+		Decoder(byte[] data, int position) throws IOException {
+			data_ = data;
+			position_ = position;
+			int count = check_length(read_sdnv());
+			dict_ = new String[count];
+			for (int i = 0; i < count; i++) {
+				int length = check_length(read_sdnv());
+				dict_[i] = new String(data_, position_, length, "UTF-8");
+				position_ += length;
+			}
+		}
+
+		/**
+		 * Read an unsigned SDNV number
+		 */
+		public long read_sdnv() throws IOException {
+			long value = 0;
+			for (int i = 0; i < 10; i++) {
+				if (position_ >= data_.length)
+					throw new IOException("Record truncated");
+				int b = data_[position_++];
+				value = (value << 7) | (b & 0x7f);
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new IOException("SDNV too long");
+		}
+
+		/**
+		 * Read an SDNV number which has to fit into an int
+		 */
+		public int read_int() throws IOException {
+			return (int) read_sdnv();
+		}
+
+		/**
+		 * Read a zigzag coded signed number
+		 */
+		public long read_signed() throws IOException {
+			long value = read_sdnv();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * Read a single byte
+		 */
+		public int read_byte() throws IOException {
+			if (position_ >= data_.length)
+				throw new IOException("Record truncated");
+			return data_[position_++] & 0xff;
+		}
+
+		/**
+		 * Read length prefixed bytes
+		 */
+		public byte[] read_bytes() throws IOException {
+			int length = check_length(read_sdnv());
+			byte[] result = new byte[length];
+			System.arraycopy(data_, position_, result, 0, length);
+			position_ += length;
+			return result;
+		}
+
+		/**
+		 * Read a string written with write_string
+		 */
+		public String read_string() throws IOException {
+			if (read_byte() == 0)
+				return null;
+			return new String(read_bytes(), "UTF-8");
+		}
+
+		/**
+		 * Read an EID string from its dictionary reference
+		 */
+		public String read_eid() throws IOException {
+			int index = read_int();
+			if (index == 0)
+				return null;
+			if (index > dict_.length)
+				throw new IOException("EID reference out of the dictionary");
+			return dict_[index - 1];
+		}
+
+		/**
+		 * Make sure the length fits into the remaining record
+		 */
+		private int check_length(long length) throws IOException {
+			if (length < 0 || length > data_.length - position_)
+				throw new IOException("Record truncated");
+			return (int) length;
+		}
+	}
+}
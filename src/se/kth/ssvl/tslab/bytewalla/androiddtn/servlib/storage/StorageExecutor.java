@@ -0,0 +1,266 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleDaemon;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent.store_op_t;
+import android.util.Log;
+
+/**
+ * This class is implemented as Singleton to run the storage operations of the
+ * BundleStore outside of the BundleDaemon thread. Operations run one at a
+ * time in the order they were submitted, so the operations on the same bundle
+ * never overtake each other. The BundleStore is serialized anyway so more
+ * threads would not write faster. When an operation finished a
+ * StoreCompletedEvent is posted to the BundleDaemon.
+ */
+
+public class StorageExecutor {
+
+	/**
+	 *  Singleton instance Implementation of the StorageExecutor
+	 */
+	private static StorageExecutor instance_ = null;
+
+	/**
+	 * TAG for Android Logging
+	 */
+	private static String TAG = "StorageExecutor";
+
+	/**
+	 * Time in seconds to wait for the queued operations at shutdown
+	 */
+	private static final int SHUTDOWN_TIMEOUT = 30;
+
+    /**
+     * Singleton Implementation Getter function
+     * @return an singleton instance of StorageExecutor
+     */
+	public static StorageExecutor getInstance() {
+        if(instance_ == null) {
+           instance_ = new StorageExecutor();
+        }
+        return instance_;
+     }
+
+	/**
+	 * Private constructor for Singleton Implementation of the StorageExecutor
+	 */
+	private StorageExecutor() {
+		stats_lock_ = new Object();
+	}
+
+    /**
+     * Start the storage I/O thread.
+     */
+	public void init() {
+		if (executor_ != null)
+			return;
+
+		executor_ = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+    /**
+     * Submit a storage operation on the bundle.
+     * If the executor is not running the operation is rejected and its Future
+     * is false, it is never done in the calling thread.
+     * @param op Kind of the operation, reported in the completion event
+     * @param bundle Bundle the operation is done on
+     * @param operation The operation itself
+     * @return Future with the result of the operation
+     */
+	public Future<Boolean> submit(final store_op_t op, final Bundle bundle,
+			final Callable<Boolean> operation) {
+		final long submitted = System.currentTimeMillis();
+
+		FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				boolean success = false;
+				try {
+					success = operation.call();
+				} catch (Exception e) {
+					Log.e(TAG, String.format("storage %s of bundle %d failed: %s",
+							op.getCaption(), bundle.bundleid(), e.toString()));
+				}
+				long latency = System.currentTimeMillis() - submitted;
+				completed(success, latency);
+				BundleDaemon.getInstance().post(
+						new StoreCompletedEvent(op, bundle, success, latency));
+				return success;
+			}
+		});
+
+		synchronized (stats_lock_) {
+			queue_depth_++;
+			if (queue_depth_ > max_queue_depth_)
+				max_queue_depth_ = queue_depth_;
+		}
+
+		ExecutorService executor = executor_;
+		try {
+			if (executor != null) {
+				executor.execute(task);
+				return task;
+			}
+		} catch (RejectedExecutionException e) {
+			// shut down meanwhile
+		}
+
+		Log.e(TAG, String.format("executor is not running, rejecting storage %s of bundle %d",
+				op.getCaption(), bundle.bundleid()));
+		completed(false, 0);
+		FutureTask<Boolean> rejected = new FutureTask<Boolean>(new Runnable() {
+			public void run() {
+			}
+		}, Boolean.FALSE);
+		rejected.run();
+		return rejected;
+	}
+
+    /**
+     * Run an operation on the storage I/O thread after all the operations
+     * submitted before it. No StoreCompletedEvent is posted for it.
+     * @param operation The operation
+     * @return Future with the result of the operation
+     * @throws RejectedExecutionException if the executor is not running
+     */
+	public <T> Future<T> execute(Callable<T> operation) {
+		ExecutorService executor = executor_;
+		if (executor == null)
+			throw new RejectedExecutionException("storage executor is not running");
+		return executor.submit(operation);
+	}
+
+    /**
+     * Stop accepting operations and wait until the queued ones are done.
+     */
+	public void shutdown() {
+		ExecutorService executor = executor_;
+		if (executor == null)
+			return;
+
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+				Log.e(TAG, "storage operations did not finish in time");
+			}
+		} catch (InterruptedException e) {
+			Log.e(TAG, "Interrupted while waiting for the storage operations");
+		}
+		executor_ = null;
+	}
+
+	/**
+	 * Number of operations queued or running
+	 * @return the queue depth
+	 */
+	public int queue_depth() {
+		synchronized (stats_lock_) {
+			return queue_depth_;
+		}
+	}
+
+	/**
+	 * Format the given StringBuffer with the storage executor statistics.
+	 */
+	public void get_stats(StringBuffer buf) {
+		synchronized (stats_lock_) {
+			buf.append(String.format("%d storage_queue_depth -- " + "%d storage_max_queue_depth -- "
+					+ "%d storage_ops -- " + "%d storage_failed_ops -- "
+					+ "%d storage_avg_latency_ms -- " + "%d storage_max_latency_ms -- ",
+					queue_depth_, max_queue_depth_, completed_ops_, failed_ops_,
+					completed_ops_ == 0 ? 0 : total_latency_ / completed_ops_,
+					max_latency_));
+		}
+	}
+
+	/**
+	 * Account a finished operation
+	 */
+	private void completed(boolean success, long latency) {
+		synchronized (stats_lock_) {
+			queue_depth_--;
+			completed_ops_++;
+			if (!success)
+				failed_ops_++;
+			total_latency_ += latency;
+			if (latency > max_latency_)
+				max_latency_ = latency;
+		}
+	}
+
+	/**
+	 * Single storage I/O thread, null when not running
+	 */
+	private volatile ExecutorService executor_;
+
+	/**
+	 * Lock for the statistics
+	 */
+	private Object stats_lock_;
+
+	/**
+	 * Number of operations queued or running
+	 */
+	private int queue_depth_;
+
+	/**
+	 * Highest queue depth seen
+	 */
+	private int max_queue_depth_;
+
+	/**
+	 * Number of finished operations
+	 */
+	private long completed_ops_;
+
+	/**
+	 * Number of failed operations
+	 */
+	private long failed_ops_;
+
+	/**
+	 * Sum of the latencies in milliseconds of all the finished operations
+	 */
+	private long total_latency_;
+
+	/**
+	 * Highest latency in milliseconds of a finished operation
+	 */
+	private long max_latency_;
+}
@@ -29,7 +29,6 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 
-import android.content.Context;
 import android.util.Log;
 
 /**
@@ -50,10 +49,17 @@ public class StorageImplementation<Type> {
 		
 		/**
 		 * Construct 
-		 * @param context Application context
 		 */
-		StorageImplementation(Context context){
+		StorageImplementation(){
+			codec_ = null;
+		}
 
+		/**
+		 * Construct with a binary codec used instead of the Java serialization
+		 * @param codec Codec to encode and decode the objects
+		 */
+		StorageImplementation(StorageCodec<Type> codec){
+			codec_ = codec;
 		}
 
 		
@@ -77,11 +83,21 @@ public class StorageImplementation<Type> {
 			OutputStream out = new FileOutputStream(f);//Context..openFileOutput("test.txt");
 
 			Log.d(TAG, "Writing in file:"+filename);
-			ObjectOutputStream objStream = new ObjectOutputStream(out);
-			objStream.writeObject(object);
+			if(codec_!=null){
+				byte[] data = codec_.encode(object);
+				if(data==null){
+					out.close();
+					return false;
+				}
+				out.write(data);
+			}
+			else{
+				ObjectOutputStream objStream = new ObjectOutputStream(out);
+				objStream.writeObject(object);
 
-			objStream.flush();
-			objStream.close();
+				objStream.flush();
+				objStream.close();
+			}
 			
 			out.flush();
 			out.close();
@@ -110,6 +126,17 @@ public class StorageImplementation<Type> {
 			File f = new File(dir_, filename);
 			InputStream in = new FileInputStream(f);
 
+			if(codec_!=null){
+				byte[] data = new byte[(int)f.length()];
+				int read = 0;
+				while(read<data.length){
+					int n = in.read(data, read, data.length-read);
+					if(n<0) break;
+					read += n;
+				}
+				in.close();
+				return codec_.decode(data);
+			}
 
 			ObjectInputStream objStream = new ObjectInputStream(in);
 			if (in!=null) {
@@ -329,4 +356,9 @@ public class StorageImplementation<Type> {
 	
 	private File dir_;
 
+	/**
+	 * Codec to encode the objects, null to use the Java serialization
+	 */
+	private StorageCodec<Type> codec_;
+
 }
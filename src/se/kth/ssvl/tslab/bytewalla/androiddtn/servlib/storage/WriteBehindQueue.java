@@ -0,0 +1,452 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.Bundle;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.BundleDaemon;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.bundling.event.StoreCompletedEvent.store_op_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.DTNConfiguration;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.config.StorageSetting.durability_t;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.reg.Registration;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread.Lock;
+import android.util.Log;
+
+/**
+ * This class is implemented as Singleton to delay the updates of the BundleStore
+ * and the RegistrationStore. Repeated updates of the same bundle or registration
+ * are coalesced and written by a background thread in one transaction, so the
+ * caller does not wait for the storage. The batches of bundle updates are
+ * written by the StorageExecutor, behind the adds and deletes submitted
+ * before them. With the immediate durability every bundle update is handed
+ * to the StorageExecutor right away.
+ */
+
+public class WriteBehindQueue implements Runnable {
+
+	/**
+	 *  Singleton instance Implementation of the WriteBehindQueue
+	 */
+	private static WriteBehindQueue instance_ = null;
+
+	/**
+	 * TAG for Android Logging
+	 */
+	private static String TAG = "WriteBehindQueue";
+
+    /**
+     * Singleton Implementation Getter function
+     * @return an singleton instance of WriteBehindQueue
+     */
+	public static WriteBehindQueue getInstance() {
+        if(instance_ == null) {
+           instance_ = new WriteBehindQueue();
+        }
+        return instance_;
+     }
+
+	/**
+	 * Private constructor for Singleton Implementation of the WriteBehindQueue
+	 */
+	private WriteBehindQueue() {
+		lock_ = new Lock();
+		flush_needed_ = lock_.newCondition();
+		flush_lock_ = new Lock();
+		pending_bundles_ = new LinkedHashMap<Integer, Bundle>();
+		pending_regs_ = new LinkedHashMap<Integer, Registration>();
+		flushing_bundles_ = new LinkedHashMap<Integer, Bundle>();
+		durability_ = durability_t.IMMEDIATE;
+	}
+
+    /**
+     * Read the durability settings and start the writer thread if the updates are queued.
+     * @param config Get the application configuration to get the storage settings
+     */
+	public void init(DTNConfiguration config) {
+		durability_ = config.storage_setting().durability();
+		flush_interval_ = Math.max(1, config.storage_setting().flush_interval());
+		flush_batch_ = Math.max(1, config.storage_setting().flush_batch());
+
+		Log.d(TAG, String.format("durability %s, flush interval %d ms, flush batch %d",
+				durability_.getCaption(), flush_interval_, flush_batch_));
+
+		if (durability_ != durability_t.IMMEDIATE && thread_ == null) {
+			stopped_ = false;
+			thread_ = new Thread(this, TAG);
+			thread_.setDaemon(true);
+			thread_.start();
+		}
+	}
+
+    /**
+     * Update the bundle in the BundleStore, queued unless the durability is immediate.
+     * An update which fails after this returned is reported with a failed StoreCompletedEvent.
+     * @param bundle Bundle to update
+     * @return False if the update already failed else true
+     */
+	public boolean update(Bundle bundle) {
+		if (thread_ == null) {
+			Future<Boolean> result = BundleStore.getInstance().update_async(bundle);
+			if (!result.isDone())
+				return true;
+			try {
+				return result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				return false;
+			}
+		}
+
+		lock_.lock();
+		try {
+			if (pending_bundles_.put(bundle.bundleid(), bundle) != null)
+				coalesced_++;
+			updates_++;
+			signal_if_full();
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Update the registration in the RegistrationStore, queued unless the durability is immediate.
+     * @param reg Registration to update
+     * @return True if the registration was updated or queued else false
+     */
+	public boolean update(Registration reg) {
+		if (thread_ == null)
+			return RegistrationStore.getInstance().update(reg);
+
+		lock_.lock();
+		try {
+			if (pending_regs_.put(reg.regid(), reg) != null)
+				coalesced_++;
+			updates_++;
+			signal_if_full();
+			return true;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Get the bundle if it has an update which is not written yet.
+     * @param bundleid Bundle id to look for
+     * @return The queued bundle or null
+     */
+	public Bundle pending_bundle(int bundleid) {
+		lock_.lock();
+		try {
+			Bundle bundle = pending_bundles_.get(bundleid);
+			if (bundle == null)
+				bundle = flushing_bundles_.get(bundleid);
+			return bundle;
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Drop the queued update of the bundle, called when the bundle is deleted.
+     * @param bundleid Bundle id
+     */
+	public void cancel_bundle(int bundleid) {
+		lock_.lock();
+		try {
+			pending_bundles_.remove(bundleid);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Drop the queued update of the registration, called when the registration is deleted.
+     * @param regid Registration id
+     */
+	public void cancel_registration(int regid) {
+		lock_.lock();
+		try {
+			pending_regs_.remove(regid);
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Drop all the queued updates, called when the storage is reset.
+     */
+	public void clear() {
+		lock_.lock();
+		try {
+			pending_bundles_.clear();
+			pending_regs_.clear();
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+    /**
+     * Write all the queued updates. The bundles and the registrations are
+     * each written in one transaction.
+     */
+	public void flush() {
+		flush_lock_.lock();
+		try {
+			LinkedHashMap<Integer, Registration> regs;
+			final ArrayList<Bundle> failed = new ArrayList<Bundle>();
+			Future<Integer> bundles_written = null;
+			long start = System.currentTimeMillis();
+			lock_.lock();
+			try {
+				if (pending_bundles_.isEmpty() && pending_regs_.isEmpty())
+					return;
+
+				flushing_bundles_ = pending_bundles_;
+				pending_bundles_ = new LinkedHashMap<Integer, Bundle>();
+				regs = pending_regs_;
+				pending_regs_ = new LinkedHashMap<Integer, Registration>();
+
+				// the bundle updates are written by the StorageExecutor behind the
+				// adds and deletes submitted before. Submitting under the lock keeps
+				// a delete from getting in between taking the updates and queuing them.
+				if (!flushing_bundles_.isEmpty()) {
+					final Collection<Bundle> bundles = flushing_bundles_.values();
+					try {
+						bundles_written = StorageExecutor.getInstance().execute(
+								new Callable<Integer>() {
+									public Integer call() {
+										return BundleStore.getInstance().update_batch(bundles, failed);
+									}
+								});
+					} catch (RejectedExecutionException e) {
+						Log.e(TAG, String.format("Storage executor not running, %d bundle updates lost",
+								bundles.size()));
+						failed.addAll(bundles);
+					}
+				}
+			} finally {
+				lock_.unlock();
+			}
+
+			int written = 0;
+			if (bundles_written != null) {
+				try {
+					written += bundles_written.get();
+				} catch (InterruptedException e) {
+					Log.e(TAG, "Interrupted while waiting for the bundle updates");
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					Log.e(TAG, "Writing the bundle updates failed: " + e.getCause());
+				}
+			}
+			if (!regs.isEmpty())
+				written += RegistrationStore.getInstance().update_batch(regs.values());
+			long elapsed = System.currentTimeMillis() - start;
+
+			// the callers were told the update was queued, report the failures like asynchronous ones
+			for (int i = 0; i < failed.size(); i++) {
+				BundleDaemon.getInstance().post(new StoreCompletedEvent(
+						store_op_t.STORE_UPDATE, failed.get(i), false, elapsed));
+			}
+
+			lock_.lock();
+			try {
+				flushing_bundles_ = new LinkedHashMap<Integer, Bundle>();
+				flushes_++;
+				written_ += written;
+				flush_time_ += elapsed;
+			} finally {
+				lock_.unlock();
+			}
+			Log.d(TAG, String.format("Flushed %d updates in %d ms", written, elapsed));
+		} finally {
+			flush_lock_.unlock();
+		}
+	}
+
+    /**
+     * Writer thread, flushes when the batch is full or the flush interval is over.
+     */
+	public void run() {
+		while (true) {
+			lock_.lock();
+			try {
+				if (stopped_)
+					break;
+				if (durability_ == durability_t.LAZY || pending_count() < flush_batch_) {
+					flush_needed_.await(flush_interval_, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Writer thread interrupted");
+				break;
+			} finally {
+				lock_.unlock();
+			}
+			flush();
+		}
+	}
+
+    /**
+     * Stop the writer thread and write the remaining updates.
+     */
+	public void close() {
+		Thread thread = thread_;
+		lock_.lock();
+		try {
+			stopped_ = true;
+			flush_needed_.signal();
+		} finally {
+			lock_.unlock();
+		}
+
+		if (thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted while waiting for the writer thread");
+			}
+		}
+		flush();
+		thread_ = null;
+	}
+
+	/**
+	 * Format the given StringBuffer with the write-behind statistics.
+	 */
+	public void get_stats(StringBuffer buf) {
+		lock_.lock();
+		try {
+			buf.append(String.format("%d queued_updates -- " + "%d coalesced_updates -- "
+					+ "%d written_updates -- " + "%d flushes -- " + "%d flush_ms",
+					updates_, coalesced_, written_, flushes_, flush_time_));
+		} finally {
+			lock_.unlock();
+		}
+	}
+
+	/**
+	 * Number of queued updates, the lock has to be held
+	 */
+	private int pending_count() {
+		return pending_bundles_.size() + pending_regs_.size();
+	}
+
+	/**
+	 * Wake up the writer when the batch is full with the group durability, the lock has to be held
+	 */
+	private void signal_if_full() {
+		if (durability_ == durability_t.GROUP && pending_count() >= flush_batch_)
+			flush_needed_.signal();
+	}
+
+	/**
+	 * Lock protecting the queues and the statistics
+	 */
+	private Lock lock_;
+
+	/**
+	 * Condition to wake up the writer thread
+	 */
+	private Condition flush_needed_;
+
+	/**
+	 * Lock to make sure only one flush runs at a time
+	 */
+	private Lock flush_lock_;
+
+	/**
+	 * Queued bundle updates by bundle id in the order they were first queued
+	 */
+	private LinkedHashMap<Integer, Bundle> pending_bundles_;
+
+	/**
+	 * Queued registration updates by registration id
+	 */
+	private LinkedHashMap<Integer, Registration> pending_regs_;
+
+	/**
+	 * Bundle updates being written by the current flush
+	 */
+	private LinkedHashMap<Integer, Bundle> flushing_bundles_;
+
+	/**
+	 * Configured durability
+	 */
+	private durability_t durability_;
+
+	/**
+	 * Maximum time in milliseconds an update is queued
+	 */
+	private int flush_interval_;
+
+	/**
+	 * Number of queued updates which triggers a flush with the group durability
+	 */
+	private int flush_batch_;
+
+	/**
+	 * Writer thread, null with the immediate durability
+	 */
+	private volatile Thread thread_;
+
+	/**
+	 * Flag to stop the writer thread
+	 */
+	private boolean stopped_;
+
+	/**
+	 * Number of queued updates
+	 */
+	private long updates_;
+
+	/**
+	 * Number of updates merged into an already queued update
+	 */
+	private long coalesced_;
+
+	/**
+	 * Number of updates written to the storage
+	 */
+	private long written_;
+
+	/**
+	 * Number of flushes
+	 */
+	private long flushes_;
+
+	/**
+	 * Total time in milliseconds spent in flushes
+	 */
+	private long flush_time_;
+}
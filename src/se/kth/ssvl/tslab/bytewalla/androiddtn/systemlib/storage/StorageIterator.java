@@ -23,7 +23,7 @@ package se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.storage;
 
 import java.util.Iterator;
 
-import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.SQLiteImplementation;
+import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.MetadataStore;
 
 /**
  * Class that implements Iterator to make iterators of the user defined types. 
@@ -34,9 +34,9 @@ import se.kth.ssvl.tslab.bytewalla.androiddtn.servlib.storage.SQLiteImplementati
 public class StorageIterator<Type> implements Iterator<Integer>{
 	
 	/**
-	 * SQLite object 
+	 * MetadataStore object 
 	 */
-	private SQLiteImplementation impt_sqlite_;
+	private MetadataStore impt_sqlite_;
 	
 	/**
 	 * Pre condition for the iterator query
@@ -70,13 +70,13 @@ public class StorageIterator<Type> implements Iterator<Integer>{
 	
 	/**
 	 * Constructor to init Iterator
-	 * @param impt_sqlite SQLite object to get data from the database
+	 * @param impt_sqlite MetadataStore object to get data from the database
 	 * @param tableName Table Name of the SQLite to init iterator
 	 * @param pre_condition Pre-condition for the iterator
 	 * @param post_condition Post condition for the iterator
 	 * @param first_condition Condition for init the iterator
 	 */
-    public StorageIterator(SQLiteImplementation impt_sqlite, String tableName, String pre_condition, String post_condition, String first_condition){
+    public StorageIterator(MetadataStore impt_sqlite, String tableName, String pre_condition, String post_condition, String first_condition){
     	impt_sqlite_ = impt_sqlite;
     	table_ = tableName;
     	pre_condition_ = pre_condition;
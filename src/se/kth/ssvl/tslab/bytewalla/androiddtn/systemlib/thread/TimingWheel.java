@@ -0,0 +1,616 @@
+/*
+ *	  This file is part of the Bytewalla Project
+ *    More information can be found at "http://www.tslab.ssvl.kth.se/csd/projects/092106/".
+ *
+ *    Copyright 2009 Telecommunication Systems Laboratory (TSLab), Royal Institute of Technology, Sweden.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * This class is implemented as Singleton to run the VirtualTimerTasks. The
+ * timers are kept in a hashed hierarchical timing wheel of LEVELS wheels
+ * with SLOTS slots each. The first wheel has a slot per tick, every next
+ * wheel a slot per turn of the previous one, and the timers of a slot are
+ * moved down to the lower wheels when their time comes near.
+ *
+ * Scheduling and cancelling only queue the timer and do not take a lock, the
+ * wheel thread picks the queued timers up at the next tick. The timers
+ * expiring in the same tick are given to the ExpiryHandler as one batch.
+ */
+public class TimingWheel implements Runnable {
+
+	/**
+	 *  Singleton instance Implementation of the TimingWheel
+	 */
+	private static TimingWheel instance_ = null;
+
+	/**
+	 * TAG for Android Logging
+	 */
+	private static String TAG = "TimingWheel";
+
+	/**
+	 * Number of bits of the slot index of a wheel
+	 */
+	private static final int SLOT_BITS = 6;
+
+	/**
+	 * Number of slots of a wheel
+	 */
+	public static final int SLOTS = 1 << SLOT_BITS;
+
+	/**
+	 * Number of wheels
+	 */
+	public static final int LEVELS = 4;
+
+	/**
+	 * Number of ticks the wheels cover, timers further away are put in the
+	 * last wheel and placed again when they come down
+	 */
+	private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+	/**
+	 * Tick in milliseconds if the configuration is not read yet
+	 */
+	public static final int DEFAULT_TICK = 100;
+
+	/**
+	 * Receiver of the timers expiring in a tick
+	 */
+	public interface ExpiryHandler {
+		/**
+		 * Run the expired timers
+		 * @param batch the expired timers in the order of their expiration time
+		 * @param now current time
+		 */
+		void expired(java.util.List<VirtualTimerTask> batch, Date now);
+	}
+
+	/**
+	 * ExpiryHandler running the timers one after the other on the wheel thread
+	 */
+	public static final ExpiryHandler RUN_IN_PLACE = new ExpiryHandler() {
+		public void expired(java.util.List<VirtualTimerTask> batch, Date now) {
+			for (int i = 0; i < batch.size(); i++) {
+				try {
+					batch.get(i).fire(now);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Timer " + batch.get(i) + " failed: " + e.getMessage());
+				}
+			}
+		}
+	};
+
+	/**
+	 * One scheduling of a VirtualTimerTask, linked in the slot of its wheel.
+	 * A new Timeout is made every time the task is scheduled, so a cancelled
+	 * one can stay in its slot until the wheel thread unlinks it.
+	 */
+	static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		Timeout(VirtualTimerTask task, long deadline) {
+			task_ = task;
+			deadline_ = deadline;
+			state_ = new AtomicInteger(PENDING);
+		}
+
+		/**
+		 * Cancel the timeout unless it already expired
+		 * @return true if it was cancelled by this call
+		 */
+		boolean cancel() {
+			return state_.compareAndSet(PENDING, CANCELLED);
+		}
+
+		/**
+		 * Whether the timeout was cancelled
+		 */
+		boolean cancelled() {
+			return state_.get() == CANCELLED;
+		}
+
+		/**
+		 * Whether the timeout expired
+		 */
+		boolean expired() {
+			return state_.get() == EXPIRED;
+		}
+
+		/**
+		 * Mark the timeout expired unless it was cancelled
+		 * @return true if it expired with this call
+		 */
+		boolean expire() {
+			return state_.compareAndSet(PENDING, EXPIRED);
+		}
+
+		final VirtualTimerTask task_;
+
+		/**
+		 * Expiration time in System.nanoTime
+		 */
+		final long deadline_;
+
+		final AtomicInteger state_;
+
+		/**
+		 * Expiration tick, set by the wheel thread when the timeout is placed
+		 */
+		long tick_;
+
+		/**
+		 * Slot list the timeout is linked in, null if it is not in a slot
+		 */
+		Slot slot_;
+		Timeout prev_;
+		Timeout next_;
+	}
+
+	/**
+	 * Doubly linked list of the timeouts of a slot, only used by the wheel thread
+	 */
+	private static final class Slot {
+		void add(Timeout timeout) {
+			timeout.slot_ = this;
+			timeout.prev_ = tail_;
+			timeout.next_ = null;
+			if (tail_ == null)
+				head_ = timeout;
+			else
+				tail_.next_ = timeout;
+			tail_ = timeout;
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev_ == null)
+				head_ = timeout.next_;
+			else
+				timeout.prev_.next_ = timeout.next_;
+			if (timeout.next_ == null)
+				tail_ = timeout.prev_;
+			else
+				timeout.next_.prev_ = timeout.prev_;
+			timeout.slot_ = null;
+			timeout.prev_ = null;
+			timeout.next_ = null;
+		}
+
+		/**
+		 * Unlink all the timeouts
+		 * @return the first of the timeouts, still linked with next_
+		 */
+		Timeout take_all() {
+			Timeout head = head_;
+			for (Timeout t = head; t != null; t = t.next_)
+				t.slot_ = null;
+			head_ = null;
+			tail_ = null;
+			return head;
+		}
+
+		Timeout head_;
+		Timeout tail_;
+	}
+
+    /**
+     * Singleton Implementation Getter function
+     * @return an singleton instance of TimingWheel
+     */
+	public static TimingWheel getInstance() {
+        if(instance_ == null) {
+           instance_ = new TimingWheel();
+        }
+        return instance_;
+     }
+
+	/**
+	 * Private constructor for Singleton Implementation of the TimingWheel
+	 */
+	private TimingWheel() {
+		wheels_ = new Slot[LEVELS][SLOTS];
+		for (int level = 0; level < LEVELS; level++)
+			for (int slot = 0; slot < SLOTS; slot++)
+				wheels_[level][slot] = new Slot();
+		scheduled_ = new ConcurrentLinkedQueue<Timeout>();
+		cancelled_ = new ConcurrentLinkedQueue<Timeout>();
+		handler_ = RUN_IN_PLACE;
+		tick_ns_ = DEFAULT_TICK * 1000000L;
+	}
+
+	/**
+	 * Start the wheel thread. The timers scheduled before are placed at the first tick.
+	 * @param tick tick of the wheel in milliseconds
+	 */
+	public synchronized void start(int tick) {
+		if (thread_ != null)
+			return;
+
+		tick_ns_ = Math.max(1, tick) * 1000000L;
+		start_ns_ = System.nanoTime();
+		current_ = 0;
+		stopped_ = false;
+		thread_ = new Thread(this, TAG);
+		thread_.setDaemon(true);
+		thread_.start();
+		Log.d(TAG, String.format("started with a %d ms tick, %d wheels of %d slots",
+				tick_ns_ / 1000000L, LEVELS, SLOTS));
+	}
+
+	/**
+	 * Stop the wheel thread and drop all the timers without running them.
+	 */
+	public void shutdown() {
+		Thread thread;
+		synchronized (this) {
+			thread = thread_;
+			stopped_ = true;
+		}
+
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Log.e(TAG, "Interrupted while waiting for the wheel thread");
+			}
+		}
+
+		synchronized (this) {
+			for (int level = 0; level < LEVELS; level++)
+				for (int slot = 0; slot < SLOTS; slot++)
+					wheels_[level][slot].take_all();
+			scheduled_.clear();
+			cancelled_.clear();
+			thread_ = null;
+		}
+	}
+
+	/**
+	 * Set the receiver of the expired timers
+	 * @param handler the handler, null to run the timers on the wheel thread
+	 */
+	public void set_expiry_handler(ExpiryHandler handler) {
+		handler_ = handler == null ? RUN_IN_PLACE : handler;
+	}
+
+	/**
+	 * Schedule the task to expire after the delay
+	 * @param task the task
+	 * @param delay delay in milliseconds
+	 * @return the Timeout to cancel the schedule with
+	 */
+	Timeout schedule(VirtualTimerTask task, long delay) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delay) * 1000000L);
+		scheduled_.offer(timeout);
+		scheduled_count_.incrementAndGet();
+		return timeout;
+	}
+
+	/**
+	 * Cancel the Timeout, it is unlinked from its slot at the next tick
+	 * @return true if the timeout was pending
+	 */
+	boolean cancel(Timeout timeout) {
+		if (!timeout.cancel())
+			return false;
+		cancelled_.offer(timeout);
+		cancelled_count_.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Wheel thread, advances a tick at a time and expires the timers of the tick.
+	 */
+	public void run() {
+		ArrayList<Timeout> expired = new ArrayList<Timeout>();
+		ArrayList<VirtualTimerTask> batch = new ArrayList<VirtualTimerTask>();
+		while (!stopped_) {
+			long next = start_ns_ + (current_ + 1) * tick_ns_;
+			long sleep = next - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+				} catch (InterruptedException e) {
+					break;
+				}
+				continue;
+			}
+
+			// catch up all the ticks which passed, then deliver their timers at once
+			long now_tick = (System.nanoTime() - start_ns_) / tick_ns_;
+			while (current_ < now_tick) {
+				current_++;
+				advance(expired);
+			}
+
+			for (int i = 0; i < expired.size(); i++) {
+				Timeout timeout = expired.get(i);
+				if (timeout.expire())
+					batch.add(timeout.task_);
+			}
+			expired.clear();
+
+			if (!batch.isEmpty()) {
+				expired_count_.addAndGet(batch.size());
+				batches_.incrementAndGet();
+				if (batch.size() > max_batch_)
+					max_batch_ = batch.size();
+				try {
+					handler_.expired(batch, new Date());
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Expiry handler failed: " + e.getMessage());
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	/**
+	 * Process the tick current_: unlink the cancelled timers, move down the
+	 * timers of the higher wheels whose turn it is, place the newly scheduled
+	 * timers and collect the timers of the tick. Only called by the wheel thread.
+	 */
+	private void advance(ArrayList<Timeout> expired) {
+		Timeout timeout;
+		while ((timeout = cancelled_.poll()) != null) {
+			if (timeout.slot_ != null)
+				timeout.slot_.remove(timeout);
+		}
+
+		for (int level = 1; level < LEVELS; level++) {
+			if ((current_ & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+				break;
+			int index = (int) (current_ >>> (SLOT_BITS * level)) & (SLOTS - 1);
+			Timeout t = wheels_[level][index].take_all();
+			while (t != null) {
+				Timeout next = t.next_;
+				t.prev_ = null;
+				t.next_ = null;
+				if (!t.cancelled())
+					place(t, false);
+				t = next;
+			}
+		}
+
+		while ((timeout = scheduled_.poll()) != null) {
+			if (!timeout.cancelled())
+				place(timeout, true);
+		}
+
+		Timeout t = wheels_[0][(int) current_ & (SLOTS - 1)].take_all();
+		while (t != null) {
+			Timeout next = t.next_;
+			t.prev_ = null;
+			t.next_ = null;
+			if (t.tick_ <= current_)
+				expired.add(t);
+			else
+				place(t, false);
+			t = next;
+		}
+	}
+
+	/**
+	 * Link the timeout in the slot of the wheel covering its distance from the current tick
+	 * @param fresh whether the expiration tick still has to be computed
+	 */
+	private void place(Timeout timeout, boolean fresh) {
+		if (fresh) {
+			long ticks = timeout.deadline_ - start_ns_;
+			timeout.tick_ = ticks <= 0 ? 0 : (ticks + tick_ns_ - 1) / tick_ns_;
+		}
+
+		long tick = Math.max(timeout.tick_, current_);
+		long distance = tick - current_;
+		if (distance >= SPAN) {
+			// too far for the wheels, park it in the last wheel and place it again later
+			tick = current_ + SPAN - 1;
+			distance = SPAN - 1;
+		}
+
+		int level = 0;
+		while (level < LEVELS - 1 && distance >= (1L << (SLOT_BITS * (level + 1))))
+			level++;
+		int index = (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+		wheels_[level][index].add(timeout);
+	}
+
+	/**
+	 * Format the given StringBuffer with the timer statistics.
+	 */
+	public void get_stats(StringBuffer buf) {
+		buf.append(String.format("%d scheduled_timers -- " + "%d cancelled_timers -- "
+				+ "%d expired_timers -- " + "%d timer_batches -- " + "%d max_timer_batch -- ",
+				scheduled_count_.get(), cancelled_count_.get(), expired_count_.get(),
+				batches_.get(), max_batch_));
+	}
+
+	/**
+	 * Compare scheduling and cancelling timers on a java.util.Timer, the way
+	 * VirtualTimerTask worked before, with the TimingWheel, and log the time of
+	 * both. Every timer is scheduled within the next hour and half of them
+	 * are cancelled again, then a last timer is scheduled shortly and waited for.
+	 * @param timers number of timers, for example 100000
+	 * @param buf StringBuffer to append the result to
+	 * @return true if the last timer of the TimingWheel expired
+	 */
+	public static boolean test_schedule_cancel(int timers, StringBuffer buf) {
+		final long hour = 3600 * 1000L;
+
+		// previous way, a TimerTask on a java.util.Timer for every schedule
+		Timer timer = new Timer(true);
+		TimerTask[] tasks = new TimerTask[timers];
+		long start = System.nanoTime();
+		for (int i = 0; i < timers; i++) {
+			tasks[i] = new TimerTask() {
+				public void run() {
+				}
+			};
+			timer.schedule(tasks[i], 1000 + (i * 7919L) % hour);
+		}
+		long timer_schedule = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < timers; i += 2)
+			tasks[i].cancel();
+		timer.purge();
+		long timer_cancel = System.nanoTime() - start;
+		timer.cancel();
+		tasks = null;
+
+		// TimingWheel
+		TimingWheel wheel = new TimingWheel();
+		final Object done = new Object();
+		final boolean[] fired = new boolean[1];
+		wheel.set_expiry_handler(new ExpiryHandler() {
+			public void expired(java.util.List<VirtualTimerTask> batch, Date now) {
+				synchronized (done) {
+					fired[0] = true;
+					done.notifyAll();
+				}
+			}
+		});
+		wheel.start(10);
+
+		VirtualTimerTask nothing = new VirtualTimerTask() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void timeout(Date now) {
+			}
+		};
+		Timeout[] timeouts = new Timeout[timers];
+		start = System.nanoTime();
+		for (int i = 0; i < timers; i++)
+			timeouts[i] = wheel.schedule(nothing, 1000 + (i * 7919L) % hour);
+		long wheel_schedule = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < timers; i += 2)
+			wheel.cancel(timeouts[i]);
+		long wheel_cancel = System.nanoTime() - start;
+
+		// the scheduled timers are placed at the next tick, the last timer
+		// expires after them
+		boolean ok;
+		start = System.nanoTime();
+		wheel.schedule(nothing, 50);
+		synchronized (done) {
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!fired[0] && System.currentTimeMillis() < deadline) {
+				try {
+					done.wait(100);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			ok = fired[0];
+		}
+		long wheel_expire = System.nanoTime() - start;
+		wheel.shutdown();
+
+		String result = String.format("%d timers, half cancelled: java.util.Timer schedule %d ms "
+				+ "cancel %d ms, TimingWheel schedule %d ms cancel %d ms, 50 ms timer expired after %d ms",
+				timers, timer_schedule / 1000000L, timer_cancel / 1000000L,
+				wheel_schedule / 1000000L, wheel_cancel / 1000000L, wheel_expire / 1000000L);
+		Log.d(TAG, result);
+		buf.append(result).append("\n");
+		return ok;
+	}
+
+	/**
+	 * The wheels, wheels_[0] has a slot per tick
+	 */
+	private final Slot[][] wheels_;
+
+	/**
+	 * Timeouts scheduled since the last tick
+	 */
+	private final ConcurrentLinkedQueue<Timeout> scheduled_;
+
+	/**
+	 * Timeouts cancelled since the last tick, to be unlinked from their slots
+	 */
+	private final ConcurrentLinkedQueue<Timeout> cancelled_;
+
+	/**
+	 * Receiver of the expired timers
+	 */
+	private volatile ExpiryHandler handler_;
+
+	/**
+	 * Length of a tick in nanoseconds
+	 */
+	private volatile long tick_ns_;
+
+	/**
+	 * System.nanoTime of tick 0
+	 */
+	private volatile long start_ns_;
+
+	/**
+	 * Last processed tick, only used by the wheel thread
+	 */
+	private long current_;
+
+	/**
+	 * Wheel thread, null if the wheel is not started
+	 */
+	private Thread thread_;
+
+	/**
+	 * Flag to stop the wheel thread
+	 */
+	private volatile boolean stopped_;
+
+	/**
+	 * Number of schedules
+	 */
+	private final AtomicLong scheduled_count_ = new AtomicLong();
+
+	/**
+	 * Number of cancellations of pending timers
+	 */
+	private final AtomicLong cancelled_count_ = new AtomicLong();
+
+	/**
+	 * Number of expired timers
+	 */
+	private final AtomicLong expired_count_ = new AtomicLong();
+
+	/**
+	 * Number of expiry batches
+	 */
+	private final AtomicLong batches_ = new AtomicLong();
+
+	/**
+	 * Largest expiry batch
+	 */
+	private volatile int max_batch_;
+}
@@ -23,13 +23,9 @@ package se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.thread;
 
 import java.io.Serializable;
 import java.util.Date;
-import java.util.TimerTask;
-
-import se.kth.ssvl.tslab.bytewalla.androiddtn.DTNService;
-import android.util.Log;
 
 /**
- * VirtualTimerTask for adding more complex constructor than Android TimerTask. This is executed by creating associated TimerTask and put it in DTNServer's Timer
+ * VirtualTimerTask for adding more complex constructor than Android TimerTask. This is executed by scheduling it on the TimingWheel of the DTNService
  * 
  * @author Rerngvit Yanggratoke (rerngvit@kth.se) 
  */
@@ -41,12 +37,7 @@ public abstract class VirtualTimerTask implements Serializable {
 	private static final long serialVersionUID = -9163883997670164701L;
 	
 	/**
-	 * String TAG for supporting Android Logging mechanism
-	 */
-	private static String TAG = "VirtualTimerTask";
-	
-	/**
-	 * flag whether this task is waiting to be executed in the future, in other words, whether it is scheduled to the DTNServer Timer.
+	 * flag whether this task is waiting to be executed in the future, in other words, whether it is scheduled to the TimingWheel.
 	 */
 	private boolean pending_   = false;
 	/**
@@ -54,6 +45,11 @@ public abstract class VirtualTimerTask implements Serializable {
 	 */
 	private boolean cancelled_ = false;
 	
+	/**
+	 * The current schedule of this task in the TimingWheel
+	 */
+	private transient volatile TimingWheel.Timeout timeout_;
+	
 	/**
 	 * Accessor whether this task was already cancelled
 	 * @return
@@ -63,7 +59,7 @@ public abstract class VirtualTimerTask implements Serializable {
 		return cancelled_;		
 	}
 	/**
-	 * Accessor whether this task is waiting to be executed in the future, in other words, whether it is scheduled to the DTNServer Timer.
+	 * Accessor whether this task is waiting to be executed in the future, in other words, whether it is scheduled to the TimingWheel.
 	 * @return
 	 */
 	public boolean pending()
@@ -80,83 +76,70 @@ public abstract class VirtualTimerTask implements Serializable {
 	}
 	
 	/**
-	 * Cancel the task and it will not be executed anymore in the DTNServer timer
+	 * Cancel the task and it will not be executed anymore by the TimingWheel. This does not wait for the wheel thread.
 	 */
 	public void cancel()
 	{
 		cancelled_ = true;
-		TimerTask timer_task = get_associated_TimerTask();
-		if (timer_task!= null)
+		TimingWheel.Timeout timeout = timeout_;
+		if (timeout != null)
 		{
-			timer_task.cancel();
-			DTNService.timer_tasks_map().remove(this);
+			TimingWheel.getInstance().cancel(timeout);
+			timeout_ = null;
 		}
 		
 	}
 	
 	/**
-	 * Accessor for the associate TimerTask in the DTNServer's Timer
-	 * @return the associate TimerTask in the DTNServer's Timer 
+	 * Schedule to work after the delay in seconds from current time
 	 */
-	public TimerTask get_associated_TimerTask()
+	public void schedule_in(int schedule_delay_second)
 	{
-		TimerTask timer_task = DTNService.timer_tasks_map().get(this);
-		
-		
-		
-		if (timer_task == null)
-			Log.e(TAG, "Virtual Timer Task for this is not exist");
-		
-		return timer_task;
+		schedule_after(schedule_delay_second * 1000L);
 	}
 	
 	/**
-	 * Create an associate TimerTask for this VirtualTimerTask
-	 * @return
+	 * Schedule to work at the specified time
 	 */
-	private TimerTask create_associated_TimerTask()
+	public void schedule_at(Date when)
 	{
-		return new TimerTask() {
-			
-			
-			@Override
-			public void run() {
-				pending_ = false;
-				timeout(new Date());
-				
-			}};
+		schedule_after(when.getTime() - System.currentTimeMillis());
 	}
+	
 	/**
-	 * Schedule to work after the delay in seconds from current time
+	 * Run the task now, called when the TimingWheel expires it
+	 * @param now current time
 	 */
-	public void schedule_in(int schedule_delay_second)
+	public void fire(Date now)
 	{
-		pending_   = true;
-		cancelled_ = false;
-		
-		// create and associated timer task
-		TimerTask associated_timer_task = create_associated_TimerTask();
-		
-		DTNService.timer_tasks_map().put(this, associated_timer_task);
-		
-		DTNService.timer().schedule(associated_timer_task, (schedule_delay_second * 1000));
-		
+		mark_expired();
+		timeout(now);
 	}
 	
 	/**
-	 * Schedule to work at the specified time
+	 * Mark the task as not pending anymore, for subclasses running their expiration differently than fire.
+	 * The expired schedule is dropped, unless the task was scheduled again in the meantime.
 	 */
-	public void schedule_at(Date when)
+	protected final void mark_expired()
+	{
+		pending_ = false;
+		TimingWheel.Timeout timeout = timeout_;
+		if (timeout != null && timeout.expired())
+			timeout_ = null;
+	}
+	
+	/**
+	 * Schedule on the TimingWheel after the delay in milliseconds, replacing a previous schedule
+	 */
+	private void schedule_after(long delay)
 	{
+		TimingWheel.Timeout previous = timeout_;
+		if (previous != null)
+			TimingWheel.getInstance().cancel(previous);
+		
 		pending_   = true;
 		cancelled_ = false;
-		
-		TimerTask associated_timer_task = create_associated_TimerTask();
-		
-		DTNService.timer_tasks_map().put(this, associated_timer_task);
-		
-	
-		DTNService.timer().schedule(associated_timer_task, when);
+		timeout_ = TimingWheel.getInstance().schedule(this, delay);
 	}
 	
 	/**
@@ -22,6 +22,7 @@ package se.kth.ssvl.tslab.bytewalla.androiddtn.systemlib.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Interface for logical Byte Buffer used in Android DTN. 
@@ -161,6 +162,14 @@ public interface IByteBuffer{
 	 */
 	public byte[] array();
 
+	/**
+	 * Return a java.nio.ByteBuffer sharing the data of this IByteBuffer from the current position
+	 * with the specified length. The position of this IByteBuffer is not moved.
+	 * @param length number of bytes the returned ByteBuffer covers
+	 * @return the ByteBuffer view
+	 */
+	public ByteBuffer asNioBuffer(int length);
+
 	
 	
 }
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /**
  * A serializabe implementation of IByteBuffer
@@ -136,6 +137,11 @@ public class SerializableByteBuffer implements Serializable, IByteBuffer {
 	}
 
 	
+	public ByteBuffer asNioBuffer(int length) {
+		return ByteBuffer.wrap(backing_array_, position_, length);
+	}
+
+	
 	public IByteBuffer asReadOnlyBuffer() {
 
 		return new SerializableByteBuffer(this);